@@ -0,0 +1,169 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2015 by Francesco Corcoglioniti with support by Alessio Palmero Aprosio and Marco
+ * Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.binary;
+
+import java.util.Arrays;
+
+import org.openrdf.rio.RDFFormat;
+
+/**
+ * Constants for the Binary Quads (BQ) format.
+ * <p>
+ * BQ is a compact binary format for RDF quads, organized in blocks that are compressed and
+ * decoded independently. A BQ file is a sequence of blocks, each one encoded as follows:
+ * </p>
+ *
+ * <pre>
+ * file    := block*
+ * block   := COBS(DEFLATE(payload)) 0x00
+ * payload := version:u8 numTerms:varint term* numQuads:varint quad*
+ * term    := 'U' string                          (URI)
+ *          | 'B' string                          (BNode)
+ *          | 'L' string                          (plain literal)
+ *          | 'T' string string                   (language-tagged literal)
+ *          | 'D' string datatype:varint          (typed literal, datatype is a previous term)
+ * quad    := mask:u8 (delta:zigzag-varint)*      (one delta per component flagged in mask)
+ * string  := length:varint UTF-8 bytes
+ * </pre>
+ * <p>
+ * Terms are numbered from 1 within each block in order of definition (0 denotes the default
+ * context). Each quad stores, for each of its subject, predicate, object and context flagged in
+ * the mask (bits 0 to 3), the difference between its term number and the one of the same
+ * component in the previous quad of the block; components not flagged are unchanged. Compressed
+ * bytes are escaped with Consistent Overhead Byte Stuffing (COBS), so that byte 0x00 only
+ * occurs at the end of a block: BQ files can thus be split at 0x00 bytes and their parts parsed
+ * and written in parallel, as done for line-based formats.
+ * </p>
+ * <p>
+ * The Binary Quads {@link RDFFormat} is defined by constant {@link #FORMAT} and is registered
+ * automatically via the Rio service loader mechanism when this module is on the classpath.
+ * </p>
+ */
+public final class BQ {
+
+    /** RDFFormat constant for the Binary Quads (BQ) format. */
+    public static final RDFFormat FORMAT = new RDFFormat("Binary Quads", "application/x-bq",
+            null, "bq", false, true);
+
+    // Package protected constants and utility methods
+
+    static final int VERSION = 1;
+
+    static final byte URI = 'U';
+
+    static final byte BNODE = 'B';
+
+    static final byte PLAIN_LITERAL = 'L';
+
+    static final byte LANG_LITERAL = 'T';
+
+    static final byte TYPED_LITERAL = 'D';
+
+    static final byte DELIMITER = 0;
+
+    private BQ() {
+    }
+
+    static int zigzag(final int n) {
+        return n << 1 ^ n >> 31;
+    }
+
+    static int unzigzag(final int n) {
+        return n >>> 1 ^ -(n & 1);
+    }
+
+    /**
+     * Writes the unsigned varint encoding of {@code n} at {@code offset}, returning the offset
+     * after it; up to 5 bytes are written.
+     */
+    static int writeVarint(final byte[] buffer, int offset, int n) {
+        while ((n & ~0x7F) != 0) {
+            buffer[offset++] = (byte) (n & 0x7F | 0x80);
+            n >>>= 7;
+        }
+        buffer[offset++] = (byte) n;
+        return offset;
+    }
+
+    /**
+     * Reverses {@link #writeVarint(byte[], int, int)}, reading the varint at {@code offset} and
+     * returning the offset after it in the upper 32 bits and its value in the lower 32 bits, or
+     * -1 if the varint does not end before {@code end} or is longer than 5 bytes.
+     */
+    static long readVarint(final byte[] buffer, int offset, final int end) {
+        int result = 0;
+        for (int shift = 0; shift < 32 && offset < end; shift += 7) {
+            final byte b = buffer[offset++];
+            result |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return (long) offset << 32 | result & 0xFFFFFFFFL;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Escapes the bytes specified so that they contain no 0x00 byte, returning the number of
+     * bytes written to {@code out}, which must have room for {@code length + length / 254 + 1}
+     * bytes.
+     */
+    static int cobsEncode(final byte[] in, final int length, final byte[] out) {
+        int codeIndex = 0;
+        int outIndex = 1;
+        int code = 1;
+        for (int i = 0; i < length; ++i) {
+            final byte b = in[i];
+            if (b != 0) {
+                out[outIndex++] = b;
+                ++code;
+            }
+            if (b == 0 || code == 0xFF) {
+                out[codeIndex] = (byte) code;
+                codeIndex = outIndex++;
+                code = 1;
+            }
+        }
+        out[codeIndex] = (byte) code;
+        return outIndex;
+    }
+
+    /**
+     * Reverses {@link #cobsEncode(byte[], int, byte[])}, decoding in place the escaped bytes
+     * starting at {@code offset} and returning their decoded length, or -1 if the input is
+     * malformed.
+     */
+    static int cobsDecode(final byte[] buffer, final int offset, final int length) {
+        final int end = offset + length;
+        int inIndex = offset;
+        int outIndex = offset;
+        while (inIndex < end) {
+            final int code = buffer[inIndex++] & 0xFF;
+            if (code == 0 || inIndex + code - 1 > end) {
+                return -1;
+            }
+            System.arraycopy(buffer, inIndex, buffer, outIndex, code - 1);
+            inIndex += code - 1;
+            outIndex += code - 1;
+            if (code < 0xFF && inIndex < end) {
+                buffer[outIndex++] = 0;
+            }
+        }
+        return outIndex - offset;
+    }
+
+    static byte[] grow(final byte[] buffer, final int minLength) {
+        return Arrays.copyOf(buffer, Math.max(minLength, buffer.length * 2));
+    }
+
+}
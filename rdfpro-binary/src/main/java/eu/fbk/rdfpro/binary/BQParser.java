@@ -0,0 +1,278 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2015 by Francesco Corcoglioniti with support by Alessio Palmero Aprosio and Marco
+ * Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.binary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Objects;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.RDFParserBase;
+
+/**
+ * A parser that can parse RDF documents that are in the Binary Quads (BQ) format.
+ * <p>
+ * Blocks are read from the input stream one at a time, up to their terminating 0x00 byte, and
+ * then unescaped, decompressed and decoded. As blocks are independent, the parser can be
+ * applied to any part of a BQ file that starts and ends at block boundaries, e.g., to parse a
+ * file in parallel with multiple parser instances. BQ documents cannot be parsed from a
+ * {@code Reader}.
+ * </p>
+ */
+public class BQParser extends RDFParserBase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private byte[] buffer;
+
+    private byte[] payload;
+
+    private int pos;
+
+    private int end;
+
+    private int blockNo;
+
+    /**
+     * Creates a new BQParser that will use a {@link ValueFactoryImpl} to create RDF model
+     * objects.
+     */
+    public BQParser() {
+        super();
+    }
+
+    /**
+     * Creates a new BQParser that will use the supplied ValueFactory to create RDF model
+     * objects.
+     *
+     * @param valueFactory
+     *            the ValueFactory to use
+     */
+    public BQParser(final ValueFactory valueFactory) {
+        super(valueFactory);
+    }
+
+    @Override
+    public RDFFormat getRDFFormat() {
+        return BQ.FORMAT;
+    }
+
+    @Override
+    public void parse(final Reader reader, final String baseURI) throws IOException,
+            RDFParseException, RDFHandlerException {
+        throw new UnsupportedOperationException("BQ documents cannot be parsed from a Reader");
+    }
+
+    @Override
+    public void parse(final InputStream stream, final String baseURI) throws IOException,
+            RDFParseException, RDFHandlerException {
+
+        Objects.requireNonNull(stream);
+
+        if (this.rdfHandler != null) {
+            this.rdfHandler.startRDF();
+        }
+
+        this.buffer = new byte[BUFFER_SIZE];
+        this.payload = new byte[BUFFER_SIZE];
+        this.blockNo = 0;
+
+        final Inflater inflater = new Inflater();
+        try {
+            int start = 0; // start of current block in buffer
+            int limit = 0; // end of valid data in buffer
+            int index = 0; // next byte to scan for the block delimiter
+            while (true) {
+                if (index == limit) {
+                    if (start > 0) {
+                        System.arraycopy(this.buffer, start, this.buffer, 0, limit - start);
+                        index -= start;
+                        limit -= start;
+                        start = 0;
+                    } else if (limit == this.buffer.length) {
+                        this.buffer = BQ.grow(this.buffer, limit + 1);
+                    }
+                    final int n = stream.read(this.buffer, limit, this.buffer.length - limit);
+                    if (n < 0) {
+                        if (limit > start) {
+                            parseBlock(inflater, start, limit); // unterminated last block
+                        }
+                        break;
+                    }
+                    limit += n;
+                }
+                if (this.buffer[index++] == BQ.DELIMITER) {
+                    parseBlock(inflater, start, index - 1);
+                    start = index;
+                }
+            }
+        } finally {
+            inflater.end();
+            clear();
+            this.buffer = null;
+            this.payload = null;
+        }
+
+        if (this.rdfHandler != null) {
+            this.rdfHandler.endRDF();
+        }
+    }
+
+    private void parseBlock(final Inflater inflater, final int start, final int end)
+            throws RDFParseException, RDFHandlerException {
+
+        ++this.blockNo;
+
+        // Unescape and decompress the block
+        final int length = BQ.cobsDecode(this.buffer, start, end - start);
+        if (length < 0) {
+            throwParseException("Invalid block encoding");
+        }
+        int payloadLength = 0;
+        try {
+            inflater.reset();
+            inflater.setInput(this.buffer, start, length);
+            while (!inflater.finished()) {
+                if (payloadLength == this.payload.length) {
+                    this.payload = BQ.grow(this.payload, payloadLength + 1);
+                }
+                final int n = inflater.inflate(this.payload, payloadLength, this.payload.length
+                        - payloadLength);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throwParseException("Truncated block");
+                }
+                payloadLength += n;
+            }
+        } catch (final DataFormatException ex) {
+            throwParseException("Invalid block data: " + ex.getMessage());
+        }
+        this.pos = 0;
+        this.end = payloadLength;
+
+        // Decode the terms, numbered from 1 (0 denotes the default context)
+        if (readByte() != BQ.VERSION) {
+            throwParseException("Unsupported block version");
+        }
+        final int numTerms = readVarint();
+        final Value[] terms = new Value[numTerms + 1];
+        for (int i = 1; i <= numTerms; ++i) {
+            final byte type = readByte();
+            final String string = readString();
+            if (type == BQ.URI) {
+                terms[i] = createURI(string);
+            } else if (type == BQ.BNODE) {
+                terms[i] = createBNode(string);
+            } else if (type == BQ.PLAIN_LITERAL) {
+                terms[i] = createLiteral(string, null, null);
+            } else if (type == BQ.LANG_LITERAL) {
+                terms[i] = createLiteral(string, readString(), null);
+            } else if (type == BQ.TYPED_LITERAL) {
+                final Value datatype = term(terms, readVarint(), i);
+                if (!(datatype instanceof URI)) {
+                    throwParseException("Invalid datatype for term " + i);
+                }
+                terms[i] = createLiteral(string, null, (URI) datatype);
+            } else {
+                throwParseException("Invalid term type " + type);
+            }
+        }
+
+        // Decode the quads, each one as a delta w.r.t. the previous one
+        final int numQuads = readVarint();
+        int s = 0;
+        int p = 0;
+        int o = 0;
+        int c = 0;
+        for (int i = 0; i < numQuads; ++i) {
+            final int mask = readByte();
+            s += (mask & 0x1) == 0 ? 0 : BQ.unzigzag(readVarint());
+            p += (mask & 0x2) == 0 ? 0 : BQ.unzigzag(readVarint());
+            o += (mask & 0x4) == 0 ? 0 : BQ.unzigzag(readVarint());
+            c += (mask & 0x8) == 0 ? 0 : BQ.unzigzag(readVarint());
+            final Value subj = term(terms, s, terms.length);
+            final Value pred = term(terms, p, terms.length);
+            final Value obj = term(terms, o, terms.length);
+            if (!(subj instanceof Resource) || !(pred instanceof URI)) {
+                throwParseException("Invalid quad " + i);
+            }
+            if (this.rdfHandler != null) {
+                final Statement statement;
+                if (c == 0) {
+                    statement = createStatement((Resource) subj, (URI) pred, obj);
+                } else {
+                    final Value ctx = term(terms, c, terms.length);
+                    if (!(ctx instanceof Resource)) {
+                        throwParseException("Invalid context for quad " + i);
+                    }
+                    statement = createStatement((Resource) subj, (URI) pred, obj,
+                            (Resource) ctx);
+                }
+                this.rdfHandler.handleStatement(statement);
+            }
+        }
+    }
+
+    private Value term(final Value[] terms, final int index, final int limit)
+            throws RDFParseException {
+        if (index <= 0 || index >= limit) {
+            throwParseException("Invalid term reference " + index);
+        }
+        return terms[index];
+    }
+
+    private byte readByte() throws RDFParseException {
+        if (this.pos >= this.end) {
+            throwParseException("Unexpected end of block");
+        }
+        return this.payload[this.pos++];
+    }
+
+    private int readVarint() throws RDFParseException {
+        final long result = BQ.readVarint(this.payload, this.pos, this.end);
+        if (result < 0) {
+            throwParseException("Invalid varint");
+        }
+        this.pos = (int) (result >>> 32);
+        return (int) result;
+    }
+
+    private String readString() throws RDFParseException {
+        final int length = readVarint();
+        if (length < 0 || length > this.end - this.pos) {
+            throwParseException("Invalid string length " + length);
+        }
+        final String string = new String(this.payload, this.pos, length, UTF8);
+        this.pos += length;
+        return string;
+    }
+
+    private void throwParseException(final String message) throws RDFParseException {
+        throw new RDFParseException(message + " (block " + this.blockNo + ")");
+    }
+
+}
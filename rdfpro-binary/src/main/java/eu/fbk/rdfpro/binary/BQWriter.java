@@ -0,0 +1,279 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2015 by Francesco Corcoglioniti with support by Alessio Palmero Aprosio and Marco
+ * Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFWriterBase;
+
+/**
+ * An implementation of the RDFWriter interface that writes RDF documents in the Binary Quads
+ * (BQ) format.
+ * <p>
+ * Statements are accumulated in a block, together with the terms they use, and each block is
+ * compressed and written to the underlying stream with a single {@code write()} call as soon as
+ * it reaches a certain number of statements or bytes, or when {@link #endRDF()} is called.
+ * Writing multiple BQ writers to the same file is thus possible, provided that their blocks are
+ * written atomically (e.g., by splitting data at 0x00 bytes). Namespaces and comments are
+ * ignored.
+ * </p>
+ */
+public class BQWriter extends RDFWriterBase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_BLOCK_QUADS = 64 * 1024;
+
+    private static final int MAX_BLOCK_BYTES = 1024 * 1024;
+
+    private final OutputStream stream;
+
+    private final Map<Value, Integer> terms;
+
+    private byte[] termBytes;
+
+    private int termLength;
+
+    private byte[] quadBytes;
+
+    private int quadLength;
+
+    private int numQuads;
+
+    private final int[] last;
+
+    private byte[] payloadBytes;
+
+    private byte[] compressedBytes;
+
+    private byte[] escapedBytes;
+
+    /**
+     * Creates a new BQWriter that will write to the supplied OutputStream.
+     *
+     * @param stream
+     *            the OutputStream to write to
+     */
+    public BQWriter(final OutputStream stream) {
+        if (stream == null) {
+            throw new NullPointerException("Null stream");
+        }
+        this.stream = stream;
+        this.terms = new HashMap<Value, Integer>();
+        this.termBytes = new byte[64 * 1024];
+        this.quadBytes = new byte[64 * 1024];
+        this.last = new int[4];
+        this.payloadBytes = new byte[0];
+        this.compressedBytes = new byte[0];
+        this.escapedBytes = new byte[0];
+    }
+
+    @Override
+    public RDFFormat getRDFFormat() {
+        return BQ.FORMAT;
+    }
+
+    @Override
+    public void startRDF() throws RDFHandlerException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleComment(final String comment) throws RDFHandlerException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleNamespace(final String prefix, final String uri) throws RDFHandlerException {
+        // nothing to do
+    }
+
+    @Override
+    public void handleStatement(final Statement statement) throws RDFHandlerException {
+
+        final Resource ctx = statement.getContext();
+        final int s = term(statement.getSubject());
+        final int p = term(statement.getPredicate());
+        final int o = term(statement.getObject());
+        final int c = ctx == null ? 0 : term(ctx);
+
+        ensureQuadCapacity(1 + 4 * 5);
+        final int maskIndex = this.quadLength++;
+        int mask = 0;
+        mask |= writeDelta(0, s);
+        mask |= writeDelta(1, p) << 1;
+        mask |= writeDelta(2, o) << 2;
+        mask |= writeDelta(3, c) << 3;
+        this.quadBytes[maskIndex] = (byte) mask;
+        ++this.numQuads;
+
+        if (this.numQuads >= MAX_BLOCK_QUADS
+                || this.termLength + this.quadLength >= MAX_BLOCK_BYTES) {
+            try {
+                flushBlock();
+            } catch (final IOException ex) {
+                throw new RDFHandlerException(ex);
+            }
+        }
+    }
+
+    @Override
+    public void endRDF() throws RDFHandlerException {
+        try {
+            flushBlock();
+            this.stream.flush();
+        } catch (final IOException ex) {
+            throw new RDFHandlerException(ex);
+        }
+    }
+
+    private int term(final Value value) {
+        final Integer index = this.terms.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (value instanceof URI) {
+            writeTerm(BQ.URI, value.stringValue());
+        } else if (value instanceof BNode) {
+            writeTerm(BQ.BNODE, ((BNode) value).getID());
+        } else {
+            final Literal literal = (Literal) value;
+            final String language = literal.getLanguage();
+            final URI datatype = literal.getDatatype();
+            if (language != null) {
+                writeTerm(BQ.LANG_LITERAL, literal.getLabel());
+                writeString(language);
+            } else if (datatype != null && !XMLSchema.STRING.equals(datatype)) {
+                final int datatypeIndex = term(datatype); // defined before the literal
+                writeTerm(BQ.TYPED_LITERAL, literal.getLabel());
+                ensureTermCapacity(5);
+                this.termLength = BQ.writeVarint(this.termBytes, this.termLength, datatypeIndex);
+            } else {
+                writeTerm(BQ.PLAIN_LITERAL, literal.getLabel());
+            }
+        }
+        final int result = this.terms.size() + 1;
+        this.terms.put(value, result);
+        return result;
+    }
+
+    private void writeTerm(final byte type, final String string) {
+        ensureTermCapacity(1);
+        this.termBytes[this.termLength++] = type;
+        writeString(string);
+    }
+
+    private void writeString(final String string) {
+        final byte[] bytes = string.getBytes(UTF8);
+        ensureTermCapacity(5 + bytes.length);
+        this.termLength = BQ.writeVarint(this.termBytes, this.termLength, bytes.length);
+        System.arraycopy(bytes, 0, this.termBytes, this.termLength, bytes.length);
+        this.termLength += bytes.length;
+    }
+
+    private int writeDelta(final int component, final int index) {
+        final int delta = index - this.last[component];
+        if (delta == 0) {
+            return 0;
+        }
+        this.last[component] = index;
+        this.quadLength = BQ.writeVarint(this.quadBytes, this.quadLength, BQ.zigzag(delta));
+        return 1;
+    }
+
+    private void flushBlock() throws IOException {
+
+        if (this.numQuads == 0) {
+            return;
+        }
+
+        // Assemble the payload: header, terms and quads
+        final int maxLength = 1 + 10 + this.termLength + this.quadLength;
+        if (this.payloadBytes.length < maxLength) {
+            this.payloadBytes = new byte[maxLength];
+        }
+        int length = 0;
+        this.payloadBytes[length++] = BQ.VERSION;
+        length = BQ.writeVarint(this.payloadBytes, length, this.terms.size());
+        System.arraycopy(this.termBytes, 0, this.payloadBytes, length, this.termLength);
+        length += this.termLength;
+        length = BQ.writeVarint(this.payloadBytes, length, this.numQuads);
+        System.arraycopy(this.quadBytes, 0, this.payloadBytes, length, this.quadLength);
+        length += this.quadLength;
+
+        // Compress the payload
+        int compressedLength = 0;
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(this.payloadBytes, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (compressedLength == this.compressedBytes.length) {
+                    this.compressedBytes = BQ.grow(this.compressedBytes, length / 2 + 64);
+                }
+                compressedLength += deflater.deflate(this.compressedBytes, compressedLength,
+                        this.compressedBytes.length - compressedLength);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // Escape 0x00 bytes, append the block delimiter and emit the block in a single write
+        final int maxEscapedLength = compressedLength + compressedLength / 254 + 2;
+        if (this.escapedBytes.length < maxEscapedLength) {
+            this.escapedBytes = new byte[maxEscapedLength];
+        }
+        int escapedLength = BQ.cobsEncode(this.compressedBytes, compressedLength,
+                this.escapedBytes);
+        this.escapedBytes[escapedLength++] = BQ.DELIMITER;
+        this.stream.write(this.escapedBytes, 0, escapedLength);
+
+        // Reset block state
+        this.terms.clear();
+        this.termLength = 0;
+        this.quadLength = 0;
+        this.numQuads = 0;
+        this.last[0] = 0;
+        this.last[1] = 0;
+        this.last[2] = 0;
+        this.last[3] = 0;
+    }
+
+    private void ensureTermCapacity(final int length) {
+        if (this.termLength + length > this.termBytes.length) {
+            this.termBytes = BQ.grow(this.termBytes, this.termLength + length);
+        }
+    }
+
+    private void ensureQuadCapacity(final int length) {
+        if (this.quadLength + length > this.quadBytes.length) {
+            this.quadBytes = BQ.grow(this.quadBytes, this.quadLength + length);
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2015 by Francesco Corcoglioniti with support by Alessio Palmero Aprosio and Marco
+ * Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.binary;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.RDFWriterFactory;
+
+/**
+ * An {@link RDFWriterFactory} for BQ writers.
+ */
+public class BQWriterFactory implements RDFWriterFactory {
+
+    /**
+     * Returns {@link BQ#FORMAT}.
+     */
+    @Override
+    public RDFFormat getRDFFormat() {
+        return BQ.FORMAT;
+    }
+
+    /**
+     * Returns a new instance of {@link BQWriter}.
+     */
+    @Override
+    public RDFWriter getWriter(final OutputStream out) {
+        return new BQWriter(out);
+    }
+
+    /**
+     * Throws {@link UnsupportedOperationException}, as BQ is a binary format.
+     */
+    @Override
+    public RDFWriter getWriter(final Writer writer) {
+        throw new UnsupportedOperationException("BQ documents cannot be written to a Writer");
+    }
+
+}
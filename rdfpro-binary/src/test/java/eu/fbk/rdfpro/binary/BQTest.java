@@ -0,0 +1,175 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2015 by Francesco Corcoglioniti with support by Alessio Palmero Aprosio and Marco
+ * Rospocher. Contact info on http://rdfpro.fbk.eu/
+ *
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.StatementCollector;
+
+public class BQTest {
+
+    @Test
+    public void testCobs() {
+        testCobs(new byte[0]); // empty block
+        testCobs(new byte[] { 0 });
+        testCobs(new byte[] { 0, 0, 0 });
+        testCobs(new byte[] { 0, 1, 2 }); // leading zero
+        testCobs(new byte[] { 1, 2, 0 }); // trailing zero
+        for (final int run : new int[] { 253, 254, 255, 508, 509 }) {
+            final byte[] bytes = new byte[run];
+            Arrays.fill(bytes, (byte) 0xFF);
+            testCobs(bytes);
+            final byte[] padded = new byte[run + 2]; // with leading and trailing zeros
+            Arrays.fill(padded, 1, run + 1, (byte) 1);
+            testCobs(padded);
+            testCobs(Arrays.copyOf(padded, run + 1)); // with leading zero only
+            testCobs(Arrays.copyOfRange(padded, 1, run + 2)); // with trailing zero only
+        }
+        final byte[] random = new byte[10000];
+        new Random(0).nextBytes(random);
+        testCobs(random);
+    }
+
+    @Test
+    public void testVarint() {
+        for (final int n : new int[] { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, -1 }) {
+            final byte[] buffer = new byte[5];
+            final int length = BQ.writeVarint(buffer, 0, n);
+            Assert.assertTrue(length <= 5);
+            Assert.assertEquals((long) length << 32 | n & 0xFFFFFFFFL,
+                    BQ.readVarint(buffer, 0, length));
+            Assert.assertEquals(-1L, BQ.readVarint(buffer, 0, length - 1)); // truncated
+        }
+        Assert.assertEquals(-1L, BQ.readVarint(new byte[] { -1, -1, -1, -1, -1, 1 }, 0, 6));
+    }
+
+    @Test
+    public void testZigzag() {
+        for (final int n : new int[] { 0, 1, -1, 2, -2, 63, -64, 64, -65, Integer.MAX_VALUE,
+                Integer.MIN_VALUE, Integer.MAX_VALUE - 1, Integer.MIN_VALUE + 1 }) {
+            final int z = BQ.zigzag(n);
+            Assert.assertEquals(n, BQ.unzigzag(z));
+            Assert.assertEquals(n >= -64 && n <= 63, (z & ~0x7F) == 0); // one byte if small
+            final byte[] buffer = new byte[5];
+            final int length = BQ.writeVarint(buffer, 0, z);
+            Assert.assertEquals(n, BQ.unzigzag((int) BQ.readVarint(buffer, 0, length)));
+        }
+        Assert.assertEquals(0xFFFFFFFF, BQ.zigzag(Integer.MIN_VALUE));
+        Assert.assertEquals(0xFFFFFFFE, BQ.zigzag(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testRoundTrip() throws Throwable {
+
+        // More than 64K quads, so that several blocks are written
+        final ValueFactory vf = ValueFactoryImpl.getInstance();
+        final URI dt = vf.createURI("http://ex.org/dt");
+        final List<Statement> statements = new ArrayList<Statement>();
+        for (int i = 0; i < 150000; ++i) {
+            final Resource subj = i % 5 == 0 ? vf.createBNode("b" + i / 10) : vf
+                    .createURI("http://ex.org/s" + i / 10);
+            final URI pred = vf.createURI("http://ex.org/p" + i % 7);
+            final Value obj;
+            switch (i % 6) {
+            case 0:
+                obj = vf.createURI("http://ex.org/o" + (150000 - i));
+                break;
+            case 1:
+                obj = vf.createBNode("o" + i % 1000);
+                break;
+            case 2:
+                obj = vf.createLiteral("plain è漢😀 " + i);
+                break;
+            case 3:
+                obj = vf.createLiteral("lang " + i, i % 2 == 0 ? "en" : "it");
+                break;
+            case 4:
+                obj = vf.createLiteral(i % 100);
+                break;
+            default:
+                obj = vf.createLiteral("typed " + i % 100, dt);
+            }
+            final Resource ctx = i % 4 == 0 ? null : vf.createURI("http://ex.org/g" + i % 3);
+            statements.add(ctx == null ? vf.createStatement(subj, pred, obj) : vf
+                    .createStatement(subj, pred, obj, ctx));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final BQWriter writer = new BQWriter(out);
+        writer.startRDF();
+        writer.handleNamespace("ex", "http://ex.org/");
+        for (final Statement statement : statements) {
+            writer.handleStatement(statement);
+        }
+        writer.endRDF();
+
+        // 0x00 only occurs as block delimiter
+        final byte[] bytes = out.toByteArray();
+        int numBlocks = 0;
+        for (final byte b : bytes) {
+            numBlocks += b == BQ.DELIMITER ? 1 : 0;
+        }
+        Assert.assertTrue(numBlocks >= 3);
+        Assert.assertEquals(BQ.DELIMITER, bytes[bytes.length - 1]);
+
+        final List<Statement> actual = new ArrayList<Statement>();
+        final BQParser parser = new BQParser();
+        final ParserConfig config = new ParserConfig();
+        config.set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        parser.setParserConfig(config);
+        parser.setRDFHandler(new StatementCollector(actual));
+        parser.parse(new ByteArrayInputStream(bytes), "");
+
+        Assert.assertEquals(statements.size(), actual.size());
+        for (int i = 0; i < statements.size(); ++i) {
+            final Statement expected = statements.get(i);
+            Assert.assertEquals(expected, actual.get(i));
+            Assert.assertEquals(expected.getContext(), actual.get(i).getContext());
+        }
+        Assert.assertEquals(XMLSchema.INT, ((Literal) actual.get(4)
+                .getObject()).getDatatype());
+    }
+
+    private static void testCobs(final byte[] bytes) {
+        final byte[] encoded = new byte[bytes.length + bytes.length / 254 + 1];
+        final int length = BQ.cobsEncode(bytes, bytes.length, encoded);
+        Assert.assertTrue(length <= encoded.length);
+        for (int i = 0; i < length; ++i) {
+            Assert.assertTrue(encoded[i] != 0);
+        }
+        final byte[] buffer = new byte[length + 3];
+        System.arraycopy(encoded, 0, buffer, 3, length); // decode at an offset
+        final int decodedLength = BQ.cobsDecode(buffer, 3, length);
+        Assert.assertArrayEquals(bytes, Arrays.copyOfRange(buffer, 3, 3 + decodedLength));
+    }
+
+}
@@ -15,10 +15,9 @@ package eu.fbk.rdfpro;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 
 import org.openrdf.model.Resource;
@@ -31,7 +30,7 @@ import org.openrdf.rio.RDFHandlerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import eu.fbk.rdfpro.util.Environment;
+import eu.fbk.rdfpro.util.Dictionary;
 import eu.fbk.rdfpro.util.Sorter;
 import eu.fbk.rdfpro.util.Statements;
 import eu.fbk.rdfpro.util.Tracker;
@@ -40,10 +39,6 @@ final class ProcessorMapReduce implements RDFProcessor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorMapReduce.class);
 
-    private static final int MIN_RUNNABLE_STATEMENTS = 256; // min 256 statements per runnable
-
-    private static final int MAX_RUNNABLE_MULTIPLIER = 4; // 4 runnables enqueued per core
-
     private final Mapper mapper;
 
     private final Reducer reducer;
@@ -61,23 +56,25 @@ final class ProcessorMapReduce implements RDFProcessor {
         return new Handler(Objects.requireNonNull(handler));
     }
 
-    private final class Handler extends AbstractRDFHandlerWrapper implements Consumer<Object[]> {
-
-        private final List<Value> jobKeys;
-
-        private final List<Statement[]> jobStatements;
-
-        private int jobSize;
-
-        private Value currentKey;
-
-        private final List<Statement> currentStatements;
+    @Override
+    public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+            final Dictionary.QuadHandler handler) {
+        return new QuadHandler(Objects.requireNonNull(dictionary),
+                Objects.requireNonNull(handler));
+    }
 
-        private final AtomicReference<Throwable> exceptionHolder;
+    @Override
+    public boolean isQuadNative() {
+        return true;
+    }
 
-        private final int semaphoreSize;
+    private static Statement createStatement(final Resource s, final URI p, final Value o,
+            final Resource c) {
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        return c == null ? vf.createStatement(s, p, o) : vf.createStatement(s, p, o, c);
+    }
 
-        private final Semaphore semaphore;
+    private final class Handler extends AbstractRDFHandlerWrapper {
 
         private Sorter<Object[]> sorter;
 
@@ -85,14 +82,6 @@ final class ProcessorMapReduce implements RDFProcessor {
 
         Handler(final RDFHandler handler) {
             super(handler);
-            this.jobKeys = new ArrayList<Value>();
-            this.jobStatements = new ArrayList<Statement[]>();
-            this.jobSize = 0;
-            this.currentKey = null;
-            this.currentStatements = new ArrayList<Statement>();
-            this.exceptionHolder = new AtomicReference<Throwable>();
-            this.semaphoreSize = MAX_RUNNABLE_MULTIPLIER * Environment.getCores();
-            this.semaphore = new Semaphore(this.semaphoreSize);
             this.sorter = Sorter.newTupleSorter(true, Value.class, Value.class, Value.class,
                     Value.class, Value.class, Long.class);
             this.tracker = new Tracker(LOGGER, null, //
@@ -150,112 +139,239 @@ final class ProcessorMapReduce implements RDFProcessor {
         @Override
         public void endRDF() throws RDFHandlerException {
             try {
+                // Sorted records are split among decoder threads without breaking key groups,
+                // so that each thread can reduce its groups locally without further handoffs
+                final List<Reduction> reductions = new ArrayList<Reduction>();
                 this.tracker.start();
-                this.sorter.end(false, this);
-                flush(true);
-                this.semaphore.acquire(this.semaphoreSize);
+                this.sorter.endGrouped(() -> {
+                    final Reduction reduction = new Reduction();
+                    reductions.add(reduction);
+                    return reduction;
+                });
+                for (final Reduction reduction : reductions) {
+                    reduction.flush();
+                }
                 this.tracker.end();
                 super.endRDF();
-            } catch (final InterruptedException | IOException ex) {
+            } catch (final IOException ex) {
                 throw new RDFHandlerException(ex);
+            } catch (final RuntimeException ex) {
+                if (ex.getCause() instanceof RDFHandlerException) {
+                    throw (RDFHandlerException) ex.getCause();
+                }
+                throw ex;
             } finally {
                 this.sorter.close();
                 this.sorter = null;
             }
         }
 
-        @Override
-        public void accept(final Object[] record) {
+        private final class Reduction implements Consumer<Object[]> {
+
+            private Value currentKey;
+
+            private final List<Statement> currentStatements;
+
+            Reduction() {
+                this.currentKey = null;
+                this.currentStatements = new ArrayList<Statement>();
+            }
+
+            @Override
+            public void accept(final Object[] record) {
+
+                final Value key = (Value) record[0];
+                final int mask = ((Number) record[5]).intValue();
+
+                final Resource s = (Resource) ((mask & 0x08) != 0 ? key : record[1]);
+                final URI p = (URI) ((mask & 0x04) != 0 ? key : record[2]);
+                final Value o = (Value) ((mask & 0x02) != 0 ? key : record[3]);
+                final Resource c = (Resource) ((mask & 0x01) != 0 ? key : record[4]);
 
-            final Value key = (Value) record[0];
-            final int mask = ((Number) record[5]).intValue();
+                final Statement statement = createStatement(s, p, o, c);
 
-            final Resource s = (Resource) ((mask & 0x08) != 0 ? key : record[1]);
-            final URI p = (URI) ((mask & 0x04) != 0 ? key : record[2]);
-            final Value o = (Value) ((mask & 0x02) != 0 ? key : record[3]);
-            final Resource c = (Resource) ((mask & 0x01) != 0 ? key : record[4]);
+                if (!key.equals(this.currentKey)) {
+                    try {
+                        flush();
+                    } catch (final RDFHandlerException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    this.currentKey = key;
+                }
 
-            final ValueFactory vf = Statements.VALUE_FACTORY;
-            final Statement statement = c == null ? vf.createStatement(s, p, o) //
-                    : vf.createStatement(s, p, o, c);
+                this.currentStatements.add(statement);
+            }
 
-            if (!key.equals(this.currentKey)) {
-                try {
-                    flush(false);
-                } catch (final Throwable ex) {
-                    throw new RuntimeException(ex);
+            void flush() throws RDFHandlerException {
+                final int numStmt = this.currentStatements.size();
+                if (numStmt > 0) {
+                    final Statement[] statements = this.currentStatements
+                            .toArray(new Statement[numStmt]);
+                    this.currentStatements.clear();
+                    ProcessorMapReduce.this.reducer.reduce(this.currentKey, statements,
+                            Handler.this.handler);
+                    Handler.this.tracker.increment();
                 }
-                this.currentKey = key;
-                this.currentStatements.clear();
             }
 
-            this.currentStatements.add(statement);
         }
 
-        private void flush(final boolean done) throws RDFHandlerException, InterruptedException {
+    }
 
-            final int numStmt = this.currentStatements.size();
-            if (numStmt > 0) {
-                this.jobKeys.add(this.currentKey);
-                this.jobStatements.add(this.currentStatements.toArray(new Statement[numStmt]));
-                this.jobSize += numStmt;
-            }
+    // On int quads, records are sorted as [key, subj, pred, obj, ctx] unsigned codes, so that
+    // no value is serialized; statements are created only for the mapper and, once per key
+    // group, for the reducer, whose output is encoded back to quads
+
+    private final class QuadHandler implements Dictionary.QuadHandler {
+
+        private final Dictionary dictionary;
+
+        private final Dictionary.QuadHandler handler;
+
+        private final RDFHandler encoder;
+
+        private Sorter<long[]> sorter;
+
+        private final Tracker tracker;
 
-            final int len = this.jobKeys.size();
-            if (len == 0 || !done && this.jobSize < MIN_RUNNABLE_STATEMENTS) {
-                return;
+        QuadHandler(final Dictionary dictionary, final Dictionary.QuadHandler handler) {
+            this.dictionary = dictionary;
+            this.handler = handler;
+            this.encoder = dictionary.encode(handler);
+            this.sorter = Sorter.newNumberSorter(5);
+            this.tracker = new Tracker(LOGGER, null, //
+                    "%d reductions (%d red/s avg)", //
+                    "%d reductions (%d red/s, %d red/s avg)");
+        }
+
+        @Override
+        public void start() throws RDFHandlerException {
+            this.handler.start();
+            try {
+                this.sorter.start(ProcessorMapReduce.this.deduplicate);
+            } catch (final IOException ex) {
+                throw new RDFHandlerException(ex);
             }
+        }
 
-            final Throwable exception = this.exceptionHolder.get();
-            if (exception != null) {
-                if (exception instanceof RDFHandlerException) {
-                    throw (RDFHandlerException) exception;
-                } else if (exception instanceof RuntimeException) {
-                    throw (RuntimeException) exception;
-                } else if (exception instanceof Error) {
-                    throw (Error) exception;
+        @Override
+        public void handleNamespace(final String prefix, final String uri)
+                throws RDFHandlerException {
+            this.handler.handleNamespace(prefix, uri);
+        }
+
+        @Override
+        public void handle(final int subj, final int pred, final int obj, final int ctx)
+                throws RDFHandlerException {
+            final Dictionary d = this.dictionary;
+            final Statement statement = createStatement((Resource) d.decode(subj),
+                    (URI) d.decode(pred), d.decode(obj), (Resource) d.decode(ctx));
+            final Value[] keys = ProcessorMapReduce.this.mapper.map(statement);
+            for (final Value key : keys) {
+                if (Mapper.BYPASS_KEY.equals(key)) {
+                    this.handler.handle(subj, pred, obj, ctx); // bypass
+                } else {
+                    final long[] record = new long[] { d.encode(key) & 0xFFFFFFFFL,
+                            subj & 0xFFFFFFFFL, pred & 0xFFFFFFFFL, obj & 0xFFFFFFFFL,
+                            ctx & 0xFFFFFFFFL };
+                    try {
+                        this.sorter.emit(record);
+                    } catch (final IOException ex) {
+                        throw new RDFHandlerException(ex);
+                    }
                 }
-                throw new RDFHandlerException(exception);
             }
+        }
 
-            final Value[] jobKeys = this.jobKeys.toArray(new Value[len]);
-            final Statement[][] jobStatements = this.jobStatements.toArray(new Statement[len][]);
-            this.jobKeys.clear();
-            this.jobStatements.clear();
-            this.jobSize = 0;
-            this.semaphore.acquire(); // will block if too many runnables were submitted
+        @Override
+        public void end() throws RDFHandlerException {
             try {
-                Environment.getPool().execute(new Runnable() {
-
-                    @Override
-                    public void run() {
-                        try {
-                            for (int i = 0; i < len; ++i) {
-                                ProcessorMapReduce.this.reducer.reduce(jobKeys[i],
-                                        jobStatements[i], Handler.this.handler);
-                                Handler.this.tracker.increment();
-                            }
-                        } catch (final Throwable ex) {
-                            synchronized (Handler.this.exceptionHolder) {
-                                final Throwable exception = Handler.this.exceptionHolder.get();
-                                if (exception != null) {
-                                    exception.addSuppressed(ex);
-                                } else {
-                                    Handler.this.exceptionHolder.set(ex);
-                                }
-                            }
-                        } finally {
-                            Handler.this.semaphore.release();
-                        }
-                    }
-
+                final List<Reduction> reductions = new ArrayList<Reduction>();
+                this.tracker.start();
+                this.sorter.endGrouped(() -> {
+                    final Reduction reduction = new Reduction();
+                    reductions.add(reduction);
+                    return reduction;
                 });
-            } catch (final Throwable ex) {
-                this.semaphore.release();
+                for (final Reduction reduction : reductions) {
+                    reduction.flush();
+                }
+                this.tracker.end();
+                this.handler.end();
+            } catch (final IOException ex) {
+                throw new RDFHandlerException(ex);
+            } catch (final RuntimeException ex) {
+                if (ex.getCause() instanceof RDFHandlerException) {
+                    throw (RDFHandlerException) ex.getCause();
+                }
                 throw ex;
+            } finally {
+                this.sorter.close();
+                this.sorter = null;
             }
         }
 
+        @Override
+        public void close() {
+            this.handler.close();
+        }
+
+        private final class Reduction implements Consumer<long[]> {
+
+            private int currentKey;
+
+            private int[] currentQuads;
+
+            private int numQuads;
+
+            Reduction() {
+                this.currentQuads = new int[64];
+                this.numQuads = 0;
+            }
+
+            @Override
+            public void accept(final long[] record) {
+
+                final int key = (int) record[0];
+                if (key != this.currentKey) {
+                    try {
+                        flush();
+                    } catch (final RDFHandlerException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    this.currentKey = key;
+                }
+
+                if (this.numQuads * 4 == this.currentQuads.length) {
+                    this.currentQuads = Arrays.copyOf(this.currentQuads,
+                            this.currentQuads.length * 2);
+                }
+                final int offset = this.numQuads++ * 4;
+                for (int i = 0; i < 4; ++i) {
+                    this.currentQuads[offset + i] = (int) record[i + 1];
+                }
+            }
+
+            void flush() throws RDFHandlerException {
+                final int numStmt = this.numQuads;
+                if (numStmt > 0) {
+                    final Dictionary d = QuadHandler.this.dictionary;
+                    final int[] quads = this.currentQuads;
+                    final Statement[] statements = new Statement[numStmt];
+                    for (int i = 0; i < numStmt; ++i) {
+                        statements[i] = createStatement((Resource) d.decode(quads[i * 4]),
+                                (URI) d.decode(quads[i * 4 + 1]), d.decode(quads[i * 4 + 2]),
+                                (Resource) d.decode(quads[i * 4 + 3]));
+                    }
+                    this.numQuads = 0;
+                    ProcessorMapReduce.this.reducer.reduce(d.decode(this.currentKey),
+                            statements, QuadHandler.this.encoder);
+                    QuadHandler.this.tracker.increment();
+                }
+            }
+
+        }
+
     }
 
 }
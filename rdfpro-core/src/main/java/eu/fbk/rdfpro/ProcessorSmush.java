@@ -13,11 +13,19 @@
  */
 package eu.fbk.rdfpro;
 
-import java.nio.ByteBuffer;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
 
 import javax.annotation.Nullable;
 
@@ -33,23 +41,45 @@ import org.openrdf.rio.RDFHandlerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.fbk.rdfpro.util.Buffer;
+import eu.fbk.rdfpro.util.Dictionary;
+import eu.fbk.rdfpro.util.Environment;
+import eu.fbk.rdfpro.util.IO;
 import eu.fbk.rdfpro.util.Statements;
 
 final class ProcessorSmush implements RDFProcessor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorSmush.class);
 
-    private static final int BUFFER_SIZE = 262144;
+    private static final boolean MAPPED = Boolean.parseBoolean(Environment.getProperty(
+            "rdfpro.smush.mapped", "false"));
+
+    private static final int MIN_SHARED_LENGTH = 8;
+
+    private static final int NUM_ANCHORS = 8;
+
+    private static final int INDEX_MAGIC = 0x534D5531; // "SMU1", change with index format
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Nullable
+    private final String indexToLoad;
+
+    @Nullable
+    private final String indexToSave;
 
     private final String[] rankedNamespaces;
 
-    ProcessorSmush(final String... rankedNamespaces) {
+    ProcessorSmush(@Nullable final String indexToLoad, @Nullable final String indexToSave,
+            final String... rankedNamespaces) {
+        this.indexToLoad = indexToLoad;
+        this.indexToSave = indexToSave;
         this.rankedNamespaces = rankedNamespaces.clone();
     }
 
     @Override
     public int getExtraPasses() {
-        return 1;
+        return this.indexToLoad != null ? 0 : 1; // clusters are loaded instead of computed
     }
 
     @Override
@@ -57,47 +87,53 @@ final class ProcessorSmush implements RDFProcessor {
         return new Handler(Objects.requireNonNull(handler));
     }
 
-    private final class Handler extends AbstractRDFHandlerWrapper {
-
-        private int[] table;
-
-        private int entries;
-
-        private ByteBuffer[] buffers;
+    @Override
+    public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+            final Dictionary.QuadHandler handler) {
+        return new QuadHandler(Objects.requireNonNull(dictionary),
+                Objects.requireNonNull(handler));
+    }
 
-        private int endPointer;
+    @Override
+    public boolean isQuadNative() {
+        return true;
+    }
 
-        private boolean firstPass;
+    // Resource strings, the ID -> string address index and the hash table live in Buffers
+    // outside the Java heap (direct or memory mapped), addressed by 64-bit offsets. A string
+    // record has layout [flags + byte length:2]([byte length:4])([shared:2][anchor delta:4])
+    // chars, where the 4 bytes length is present if the 14 bits length is 0x3FFF and shared and
+    // anchor delta are present for strings front-coded against one of the last anchors, i.e.,
+    // recently appended strings that are not front-coded. Only the union-find array (4 bytes per
+    // resource) is kept in the Java heap. On int quads, resources are identified by their
+    // dictionary codes, which replace hashes in table cells and are stored in place of strings
+    // (ID -> code index, 4 bytes per resource).
+    //
+    // A cluster index file (options -i / -s) has layout [magic:4][num resources:4] followed,
+    // for each resource in ID order, by [bnode flag:1][shared chars][suffix length][suffix UTF-8
+    // bytes][canonical ID or 0 if canonical], with variable-length ints and the string front-coded
+    // against the previous one. IDs are thus assigned again in the same order when loading.
 
-        private long numLookups;
+    private final class Handler extends AbstractRDFHandlerWrapper {
 
-        private long numTests;
+        private final Clusters clusters;
 
         Handler(final RDFHandler handler) {
-
             super(handler);
-
-            this.table = new int[1022]; // 511 entries, ~4K memory page
-            this.entries = 0;
-            this.buffers = new ByteBuffer[65536];
-            this.endPointer = pointerFor(0, 4); // skip first word to avoid 0 pointers
-            this.firstPass = true;
-            this.numLookups = 0;
-            this.numTests = 0;
-
-            this.buffers[0] = ByteBuffer.allocate(BUFFER_SIZE);
+            this.clusters = new Clusters(null);
         }
 
         @Override
         public void startRDF() throws RDFHandlerException {
-            if (!this.firstPass) {
+            if (!this.clusters.firstPass) {
+                this.clusters.start();
                 super.startRDF();
             }
         }
 
         @Override
         public void handleComment(final String comment) throws RDFHandlerException {
-            if (!this.firstPass) {
+            if (!this.clusters.firstPass) {
                 super.handleComment(comment);
             }
         }
@@ -105,7 +141,7 @@ final class ProcessorSmush implements RDFProcessor {
         @Override
         public void handleNamespace(final String prefix, final String uri)
                 throws RDFHandlerException {
-            if (!this.firstPass) {
+            if (!this.clusters.firstPass) {
                 super.handleNamespace(prefix, uri);
             }
         }
@@ -120,10 +156,14 @@ final class ProcessorSmush implements RDFProcessor {
 
             final boolean isSameAs = p.equals(OWL.SAMEAS) && o instanceof Resource;
 
-            if (!this.firstPass) {
-                final Resource sn = rewrite(s);
-                final Value on = o instanceof Literal ? o : rewrite((Resource) o);
-                final Resource cn = c == null ? null : rewrite(c);
+            final Clusters clusters = this.clusters;
+            if (!clusters.firstPass) {
+                if (isSameAs && clusters.loaded && !s.equals(o)) {
+                    clusters.link(s, (Resource) o); // update loaded clusters with new links
+                }
+                final Resource sn = clusters.rewrite(s);
+                final Value on = o instanceof Literal ? o : clusters.rewrite((Resource) o);
+                final Resource cn = c == null ? null : clusters.rewrite(c);
                 if (isSameAs) {
                     if (sn != s) {
                         super.handleStatement(createStatement(sn, OWL.SAMEAS, s, cn));
@@ -132,7 +172,7 @@ final class ProcessorSmush implements RDFProcessor {
                         super.handleStatement(createStatement((Resource) on, OWL.SAMEAS, o, cn));
                     }
                 } else {
-                    final URI pn = (URI) rewrite(p);
+                    final URI pn = (URI) clusters.rewrite(p);
                     if (sn == s && pn == p && on == o && cn == c) {
                         super.handleStatement(statement);
                     } else {
@@ -140,308 +180,775 @@ final class ProcessorSmush implements RDFProcessor {
                     }
                 }
             } else if (isSameAs && !s.equals(o)) {
-                synchronized (this) {
-                    link(s, (Resource) o);
-                }
+                clusters.link(s, (Resource) o); // thread-safe, no need to synchronize
             }
         }
 
         @Override
         public void endRDF() throws RDFHandlerException {
-            if (!this.firstPass) {
+            final boolean firstPass = this.clusters.firstPass;
+            this.clusters.end();
+            if (!firstPass) {
                 super.endRDF();
-            } else {
-                normalize();
-                this.firstPass = false;
             }
         }
 
         @Override
         public void close() {
             super.close();
-            this.table = null; // eagerly release memory
-            this.buffers = null; // eagerly release memory
+            this.clusters.close();
+        }
+
+        private Statement createStatement(final Resource subj, final URI pred, final Value obj,
+                @Nullable final Resource ctx) {
+            return ctx == null ? Statements.VALUE_FACTORY.createStatement(subj, pred, obj) //
+                    : Statements.VALUE_FACTORY.createStatement(subj, pred, obj, ctx);
+        }
+
+    }
+
+    private final class QuadHandler implements Dictionary.QuadHandler {
+
+        private final Dictionary dictionary;
+
+        private final Dictionary.QuadHandler handler;
+
+        private final Clusters clusters;
+
+        private final int sameAs;
+
+        QuadHandler(final Dictionary dictionary, final Dictionary.QuadHandler handler) {
+            this.dictionary = dictionary;
+            this.handler = handler;
+            this.clusters = new Clusters(dictionary);
+            this.sameAs = dictionary.encode(OWL.SAMEAS);
+        }
+
+        @Override
+        public void start() throws RDFHandlerException {
+            if (!this.clusters.firstPass) {
+                this.clusters.start();
+                this.handler.start();
+            }
+        }
+
+        @Override
+        public void handleComment(final String comment) throws RDFHandlerException {
+            if (!this.clusters.firstPass) {
+                this.handler.handleComment(comment);
+            }
+        }
+
+        @Override
+        public void handleNamespace(final String prefix, final String uri)
+                throws RDFHandlerException {
+            if (!this.clusters.firstPass) {
+                this.handler.handleNamespace(prefix, uri);
+            }
+        }
+
+        @Override
+        public void handle(final int subj, final int pred, final int obj, final int ctx)
+                throws RDFHandlerException {
+
+            // Codes of equal values are equal; literal and default context codes are never
+            // linked, thus they are left unchanged by rewrite()
+            final boolean isSameAs = pred == this.sameAs && this.dictionary.isResource(obj);
+
+            final Clusters clusters = this.clusters;
+            if (!clusters.firstPass) {
+                if (isSameAs && clusters.loaded && subj != obj) {
+                    clusters.link(subj, obj); // update loaded clusters with new links
+                }
+                final int sn = clusters.rewrite(subj);
+                final int on = clusters.rewrite(obj);
+                final int cn = clusters.rewrite(ctx);
+                if (isSameAs) {
+                    if (sn != subj) {
+                        this.handler.handle(sn, this.sameAs, subj, cn);
+                    }
+                    if (on != obj) {
+                        this.handler.handle(on, this.sameAs, obj, cn);
+                    }
+                } else {
+                    this.handler.handle(sn, clusters.rewrite(pred), on, cn);
+                }
+            } else if (isSameAs && subj != obj) {
+                clusters.link(subj, obj); // thread-safe, no need to synchronize
+            }
+        }
+
+        @Override
+        public void end() throws RDFHandlerException {
+            final boolean firstPass = this.clusters.firstPass;
+            this.clusters.end();
+            if (!firstPass) {
+                this.handler.end();
+            }
+        }
+
+        @Override
+        public void close() {
+            this.handler.close();
+            this.clusters.close();
+        }
+
+    }
+
+    private final class Clusters {
+
+        private static final int CHUNK_BITS = 16;
+
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        private static final int FLAG_FRONT_CODED = 0x8000;
+
+        private static final int FLAG_BNODE = 0x4000;
+
+        private static final int MAX_SHORT_LENGTH = 0x3FFF;
+
+        @Nullable
+        private final Dictionary dictionary; // if set, resources are keyed by their codes
+
+        private final List<Buffer> buffers; // all the buffers allocated, closed at close()
+
+        private final List<Buffer> retiredTables; // replaced by rehash, closed after 1st pass
+
+        private volatile Table table; // cells (id << 32 | hash or code), lock-free lookups
+
+        private volatile int size; // number of resources, i.e., last published ID (from 1)
+
+        @Nullable
+        private final Buffer addresses; // ID -> address of resource string (8 bytes each)
+
+        @Nullable
+        private final Buffer strings; // resource string records
+
+        @Nullable
+        private final Buffer codes; // ID -> resource code (4 bytes each), if keyed by codes
+
+        private long endAddress;
+
+        private final String[] anchorStrings;
+
+        private final long[] anchorAddresses;
+
+        private int anchorIndex;
+
+        // ID -> parent ID (> 0) or -rank (<= 0) if root; after normalize() or loading roots are
+        // the canonical resources of their clusters and have cell 0
+        private AtomicIntegerArray[] parents;
+
+        private final Comparator<Value> comparator;
+
+        boolean firstPass;
+
+        boolean loaded;
+
+        Clusters(@Nullable final Dictionary dictionary) {
+            this.dictionary = dictionary;
+            this.buffers = new ArrayList<Buffer>();
+            this.retiredTables = new ArrayList<Buffer>();
+            this.table = new Table(newBuffer("table"), 4096);
+            this.size = 0;
+            this.addresses = dictionary != null ? null : newBuffer("addresses");
+            this.strings = dictionary != null ? null : newBuffer("strings");
+            this.codes = dictionary != null ? newBuffer("codes") : null;
+            this.endAddress = 0L;
+            this.anchorStrings = new String[NUM_ANCHORS];
+            this.anchorAddresses = new long[NUM_ANCHORS];
+            this.anchorIndex = 0;
+            this.parents = new AtomicIntegerArray[1 << 31 - CHUNK_BITS];
+            this.comparator = Statements.valueComparator(ProcessorSmush.this.rankedNamespaces);
+            this.firstPass = ProcessorSmush.this.indexToLoad == null;
+            this.loaded = false;
+        }
+
+        void start() throws RDFHandlerException {
+            if (ProcessorSmush.this.indexToLoad != null && !this.loaded) {
+                load(ProcessorSmush.this.indexToLoad);
+                this.loaded = true;
+            }
+        }
+
+        void end() throws RDFHandlerException {
+            if (!this.firstPass) {
+                if (this.loaded && ProcessorSmush.this.indexToSave != null) {
+                    save(ProcessorSmush.this.indexToSave);
+                }
+            } else {
+                normalize();
+                this.firstPass = false;
+                if (ProcessorSmush.this.indexToSave != null) {
+                    save(ProcessorSmush.this.indexToSave);
+                }
+            }
+        }
+
+        void close() {
+            for (final Buffer buffer : this.buffers) {
+                buffer.close(); // eagerly release memory and delete temporary files
+            }
+            this.buffers.clear();
+            this.retiredTables.clear();
+            this.table = null;
+            this.parents = null; // eagerly release memory
         }
 
         // LINKING, NORMALIZATION AND REWRITING METHODS
 
-        private void link(final Resource resource1, final Resource resource2) {
-            final int pointer1 = lookup(resource1, true);
-            final int pointer2 = lookup(resource2, true);
-            final int nextPointer1 = readNext(pointer1);
-            for (int pointer = nextPointer1; pointer != pointer1; pointer = readNext(pointer)) {
-                if (pointer == pointer2) {
+        void link(final Resource resource1, final Resource resource2) {
+            union(lookup(resource1, true), lookup(resource2, true));
+        }
+
+        void link(final int code1, final int code2) {
+            union(lookup(code1, null, true), lookup(code2, null, true));
+        }
+
+        private void union(final int id1, final int id2) {
+            while (true) {
+                final int root1 = find(id1);
+                final int root2 = find(id2);
+                if (root1 == root2) {
                     return; // already linked
                 }
+                final int cell1 = chunk(root1).get(root1 & CHUNK_MASK);
+                final int cell2 = chunk(root2).get(root2 & CHUNK_MASK);
+                if (cell1 > 0 || cell2 > 0) {
+                    continue; // concurrently linked to another root: retry
+                }
+                final boolean keep1;
+                if (this.firstPass) {
+                    // Union by rank (cell = -rank), with ties broken by ID to avoid cycles
+                    keep1 = cell1 < cell2 || cell1 == cell2 && root1 < root2;
+                } else {
+                    // Roots are canonical: keep the preferred one, with ties broken by ID
+                    final int c = this.comparator.compare(readResource(root1),
+                            readResource(root2));
+                    keep1 = c < 0 || c == 0 && root1 < root2;
+                }
+                final int root = keep1 ? root1 : root2;
+                final int child = keep1 ? root2 : root1;
+                final int childCell = keep1 ? cell2 : cell1;
+                if (chunk(child).compareAndSet(child & CHUNK_MASK, childCell, root)) {
+                    if (this.firstPass && cell1 == cell2) {
+                        chunk(root).compareAndSet(root & CHUNK_MASK, cell1, cell1 - 1);
+                    }
+                    return;
+                }
+            }
+        }
+
+        private int find(final int id) {
+            int current = id;
+            while (true) {
+                final AtomicIntegerArray chunk = chunk(current);
+                final int parent = chunk.get(current & CHUNK_MASK);
+                if (parent <= 0) {
+                    return current;
+                }
+                final int grandparent = chunk(parent).get(parent & CHUNK_MASK);
+                if (grandparent <= 0) {
+                    return parent;
+                }
+                chunk.compareAndSet(current & CHUNK_MASK, parent, grandparent); // path halving
+                current = grandparent;
             }
-            final int nextPointer2 = readNext(pointer2);
-            writeNext(pointer1, nextPointer2);
-            writeNext(pointer2, nextPointer1);
         }
 
         private void normalize() throws RDFHandlerException {
-            final Comparator<Value> comparator = Statements
-                    .valueComparator(ProcessorSmush.this.rankedNamespaces);
+
+            final Comparator<Value> comparator = this.comparator;
+            final int numResources = this.size;
+
+            for (final Buffer table : this.retiredTables) {
+                table.close(); // no more concurrent lookups on them
+            }
+            this.retiredTables.clear();
+
+            // Clear ranks, so that root cells can store -ID of the selected canonical resource
+            forEachID(numResources, (final int id) -> {
+                if (chunk(id).get(id & CHUNK_MASK) < 0) {
+                    chunk(id).set(id & CHUNK_MASK, 0);
+                }
+            });
+
+            // Select the canonical resource of each cluster, storing -ID at the cluster root
+            final AtomicInteger numClusters = new AtomicInteger(0);
+            forEachID(numResources, (final int id) -> {
+                final int root = find(id);
+                if (root == id) {
+                    numClusters.incrementAndGet();
+                }
+                final AtomicIntegerArray chunk = chunk(root);
+                final Resource resource = readResource(id);
+                while (true) {
+                    final int cell = chunk.get(root & CHUNK_MASK);
+                    if (cell != 0 && comparator.compare(resource, readResource(-cell)) >= 0
+                            || chunk.compareAndSet(root & CHUNK_MASK, cell, -id)) {
+                        break;
+                    }
+                }
+            });
+
+            // Link each resource directly to its cluster root, then replace links with the
+            // canonical ID read from the root, and finally do the same for the roots themselves;
+            // canonical resources become the new roots, with cell 0
+            forEachID(numResources, (final int id) -> {
+                if (chunk(id).get(id & CHUNK_MASK) > 0) {
+                    chunk(id).set(id & CHUNK_MASK, find(id));
+                }
+            });
+            forEachID(numResources, (final int id) -> {
+                final int root = chunk(id).get(id & CHUNK_MASK);
+                if (root > 0) {
+                    final int canonical = -chunk(root).get(root & CHUNK_MASK);
+                    chunk(id).set(id & CHUNK_MASK, canonical == id ? 0 : canonical);
+                }
+            });
+            forEachID(numResources, (final int id) -> {
+                final int cell = chunk(id).get(id & CHUNK_MASK);
+                if (cell < 0) {
+                    chunk(id).set(id & CHUNK_MASK, -cell == id ? 0 : -cell);
+                }
+            });
+
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(String.format("owl:sameAs normalization: %d resource(s), "
+                        + "%d cluster(s), %dMB buffered (%s)", numResources, numClusters.get(),
+                        this.endAddress / (1024 * 1024), MAPPED ? "mapped" : "direct"));
+            }
+        }
+
+        private void forEachID(final int numResources, final IntConsumer consumer) {
+            final int numRanges = Math.max(1,
+                    Math.min(Environment.getCores() * 4, numResources / 1024));
+            final List<Runnable> runnables = new ArrayList<Runnable>();
+            for (int i = 0; i < numRanges; ++i) {
+                final int start = 1 + (int) ((long) numResources * i / numRanges);
+                final int end = 1 + (int) ((long) numResources * (i + 1) / numRanges);
+                runnables.add(() -> {
+                    for (int id = start; id < end; ++id) {
+                        consumer.accept(id);
+                    }
+                });
+            }
+            Environment.run(runnables);
+        }
+
+        Resource rewrite(final Resource resource) {
+            final int id = lookup(resource, false);
+            if (id == 0) {
+                return resource;
+            }
+            final int canonical = find(id);
+            return canonical == id ? resource : readResource(canonical);
+        }
+
+        int rewrite(final int code) {
+            final int id = lookup(code, null, false);
+            if (id == 0) {
+                return code;
+            }
+            final int canonical = find(id);
+            return canonical == id ? code : this.codes.readInt((long) canonical << 2);
+        }
+
+        // INDEX METHODS
+
+        private void load(final String location) throws RDFHandlerException {
             int numClusters = 0;
-            int numResources = 0;
-            for (int j = 0; j < this.table.length; j += 2) {
-                final int pointer = this.table[j];
-                if (pointer == 0 || readNormalized(pointer)) {
-                    continue;
-                }
-                final List<Resource> resources = new ArrayList<Resource>();
-                Resource chosenResource = null;
-                int chosenPointer = 0;
-                // int chosenRank = Integer.MAX_VALUE;
-                for (int p = pointer; p != pointer || chosenPointer == 0; p = readNext(p)) {
-                    final Resource resource = readResource(p);
-                    resources.add(resource);
-                    if (chosenResource == null || comparator.compare(resource, chosenResource) < 0) {
-                        chosenResource = resource;
-                        chosenPointer = p;
+            try (DataInputStream in = new DataInputStream(IO.buffer(IO.read(location)))) {
+                final int magic = in.readInt();
+                if (magic != INDEX_MAGIC) {
+                    throw new IOException(String.format("Not an owl:sameAs index (magic number "
+                            + "0x%08X, expected 0x%08X)", magic, INDEX_MAGIC));
+                }
+                final int numResources = in.readInt();
+                byte[] bytes = new byte[256];
+                String previous = "";
+                for (int id = 1; id <= numResources; ++id) {
+                    final boolean bnode = in.readUnsignedByte() != 0;
+                    final int shared = readVarInt(in);
+                    final int length = readVarInt(in);
+                    if (length > bytes.length) {
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
                     }
-                    // if (resource instanceof BNode) {
-                    // if (chosenResource == null
-                    // || chosenResource instanceof BNode
-                    // && resource.stringValue().length() < chosenResource.stringValue()
-                    // .length()) {
-                    // chosenResource = resource;
-                    // chosenPointer = p;
-                    // }
-                    // } else if (resource instanceof URI) {
-                    // final String string = resource.stringValue();
-                    // int rank = Integer.MAX_VALUE;
-                    // for (int i = 0; i < ProcessorSmush.this.rankedNamespaces.length; ++i) {
-                    // if (string.startsWith(ProcessorSmush.this.rankedNamespaces[i])) {
-                    // rank = i;
-                    // break;
-                    // }
-                    // }
-                    // if (!(chosenResource instanceof URI) || rank < chosenRank
-                    // || rank == chosenRank
-                    // && string.length() < chosenResource.stringValue().length()) {
-                    // chosenResource = resource;
-                    // chosenPointer = p;
-                    // chosenRank = rank;
-                    // }
-                    // }
-                }
-                ++numClusters;
-                numResources += resources.size();
-                int p = pointer;
-                do {
-                    final int pn = readNext(p);
-                    writeNext(p, chosenPointer);
-                    writeNormalized(p, true);
-                    p = pn;
-                } while (p != pointer);
+                    in.readFully(bytes, 0, length);
+                    final String string = previous.substring(0, shared)
+                            + new String(bytes, 0, length, UTF8);
+                    final Resource resource = bnode ? Statements.VALUE_FACTORY
+                            .createBNode(string) : Statements.VALUE_FACTORY.createURI(string);
+                    final int canonical = readVarInt(in);
+                    final int resourceID = this.dictionary == null ? lookup(resource, true)
+                            : lookup(this.dictionary.encode(resource), null, true);
+                    if (resourceID != id || canonical > numResources) {
+                        throw new IOException("Corrupted index at resource " + id);
+                    }
+                    chunk(id).set(id & CHUNK_MASK, canonical);
+                    numClusters += canonical == 0 ? 1 : 0;
+                    previous = string;
+                }
+            } catch (final EOFException ex) {
+                throw new RDFHandlerException("Truncated owl:sameAs index " + location, ex);
+            } catch (final IOException ex) {
+                throw new RDFHandlerException("Cannot load owl:sameAs index " + location, ex);
             }
             if (LOGGER.isInfoEnabled()) {
-                LOGGER.info(String.format(
-                        "owl:sameAs normalization: %d resource(s), %d cluster(s), "
-                                + "%.3f collisions/lookup, %dMB buffered ", numResources,
-                        numClusters, (double) (this.numTests - this.numLookups) / this.numLookups,
-                        bufferFor(this.endPointer) * (BUFFER_SIZE / 1024) / 1024));
+                LOGGER.info(String.format("owl:sameAs index loaded from %s: %d resource(s), "
+                        + "%d cluster(s)", location, this.size, numClusters));
             }
         }
 
-        private Resource rewrite(final Resource resource) {
-            final int pointer = lookup(resource, false);
-            if (pointer == 0) {
-                return resource;
+        private void save(final String location) throws RDFHandlerException {
+            int numClusters = 0;
+            try (DataOutputStream out = new DataOutputStream(IO.buffer(IO.write(location)))) {
+                final int numResources = this.size;
+                out.writeInt(INDEX_MAGIC);
+                out.writeInt(numResources);
+                String previous = "";
+                for (int id = 1; id <= numResources; ++id) {
+                    final Resource resource = readResource(id);
+                    final String string = resource.stringValue();
+                    final int maxShared = Math.min(string.length(), previous.length());
+                    int shared = 0;
+                    while (shared < maxShared && string.charAt(shared) == previous.charAt(shared)) {
+                        ++shared;
+                    }
+                    if (shared > 0 && Character.isHighSurrogate(string.charAt(shared - 1))) {
+                        --shared; // do not split surrogate pairs
+                    }
+                    final byte[] suffix = string.substring(shared).getBytes(UTF8);
+                    final int canonical = find(id);
+                    out.writeByte(resource instanceof BNode ? 1 : 0);
+                    writeVarInt(out, shared);
+                    writeVarInt(out, suffix.length);
+                    out.write(suffix);
+                    writeVarInt(out, canonical == id ? 0 : canonical);
+                    numClusters += canonical == id ? 1 : 0;
+                    previous = string;
+                }
+            } catch (final IOException ex) {
+                throw new RDFHandlerException("Cannot save owl:sameAs index " + location, ex);
+            }
+            if (LOGGER.isInfoEnabled()) {
+                LOGGER.info(String.format("owl:sameAs index saved to %s: %d resource(s), "
+                        + "%d cluster(s)", location, this.size, numClusters));
+            }
+        }
+
+        private AtomicIntegerArray chunk(final int id) {
+            AtomicIntegerArray chunk = this.parents[id >>> CHUNK_BITS];
+            if (chunk == null) {
+                synchronized (this) {
+                    chunk = this.parents[id >>> CHUNK_BITS]; // allocated concurrently
+                }
             }
-            final int nextPointer = readNext(pointer);
-            return nextPointer == pointer ? resource : readResource(nextPointer);
+            return chunk;
         }
 
+        // HASH TABLE METHODS
+
         private int lookup(final Resource resource, final boolean canAppend) {
-            ++this.numLookups;
-            final int hash = resource.hashCode();
-            int offset = (hash & 0x7FFFFFFF) % (this.table.length / 2) * 2;
-            while (true) {
-                ++this.numTests;
-                int pointer = this.table[offset];
-                if (pointer == 0) {
-                    if (!canAppend) {
-                        return 0;
-                    } else if (this.entries > this.table.length / 4) { // enforce load factor < .5
-                        rehash();
-                        return lookup(resource, canAppend); // repeat after rehashing
+            return lookup(resource.hashCode(), resource, canAppend);
+        }
+
+        private int lookup(final int hash, @Nullable final Resource resource,
+                final boolean canAppend) {
+
+            // Lookup without locking. A cell is published by the volatile write of size that
+            // follows it, so cells with IDs above size may refer to data not yet visible. If
+            // resources are keyed by codes, the hash is the code and identifies the resource
+            final Table table = this.table; // may concurrently change
+            boolean pending = false;
+            for (long slot = slotFor(hash) & table.mask;; slot = slot + 1 & table.mask) {
+                final long cell = table.cells.readLong(slot << 3);
+                if (cell == 0L) {
+                    break;
+                }
+                if ((int) cell == hash) {
+                    final int id = (int) (cell >>> 32);
+                    if (id > this.size) {
+                        pending = true; // being appended by another thread
+                        break;
+                    }
+                    if (resource == null || matchResource(id, resource)) {
+                        return id;
                     }
-                    pointer = append(resource);
-                    this.table[offset] = pointer;
-                    this.table[offset + 1] = hash;
-                    ++this.entries;
-                    return pointer;
                 }
-                if (this.table[offset + 1] == hash && matchResource(pointer, resource)) {
-                    return pointer;
+            }
+            if (!canAppend && !pending) {
+                return 0;
+            }
+
+            // Not found: probe again from the start of the chain under the lock, as resources
+            // being appended concurrently may have been missed, and append the resource if needed
+            synchronized (this) {
+                if (canAppend && this.size >= this.table.mask / 2) {
+                    rehash(); // enforce load factor < .5
                 }
-                offset += 2;
-                if (offset >= this.table.length) {
-                    offset = 0;
+                final Table lockedTable = this.table;
+                long slot = slotFor(hash) & lockedTable.mask;
+                long cell;
+                while ((cell = lockedTable.cells.readLong(slot << 3)) != 0L) {
+                    final int id = (int) (cell >>> 32);
+                    if ((int) cell == hash && (resource == null || matchResource(id, resource))) {
+                        return id;
+                    }
+                    slot = slot + 1 & lockedTable.mask;
                 }
+                if (!canAppend) {
+                    return 0;
+                }
+                final int id = resource == null ? appendCode(hash) : append(resource);
+                lockedTable.cells.writeLong(slot << 3, (long) id << 32 | hash & 0xFFFFFFFFL);
+                this.size = id; // publish cell and resource data to unlocked lookups
+                return id;
             }
         }
 
         private void rehash() {
-            final int newSize = this.table.length + 1;
-            final int newTable[] = new int[2 * newSize];
-            for (int oldOffset = 0; oldOffset < this.table.length; oldOffset += 2) {
-                final int pointer = this.table[oldOffset];
-                if (pointer != 0) {
-                    final int hash = this.table[oldOffset + 1];
-                    int newOffset = (hash & 0x7FFFFFFF) % newSize * 2;
-                    while (newTable[newOffset] != 0) {
-                        newOffset += 2;
-                        if (newOffset >= newTable.length) {
-                            newOffset = 0;
-                        }
+            final Table oldTable = this.table;
+            final Table newTable = new Table(newBuffer("table"), oldTable.mask + 1 << 1);
+            for (long oldSlot = 0; oldSlot <= oldTable.mask; ++oldSlot) {
+                final long cell = oldTable.cells.readLong(oldSlot << 3);
+                if (cell != 0L) {
+                    long newSlot = slotFor((int) cell) & newTable.mask;
+                    while (newTable.cells.readLong(newSlot << 3) != 0L) {
+                        newSlot = newSlot + 1 & newTable.mask;
                     }
-                    newTable[newOffset] = pointer;
-                    newTable[newOffset + 1] = hash;
+                    newTable.cells.writeLong(newSlot << 3, cell);
                 }
             }
+            this.retiredTables.add(oldTable.cells); // may be still read by concurrent lookups
             this.table = newTable;
         }
 
-        // POINTER MANAGEMENT METHODS
-
-        private int pointerFor(final int buffer, final int offset) {
-            return (buffer & 0xFFFF) << 16 | offset + 3 >> 2 & 0xFFFF;
-        }
-
-        private int bufferFor(final int pointer) {
-            return pointer >> 16 & 0xFFFF;
+        private int slotFor(final int hash) {
+            final int h = hash * 0x9E3779B9; // spread similar hashes of similar strings
+            return h ^ h >>> 16;
         }
 
-        private int offsetFor(final int pointer) {
-            return (pointer & 0xFFFF) << 2;
+        private Buffer newBuffer(final String name) {
+            final Buffer buffer;
+            if (!MAPPED) {
+                buffer = Buffer.newDirectBuffer();
+            } else {
+                try {
+                    final File file = File.createTempFile("rdfpro-smush-", "." + name);
+                    file.deleteOnExit();
+                    buffer = Buffer.newMappedBuffer(file);
+                } catch (final IOException ex) {
+                    throw new RuntimeException("Cannot create temporary " + name + " file", ex);
+                }
+            }
+            synchronized (this.buffers) {
+                this.buffers.add(buffer);
+            }
+            return buffer;
         }
 
-        // BUFFER MANIPULATION METHODS
+        // STRING MANIPULATION METHODS
 
         private int append(final Resource resource) {
+
+            final int id = this.size + 1;
+            if (id < 0) {
+                throw new IllegalStateException("Too many resources");
+            }
+            if (this.parents[id >>> CHUNK_BITS] == null) {
+                this.parents[id >>> CHUNK_BITS] = new AtomicIntegerArray(CHUNK_SIZE);
+            }
+
+            // Select the anchor sharing the longest prefix with the string, if any
             final String string = resource.stringValue();
-            final int length = string.length();
-            int bufferIndex = bufferFor(this.endPointer);
-            int offset = offsetFor(this.endPointer);
-            final ByteBuffer buffer;
-            if (offset + 6 + length * 3 > BUFFER_SIZE) {
-                ++bufferIndex;
-                buffer = ByteBuffer.allocate(BUFFER_SIZE);
-                this.buffers[bufferIndex] = buffer;
-                this.endPointer = pointerFor(bufferIndex, 0);
-                offset = 0;
-            } else {
-                buffer = this.buffers[bufferIndex];
+            final long address = this.endAddress;
+            int anchor = -1;
+            int sharedChars = 0;
+            for (int i = 0; i < NUM_ANCHORS; ++i) {
+                final String anchorString = this.anchorStrings[i];
+                if (anchorString != null
+                        && address - this.anchorAddresses[i] <= Integer.MAX_VALUE) {
+                    final int maxShared = Math.min(0xFFFF / 3,
+                            Math.min(string.length(), anchorString.length()));
+                    int shared = 0;
+                    while (shared < maxShared
+                            && string.charAt(shared) == anchorString.charAt(shared)) {
+                        ++shared;
+                    }
+                    if (shared > sharedChars) {
+                        anchor = i;
+                        sharedChars = shared;
+                    }
+                }
             }
-            buffer.putInt(offset, this.endPointer);
-            offset += 4;
-            buffer.putShort(offset,
-                    (short) (length | (resource instanceof BNode ? 0x4000 : 0x0000)));
+            final int sharedBytes = byteLength(string, 0, sharedChars);
+            final boolean frontCoded = sharedBytes >= MIN_SHARED_LENGTH;
+            final int start = frontCoded ? sharedChars : 0;
+            final int length = byteLength(string, start, string.length());
+
+            // Write the string record
+            long offset = address;
+            this.strings.writeShort(offset, (short) ((frontCoded ? FLAG_FRONT_CODED : 0)
+                    | (resource instanceof BNode ? FLAG_BNODE : 0)
+                    | Math.min(length, MAX_SHORT_LENGTH)));
             offset += 2;
-            for (int i = 0; i < length; ++i) {
-                final char ch = string.charAt(i);
-                if (ch > 0 && ch < 128) {
-                    buffer.put(offset++, (byte) ch);
-                } else {
-                    buffer.put(offset++, (byte) 0);
-                    buffer.putChar(offset, ch);
-                    offset += 2;
-                }
+            if (length >= MAX_SHORT_LENGTH) {
+                this.strings.writeInt(offset, length);
+                offset += 4;
+            }
+            if (frontCoded) {
+                this.strings.writeShort(offset, (short) sharedBytes);
+                this.strings.writeInt(offset + 2,
+                        (int) (address - this.anchorAddresses[anchor]));
+                offset += 6;
+            } else {
+                this.anchorStrings[this.anchorIndex] = string;
+                this.anchorAddresses[this.anchorIndex] = address;
+                this.anchorIndex = (this.anchorIndex + 1) % NUM_ANCHORS;
             }
-            final int pointer = this.endPointer;
-            this.endPointer = pointerFor(bufferIndex, offset);
-            return pointer;
+            offset += this.strings.writeString(offset,
+                    frontCoded ? string.substring(start) : string);
+
+            this.addresses.writeLong((long) id << 3, address);
+            this.endAddress = offset;
+            return id; // size updated by the caller once the table cell is written
         }
 
-        private Resource readResource(final int pointer) {
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            int offset = offsetFor(pointer) + 4;
-            final int lengthAndFlags = buffer.getShort(offset);
-            final int length = lengthAndFlags & 0x3FFF;
-            final boolean bnode = (lengthAndFlags & 0x4000) != 0;
-            final StringBuilder builder = new StringBuilder();
-            offset += 2;
-            while (builder.length() < length) {
-                final byte b = buffer.get(offset++);
-                if (b != 0) {
-                    builder.append((char) b);
-                } else {
-                    builder.append(buffer.getChar(offset));
-                    offset += 2;
-                }
+        private int appendCode(final int code) {
+            final int id = this.size + 1;
+            if (id < 0) {
+                throw new IllegalStateException("Too many resources");
+            }
+            if (this.parents[id >>> CHUNK_BITS] == null) {
+                this.parents[id >>> CHUNK_BITS] = new AtomicIntegerArray(CHUNK_SIZE);
+            }
+            this.codes.writeInt((long) id << 2, code);
+            return id; // size updated by the caller once the table cell is written
+        }
+
+        private Resource readResource(final int id) {
+            if (this.dictionary != null) {
+                return (Resource) this.dictionary.decode(this.codes.readInt((long) id << 2));
             }
-            final String string = builder.toString();
-            return bnode ? Statements.VALUE_FACTORY.createBNode(string) //
+            final long address = this.addresses.readLong((long) id << 3);
+            final int header = this.strings.readShort(address) & 0xFFFF;
+            long offset = address + 2;
+            int length = header & MAX_SHORT_LENGTH;
+            if (length == MAX_SHORT_LENGTH) {
+                length = this.strings.readInt(offset);
+                offset += 4;
+            }
+            final String string;
+            if ((header & FLAG_FRONT_CODED) == 0) {
+                string = this.strings.readString(offset, length);
+            } else {
+                final int shared = this.strings.readShort(offset) & 0xFFFF;
+                final long anchorOffset = dataOffset(address - this.strings.readInt(offset + 2));
+                string = this.strings.readString(anchorOffset, shared)
+                        + this.strings.readString(offset + 6, length);
+            }
+            return (header & FLAG_BNODE) != 0 ? Statements.VALUE_FACTORY.createBNode(string) //
                     : Statements.VALUE_FACTORY.createURI(string);
         }
 
-        private boolean matchResource(final int pointer, final Resource resource) {
-            final String string = resource.stringValue();
-            final int length = string.length();
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            int offset = offsetFor(pointer) + 4;
-            final int lengthAndFlags = buffer.getShort(offset);
-            final boolean bnode = (lengthAndFlags & 0x4000) != 0;
-            if (bnode && resource instanceof URI || !bnode && resource instanceof BNode) {
+        private boolean matchResource(final int id, final Resource resource) {
+            final long address = this.addresses.readLong((long) id << 3);
+            final int header = this.strings.readShort(address) & 0xFFFF;
+            if ((header & FLAG_BNODE) != 0 != resource instanceof BNode) {
                 return false;
             }
-            final int l = lengthAndFlags & 0x3FFF;
-            if (l != length) {
-                return false;
+            final String string = resource.stringValue();
+            long offset = address + 2;
+            int length = header & MAX_SHORT_LENGTH;
+            if (length == MAX_SHORT_LENGTH) {
+                length = this.strings.readInt(offset);
+                offset += 4;
             }
-            offset += 2;
-            for (int i = 0; i < length; ++i) {
-                final char c = string.charAt(i);
-                if (c > 0 && c < 128) {
-                    if (c != (char) buffer.get(offset++)) {
-                        return false;
-                    }
+            int index = 0;
+            if ((header & FLAG_FRONT_CODED) != 0) {
+                final int shared = this.strings.readShort(offset) & 0xFFFF;
+                final long anchorOffset = dataOffset(address - this.strings.readInt(offset + 2));
+                index = match(anchorOffset, shared, string, 0);
+                offset += 6;
+            }
+            return index >= 0 && match(offset, length, string, index) == string.length();
+        }
+
+        private long dataOffset(final long address) {
+            final int length = this.strings.readShort(address) & MAX_SHORT_LENGTH;
+            return address + (length == MAX_SHORT_LENGTH ? 6 : 2);
+        }
+
+        private int match(final long offset, final int length, final String string,
+                final int startIndex) {
+            int index = startIndex;
+            final long end = offset + length;
+            for (long o = offset; o < end; ++index) {
+                if (index == string.length()) {
+                    return -1;
+                }
+                final byte b = this.strings.read(o++);
+                final char c;
+                if (b != 0) {
+                    c = (char) b;
                 } else {
-                    if (buffer.get(offset++) != 0) {
-                        return false;
-                    }
-                    if (c != buffer.getChar(offset)) {
-                        return false;
-                    }
-                    offset += 2;
+                    c = (char) ((this.strings.read(o) & 0xFF) << 8 | this.strings.read(o + 1)
+                            & 0xFF);
+                    o += 2;
+                }
+                if (c != string.charAt(index)) {
+                    return -1;
                 }
             }
-            return true;
+            return index;
         }
 
-        private int readNext(final int pointer) {
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            final int offset = offsetFor(pointer);
-            return buffer.getInt(offset);
+        private int byteLength(final String string, final int startIndex, final int endIndex) {
+            int length = 0;
+            for (int i = startIndex; i < endIndex; ++i) {
+                final char ch = string.charAt(i);
+                length += ch > 0 && ch <= 127 ? 1 : 3;
+            }
+            return length;
         }
 
-        private void writeNext(final int pointer, final int next) {
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            final int offset = offsetFor(pointer);
-            buffer.putInt(offset, next);
-        }
+    }
 
-        private boolean readNormalized(final int pointer) {
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            final int offset = offsetFor(pointer) + 4;
-            return (buffer.getShort(offset) & 0x8000) != 0;
+    private static int readVarInt(final DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0;; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
         }
+    }
 
-        private void writeNormalized(final int pointer, final boolean normalized) {
-            final ByteBuffer buffer = this.buffers[bufferFor(pointer)];
-            final int offset = offsetFor(pointer) + 4;
-            buffer.putShort(offset, (short) (buffer.getShort(offset) | (normalized ? 0x8000
-                    : 0x0000)));
+    private static void writeVarInt(final DataOutputStream out, final int value)
+            throws IOException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte(v & 0x7F | 0x80);
+            v >>>= 7;
         }
+        out.writeByte(v);
+    }
 
-        private Statement createStatement(final Resource subj, final URI pred, final Value obj,
-                @Nullable final Resource ctx) {
-            return ctx == null ? Statements.VALUE_FACTORY.createStatement(subj, pred, obj) //
-                    : Statements.VALUE_FACTORY.createStatement(subj, pred, obj, ctx);
+    private static final class Table {
+
+        final Buffer cells;
+
+        final long mask;
+
+        Table(final Buffer cells, final long numSlots) {
+            this.cells = cells;
+            this.mask = numSlots - 1;
         }
 
     }
+
 }
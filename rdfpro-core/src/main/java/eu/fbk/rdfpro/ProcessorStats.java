@@ -25,6 +25,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
@@ -69,14 +71,23 @@ final class ProcessorStats implements RDFProcessor {
 
     private final long threshold;
 
+    private final boolean approximate;
+
     ProcessorStats(@Nullable final String outputNamespace, @Nullable final URI sourceProperty,
             @Nullable final URI sourceContext, @Nullable final Long threshold,
-            final boolean processCooccurrences) {
+            final boolean processCooccurrences, final boolean approximate) {
         this.outputNamespace = outputNamespace;
         this.sourceProperty = sourceProperty;
         this.sourceContext = sourceContext;
         this.processCooccurrences = processCooccurrences;
         this.threshold = threshold != null ? threshold : 0;
+        this.approximate = approximate;
+    }
+
+    @Override
+    public int getExtraPasses() {
+        // in approximate mode, graph-to-source links must be known before computing statistics
+        return this.approximate && this.sourceProperty != null ? 1 : 0;
     }
 
     @Override
@@ -96,17 +107,17 @@ final class ProcessorStats implements RDFProcessor {
 
         private final List<TypeStats> typeList;
 
-        private final Map<URI, TypeStats> typeMap;
+        private final ConcurrentHashMap<URI, TypeStats> typeMap;
 
         private final List<PropertyStats> propertyList;
 
-        private final Map<URI, PropertyStats> propertyMap;
+        private final ConcurrentHashMap<URI, PropertyStats> propertyMap;
 
         private final List<Context> contextList;
 
-        private final Map<Hash, Context> contextMap;
+        private final ConcurrentHashMap<Hash, Context> contextMap;
 
-        private final Map<URI, TypeStats.Sampler> samplerMap;
+        private final ConcurrentHashMap<URI, TypeStats.Sampler> samplerMap;
 
         private final Set<String> mintedURIs;
 
@@ -124,18 +135,20 @@ final class ProcessorStats implements RDFProcessor {
 
         private boolean firstPass;
 
+        private boolean linksPass;
+
         Handler(final RDFHandler handler) {
             this.handler = handler;
             this.sourceList = new ArrayList<SourceStats>();
             this.sourceMap = new HashMap<URI, SourceStats>();
             this.sourceInterner = new ConcurrentHashMap<URI, URI>();
             this.typeList = new ArrayList<TypeStats>();
-            this.typeMap = new HashMap<URI, TypeStats>();
+            this.typeMap = new ConcurrentHashMap<URI, TypeStats>();
             this.propertyList = new ArrayList<PropertyStats>();
-            this.propertyMap = new HashMap<URI, PropertyStats>();
+            this.propertyMap = new ConcurrentHashMap<URI, PropertyStats>();
             this.contextList = new ArrayList<Context>();
-            this.contextMap = new HashMap<Hash, Context>();
-            this.samplerMap = new HashMap<URI, TypeStats.Sampler>();
+            this.contextMap = new ConcurrentHashMap<Hash, Context>();
+            this.samplerMap = new ConcurrentHashMap<URI, TypeStats.Sampler>();
             this.directBlockSubject = null;
             this.directBlockStats = new HashMap<SourceStats, PartialStats>();
             this.directBlockPartitions = new HashSet<PropertyStats.Partition>();
@@ -144,17 +157,26 @@ final class ProcessorStats implements RDFProcessor {
             this.mintedURIs = new HashSet<String>();
             this.sorter = null;
             this.firstPass = true;
+            this.linksPass = getExtraPasses() > 0;
 
-            PropertyStats ps = new PropertyStats(RDF.TYPE, 0);
+            final PropertyStats ps = new PropertyStats(RDF.TYPE, 0);
+            ps.sampler = new PropertyStats.Sampler();
             this.propertyMap.put(RDF.TYPE, ps);
             this.propertyList.add(ps);
+
+            if (ProcessorStats.this.approximate && !this.linksPass) {
+                initSources();
+            }
         }
 
         @Override
         public void startRDF() throws RDFHandlerException {
+            if (this.linksPass) {
+                return;
+            }
             this.handler.startRDF();
             this.mintedURIs.clear();
-            if (this.firstPass) {
+            if (this.firstPass && !ProcessorStats.this.approximate) {
                 this.sorter = new Sorter<Record>() {
 
                     @Override
@@ -180,7 +202,13 @@ final class ProcessorStats implements RDFProcessor {
         @Override
         public void handleStatement(final Statement statement) throws RDFHandlerException {
 
-            if (!this.firstPass) {
+            if (this.linksPass) {
+                handleLinkStatement(statement);
+                return;
+            } else if (!this.firstPass) {
+                return;
+            } else if (ProcessorStats.this.approximate) {
+                handleApproximateStatement(statement);
                 return;
             }
 
@@ -193,65 +221,20 @@ final class ProcessorStats implements RDFProcessor {
             final Hash sh = Hash.create(s);
             final Hash oh = isURIType ? null : Hash.create(o);
 
-            PropertyStats ps;
-            synchronized (this.propertyList) {
-                ps = this.propertyMap.get(p);
-                if (ps == null) {
-                    ps = new PropertyStats(p, this.propertyList.size());
-                    this.propertyMap.put(p, ps);
-                    this.propertyList.add(ps);
-                }
-            }
-
-            TypeStats ts = null;
-            if (isURIType) {
-                synchronized (this.typeList) {
-                    ts = this.typeMap.get(o);
-                    if (ts == null) {
-                        ts = new TypeStats((URI) o, this.typeList.size());
-                        this.typeMap.put((URI) o, ts);
-                        this.typeList.add(ts);
-                    }
-                }
-            }
+            // Registries are read lock-free; locks are taken only to register new elements
+            final PropertyStats ps = registerProperty(p);
+            final TypeStats ts = isURIType ? registerType((URI) o) : null;
 
             Context ctx = null;
             if (c != null) {
-                final Hash ch = Hash.create(c);
-                synchronized (this.contextList) {
-                    ctx = this.contextMap.get(ch);
-                    if (ctx == null) {
-                        ctx = new Context(this.contextList.size());
-                        this.contextMap.put(ch, ctx);
-                        this.contextList.add(ctx);
-                    }
-                    ctx.used = true;
+                ctx = registerContext(Hash.create(c));
+                if (!ctx.used) {
+                    ctx.used = true; // read at endRDF(), after all threads are done
                 }
             }
 
-            if (o instanceof URI
-                    && p.equals(ProcessorStats.this.sourceProperty)
-                    && (ProcessorStats.this.sourceContext == null || Objects.equals(c,
-                            ProcessorStats.this.sourceContext))) {
-                URI source = this.sourceInterner.putIfAbsent((URI) o, (URI) o);
-                source = source != null ? source : (URI) o;
-                Context sctx;
-                synchronized (this.contextList) {
-                    sctx = this.contextMap.get(sh);
-                    if (sctx == null) {
-                        sctx = new Context(this.contextList.size());
-                        this.contextMap.put(sh, sctx);
-                        this.contextList.add(sctx);
-                    }
-                }
-                synchronized (sctx) {
-                    if (!Arrays.asList(sctx.sources).contains(source)) {
-                        final URI[] array = new URI[sctx.sources.length + 1];
-                        System.arraycopy(sctx.sources, 0, array, 0, sctx.sources.length);
-                        array[array.length - 1] = source;
-                        sctx.sources = array;
-                    }
-                }
+            if (isSourceLink(p, o, c)) {
+                registerSource(sh, (URI) o);
             }
 
             final int pi = ps.index;
@@ -270,26 +253,136 @@ final class ProcessorStats implements RDFProcessor {
                 throw new RDFHandlerException(ex);
             }
 
-            synchronized (ps) {
-                if (ps.sampler == null) {
-                    ps.sampler = new PropertyStats.Sampler();
+            sample(statement, ps, ts);
+        }
+
+        private void handleLinkStatement(final Statement statement) {
+
+            final Resource s = statement.getSubject();
+            final URI p = statement.getPredicate();
+            final Value o = statement.getObject();
+            final Resource c = statement.getContext();
+
+            if (c != null) {
+                final Context ctx = registerContext(Hash.create(c));
+                if (!ctx.used) {
+                    ctx.used = true;
+                }
+            }
+
+            if (isSourceLink(p, o, c)) {
+                registerSource(Hash.create(s), (URI) o);
+            }
+        }
+
+        private void handleApproximateStatement(final Statement statement) {
+
+            final Resource s = statement.getSubject();
+            final URI p = statement.getPredicate();
+            final Value o = statement.getObject();
+            final Resource c = statement.getContext();
+
+            final boolean isURIType = o instanceof URI && p.equals(RDF.TYPE);
+            final boolean isEntity = s instanceof URI;
+            final long sh = Hash.create(s).longHash();
+            final long oh = isURIType ? 0L : Hash.create(o).longHash();
+
+            final PropertyStats ps = registerProperty(p);
+            final TypeStats ts = isURIType ? registerType((URI) o) : null;
+
+            final boolean isTBox = ts != null ? Statements.TBOX_CLASSES.contains(ts.type)
+                    : Statements.TBOX_PROPERTIES.contains(p);
+            final int kind = isTBox ? 0 : ts != null ? 1 : p.equals(OWL.SAMEAS) ? 2 : 3;
+
+            if (!isURIType) {
+                final boolean isLiteral = o instanceof Literal;
+                final URI detectedType = ps.detectedType;
+                if (detectedType == null || detectedType == OWL.DATATYPEPROPERTY && !isLiteral
+                        || detectedType == OWL.OBJECTPROPERTY && isLiteral) {
+                    synchronized (ps) { // changes at most twice per property
+                        if (ps.detectedType == null) {
+                            ps.detectedType = isLiteral ? OWL.DATATYPEPROPERTY
+                                    : OWL.OBJECTPROPERTY;
+                        } else if (ps.detectedType == OWL.DATATYPEPROPERTY && !isLiteral
+                                || ps.detectedType == OWL.OBJECTPROPERTY && isLiteral) {
+                            ps.detectedType = RDF.PROPERTY;
+                        }
+                    }
+                }
+            }
+
+            handleApproximateStatementHelper(this.sourceList.get(0), ps, ts, kind, isEntity, sh,
+                    oh);
+            if (c != null && ProcessorStats.this.sourceProperty != null) {
+                final Context ctx = this.contextMap.get(Hash.create(c));
+                if (ctx != null) {
+                    for (final URI source : ctx.sources) {
+                        handleApproximateStatementHelper(this.sourceMap.get(source), ps, ts,
+                                kind, isEntity, sh, oh);
+                    }
                 }
-                ps.sampler.add(statement);
             }
 
+            sample(statement, ps, ts);
+        }
+
+        private void handleApproximateStatementHelper(final SourceStats ss,
+                final PropertyStats ps, @Nullable final TypeStats ts, final int kind,
+                final boolean isEntity, final long sh, final long oh) {
+
+            // kind: 0 = TBox, 1 = ABox rdf:type, 2 = ABox owl:sameAs, 3 = other ABox
+            final Estimates se = ss.estimates;
+            se.triples.increment();
+            (kind == 0 ? se.tboxTriples : se.aboxTriples).increment();
+            if (kind == 1) {
+                se.typeTriples.increment();
+            } else if (kind == 2) {
+                se.sameAsTriples.increment();
+            }
+            if (isEntity) {
+                se.entities.add(sh);
+            }
+
+            final Estimates pe = ps.partitions[ss.index].estimates();
+            pe.triples.increment();
+            pe.subjects.add(sh);
+            if (isEntity) {
+                pe.entities.add(sh);
+            }
+            if (ts == null) {
+                pe.objects.add(oh);
+            } else {
+                final Estimates te = ts.partitions[ss.index].estimates();
+                if (isEntity) {
+                    te.entities.add(sh);
+                }
+            }
+        }
+
+        private void sample(final Statement statement, final PropertyStats ps,
+                @Nullable final TypeStats ts) {
+
+            final Resource s = statement.getSubject();
+
+            ps.sampler.add(statement);
+
             if (s instanceof URI) {
-                synchronized (this.samplerMap) {
-                    TypeStats.Sampler sampler = this.samplerMap.get(s);
-                    if (sampler != null) {
-                        sampler.add(statement);
-                        if (ts != null && ts.sampler == null) {
+                TypeStats.Sampler sampler = this.samplerMap.get(s);
+                if (sampler == null && ts != null && ts.sampler == null) {
+                    synchronized (ts) {
+                        if (ts.sampler == null) {
+                            sampler = new TypeStats.Sampler();
+                            final TypeStats.Sampler existing = this.samplerMap.putIfAbsent(
+                                    (URI) s, sampler);
+                            sampler = existing != null ? existing : sampler;
                             ts.sampler = sampler;
                         }
-                    } else if (ts != null && ts.sampler == null) {
-                        sampler = new TypeStats.Sampler();
-                        sampler.add(statement);
+                    }
+                }
+                if (sampler != null) {
+                    sampler.add(statement);
+                    if (ts != null && ts.sampler == null) {
                         ts.sampler = sampler;
-                        this.samplerMap.put((URI) s, sampler);
                     }
                 }
             }
@@ -297,7 +390,19 @@ final class ProcessorStats implements RDFProcessor {
 
         @Override
         public void endRDF() throws RDFHandlerException {
-            if (this.firstPass) {
+            if (this.linksPass) {
+                initSources();
+                this.linksPass = false;
+                return;
+            } else if (this.firstPass && ProcessorStats.this.approximate) {
+                this.typeMap.clear(); // no more used
+                this.propertyMap.clear(); // no more used
+                this.contextMap.clear(); // no more used
+                this.samplerMap.clear(); // no more used
+                this.sourceInterner.clear(); // no more used
+                buildExamples();
+                computeEstimates();
+            } else if (this.firstPass) {
                 try {
                     this.typeMap.clear(); // no more used
                     this.propertyMap.clear(); // no more used
@@ -305,42 +410,17 @@ final class ProcessorStats implements RDFProcessor {
                     this.samplerMap.clear(); // no more used
                     this.sourceInterner.clear(); // no more used
 
-                    final SourceStats s0 = new SourceStats(null, 0);
-                    this.sourceMap.put(null, s0);
-                    this.sourceList.add(s0);
-
-                    for (int i = 0; i < this.contextList.size(); ++i) {
-                        final Context ctx = this.contextList.get(i);
-                        if (!ctx.used) {
-                            this.contextList.set(i, null);
-                        } else {
-                            for (final URI source : ctx.sources) {
-                                SourceStats ss = this.sourceMap.get(source);
-                                if (ss == null) {
-                                    ss = new SourceStats(source, this.sourceList.size());
-                                    this.sourceMap.put(source, ss);
-                                    this.sourceList.add(ss);
-                                }
-                            }
-                        }
-                    }
+                    initSources();
+                    buildExamples();
 
                     for (final TypeStats ts : this.typeList) {
                         ts.partitions = new TypeStats.Partition[this.sourceList.size()];
                         ts.partitions[0] = new TypeStats.Partition();
-                        if (ts.sampler != null) {
-                            ts.example = ts.sampler.build();
-                            ts.sampler = null; // release memory
-                        }
                     }
 
                     for (final PropertyStats ps : this.propertyList) {
                         ps.partitions = new PropertyStats.Partition[this.sourceList.size()];
                         ps.partitions[0] = new PropertyStats.Partition();
-                        if (ps.sampler != null) {
-                            ps.example = ps.sampler.build();
-                            ps.sampler = null; // release memory
-                        }
                     }
 
                     LOGGER.debug("Status: {} properties, {} types, {} contexts, " + "{} sources",
@@ -377,6 +457,201 @@ final class ProcessorStats implements RDFProcessor {
             IO.closeQuietly(this.handler);
         }
 
+        private void initSources() {
+
+            final SourceStats s0 = new SourceStats(null, 0);
+            this.sourceMap.put(null, s0);
+            this.sourceList.add(s0);
+
+            for (int i = 0; i < this.contextList.size(); ++i) {
+                final Context ctx = this.contextList.get(i);
+                if (!ctx.used) {
+                    this.contextList.set(i, null);
+                } else {
+                    for (final URI source : ctx.sources) {
+                        SourceStats ss = this.sourceMap.get(source);
+                        if (ss == null) {
+                            ss = new SourceStats(source, this.sourceList.size());
+                            this.sourceMap.put(source, ss);
+                            this.sourceList.add(ss);
+                        }
+                    }
+                }
+            }
+
+            if (ProcessorStats.this.approximate) {
+                for (final SourceStats ss : this.sourceList) {
+                    ss.estimates = new Estimates(false);
+                }
+                for (final PropertyStats ps : this.propertyList) {
+                    ps.partitions = newPropertyPartitions();
+                }
+            }
+        }
+
+        private void buildExamples() {
+            for (final TypeStats ts : this.typeList) {
+                if (ts.sampler != null) {
+                    ts.example = ts.sampler.build();
+                    ts.sampler = null; // release memory
+                }
+            }
+            for (final PropertyStats ps : this.propertyList) {
+                if (ps.sampler != null) {
+                    ps.example = ps.sampler.build();
+                    ps.sampler = null; // release memory
+                }
+            }
+        }
+
+        private void computeEstimates() {
+
+            for (final SourceStats ss : this.sourceList) {
+                final Estimates e = ss.estimates;
+                ss.triples = e.triples.sum();
+                ss.tboxTriples = e.tboxTriples.sum();
+                ss.aboxTriples = e.aboxTriples.sum();
+                ss.typeTriples = e.typeTriples.sum();
+                ss.sameAsTriples = e.sameAsTriples.sum();
+                ss.entities = Math.min(ss.triples, e.entities.estimate());
+                ss.estimates = null; // release memory
+                if (ProcessorStats.this.processCooccurrences) {
+                    ss.types = new BitSet();
+                    ss.properties = new BitSet();
+                }
+            }
+
+            for (final TypeStats ts : this.typeList) {
+                for (int i = 0; i < ts.partitions.length; ++i) {
+                    final TypeStats.Partition p = ts.partitions[i];
+                    if (p.estimates == null && i > 0) {
+                        ts.partitions[i] = null; // type not used in source
+                    } else if (p.estimates != null) {
+                        p.entities = p.estimates.entities.estimate();
+                        p.estimates = null; // release memory
+                        if (ProcessorStats.this.processCooccurrences) {
+                            this.sourceList.get(i).types.set(ts.index);
+                        }
+                    }
+                }
+            }
+
+            for (final PropertyStats ps : this.propertyList) {
+                for (int i = 0; i < ps.partitions.length; ++i) {
+                    final PropertyStats.Partition p = ps.partitions[i];
+                    if (p.estimates == null && i > 0) {
+                        ps.partitions[i] = null; // property not used in source
+                    } else if (p.estimates != null) {
+                        // Distinct counts cannot exceed the (exact) number of triples
+                        p.triples = p.estimates.triples.sum();
+                        p.distinctSubjects = Math.min(p.triples,
+                                p.estimates.subjects.estimate());
+                        p.distinctObjects = Math.min(p.triples, p.estimates.objects.estimate());
+                        p.entities = Math.min(p.distinctSubjects,
+                                p.estimates.entities.estimate());
+                        p.estimates = null; // release memory
+                        if (ProcessorStats.this.processCooccurrences && ps.index > 0) {
+                            this.sourceList.get(i).properties.set(ps.index);
+                        }
+                    }
+                }
+            }
+
+            LOGGER.debug("Status: {} properties, {} types, {} sources (approximate)",
+                    this.propertyList.size(), this.typeList.size(), this.sourceList.size());
+        }
+
+        private boolean isSourceLink(final URI p, final Value o, @Nullable final Resource c) {
+            return o instanceof URI
+                    && p.equals(ProcessorStats.this.sourceProperty)
+                    && (ProcessorStats.this.sourceContext == null || Objects.equals(c,
+                            ProcessorStats.this.sourceContext));
+        }
+
+        private void registerSource(final Hash contextHash, final URI source) {
+            URI interned = this.sourceInterner.putIfAbsent(source, source);
+            interned = interned != null ? interned : source;
+            final Context sctx = registerContext(contextHash);
+            synchronized (sctx) {
+                if (!Arrays.asList(sctx.sources).contains(interned)) {
+                    final URI[] array = new URI[sctx.sources.length + 1];
+                    System.arraycopy(sctx.sources, 0, array, 0, sctx.sources.length);
+                    array[array.length - 1] = interned;
+                    sctx.sources = array;
+                }
+            }
+        }
+
+        private PropertyStats.Partition[] newPropertyPartitions() {
+            final PropertyStats.Partition[] partitions = new PropertyStats.Partition[this.sourceList
+                    .size()];
+            for (int i = 0; i < partitions.length; ++i) {
+                partitions[i] = new PropertyStats.Partition();
+            }
+            return partitions;
+        }
+
+        private TypeStats.Partition[] newTypePartitions() {
+            final TypeStats.Partition[] partitions = new TypeStats.Partition[this.sourceList
+                    .size()];
+            for (int i = 0; i < partitions.length; ++i) {
+                partitions[i] = new TypeStats.Partition();
+            }
+            return partitions;
+        }
+
+        private PropertyStats registerProperty(final URI property) {
+            PropertyStats ps = this.propertyMap.get(property);
+            if (ps == null) {
+                synchronized (this.propertyList) {
+                    ps = this.propertyMap.get(property);
+                    if (ps == null) {
+                        ps = new PropertyStats(property, this.propertyList.size());
+                        ps.sampler = new PropertyStats.Sampler();
+                        if (ProcessorStats.this.approximate) {
+                            ps.partitions = newPropertyPartitions(); // sources already known
+                        }
+                        this.propertyList.add(ps);
+                        this.propertyMap.put(property, ps); // publish after list update
+                    }
+                }
+            }
+            return ps;
+        }
+
+        private TypeStats registerType(final URI type) {
+            TypeStats ts = this.typeMap.get(type);
+            if (ts == null) {
+                synchronized (this.typeList) {
+                    ts = this.typeMap.get(type);
+                    if (ts == null) {
+                        ts = new TypeStats(type, this.typeList.size());
+                        if (ProcessorStats.this.approximate) {
+                            ts.partitions = newTypePartitions(); // sources already known
+                        }
+                        this.typeList.add(ts);
+                        this.typeMap.put(type, ts);
+                    }
+                }
+            }
+            return ts;
+        }
+
+        private Context registerContext(final Hash hash) {
+            Context ctx = this.contextMap.get(hash);
+            if (ctx == null) {
+                synchronized (this.contextList) {
+                    ctx = this.contextMap.get(hash);
+                    if (ctx == null) {
+                        ctx = new Context(this.contextList.size());
+                        this.contextList.add(ctx);
+                        this.contextMap.put(hash, ctx);
+                    }
+                }
+            }
+            return ctx;
+        }
+
         private void handleDirectRecord(@Nullable final Record record) {
 
             if (record == null || !record.subject.equals(this.directBlockSubject)) {
@@ -544,6 +819,10 @@ final class ProcessorStats implements RDFProcessor {
 
         private void emitStatistics() throws RDFHandlerException {
 
+            // In approximate mode, triples of class partitions are not counted and functional /
+            // inverse functional properties cannot be told apart from estimated distinct counts
+            final boolean exact = !ProcessorStats.this.approximate;
+
             this.handler.handleNamespace(VOID.PREFIX, VOID.NAMESPACE);
             this.handler.handleNamespace(VOIDX.PREFIX, VOIDX.NAMESPACE);
 
@@ -596,18 +875,20 @@ final class ProcessorStats implements RDFProcessor {
                         emit(tpURI, VOIDX.SOURCE, source);
                         emit(tpURI, VOID.CLASS, ts.type);
                         emit(tpURI, VOID.ENTITIES, p.entities);
-                        emit(tpURI, VOID.TRIPLES, p.triples);
-                        emit(tpURI, VOIDX.TBOX_TRIPLES, p.tboxTriples);
-                        emit(tpURI, VOIDX.ABOX_TRIPLES, p.aboxTriples);
-                        emit(tpURI, VOIDX.TYPE_TRIPLES, p.typeTriples);
-                        emit(tpURI, VOIDX.SAME_AS_TRIPLES, p.sameAsTriples);
+                        if (exact) {
+                            emit(tpURI, VOID.TRIPLES, p.triples);
+                            emit(tpURI, VOIDX.TBOX_TRIPLES, p.tboxTriples);
+                            emit(tpURI, VOIDX.ABOX_TRIPLES, p.aboxTriples);
+                            emit(tpURI, VOIDX.TYPE_TRIPLES, p.typeTriples);
+                            emit(tpURI, VOIDX.SAME_AS_TRIPLES, p.sameAsTriples);
+                        }
                         if (p.types != null) {
                             emit(tpURI, VOID.CLASSES, p.types.cardinality());
                         }
                         if (p.properties != null) {
                             emit(tpURI, VOID.PROPERTIES, p.properties.cardinality());
                         }
-                        if (p.entities > 0) {
+                        if (exact && p.entities > 0) {
                             emit(tpURI, VOIDX.AVERAGE_PROPERTIES, (double) p.predicates
                                     / p.entities);
                         }
@@ -623,8 +904,9 @@ final class ProcessorStats implements RDFProcessor {
                 final boolean isTBox = Statements.TBOX_PROPERTIES.contains(ps.property);
                 final boolean isType = ps.property.equals(RDF.TYPE);
                 final boolean isSameAs = ps.property.equals(OWL.SAMEAS);
-                final boolean fun = p0.triples > 0 && p0.triples == p0.distinctSubjects;
-                final boolean invfun = p0.triples > 0 && p0.triples == p0.distinctObjects;
+                final boolean fun = exact && p0.triples > 0 && p0.triples == p0.distinctSubjects;
+                final boolean invfun = exact && p0.triples > 0
+                        && p0.triples == p0.distinctObjects;
                 final boolean data = OWL.DATATYPEPROPERTY.equals(ps.detectedType);
                 final boolean object = OWL.OBJECTPROPERTY.equals(ps.detectedType);
                 final String label = String.format("%s (%d, %s%s%s)", Statements.formatValue(
@@ -647,8 +929,10 @@ final class ProcessorStats implements RDFProcessor {
                         final URI source = this.sourceList.get(i).source;
                         final URI spURI = spURIs.get(source);
                         final URI ppURI = mintURI(source, ps.property);
-                        final boolean ppFun = p.triples > 0 && p.triples == p.distinctSubjects;
-                        final boolean ppInvfun = p.triples > 0 && p.triples == p.distinctObjects;
+                        final boolean ppFun = exact && p.triples > 0
+                                && p.triples == p.distinctSubjects;
+                        final boolean ppInvfun = exact && p.triples > 0
+                                && p.triples == p.distinctObjects;
                         final String ppLabel = String.format("%s (%d, %s%s%s)", Statements
                                 .formatValue(ppURI, Namespaces.DEFAULT), p.triples, data ? "D"
                                 : object ? "O" : "P", ppFun ? "F" : "", ppInvfun ? "I" : "");
@@ -788,6 +1072,9 @@ final class ProcessorStats implements RDFProcessor {
 
         long sameAsTriples;
 
+        @Nullable
+        Estimates estimates;
+
         SourceStats(final URI source, final int index) {
             this.source = source;
             this.index = index;
@@ -811,7 +1098,7 @@ final class ProcessorStats implements RDFProcessor {
         final int index;
 
         @Nullable
-        Sampler sampler;
+        volatile Sampler sampler;
 
         @Nullable
         String example;
@@ -844,6 +1131,23 @@ final class ProcessorStats implements RDFProcessor {
 
             long predicates;
 
+            @Nullable
+            volatile Estimates estimates;
+
+            Estimates estimates() {
+                Estimates estimates = this.estimates;
+                if (estimates == null) {
+                    synchronized (this) {
+                        estimates = this.estimates;
+                        if (estimates == null) {
+                            estimates = new Estimates(false);
+                            this.estimates = estimates;
+                        }
+                    }
+                }
+                return estimates;
+            }
+
         }
 
         static class Sampler {
@@ -856,15 +1160,24 @@ final class ProcessorStats implements RDFProcessor {
 
             private final List<Value> data;
 
+            private volatile boolean full; // checked without locking
+
             Sampler() {
                 this.data = new ArrayList<Value>();
+                this.full = false;
             }
 
-            synchronized void add(final Statement statement) {
-                if (this.data.size() < MAX_STATEMENTS * 2) {
-                    this.id = (URI) statement.getSubject();
-                    this.data.add(statement.getPredicate());
-                    this.data.add(statement.getObject());
+            void add(final Statement statement) {
+                if (!this.full) {
+                    synchronized (this) {
+                        if (this.data.size() < MAX_STATEMENTS * 2) {
+                            this.id = (URI) statement.getSubject();
+                            this.data.add(statement.getPredicate());
+                            this.data.add(statement.getObject());
+                        } else {
+                            this.full = true;
+                        }
+                    }
                 }
             }
 
@@ -906,7 +1219,7 @@ final class ProcessorStats implements RDFProcessor {
         String example;
 
         @Nullable
-        URI detectedType;
+        volatile URI detectedType;
 
         @Nullable
         Partition[] partitions;
@@ -929,6 +1242,23 @@ final class ProcessorStats implements RDFProcessor {
 
             long version;
 
+            @Nullable
+            volatile Estimates estimates;
+
+            Estimates estimates() {
+                Estimates estimates = this.estimates;
+                if (estimates == null) {
+                    synchronized (this) {
+                        estimates = this.estimates;
+                        if (estimates == null) {
+                            estimates = new Estimates(true);
+                            this.estimates = estimates;
+                        }
+                    }
+                }
+                return estimates;
+            }
+
         }
 
         static final class Sampler {
@@ -939,13 +1269,15 @@ final class ProcessorStats implements RDFProcessor {
 
             private final Statement[] statements;
 
-            private boolean haveBNode;
+            // Volatile and only increasing, so that add() can reject most statements unlocked
+
+            private volatile boolean haveBNode;
 
-            private boolean haveLiteral;
+            private volatile boolean haveLiteral;
 
-            private boolean haveURI;
+            private volatile boolean haveURI;
 
-            private int size;
+            private volatile int size;
 
             Sampler() {
                 this.statements = new Statement[MAX_STATEMENTS];
@@ -955,7 +1287,7 @@ final class ProcessorStats implements RDFProcessor {
                 this.size = 0;
             }
 
-            synchronized void add(final Statement statement) {
+            void add(final Statement statement) {
 
                 final Resource s = statement.getSubject();
                 final Value o = statement.getObject();
@@ -963,13 +1295,27 @@ final class ProcessorStats implements RDFProcessor {
                 final boolean isBNode = o instanceof BNode;
                 final boolean isLiteral = o instanceof Literal;
 
-                if (!(s instanceof URI)
-                        || this.size == this.statements.length
-                        && (isURI && this.haveURI || isBNode && this.haveBNode || isLiteral
-                                && this.haveLiteral)) {
+                if (!(s instanceof URI) || isFull(isURI, isBNode, isLiteral)) {
                     return;
                 }
 
+                synchronized (this) {
+                    if (!isFull(isURI, isBNode, isLiteral)) {
+                        addHelper(statement, isURI, isBNode, isLiteral);
+                    }
+                }
+            }
+
+            private boolean isFull(final boolean isURI, final boolean isBNode,
+                    final boolean isLiteral) {
+                return this.size == this.statements.length
+                        && (isURI && this.haveURI || isBNode && this.haveBNode || isLiteral
+                                && this.haveLiteral);
+            }
+
+            private void addHelper(final Statement statement, final boolean isURI,
+                    final boolean isBNode, final boolean isLiteral) {
+
                 int index = -1;
                 for (int i = 0; i < this.statements.length; ++i) {
                     final Statement stmt = this.statements[i];
@@ -1017,6 +1363,214 @@ final class ProcessorStats implements RDFProcessor {
 
     }
 
+    private static final class Estimates {
+
+        final LongAdder triples;
+
+        final LongAdder tboxTriples;
+
+        final LongAdder aboxTriples;
+
+        final LongAdder typeTriples;
+
+        final LongAdder sameAsTriples;
+
+        final Sketch entities;
+
+        @Nullable
+        final Sketch subjects;
+
+        @Nullable
+        final Sketch objects;
+
+        Estimates(final boolean distinct) {
+            this.triples = new LongAdder();
+            this.tboxTriples = new LongAdder();
+            this.aboxTriples = new LongAdder();
+            this.typeTriples = new LongAdder();
+            this.sameAsTriples = new LongAdder();
+            this.entities = new Sketch();
+            this.subjects = distinct ? new Sketch() : null;
+            this.objects = distinct ? new Sketch() : null;
+        }
+
+    }
+
+    static final class Sketch {
+
+        // HyperLogLog with 2^14 8-bit registers (standard error 0.81%), estimated with Ertl's
+        // improved estimator, with no bias correction. Registers start in a sparse hash table of
+        // (index, rank) entries under the sketch lock, so that the many small per-source
+        // partitions stay small; once the table would exceed half the dense size, registers move
+        // to a dense array packed four per int and updated with CAS. Both forms hold the same
+        // registers, so estimates do not depend on the form used
+
+        private static final int P = 14;
+
+        private static final int Q = 64 - P;
+
+        private static final int M = 1 << P;
+
+        private static final int MAX_SPARSE_LENGTH = M / 8;
+
+        @Nullable
+        private volatile AtomicIntegerArray registers;
+
+        @Nullable
+        private int[] sparse; // entries index << 8 | rank, 0 if empty; guarded by this
+
+        private int sparseSize;
+
+        Sketch() {
+            this.registers = null;
+            this.sparse = new int[8];
+            this.sparseSize = 0;
+        }
+
+        void add(final long hash) {
+            final int index = (int) (hash >>> Q);
+            final int rank = Math.min(Q + 1, Long.numberOfLeadingZeros(hash << P) + 1);
+            AtomicIntegerArray registers = this.registers;
+            if (registers == null) {
+                synchronized (this) {
+                    registers = this.registers;
+                    if (registers == null) {
+                        addSparse(index, rank);
+                        return;
+                    }
+                }
+            }
+            final int slot = index >>> 2;
+            final int shift = (index & 3) << 3;
+            while (true) {
+                final int word = registers.get(slot);
+                if ((word >>> shift & 0xFF) >= rank) {
+                    return; // common case once the sketch is warm
+                }
+                final int newWord = word & ~(0xFF << shift) | rank << shift;
+                if (registers.compareAndSet(slot, word, newWord)) {
+                    return;
+                }
+            }
+        }
+
+        long estimate() {
+            final int[] counts = new int[Q + 2];
+            AtomicIntegerArray registers = this.registers;
+            if (registers == null) {
+                synchronized (this) {
+                    registers = this.registers;
+                    if (registers == null) {
+                        for (final int entry : this.sparse) {
+                            ++counts[entry & 0xFF]; // empty entries count as zero registers
+                        }
+                        counts[0] += M - this.sparse.length;
+                    }
+                }
+            }
+            if (registers != null) {
+                for (int i = 0; i < M / 4; ++i) {
+                    final int word = registers.get(i);
+                    for (int shift = 0; shift < 32; shift += 8) {
+                        ++counts[word >>> shift & 0xFF];
+                    }
+                }
+            }
+            if (counts[0] == M) {
+                return 0L;
+            }
+            double z = M * tau(1.0 - (double) counts[Q + 1] / M);
+            for (int k = Q; k >= 1; --k) {
+                z = 0.5 * (z + counts[k]);
+            }
+            z += M * sigma((double) counts[0] / M);
+            return Math.round(M / (2.0 * Math.log(2.0)) * M / z);
+        }
+
+        private void addSparse(final int index, final int rank) {
+            final int[] sparse = this.sparse;
+            final int mask = sparse.length - 1;
+            int i = index * 0x9E3779B9 >>> 16 & mask;
+            while (true) {
+                final int entry = sparse[i];
+                if (entry == 0) {
+                    sparse[i] = index << 8 | rank;
+                    if (++this.sparseSize * 2 > sparse.length) {
+                        growSparse();
+                    }
+                    return;
+                } else if (entry >>> 8 == index) {
+                    if ((entry & 0xFF) < rank) {
+                        sparse[i] = index << 8 | rank;
+                    }
+                    return;
+                }
+                i = i + 1 & mask;
+            }
+        }
+
+        private void growSparse() {
+            final int[] oldSparse = this.sparse;
+            if (oldSparse.length < MAX_SPARSE_LENGTH) {
+                this.sparse = new int[oldSparse.length * 2];
+                this.sparseSize = 0;
+                for (final int entry : oldSparse) {
+                    if (entry != 0) {
+                        addSparse(entry >>> 8, entry & 0xFF);
+                    }
+                }
+            } else {
+                final AtomicIntegerArray registers = new AtomicIntegerArray(M / 4);
+                for (final int entry : oldSparse) {
+                    if (entry != 0) {
+                        final int index = entry >>> 8;
+                        final int slot = index >>> 2;
+                        final int shift = (index & 3) << 3;
+                        registers.set(slot, registers.get(slot) | (entry & 0xFF) << shift);
+                    }
+                }
+                this.sparse = null;
+                this.sparseSize = 0;
+                this.registers = registers; // published last, after being filled
+            }
+        }
+
+        private static double sigma(final double x) {
+            if (x == 1.0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double xp = x;
+            double y = 1.0;
+            double z = x;
+            double zp;
+            do {
+                xp *= xp;
+                zp = z;
+                z += xp * y;
+                y += y;
+            } while (z != zp);
+            return z;
+        }
+
+        private static double tau(final double x) {
+            if (x == 0.0 || x == 1.0) {
+                return 0.0;
+            }
+            double xp = x;
+            double y = 1.0;
+            double z = 1.0 - x;
+            double zp;
+            do {
+                xp = Math.sqrt(xp);
+                zp = z;
+                y *= 0.5;
+                z -= (1.0 - xp) * (1.0 - xp) * y;
+            } while (z != zp);
+            return z / 3.0;
+        }
+
+    }
+
     private static final class Context {
 
         private static final URI[] EMPTY = new URI[0];
@@ -1118,16 +1672,19 @@ final class ProcessorStats implements RDFProcessor {
             if (this.inverse) {
                 // o p c -> hash(o) byte(flag) num(p) num(c)
                 this.object.write(writer);
+                writer.endKey();
                 writer.writeNumber(flag + 8);
                 writer.writeNumber(this.property);
             } else if (this.object == null) {
                 // s t c -> hash(s) char(flag) 4*char(type, 127 each) hash(c)
                 this.subject.write(writer);
+                writer.endKey();
                 writer.writeNumber(flag + 4);
                 writer.writeNumber(this.type);
             } else {
                 // s p o c -> hash(s) char(flag) 4*char(p) hash(o) hash(c)
                 this.subject.write(writer);
+                writer.endKey();
                 writer.writeNumber(flag + 2);
                 writer.writeNumber(this.property);
                 this.object.write(writer);
@@ -1148,9 +1705,8 @@ final class ProcessorStats implements RDFProcessor {
 
         private static final int TABLE_SIZE = 4 * 1024 - 1;
 
-        private static final Hash[] TABLE_HASHES = new Hash[TABLE_SIZE];
-
-        private static final Value[] TABLE_VALUES = new Value[TABLE_SIZE];
+        // Entries are immutable, so they are read and replaced without locking
+        private static final Entry[] TABLE = new Entry[TABLE_SIZE];
 
         private static final Index<URI> DATATYPE_INDEX = new Index<URI>(1024);
 
@@ -1171,16 +1727,12 @@ final class ProcessorStats implements RDFProcessor {
                 return compute(value);
             }
             final int index = (value.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
-            synchronized (TABLE_VALUES) {
-                if (value.equals(TABLE_VALUES[index])) {
-                    return TABLE_HASHES[index];
-                }
+            final Entry entry = TABLE[index];
+            if (entry != null && value.equals(entry.value)) {
+                return entry.hash;
             }
             final Hash hash = compute(value);
-            synchronized (TABLE_VALUES) {
-                TABLE_VALUES[index] = value;
-                TABLE_HASHES[index] = hash;
-            }
+            TABLE[index] = new Entry(value, hash);
             return hash;
         }
 
@@ -1263,6 +1815,14 @@ final class ProcessorStats implements RDFProcessor {
             this.hi = hi;
         }
 
+        public long longHash() {
+            // mix both halves, as short strings are stored verbatim rather than hashed
+            long h = this.lo ^ Long.rotateLeft(this.hi, 29) * 0x9E3779B97F4A7C15L;
+            h = (h ^ h >>> 33) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ h >>> 33) * 0xC4CEB9FE1A85EC53L;
+            return h ^ h >>> 33;
+        }
+
         public boolean isURI() {
             return (this.hi & 0x3000000000000000L) == 0x3000000000000000L;
         }
@@ -1297,11 +1857,24 @@ final class ProcessorStats implements RDFProcessor {
             writer.writeNumber(this.hi);
         }
 
+        private static final class Entry {
+
+            final Value value;
+
+            final Hash hash;
+
+            Entry(final Value value, final Hash hash) {
+                this.value = value;
+                this.hash = hash;
+            }
+
+        }
+
     }
 
     private static final class Index<T> {
 
-        private final Map<T, Integer> map;
+        private final ConcurrentHashMap<T, Integer> map;
 
         private final List<T> list;
 
@@ -1309,13 +1882,19 @@ final class ProcessorStats implements RDFProcessor {
 
         Index(final int size) {
             final int capacity = Math.min(size, 1024);
-            this.map = new HashMap<T, Integer>(capacity);
+            this.map = new ConcurrentHashMap<T, Integer>(capacity);
             this.list = new ArrayList<T>(capacity);
             this.size = size;
         }
 
         @Nullable
-        synchronized Integer put(final T element) {
+        Integer put(final T element) {
+            final Integer index = this.map.get(element); // lock-free for known elements
+            return index != null ? index : putHelper(element);
+        }
+
+        @Nullable
+        private synchronized Integer putHelper(final T element) {
             Integer index = this.map.get(element);
             if (index == null && this.list.size() < this.size) {
                 index = this.list.size() + 1;
@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
 
 import javax.annotation.Nullable;
@@ -35,25 +36,79 @@ import org.openrdf.model.Value;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.rdfpro.util.Dictionary;
+import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.Hash;
 import eu.fbk.rdfpro.util.IO;
 import eu.fbk.rdfpro.util.Sorter;
+import eu.fbk.rdfpro.util.StatementDeduplicator;
 import eu.fbk.rdfpro.util.Statements;
 
 final class ProcessorUnique implements RDFProcessor {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProcessorUnique.class);
+
+    private static final long MEMORY_BUDGET = Long.parseLong(Environment.getProperty(
+            "rdfpro.unique.memory", "" + Runtime.getRuntime().maxMemory() / 4));
+
     private final boolean mergeContexts;
 
-    ProcessorUnique(final boolean mergeContexts) {
+    private final boolean inMemory;
+
+    private final double falseDropRate;
+
+    @Nullable
+    private final String spill;
+
+    ProcessorUnique(final boolean mergeContexts, final boolean inMemory,
+            final double falseDropRate, @Nullable final String spill) {
+        if (inMemory && (mergeContexts || spill != null)) {
+            throw new IllegalArgumentException(
+                    "In-memory deduplication cannot be combined with context merging or spills");
+        }
+        if (falseDropRate != 0.0 && (falseDropRate < 0.0 || falseDropRate >= 1.0)) {
+            throw new IllegalArgumentException("Invalid false drop rate " + falseDropRate);
+        }
+        if (falseDropRate != 0.0 && (mergeContexts || inMemory || spill != null)) {
+            throw new IllegalArgumentException("Approximate deduplication cannot be combined "
+                    + "with context merging, in-memory deduplication or spills");
+        }
         this.mergeContexts = mergeContexts;
+        this.inMemory = inMemory;
+        this.falseDropRate = falseDropRate;
+        this.spill = spill;
     }
 
     @SuppressWarnings("resource")
     @Override
     public RDFHandler wrap(final RDFHandler handler) {
         Objects.requireNonNull(handler);
-        return this.mergeContexts ? new MergeHandler(RDFHandlers.decouple(handler)) //
-                : new Handler(handler, true);
+        if (this.inMemory) {
+            return new MemoryHandler(handler);
+        } else if (this.falseDropRate != 0.0) {
+            return new ApproximateHandler(handler, this.falseDropRate);
+        }
+        return this.mergeContexts ? new MergeHandler(RDFHandlers.decouple(handler), this.spill)
+                : new Handler(handler, true, this.spill);
+    }
+
+    @Override
+    public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+            final Dictionary.QuadHandler handler) {
+        Objects.requireNonNull(dictionary);
+        Objects.requireNonNull(handler);
+        if (this.inMemory) {
+            return new MemoryQuadHandler(dictionary, handler);
+        }
+        return RDFProcessor.super.wrap(dictionary, handler);
+    }
+
+    @Override
+    public boolean isQuadNative() {
+        return this.inMemory;
     }
 
     // private static final class KeepContextsHandler extends AbstractRDFHandlerWrapper {
@@ -398,11 +453,15 @@ final class ProcessorUnique implements RDFProcessor {
 
         private final boolean parallelize;
 
+        @Nullable
+        private final String spill;
+
         private Sorter<Statement> sorter;
 
-        Handler(final RDFHandler handler, final boolean parallelize) {
+        Handler(final RDFHandler handler, final boolean parallelize, @Nullable final String spill) {
             super(handler);
             this.parallelize = parallelize;
+            this.spill = spill;
             this.sorter = null;
         }
 
@@ -411,7 +470,13 @@ final class ProcessorUnique implements RDFProcessor {
             super.startRDF();
             this.sorter = Sorter.newStatementSorter(true);
             try {
-                this.sorter.start(true);
+                // Reuse sorted statements of a previous pass, if available, or sort and save them
+                if (this.spill == null || !this.sorter.replay(this.spill)) {
+                    this.sorter.start(true);
+                    if (this.spill != null) {
+                        this.sorter.persist(this.spill);
+                    }
+                }
             } catch (final IOException ex) {
                 throw new RDFHandlerException(ex);
             }
@@ -453,6 +518,9 @@ final class ProcessorUnique implements RDFProcessor {
         @Override
         public final void close() {
             IO.closeQuietly(this.sorter);
+            if (this.spill != null) {
+                Sorter.discard(this.spill); // no more passes: release spill memory and files
+            }
             super.close();
         }
 
@@ -488,8 +556,8 @@ final class ProcessorUnique implements RDFProcessor {
 
         private final Set<Resource> statementContexts; // if there are multiple contexts
 
-        public MergeHandler(final RDFHandler handler) {
-            super(handler, false);
+        public MergeHandler(final RDFHandler handler, @Nullable final String spill) {
+            super(handler, false, spill);
             this.contextsStatements = new ConcurrentHashMap<>();
             this.mergedContexts = new HashMap<>();
             this.statementSubj = null;
@@ -687,4 +755,411 @@ final class ProcessorUnique implements RDFProcessor {
 
     }
 
+    private static final class MemoryHandler extends AbstractRDFHandlerWrapper {
+
+        @Nullable
+        private HashTable table;
+
+        @Nullable
+        private Overflow overflow;
+
+        MemoryHandler(final RDFHandler handler) {
+            super(handler);
+            this.table = null;
+            this.overflow = null;
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+            super.startRDF();
+            this.table = new HashTable(MEMORY_BUDGET);
+            this.overflow = new Overflow();
+        }
+
+        @Override
+        public void handleStatement(final Statement statement) throws RDFHandlerException {
+
+            final Hash hash = Hash.combine(Statements.getHash(statement.getSubject()),
+                    Statements.getHash(statement.getPredicate()),
+                    Statements.getHash(statement.getObject()),
+                    Statements.getHash(statement.getContext()));
+
+            final int outcome = this.table.add(hash.getLow(), hash.getHigh());
+            if (outcome == HashTable.ADDED) {
+                super.handleStatement(statement); // distinct, emitted right away
+            } else if (outcome == HashTable.OVERFLOW) {
+                this.overflow.emit(statement); // not seen before: deduplicated by sorting
+            }
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            this.overflow.end(this.table, this.handler::handleStatement);
+            this.overflow = null;
+            this.table = null;
+            super.endRDF();
+        }
+
+        @Override
+        public void close() {
+            IO.closeQuietly(this.overflow);
+            super.close();
+        }
+
+    }
+
+    private static final class MemoryQuadHandler implements Dictionary.QuadHandler {
+
+        // Quads are stored exactly in the hash table, as (subj, pred) and (obj, ctx) code pairs
+
+        private final Dictionary dictionary;
+
+        private final Dictionary.QuadHandler handler;
+
+        @Nullable
+        private HashTable table;
+
+        @Nullable
+        private Overflow overflow;
+
+        MemoryQuadHandler(final Dictionary dictionary, final Dictionary.QuadHandler handler) {
+            this.dictionary = dictionary;
+            this.handler = handler;
+            this.table = null;
+            this.overflow = null;
+        }
+
+        @Override
+        public void start() throws RDFHandlerException {
+            this.handler.start();
+            this.table = new HashTable(MEMORY_BUDGET);
+            this.overflow = new Overflow();
+        }
+
+        @Override
+        public void handleNamespace(final String prefix, final String uri)
+                throws RDFHandlerException {
+            this.handler.handleNamespace(prefix, uri);
+        }
+
+        @Override
+        public void handleComment(final String comment) throws RDFHandlerException {
+            this.handler.handleComment(comment);
+        }
+
+        @Override
+        public void handle(final int subj, final int pred, final int obj, final int ctx)
+                throws RDFHandlerException {
+
+            final long lo = (long) subj << 32 | pred & 0xFFFFFFFFL;
+            final long hi = (long) obj << 32 | ctx & 0xFFFFFFFFL;
+
+            final int outcome = this.table.add(lo, hi);
+            if (outcome == HashTable.ADDED) {
+                this.handler.handle(subj, pred, obj, ctx);
+            } else if (outcome == HashTable.OVERFLOW) {
+                final Dictionary d = this.dictionary;
+                this.overflow.emit(Statements.VALUE_FACTORY.createStatement(
+                        (Resource) d.decode(subj), (URI) d.decode(pred), d.decode(obj),
+                        (Resource) d.decode(ctx)));
+            }
+        }
+
+        @Override
+        public void end() throws RDFHandlerException {
+            final Dictionary d = this.dictionary;
+            this.overflow.end(this.table, (final Statement statement) -> {
+                this.handler.handle(d.encode(statement.getSubject()),
+                        d.encode(statement.getPredicate()), d.encode(statement.getObject()),
+                        d.encode(statement.getContext()));
+            });
+            this.overflow = null;
+            this.table = null;
+            this.handler.end();
+        }
+
+        @Override
+        public void close() {
+            IO.closeQuietly(this.overflow);
+            this.handler.close();
+        }
+
+    }
+
+    private static final class Overflow implements AutoCloseable {
+
+        // Sorts the statements that did not fit the hash table, created on first use
+
+        @Nullable
+        private volatile Sorter<Statement> sorter;
+
+        void emit(final Statement statement) throws RDFHandlerException {
+            Sorter<Statement> sorter = this.sorter;
+            if (sorter == null) {
+                synchronized (this) {
+                    sorter = this.sorter;
+                    if (sorter == null) {
+                        sorter = Sorter.newStatementSorter(true);
+                        try {
+                            sorter.start(true);
+                        } catch (final IOException ex) {
+                            throw new RDFHandlerException(ex);
+                        }
+                        this.sorter = sorter;
+                    }
+                }
+            }
+            try {
+                sorter.emit(statement);
+            } catch (final Throwable ex) {
+                throw new RDFHandlerException(ex);
+            }
+        }
+
+        void end(final HashTable table, final StatementSink sink) throws RDFHandlerException {
+            final Sorter<Statement> sorter = this.sorter;
+            if (sorter == null) {
+                return;
+            }
+            LOGGER.debug("Hash table full after {} statements, sorting remaining ones",
+                    table.size());
+            try {
+                sorter.end(true, new Consumer<Statement>() {
+
+                    @Override
+                    public void accept(final Statement statement) {
+                        try {
+                            sink.accept(statement);
+                        } catch (final RDFHandlerException ex) {
+                            throw new RuntimeException(ex);
+                        }
+                    }
+
+                });
+                sorter.close();
+                this.sorter = null;
+            } catch (final IOException ex) {
+                throw new RDFHandlerException(ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            IO.closeQuietly(this.sorter);
+        }
+
+    }
+
+    private interface StatementSink {
+
+        void accept(Statement statement) throws RDFHandlerException;
+
+    }
+
+    private static final class ApproximateHandler extends AbstractRDFHandlerWrapper {
+
+        private final double falseDropRate;
+
+        @Nullable
+        private StatementDeduplicator deduplicator;
+
+        ApproximateHandler(final RDFHandler handler, final double falseDropRate) {
+            super(handler);
+            this.falseDropRate = falseDropRate;
+            this.deduplicator = null;
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+            super.startRDF();
+            this.deduplicator = StatementDeduplicator.newApproximateDeduplicator(
+                    this.falseDropRate, MEMORY_BUDGET);
+        }
+
+        @Override
+        public void handleStatement(final Statement statement) throws RDFHandlerException {
+            if (this.deduplicator.add(statement)) {
+                super.handleStatement(statement);
+            }
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            this.deduplicator = null;
+            super.endRDF();
+        }
+
+    }
+
+    private static final class HashTable {
+
+        // Chain of fixed-size open addressing tables of 128 bit hashes stored as (lo, hi) long
+        // pairs, probed in order. The chain starts with a small table and, when its last table
+        // fills, is extended with a table GROWTH times larger while the memory budget allows.
+        // Frozen (full) tables are still probed, so that each distinct hash is either ADDED
+        // exactly once (to the first table not full when first met) or always OVERFLOW.
+
+        static final int ADDED = 0;
+
+        static final int FOUND = 1;
+
+        static final int OVERFLOW = 2;
+
+        private static final long MIN_SLOTS = 1 << 16;
+
+        private static final long MAX_SLOTS = 1 << 29; // 2 * slots must fit an int index
+
+        private static final int GROWTH = 4;
+
+        private final long maxSlots;
+
+        private volatile Table[] tables;
+
+        private long allocatedSlots;
+
+        private boolean exhausted;
+
+        HashTable(final long budget) {
+            this.maxSlots = Math.max(MIN_SLOTS, budget / 16);
+            this.tables = new Table[] { new Table(MIN_SLOTS) };
+            this.allocatedSlots = MIN_SLOTS;
+            this.exhausted = false;
+        }
+
+        int add(long lo, long hi) {
+
+            lo = lo == 0L || lo == Table.CLOSED ? 1L : lo;
+            hi = hi == 0L ? 1L : hi;
+
+            // mix both halves, so that slots and stripes are spread even if lo or hi are skewed
+            long mix = lo ^ hi * 0x9E3779B97F4A7C15L;
+            mix = (mix ^ mix >>> 33) * 0xFF51AFD7ED558CCDL;
+            mix = (mix ^ mix >>> 33) * 0xC4CEB9FE1A85EC53L;
+            mix = mix ^ mix >>> 33;
+
+            Table[] tables = this.tables;
+            for (int i = 0;; ++i) {
+                if (i == tables.length) {
+                    tables = grow(tables); // missing in all the (full) tables of the chain
+                    if (i == tables.length) {
+                        return OVERFLOW;
+                    }
+                }
+                final int outcome = tables[i].add(lo, hi, mix);
+                if (outcome != Table.MISSING) {
+                    return outcome;
+                }
+            }
+        }
+
+        long size() {
+            long size = 0;
+            for (final Table table : this.tables) {
+                size += table.size();
+            }
+            return size;
+        }
+
+        private synchronized Table[] grow(final Table[] tables) {
+            if (this.tables != tables || this.exhausted) {
+                return this.tables; // already grown by another thread, or cannot grow
+            }
+            final long lastSlots = tables[tables.length - 1].slots;
+            final long slots = Math.min(Math.min(MAX_SLOTS, lastSlots * GROWTH),
+                    Long.highestOneBit(Math.max(1, this.maxSlots - this.allocatedSlots)));
+            if (slots < MIN_SLOTS) {
+                this.exhausted = true;
+                return tables;
+            }
+            final Table[] newTables = Arrays.copyOf(tables, tables.length + 1);
+            newTables[tables.length] = new Table(slots);
+            this.allocatedSlots += slots;
+            this.tables = newTables;
+            LOGGER.debug("Hash table extended with {} slots ({} slots total)", slots,
+                    this.allocatedSlots);
+            return newTables;
+        }
+
+        private static final class Table {
+
+            // A slot is claimed by CAS-ing its lo word from 0 to the hash lo (hi is written right
+            // after, readers wait for it). Once full, empty slots met during probing are CAS-ed
+            // to CLOSED: a hash not found before a CLOSED slot has never been added to this
+            // table and never will be, so it is reported as MISSING
+
+            static final int MISSING = -1;
+
+            static final long CLOSED = Long.MIN_VALUE;
+
+            private static final int STRIPES = 64;
+
+            private static final int STRIPE_PADDING = 8;
+
+            final long slots;
+
+            private final AtomicLongArray data;
+
+            private final AtomicLongArray counts;
+
+            private final int mask;
+
+            private final long stripeLimit;
+
+            private volatile boolean full;
+
+            Table(final long slots) {
+                this.slots = slots;
+                this.data = new AtomicLongArray((int) (slots * 2));
+                this.counts = new AtomicLongArray(STRIPES * STRIPE_PADDING);
+                this.mask = (int) (slots - 1);
+                this.stripeLimit = Math.max(1, slots * 3 / 4 / STRIPES);
+                this.full = false;
+            }
+
+            int add(final long lo, final long hi, final long mix) {
+
+                int slot = (int) (mix >>> 32) & this.mask;
+                while (true) {
+                    final long slotLo = this.data.get(slot * 2);
+                    if (slotLo == 0L) {
+                        if (this.full) {
+                            if (this.data.compareAndSet(slot * 2, 0L, CLOSED)) {
+                                return MISSING;
+                            }
+                        } else if (this.data.compareAndSet(slot * 2, 0L, lo)) {
+                            this.data.set(slot * 2 + 1, hi);
+                            final int stripe = ((int) mix & STRIPES - 1) * STRIPE_PADDING;
+                            if (this.counts.incrementAndGet(stripe) >= this.stripeLimit) {
+                                this.full = true;
+                            }
+                            return ADDED;
+                        }
+                        continue; // slot changed concurrently: examine it again
+                    } else if (slotLo == CLOSED) {
+                        return MISSING;
+                    } else if (slotLo == lo) {
+                        long slotHi;
+                        while ((slotHi = this.data.get(slot * 2 + 1)) == 0L) {
+                            Thread.yield(); // hi being written by the thread that claimed it
+                        }
+                        if (slotHi == hi) {
+                            return FOUND;
+                        }
+                    }
+                    slot = slot + 1 & this.mask;
+                }
+            }
+
+            long size() {
+                long size = 0;
+                for (int i = 0; i < STRIPES; ++i) {
+                    size += this.counts.get(i * STRIPE_PADDING);
+                }
+                return size;
+            }
+
+        }
+
+    }
+
 }
@@ -27,8 +27,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -47,6 +49,7 @@ import javax.annotation.Nullable;
 import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 
+import org.openrdf.model.Literal;
 import org.openrdf.model.Model;
 import org.openrdf.model.Namespace;
 import org.openrdf.model.Resource;
@@ -54,18 +57,21 @@ import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
 import org.openrdf.model.Value;
 import org.openrdf.model.impl.NamespaceImpl;
+import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFWriter;
 import org.openrdf.rio.Rio;
 import org.openrdf.rio.WriterConfig;
+import org.openrdf.rio.helpers.BasicParserSettings;
 import org.openrdf.rio.helpers.BasicWriterSettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.IO;
+import eu.fbk.rdfpro.util.Namespaces;
 import eu.fbk.rdfpro.util.QuadModel;
 import eu.fbk.rdfpro.util.Sorter;
 import eu.fbk.rdfpro.util.Statements;
@@ -100,6 +106,11 @@ public final class RDFHandlers {
 
     private static final WriterConfig DEFAULT_WRITER_CONFIG;
 
+    private static final boolean PARALLEL_TURTLE = Boolean.parseBoolean(Environment.getProperty(
+            "rdfpro.writer.parallelturtle", "true"));
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     static {
         final WriterConfig config = new WriterConfig();
         config.set(BasicWriterSettings.PRETTY_PRINT, true);
@@ -190,9 +201,20 @@ public final class RDFHandlers {
         for (int i = 0; i < locations.length; ++i) {
             final String location = locations[i];
             final RDFFormat format = Statements.toRDFFormat(location);
-            final boolean parallel = Statements.isRDFFormatLineBased(format);
-            handlers[i] = parallel ? new ParallelWriteHandler(actualConfig, location)
-                    : new SequentialWriteHandler(actualConfig, location);
+            if (Statements.isRDFFormatLineBased(format)
+                    || Statements.isRDFFormatBlockBased(format)) {
+                handlers[i] = new ParallelWriteHandler(actualConfig, location);
+            } else if (PARALLEL_TURTLE
+                    && (format.equals(RDFFormat.TURTLE) || format.equals(RDFFormat.TRIG))
+                    && actualConfig.get(BasicWriterSettings.PRETTY_PRINT)
+                    && actualConfig.get(BasicWriterSettings.XSD_STRING_TO_PLAIN_LITERAL)
+                    && actualConfig.get(BasicWriterSettings.RDF_LANGSTRING_TO_LANG_LITERAL)) {
+                // only the output of Sesame writers with these (default) settings is reproduced
+                handlers[i] = new ParallelTurtleWriteHandler(actualConfig, location,
+                        format.equals(RDFFormat.TRIG));
+            } else {
+                handlers[i] = new SequentialWriteHandler(actualConfig, location);
+            }
         }
         return handlers.length == 0 ? NIL : handlers.length == 1 ? handlers[0]
                 : dispatchRoundRobin(chunkSize, handlers);
@@ -607,7 +629,7 @@ public final class RDFHandlers {
         private OutputStream out;
 
         @Nullable
-        private List<Writer> partialOuts;
+        private List<Closeable> partialOuts;
 
         @Nullable
         private List<RDFWriter> partialWriters;
@@ -626,7 +648,7 @@ public final class RDFHandlers {
                 LOGGER.debug("Starting parallel {} writing of {}",
                         Statements.toRDFFormat(this.location).getName(), this.location);
                 this.out = IO.write(this.location);
-                this.partialOuts = new ArrayList<Writer>();
+                this.partialOuts = new ArrayList<Closeable>();
                 this.partialWriters = new ArrayList<RDFWriter>();
                 this.threadWriter = new ThreadLocal<RDFWriter>() {
 
@@ -654,7 +676,7 @@ public final class RDFHandlers {
                 partialWriter.endRDF();
             }
             try {
-                for (final Writer partialOut : this.partialOuts) {
+                for (final Closeable partialOut : this.partialOuts) {
                     partialOut.close();
                 }
                 this.out.close();
@@ -673,9 +695,20 @@ public final class RDFHandlers {
         }
 
         private RDFWriter newWriter() {
-            final Writer partialOut = IO.utf8Writer(IO.parallelBuffer(this.out, (byte) '\n'));
             final RDFFormat format = Statements.toRDFFormat(this.location);
-            final RDFWriter partialWriter = Rio.createWriter(format, partialOut);
+            final boolean blocks = Statements.isRDFFormatBlockBased(format);
+            final OutputStream partialStream = IO.parallelBuffer(this.out, blocks ? (byte) 0
+                    : (byte) '\n');
+            final Closeable partialOut;
+            final RDFWriter partialWriter;
+            if (blocks || format.getFileExtensions().contains("tql")) {
+                partialOut = partialStream; // TQL and BQ writers produce bytes by themselves
+                partialWriter = Rio.createWriter(format, partialStream);
+            } else {
+                final Writer writer = IO.utf8Writer(partialStream);
+                partialOut = writer;
+                partialWriter = Rio.createWriter(format, writer);
+            }
             partialWriter.setWriterConfig(this.config);
             synchronized (this.partialOuts) {
                 this.partialOuts.add(partialOut);
@@ -691,6 +724,311 @@ public final class RDFHandlers {
 
     }
 
+    private static final class ParallelTurtleWriteHandler extends AbstractRDFHandler {
+
+        private static final int BLOCK_SIZE = 256 * 1024;
+
+        private final String location;
+
+        private final boolean trig;
+
+        private final boolean failOnInvalidLanguages;
+
+        private final Map<String, String> pendingNamespaces; // prefix -> namespace
+
+        @Nullable
+        private volatile Namespaces namespaces;
+
+        @Nullable
+        private OutputStream out;
+
+        @Nullable
+        private Set<String> declaredPrefixes;
+
+        @Nullable
+        private List<Block> blocks;
+
+        @Nullable
+        private ThreadLocal<Block> threadBlock;
+
+        private volatile boolean languageReported;
+
+        ParallelTurtleWriteHandler(final WriterConfig config, final String location,
+                final boolean trig) {
+            this.location = location;
+            this.trig = trig;
+            this.failOnInvalidLanguages = config
+                    .get(BasicParserSettings.FAIL_ON_UNKNOWN_LANGUAGES);
+            this.pendingNamespaces = new LinkedHashMap<String, String>();
+        }
+
+        @Override
+        public void startRDF() throws RDFHandlerException {
+            try {
+                LOGGER.debug("Starting parallel {} writing of {}",
+                        Statements.toRDFFormat(this.location).getName(), this.location);
+                this.out = IO.write(this.location);
+                this.declaredPrefixes = new HashSet<String>();
+                this.blocks = new ArrayList<Block>();
+                this.threadBlock = new ThreadLocal<Block>() {
+
+                    @Override
+                    protected Block initialValue() {
+                        final Block block = new Block();
+                        synchronized (ParallelTurtleWriteHandler.this.blocks) {
+                            ParallelTurtleWriteHandler.this.blocks.add(block);
+                        }
+                        return block;
+                    }
+
+                };
+            } catch (final IOException ex) {
+                throw new RDFHandlerException("Could not write to " + this.location);
+            }
+            super.startRDF();
+        }
+
+        @Override
+        public void handleNamespace(final String prefix, final String uri)
+                throws RDFHandlerException {
+            synchronized (this.pendingNamespaces) {
+                final Namespaces namespaces = this.namespaces;
+                if (namespaces == null) {
+                    if (!this.pendingNamespaces.containsKey(prefix)) {
+                        this.pendingNamespaces.put(prefix, uri);
+                    }
+                } else if (namespaces.uriFor(prefix) == null
+                        && namespaces.prefixFor(uri) == null) {
+                    // Late namespace: extend the prefix table, so that blocks formatted from now
+                    // on use the prefix, which emit() declares before the first of them
+                    final Map<String, String> map = new HashMap<String, String>(
+                            namespaces.uriMap());
+                    map.put(prefix, uri);
+                    this.namespaces = Namespaces.forURIMap(map);
+                }
+            }
+        }
+
+        @Override
+        public void handleStatement(final Statement statement) throws RDFHandlerException {
+            this.threadBlock.get().add(statement);
+        }
+
+        @Override
+        public void endRDF() throws RDFHandlerException {
+            for (final Block block : this.blocks) {
+                block.flush();
+            }
+            try {
+                this.out.close();
+            } catch (final IOException ex) {
+                throw new RDFHandlerException("Unable to properly close " + this.location, ex);
+            }
+        }
+
+        @Override
+        public void close() {
+            IO.closeQuietly(this.out);
+            this.out = null;
+            this.declaredPrefixes = null;
+            this.blocks = null;
+            this.threadBlock = null;
+        }
+
+        private Namespaces getNamespaces() {
+            // The prefix table is created when the first statement is written, so that blocks
+            // can be serialized independently; it contains the namespaces received so far
+            // plus the default namespaces whose prefixes do not clash with them, and it is
+            // only extended (never rebound) by later namespaces
+            Namespaces namespaces = this.namespaces;
+            if (namespaces == null) {
+                synchronized (this.pendingNamespaces) {
+                    namespaces = this.namespaces;
+                    if (namespaces == null) {
+                        final Map<String, String> map = new HashMap<String, String>(
+                                this.pendingNamespaces);
+                        final Set<String> uris = new HashSet<String>(map.values());
+                        for (final String uri : Namespaces.DEFAULT.uris()) {
+                            final String prefix = Namespaces.DEFAULT.prefixFor(uri);
+                            if (!map.containsKey(prefix) && uris.add(uri)) {
+                                map.put(prefix, uri);
+                            }
+                        }
+                        namespaces = Namespaces.forURIMap(map);
+                        this.namespaces = namespaces;
+                    }
+                }
+            }
+            return namespaces;
+        }
+
+        private void emit(final byte[] bytes, final Set<String> prefixes)
+                throws RDFHandlerException {
+            final Namespaces namespaces = getNamespaces();
+            try {
+                synchronized (this.declaredPrefixes) {
+                    for (final String prefix : prefixes) {
+                        if (this.declaredPrefixes.add(prefix)) {
+                            this.out.write(("@prefix " + prefix + ": <"
+                                    + namespaces.uriFor(prefix) + "> .\n").getBytes(UTF8));
+                        }
+                    }
+                    this.out.write(bytes);
+                }
+            } catch (final IOException ex) {
+                throw new RDFHandlerException("Could not write to " + this.location, ex);
+            }
+        }
+
+        private void reportInvalidLanguage(final Literal literal) throws RDFHandlerException {
+            if (this.failOnInvalidLanguages) {
+                throw new RDFHandlerException("Invalid language tag '" + literal.getLanguage()
+                        + "' in " + literal + " written to " + this.location);
+            }
+            if (!this.languageReported) {
+                this.languageReported = true; // warn only once, to avoid flooding the log
+                LOGGER.warn("Invalid language tag '{}' written verbatim in {} (further "
+                        + "occurrences not reported)", literal.getLanguage(), this.location);
+            }
+        }
+
+        private final class Block {
+
+            private final StringBuilder builder = new StringBuilder(BLOCK_SIZE + 4096);
+
+            private final Set<String> prefixes = new HashSet<String>();
+
+            @Nullable
+            private Resource lastContext;
+
+            @Nullable
+            private Resource lastSubject;
+
+            @Nullable
+            private URI lastPredicate;
+
+            private boolean graphOpen;
+
+            void add(final Statement statement) throws RDFHandlerException {
+
+                final Resource subj = statement.getSubject();
+                final URI pred = statement.getPredicate();
+                final Value obj = statement.getObject();
+                final Resource ctx = ParallelTurtleWriteHandler.this.trig ? statement
+                        .getContext() : null;
+
+                // Blocks are cut only at subject boundaries, so that they are self-contained
+                boolean sameGraph = !ParallelTurtleWriteHandler.this.trig || this.graphOpen
+                        && Objects.equals(ctx, this.lastContext);
+                final boolean sameSubject = sameGraph && subj.equals(this.lastSubject);
+                if (!sameSubject && this.builder.length() >= BLOCK_SIZE) {
+                    flush();
+                    sameGraph = !ParallelTurtleWriteHandler.this.trig;
+                }
+
+                final StringBuilder b = this.builder;
+                if (!sameSubject) {
+                    closeSubject();
+                    if (ParallelTurtleWriteHandler.this.trig && !sameGraph) {
+                        closeGraph();
+                        if (ctx != null) {
+                            format(ctx);
+                            b.append(' ');
+                        }
+                        b.append("{\n");
+                        this.graphOpen = true;
+                        this.lastContext = ctx;
+                    }
+                    b.append(ParallelTurtleWriteHandler.this.trig ? "\t" : "");
+                    format(subj);
+                    b.append(' ');
+                    formatPredicate(pred);
+                    this.lastSubject = subj;
+                    this.lastPredicate = pred;
+                } else if (!pred.equals(this.lastPredicate)) {
+                    b.append(ParallelTurtleWriteHandler.this.trig ? " ;\n\t\t" : " ;\n\t");
+                    formatPredicate(pred);
+                    this.lastPredicate = pred;
+                } else {
+                    b.append(" ,");
+                }
+                b.append(' ');
+                format(obj);
+            }
+
+            void flush() throws RDFHandlerException {
+                closeSubject();
+                closeGraph();
+                if (this.builder.length() > 0) {
+                    emit(this.builder.toString().getBytes(UTF8), this.prefixes);
+                    this.builder.setLength(0);
+                    this.prefixes.clear();
+                }
+                this.graphOpen = false;
+                this.lastContext = null;
+            }
+
+            private void closeSubject() {
+                if (this.lastSubject != null) {
+                    this.builder.append(" .\n");
+                    this.lastSubject = null;
+                    this.lastPredicate = null;
+                }
+            }
+
+            private void closeGraph() {
+                if (this.graphOpen && ParallelTurtleWriteHandler.this.trig) {
+                    this.builder.append("}\n");
+                }
+                this.graphOpen = false;
+            }
+
+            private void formatPredicate(final URI predicate) throws RDFHandlerException {
+                if (predicate.equals(RDF.TYPE)) {
+                    this.builder.append('a');
+                } else {
+                    format(predicate);
+                }
+            }
+
+            private void format(final Value value) throws RDFHandlerException {
+                final Namespaces namespaces = getNamespaces();
+                final int start = this.builder.length();
+                try {
+                    final String language = value instanceof Literal ? ((Literal) value)
+                            .getLanguage() : null;
+                    if (language != null && !Statements.isValidLanguageTag(language)) {
+                        // Rejected by Statements.formatValue(): either fail or write the tag
+                        // verbatim, as done by Sesame writers
+                        reportInvalidLanguage((Literal) value);
+                        Statements.formatValue(Statements.VALUE_FACTORY
+                                .createLiteral(((Literal) value).getLabel()), namespaces,
+                                this.builder);
+                        this.builder.append('@').append(language);
+                        return;
+                    }
+                    Statements.formatValue(value, namespaces, this.builder);
+                } catch (final IOException ex) {
+                    throw new Error("Unexpected exception (!)", ex);
+                }
+                URI uri = null;
+                if (value instanceof URI) {
+                    uri = this.builder.charAt(start) != '<' ? (URI) value : null;
+                } else if (value instanceof Literal) {
+                    uri = ((Literal) value).getDatatype();
+                }
+                if (uri != null) {
+                    final String prefix = namespaces.prefixFor(uri.getNamespace());
+                    if (prefix != null) {
+                        this.prefixes.add(prefix);
+                    }
+                }
+            }
+
+        }
+
+    }
+
     private final static class UpdateHandler extends AbstractRDFHandler {
 
         private static final int DEFAULT_CHUNK_SIZE = 1024;
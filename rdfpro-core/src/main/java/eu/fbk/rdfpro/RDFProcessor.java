@@ -20,6 +20,7 @@ import org.openrdf.model.Statement;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 
+import eu.fbk.rdfpro.util.Dictionary;
 import eu.fbk.rdfpro.util.Environment;
 
 // assumptions
@@ -45,7 +46,10 @@ import eu.fbk.rdfpro.util.Environment;
  * <li>{@link #wrap(RDFSource)} wraps an {@code RDFSource}, returning a new {@code RDFSource} that
  * post-process returned data with the {@code RDFProcessor};</li>
  * <li>{@link #wrap(RDFHandler)} wraps an {@code RDFHandler}, returning a new {@code RDFHandler}
- * that pre-process input data with the {@code RDFProcessor}.</li>
+ * that pre-process input data with the {@code RDFProcessor};</li>
+ * <li>{@link #wrap(Dictionary, Dictionary.QuadHandler)} wraps a {@code QuadHandler}, returning a
+ * new {@code QuadHandler} that pre-process input data, encoded as int quads using a
+ * {@link Dictionary}, with the {@code RDFProcessor}.</li>
  * </ul>
  * <p>
  * The transformation encapsulated by an {@code RDFProcessor} may require multiple passes on input
@@ -118,6 +122,37 @@ public interface RDFProcessor {
      */
     RDFHandler wrap(RDFHandler handler);
 
+    /**
+     * Wraps the supplied {@code QuadHandler} so to pre-process data fed to it, encoded as int
+     * quads with the {@code Dictionary} specified, with this {@code RDFProcessor}. Processors
+     * able to work directly on int quads should override this method so to avoid creating
+     * {@code Statement} objects. This default implementation bridges to
+     * {@link #wrap(RDFHandler)}, decoding input quads and encoding output statements.
+     *
+     * @param dictionary
+     *            the dictionary used to encode quads, not null
+     * @param handler
+     *            the {@code QuadHandler} to wrap, not null
+     * @return the wrapped {@code QuadHandler}
+     */
+    default Dictionary.QuadHandler wrap(final Dictionary dictionary,
+            final Dictionary.QuadHandler handler) {
+        return dictionary.decode(wrap(dictionary.encode(handler)));
+    }
+
+    /**
+     * Returns true if {@link #wrap(Dictionary, Dictionary.QuadHandler)} processes int quads
+     * without bridging to {@link #wrap(RDFHandler)}, so that running this processor on int
+     * quads does not create a {@code Statement} per input quad. This default implementation
+     * returns false, and must be overridden together with
+     * {@link #wrap(Dictionary, Dictionary.QuadHandler)}.
+     *
+     * @return true if this processor works natively on int quads
+     */
+    default boolean isQuadNative() {
+        return false; // may be overridden
+    }
+
     /**
      * Applies the processor to the supplied {@code RDFSource}, emitting output data to the
      * specified {@code RDFHandler} in one or more passes. This default implementation is based on
@@ -41,6 +41,7 @@ import org.openrdf.rio.WriterConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.fbk.rdfpro.util.Dictionary;
 import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.IO;
 import eu.fbk.rdfpro.util.Namespaces;
@@ -67,6 +68,39 @@ public final class RDFProcessors {
                             | RDFHandlers.METHOD_HANDLE_STATEMENT);
         }
 
+        @Override
+        public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                final Dictionary.QuadHandler handler) {
+            Objects.requireNonNull(handler);
+            return new Dictionary.QuadHandler() {
+
+                @Override
+                public void start() throws RDFHandlerException {
+                    handler.start();
+                }
+
+                @Override
+                public void handle(final int subj, final int pred, final int obj, final int ctx) {
+                }
+
+                @Override
+                public void end() throws RDFHandlerException {
+                    handler.end();
+                }
+
+                @Override
+                public void close() {
+                    handler.close();
+                }
+
+            };
+        }
+
+        @Override
+        public boolean isQuadNative() {
+            return true;
+        }
+
     };
 
     /** The identity {@code RDFProcessor} that returns the input RDF stream unchanged. */
@@ -77,6 +111,17 @@ public final class RDFProcessors {
             return Objects.requireNonNull(handler);
         }
 
+        @Override
+        public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                final Dictionary.QuadHandler handler) {
+            return Objects.requireNonNull(handler);
+        }
+
+        @Override
+        public boolean isQuadNative() {
+            return true;
+        }
+
     };
 
     private RDFProcessors() {
@@ -170,8 +215,16 @@ public final class RDFProcessors {
 
         case "u":
         case "unique": {
-            final Options options = Options.parse("m", args);
-            return unique(options.hasOption("m"));
+            final Options options = Options.parse("m|M|a!|s!", args);
+            if (options.hasOption("a")) {
+                if (options.hasOption("m") || options.hasOption("M") || options.hasOption("s")) {
+                    throw new IllegalArgumentException(
+                            "Option -a cannot be combined with -m, -M or -s");
+                }
+                return unique(options.getOptionArg("a", Double.class));
+            }
+            return unique(options.hasOption("m"), options.hasOption("M"),
+                    options.getOptionArg("s", String.class));
         }
 
         case "p":
@@ -199,7 +252,7 @@ public final class RDFProcessors {
         }
 
         case "smush": {
-            final Options options = Options.parse("x|*", args);
+            final Options options = Options.parse("x|i!|s!|*", args);
             final String[] namespaces = options.getPositionalArgs(String.class).toArray(
                     new String[0]);
             final boolean hasSmushEasterEgg = options.hasOption("x");
@@ -250,7 +303,8 @@ public final class RDFProcessors {
             for (int i = 0; i < namespaces.length; ++i) {
                 namespaces[i] = parseURI(namespaces[i]).stringValue();
             }
-            return smush(namespaces);
+            return smush(options.getOptionArg("i", String.class),
+                    options.getOptionArg("s", String.class), namespaces);
         }
 
         case "tbox": {
@@ -285,14 +339,15 @@ public final class RDFProcessors {
         }
 
         case "stats": {
-            final Options options = Options.parse("n!|p!|c!|t!|o", args);
+            final Options options = Options.parse("n!|p!|c!|t!|o|a", args);
             final URI namespace = parseURI(options.getOptionArg("n", String.class));
             final URI property = parseURI(options.getOptionArg("p", String.class));
             final URI context = parseURI(options.getOptionArg("c", String.class));
             final Long threshold = options.getOptionArg("t", Long.class);
             final boolean processCooccurrences = options.hasOption("o");
+            final boolean approximate = options.hasOption("a");
             return stats(namespace == null ? null : namespace.stringValue(), property, context,
-                    threshold, processCooccurrences);
+                    threshold, processCooccurrences, approximate);
         }
 
         case "download": {
@@ -489,6 +544,27 @@ public final class RDFProcessors {
                 }
                 return result;
             }
+
+            @Override
+            public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                    final Dictionary.QuadHandler handler) {
+                Dictionary.QuadHandler result = Objects.requireNonNull(handler);
+                for (int i = processors.length - 1; i >= 0; --i) {
+                    result = processors[i].wrap(dictionary, result);
+                }
+                return result;
+            }
+
+            @Override
+            public boolean isQuadNative() {
+                for (final RDFProcessor processor : processors) {
+                    if (!processor.isQuadNative()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
         };
     }
 
@@ -573,7 +649,32 @@ public final class RDFProcessors {
      * @return the created {@code RDFProcessor}
      */
     public static RDFProcessor smush(final String... rankedNamespaces) {
-        return new ProcessorSmush(rankedNamespaces);
+        return new ProcessorSmush(null, null, rankedNamespaces);
+    }
+
+    /**
+     * Creates an {@code RDFProcessor} performing {@code owl:sameAs} smushing, possibly based on a
+     * previously saved index of {@code owl:sameAs} clusters. If an index is loaded, the
+     * processor rewrites the RDF stream in a single pass, updating the loaded clusters with the
+     * {@code owl:sameAs} statements found in the stream: these new links affect only the
+     * statements that follow them, thus the result is the same as two-pass smushing only if
+     * the index already contains all the links in the stream. Otherwise, clusters are computed
+     * from the stream in a first pass, as done by {@link #smush(String...)}. If requested, the
+     * index is saved after clusters have been computed (or at the end of the pass, if loaded).
+     *
+     * @param indexToLoad
+     *            the location of the index to load, if null clusters are computed from the RDF
+     *            stream in an extra pass
+     * @param indexToSave
+     *            the location where to save the index (possibly compressed based on the
+     *            extension), if null the index is not saved
+     * @param rankedNamespaces
+     *            the ranked list of namespaces used to select canonical URIs
+     * @return the created {@code RDFProcessor}
+     */
+    public static RDFProcessor smush(@Nullable final String indexToLoad,
+            @Nullable final String indexToSave, final String[] rankedNamespaces) {
+        return new ProcessorSmush(indexToLoad, indexToSave, rankedNamespaces);
     }
 
     /**
@@ -614,7 +715,44 @@ public final class RDFProcessors {
             @Nullable final URI sourceProperty, @Nullable final URI sourceContext,
             @Nullable final Long threshold, final boolean processCooccurrences) {
         return new ProcessorStats(outputNamespace, sourceProperty, sourceContext, threshold,
-                processCooccurrences);
+                processCooccurrences, false);
+    }
+
+    /**
+     * Creates an {@code RDFProcessor} that computes VOID statistics, either exactly as done by
+     * {@link #stats(String, URI, URI, Long, boolean)} or approximately. In approximate mode, no
+     * external sorting is performed: triple counts are still exact, while distinct subjects,
+     * objects and entities are estimated with HyperLogLog sketches (about 1% standard error,
+     * 16 KB of memory per sketch) in a single streaming pass, plus an extra pass to collect
+     * graph-to-source links if {@code sourceProperty} is specified. As a consequence, detection
+     * of functional and inverse functional properties is approximate, and class partitions
+     * report only the number of entities (and not statistics about their statements).
+     *
+     * @param outputNamespace
+     *            the namespace for generated URIs (if null, a default is used)
+     * @param sourceProperty
+     *            the URI of property linking graphs to sources (if null, sources will not be
+     *            considered)
+     * @param sourceContext
+     *            the graph where to look for graph-to-source links (if null, will be searched in
+     *            the whole RDF stream)
+     * @param threshold
+     *            the minimum number of statements or entities that a VOID partition must have in
+     *            order to be emitted
+     * @param processCooccurrences
+     *            true to enable analysis of co-occurrences for computing {@code void:classes} and
+     *            {@code void:properties} statements
+     * @param approximate
+     *            true to estimate distinct counts with sketches rather than computing them
+     *            exactly via external sorting
+     * @return the created {@code RDFProcessor}
+     */
+    public static RDFProcessor stats(@Nullable final String outputNamespace,
+            @Nullable final URI sourceProperty, @Nullable final URI sourceContext,
+            @Nullable final Long threshold, final boolean processCooccurrences,
+            final boolean approximate) {
+        return new ProcessorStats(outputNamespace, sourceProperty, sourceContext, threshold,
+                processCooccurrences, approximate);
     }
 
     /**
@@ -651,6 +789,21 @@ public final class RDFProcessors {
                 };
             }
 
+            @Override
+            public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                    final Dictionary.QuadHandler handler) {
+                if (transformer instanceof RuleTransformer) {
+                    return ((RuleTransformer) transformer).wrap(Objects.requireNonNull(dictionary),
+                            Objects.requireNonNull(handler));
+                }
+                return RDFProcessor.super.wrap(dictionary, handler);
+            }
+
+            @Override
+            public boolean isQuadNative() {
+                return transformer instanceof RuleTransformer; // scripts need statements
+            }
+
         };
     }
 
@@ -665,7 +818,69 @@ public final class RDFProcessors {
      * @return the created {@code RDFProcessor}
      */
     public static RDFProcessor unique(final boolean mergeContexts) {
-        return new ProcessorUnique(mergeContexts);
+        return new ProcessorUnique(mergeContexts, false, 0.0, null);
+    }
+
+    /**
+     * Creates an {@code RDFProcessor} that removes duplicate from the RDF stream, optionally
+     * merging similar statements with different contexts and optionally saving sorted statements
+     * in a named spill for later passes. If a complete spill with the name supplied already
+     * exists (having been written in this JVM by a previous pass of an identically configured
+     * processor), its statements are replayed without sorting and the input stream is ignored,
+     * as it is assumed to be the same input of the pass that wrote the spill.
+     *
+     * @param mergeContexts
+     *            true if statements with same subject, predicate and object but different context
+     *            should be merged in a single statement, whose context is a combination of the
+     *            source contexts
+     * @param spill
+     *            the name of the spill where to save sorted statements or where to replay them
+     *            from, null to always sort without saving
+     * @return the created {@code RDFProcessor}
+     */
+    public static RDFProcessor unique(final boolean mergeContexts, @Nullable final String spill) {
+        return new ProcessorUnique(mergeContexts, false, 0.0, spill);
+    }
+
+    /**
+     * Creates an {@code RDFProcessor} that removes duplicate from the RDF stream, supporting all
+     * the options of {@link #unique(boolean, String)} plus an in-memory mode. In this mode, the
+     * 128 bit hashes of distinct statements are kept in a concurrent hash table and each
+     * statement is emitted as soon as it is first seen, without waiting for the end of the
+     * input. If the table outgrows its memory budget (property {@code rdfpro.unique.memory}, in
+     * bytes, defaulting to 1/4 of the maximum heap size), statements not in the table are
+     * deduplicated by sorting and emitted at the end of the input. The in-memory mode cannot be
+     * combined with context merging or spills.
+     *
+     * @param mergeContexts
+     *            true if statements with same subject, predicate and object but different context
+     *            should be merged in a single statement, whose context is a combination of the
+     *            source contexts
+     * @param inMemory
+     *            true to deduplicate statements using an in-memory hash table
+     * @param spill
+     *            the name of the spill where to save sorted statements or where to replay them
+     *            from, null to always sort without saving
+     * @return the created {@code RDFProcessor}
+     */
+    public static RDFProcessor unique(final boolean mergeContexts, final boolean inMemory,
+            @Nullable final String spill) {
+        return new ProcessorUnique(mergeContexts, inMemory, 0.0, spill);
+    }
+
+    /**
+     * Creates an {@code RDFProcessor} that removes most duplicates from the RDF stream in a
+     * single streaming step, using a cuckoo filter over statement hashes. A fraction of unique
+     * statements close to {@code falseDropRate} may be wrongly discarded, and some duplicates
+     * may pass if the filter outgrows its memory budget (property {@code rdfpro.unique.memory},
+     * as for in-memory deduplication). Statements are emitted as soon as they are received.
+     *
+     * @param falseDropRate
+     *            the acceptable fraction of unique statements wrongly dropped, in (0, 1)
+     * @return the created {@code RDFProcessor}
+     */
+    public static RDFProcessor unique(final double falseDropRate) {
+        return new ProcessorUnique(false, false, falseDropRate, null);
     }
 
     /**
@@ -677,12 +892,67 @@ public final class RDFProcessors {
      * @return the created {@code RDFProcessor}
      */
     public static RDFProcessor inject(final RDFSource source) {
+        return inject(source, null);
+    }
+
+    private static RDFProcessor inject(final RDFSource source, @Nullable final Tracker tracker) {
         Objects.requireNonNull(source);
         return new RDFProcessor() {
 
             @Override
             public RDFHandler wrap(final RDFHandler handler) {
-                return new InjectSourceHandler(Objects.requireNonNull(handler), source, null);
+                return new InjectSourceHandler(Objects.requireNonNull(handler), source, tracker);
+            }
+
+            @Override
+            public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                    final Dictionary.QuadHandler handler) {
+
+                // Injected statements are encoded, while input quads are forwarded unchanged
+                final InjectSourceHandler injector = new InjectSourceHandler(
+                        dictionary.encode(Objects.requireNonNull(handler)), source, tracker);
+
+                return new Dictionary.QuadHandler() {
+
+                    @Override
+                    public void start() throws RDFHandlerException {
+                        injector.startRDF();
+                    }
+
+                    @Override
+                    public void handleNamespace(final String prefix, final String uri)
+                            throws RDFHandlerException {
+                        injector.handleNamespace(prefix, uri);
+                    }
+
+                    @Override
+                    public void handleComment(final String comment) throws RDFHandlerException {
+                        injector.handleComment(comment);
+                    }
+
+                    @Override
+                    public void handle(final int subj, final int pred, final int obj,
+                            final int ctx) throws RDFHandlerException {
+                        injector.checkNotFailed();
+                        handler.handle(subj, pred, obj, ctx);
+                    }
+
+                    @Override
+                    public void end() throws RDFHandlerException {
+                        injector.endRDF();
+                    }
+
+                    @Override
+                    public void close() {
+                        injector.close();
+                    }
+
+                };
+            }
+
+            @Override
+            public boolean isQuadNative() {
+                return true;
             }
 
         };
@@ -693,7 +963,7 @@ public final class RDFProcessors {
      * the RDF stream at each pass. This is a utility method that relies on
      * {@link #inject(RDFSource)}, on
      * {@link RDFSources#read(boolean, boolean, String, ParserConfig, String...)} and on
-     * {@link #track(Tracker)} for providing progress information on loaded statements.
+     * a {@link Tracker} for providing progress information on loaded statements.
      *
      * @param parallelize
      *            false if files should be parsed sequentially using only one thread
@@ -712,19 +982,19 @@ public final class RDFProcessors {
     public static RDFProcessor read(final boolean parallelize, final boolean preserveBNodes,
             @Nullable final String baseURI, @Nullable final ParserConfig config,
             final String... locations) {
-        final RDFProcessor tracker = track(new Tracker(LOGGER, null,
+        final Tracker tracker = new Tracker(LOGGER, null, //
                 "%d triples read (%d tr/s avg)", //
-                "%d triples read (%d tr/s, %d tr/s avg)"));
+                "%d triples read (%d tr/s, %d tr/s avg)");
         final RDFSource source = RDFSources.read(parallelize, preserveBNodes, baseURI, config,
                 locations);
-        return inject(tracker.wrap(source));
+        return inject(source, tracker);
     }
 
     /**
      * Creates an {@code RDFProcessor} that retrieves data from a SPARQL endpoint and inject it in
      * the RDF stream at each pass. This is a utility method that relies on
      * {@link #inject(RDFSource)}, on {@link RDFSources#query(boolean, boolean, String, String)}
-     * and on {@link #track(Tracker)} for providing progress information on fetched statements.
+     * and on a {@link Tracker} for providing progress information on fetched statements.
      * NOTE: as SPARQL does not provide any guarantee on the identifiers of returned BNodes, it
      * may happen that different BNodes are returned in different passes, causing the RDF stream
      * produced by this {@code RDFProcessor} to change from one pass to another.
@@ -742,11 +1012,11 @@ public final class RDFProcessors {
      */
     public static RDFProcessor download(final boolean parallelize, final boolean preserveBNodes,
             final String endpointURL, final String query) {
-        final RDFProcessor tracker = track(new Tracker(LOGGER, null,
+        final Tracker tracker = new Tracker(LOGGER, null, //
                 "%d triples queried (%d tr/s avg)", //
-                "%d triples queried (%d tr/s, %d tr/s avg)"));
+                "%d triples queried (%d tr/s, %d tr/s avg)");
         final RDFSource source = RDFSources.query(parallelize, preserveBNodes, endpointURL, query);
-        return inject(tracker.wrap(source));
+        return inject(source, tracker);
     }
 
     /**
@@ -774,6 +1044,63 @@ public final class RDFProcessors {
                 return RDFHandlers.dispatchAll(allHandlers);
             }
 
+            @Override
+            public Dictionary.QuadHandler wrap(final Dictionary dictionary,
+                    final Dictionary.QuadHandler handler) {
+
+                // Quads are decoded only for the supplied handlers and forwarded unchanged
+                Objects.requireNonNull(handler);
+                final Dictionary.QuadHandler decoder = dictionary.decode(RDFHandlers
+                        .dispatchAll(handlers));
+
+                return new Dictionary.QuadHandler() {
+
+                    @Override
+                    public void start() throws RDFHandlerException {
+                        handler.start();
+                        decoder.start();
+                    }
+
+                    @Override
+                    public void handleNamespace(final String prefix, final String uri)
+                            throws RDFHandlerException {
+                        handler.handleNamespace(prefix, uri);
+                        decoder.handleNamespace(prefix, uri);
+                    }
+
+                    @Override
+                    public void handleComment(final String comment) throws RDFHandlerException {
+                        handler.handleComment(comment);
+                        decoder.handleComment(comment);
+                    }
+
+                    @Override
+                    public void handle(final int subj, final int pred, final int obj,
+                            final int ctx) throws RDFHandlerException {
+                        handler.handle(subj, pred, obj, ctx);
+                        decoder.handle(subj, pred, obj, ctx);
+                    }
+
+                    @Override
+                    public void end() throws RDFHandlerException {
+                        handler.end();
+                        decoder.end();
+                    }
+
+                    @Override
+                    public void close() {
+                        IO.closeQuietly(handler);
+                        IO.closeQuietly(decoder);
+                    }
+
+                };
+            }
+
+            @Override
+            public boolean isQuadNative() {
+                return true; // quads are decoded only where they leave the pipeline
+            }
+
         };
     }
 
@@ -999,10 +1326,14 @@ public final class RDFProcessors {
         @Override
         public void close() {
             IO.closeQuietly(this.handler);
+            IO.closeQuietly(this.source); // e.g., deletes the pass cache of the source
             this.sourceHandler = null; // will ultimately stop the download process
         }
 
         private void inject() {
+            if (this.tracker != null) {
+                this.tracker.start();
+            }
             try {
                 InjectSourceHandler.this.source.emit(new AbstractRDFHandler() {
 
@@ -1032,6 +1363,9 @@ public final class RDFProcessors {
                     this.exception = ex;
                 }
             } finally {
+                if (this.tracker != null) {
+                    this.tracker.end();
+                }
                 this.latch.countDown();
             }
         }
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -35,8 +36,10 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
@@ -73,7 +76,9 @@ import org.slf4j.LoggerFactory;
 import eu.fbk.rdfpro.util.Environment;
 import eu.fbk.rdfpro.util.Hash;
 import eu.fbk.rdfpro.util.IO;
+import eu.fbk.rdfpro.util.NQuadsParser;
 import eu.fbk.rdfpro.util.QuadModel;
+import eu.fbk.rdfpro.util.StatementCache;
 import eu.fbk.rdfpro.util.Statements;
 
 /**
@@ -83,6 +88,10 @@ public final class RDFSources {
 
     private static final ParserConfig DEFAULT_PARSER_CONFIG;
 
+    @Nullable
+    private static final String PASS_CACHE = Environment.getProperty("rdfpro.source.passcache",
+            null);
+
     static {
         final ParserConfig config = new ParserConfig();
         config.set(BasicParserSettings.FAIL_ON_UNKNOWN_DATATYPES, false);
@@ -300,7 +309,8 @@ public final class RDFSources {
     public static RDFSource read(final boolean parallelize, final boolean preserveBNodes,
             @Nullable final String baseURI, @Nullable final ParserConfig config,
             final String... locations) {
-        return new FileSource(parallelize, preserveBNodes, baseURI, config, locations);
+        return cache(new FileSource(parallelize, preserveBNodes, baseURI, config, locations),
+                parallelize);
     }
 
     /**
@@ -324,12 +334,28 @@ public final class RDFSources {
      */
     public static RDFSource query(final boolean parallelize, final boolean preserveBNodes,
             final String endpointURL, final String query) {
-        return new SparqlSource(parallelize, preserveBNodes, endpointURL, query);
+        return cache(new SparqlSource(parallelize, preserveBNodes, endpointURL, query),
+                parallelize);
     }
 
     private RDFSources() {
     }
 
+    private static boolean isSplittable(final RDFFormat format) {
+        // TQL literals may contain raw line terminators, so TQL files are not split on lines
+        return Statements.isRDFFormatBlockBased(format) || Statements.isRDFFormatLineBased(format)
+                && !format.getFileExtensions().contains("tql");
+    }
+
+    private static RDFSource cache(final RDFSource source, final boolean parallelize) {
+        return PASS_CACHE == null ? source : cache(source, parallelize, new File(PASS_CACHE));
+    }
+
+    static RDFSource cache(final RDFSource source, final boolean parallelize,
+            final File directory) {
+        return new CachedSource(source, parallelize, directory);
+    }
+
     private static RDFHandler rewriteBNodes(final RDFHandler handler, final String suffix) {
         Objects.requireNonNull(suffix);
         return handler == RDFHandlers.NIL ? handler : new AbstractRDFHandlerWrapper(handler) {
@@ -375,6 +401,18 @@ public final class RDFSources {
 
         private static final Logger LOGGER = LoggerFactory.getLogger(FileSource.class);
 
+        private static final boolean MMAP = Boolean.parseBoolean(Environment.getProperty(
+                "rdfpro.source.mmap", "true"));
+
+        private static final boolean NATIVE_PARSER = Boolean.parseBoolean(Environment
+                .getProperty("rdfpro.source.nativeparser", "true"));
+
+        private static final long MIN_SPLIT_SIZE = 1024 * 1024;
+
+        private static final long MAX_SPLIT_SIZE = 64 * 1024 * 1024;
+
+        private static final int MAX_SPLITS = 4096;
+
         private final boolean parallelize;
 
         private final boolean preserveBNodes;
@@ -428,68 +466,90 @@ public final class RDFSources {
         private void parse(final RDFHandler handler) throws Throwable {
 
             // Sort the locations based on decreasing size to improve throughput
+            final int cores = Environment.getCores();
+            final Map<String, Long> sizes = new HashMap<String, Long>();
+            long totalSize = 0L;
+            for (final String location : this.locations) {
+                final long size = size(location);
+                sizes.put(location, size);
+                totalSize += Math.max(0L, size);
+            }
             final String[] sortedLocations = this.locations.clone();
             Arrays.sort(sortedLocations, new Comparator<String>() {
 
                 @Override
                 public int compare(final String first, final String second) {
-                    final URL firstURL = IO.extractURL(first);
-                    final URL secondURL = IO.extractURL(second);
-                    final boolean firstIsFile = "file".equals(firstURL.getProtocol());
-                    final boolean secondIsFile = "file".equals(secondURL.getProtocol());
-                    if (firstIsFile && secondIsFile) {
-                        try {
-                            final File firstFile = new File(firstURL.toURI());
-                            final File secondFile = new File(secondURL.toURI());
-                            return secondFile.length() > firstFile.length() ? 1 : -1;
-                        } catch (final Throwable ex) {
-                            // ignore
-                        }
-                    } else if (firstIsFile) {
-                        return 1;
-                    } else if (secondIsFile) {
-                        return -1;
-                    }
-                    return firstURL.toString().compareTo(secondURL.toString());
+                    // remote locations (unknown size) come first, as likely slower to read
+                    final long firstSize = sizes.get(first);
+                    final long secondSize = sizes.get(second);
+                    final int result = Long.compare(secondSize < 0 ? Long.MAX_VALUE : secondSize,
+                            firstSize < 0 ? Long.MAX_VALUE : firstSize);
+                    return result != 0 ? result : first.compareTo(second);
                 }
 
             });
 
+            // Split line-based (except TQL) and block-based files in ranges whose size depends on
+            // the total size of the input, so that big files are cut in many chunks and small
+            // files are not split
+            final long splitSize = Math.max(MIN_SPLIT_SIZE,
+                    Math.min(MAX_SPLIT_SIZE, totalSize / (cores * 4)));
+
             final Map<String, InputStream> streams = new HashMap<String, InputStream>();
 
             final List<ParseJob> jobs = new ArrayList<ParseJob>();
-            for (final String location : this.locations) {
+            final List<ParseProgress> progresses = new ArrayList<ParseProgress>();
+            for (final String location : sortedLocations) {
                 final RDFFormat format = Rio.getParserFormatForFileName("test"
                         + IO.extractExtension(location));
-                final int parallelism = !this.parallelize
-                        || !Statements.isRDFFormatLineBased(format) ? 1 : Environment.getCores();
-                for (int i = 0; i < parallelism; ++i) {
-                    jobs.add(new ParseJob(streams, location.toString(), handler));
+                final long size = sizes.get(location);
+                int splits = 1;
+                if (this.parallelize && isSplittable(format)) {
+                    splits = !MMAP || size < 0 ? cores : (int) Math.max(1L,
+                            Math.min(MAX_SPLITS, (size + splitSize - 1) / splitSize));
+                }
+                final ParseProgress progress = new ParseProgress(location, size, splits);
+                progresses.add(progress);
+                for (int i = 0; i < splits; ++i) {
+                    jobs.add(new ParseJob(streams, location.toString(), handler, i, splits,
+                            progress));
                 }
             }
 
-            final int parallelism = !this.parallelize ? 1 : Math.min(Environment.getCores(),
-                    jobs.size());
+            final int parallelism = !this.parallelize ? 1 : Math.min(cores, jobs.size());
+
+            // Deal jobs to per-thread queues in decreasing size order; a thread that empties
+            // its queue steals the jobs at the tail of the queues of other threads
+            final List<Deque<ParseJob>> queues = new ArrayList<Deque<ParseJob>>();
+            for (int i = 0; i < parallelism; ++i) {
+                queues.add(new ConcurrentLinkedDeque<ParseJob>());
+            }
+            for (int i = 0; i < jobs.size(); ++i) {
+                queues.get(i % parallelism).addLast(jobs.get(i));
+            }
 
             final CountDownLatch latch = new CountDownLatch(parallelism);
             final AtomicReference<Throwable> exception = new AtomicReference<Throwable>();
-            final AtomicInteger index = new AtomicInteger(0);
 
             final List<Runnable> runnables = new ArrayList<Runnable>();
             for (int i = 0; i < parallelism; ++i) {
+                final int worker = i;
                 runnables.add(new Runnable() {
 
                     @Override
                     public void run() {
                         try {
-                            while (true) {
-                                ParseJob currentJob;
-                                synchronized (jobs) {
-                                    final int i = index.getAndIncrement();
-                                    if (i >= jobs.size()) {
-                                        break;
+                            while (exception.get() == null) {
+                                ParseJob currentJob = queues.get(worker).pollFirst();
+                                for (int j = 1; currentJob == null && j < parallelism; ++j) {
+                                    currentJob = queues.get((worker + j) % parallelism)
+                                            .pollLast();
+                                }
+                                if (currentJob == null) {
+                                    if (LOGGER.isDebugEnabled()) {
+                                        logPending(progresses);
                                     }
-                                    currentJob = jobs.get(i);
+                                    break;
                                 }
                                 currentJob.run();
                             }
@@ -526,6 +586,33 @@ public final class RDFSources {
             }
         }
 
+        private static void logPending(final List<ParseProgress> progresses) {
+            final StringBuilder builder = new StringBuilder();
+            for (final ParseProgress progress : progresses) {
+                final int pending = progress.pending.get();
+                if (pending > 0) {
+                    builder.append(builder.length() == 0 ? "" : ", ").append(progress.location)
+                            .append(" (").append(pending).append("/").append(progress.splits)
+                            .append(" splits)");
+                }
+            }
+            if (builder.length() > 0) {
+                LOGGER.debug("Parsing thread idle, still parsing: {}", builder);
+            }
+        }
+
+        private static long size(final String location) {
+            final URL url = IO.extractURL(location);
+            if ("file".equals(url.getProtocol())) {
+                try {
+                    return new File(url.toURI()).length();
+                } catch (final Throwable ex) {
+                    // ignore
+                }
+            }
+            return -1L; // unknown
+        }
+
         private class ParseJob {
 
             private final Map<String, InputStream> streams;
@@ -534,15 +621,25 @@ public final class RDFSources {
 
             private final RDFHandler handler;
 
+            private final int split;
+
+            private final int splits;
+
+            private final ParseProgress progress;
+
             private volatile boolean closed;
 
             private Closeable in;
 
             ParseJob(final Map<String, InputStream> streams, final String location,
-                    final RDFHandler handler) {
+                    final RDFHandler handler, final int split, final int splits,
+                    final ParseProgress progress) {
                 this.streams = streams;
                 this.location = location;
                 this.handler = handler;
+                this.split = split;
+                this.splits = splits;
+                this.progress = progress;
                 this.closed = false;
                 this.in = null;
             }
@@ -558,22 +655,47 @@ public final class RDFSources {
                     return;
                 }
 
+                this.progress.begin();
+                final long[] counter = new long[1];
+                try {
+                    parse(counter);
+                } finally {
+                    this.progress.end(counter[0]);
+                }
+            }
+
+            private void parse(final long[] counter) throws Throwable {
+
                 final RDFFormat format = Rio.getParserFormatForFileName("test"
                         + IO.extractExtension(this.location));
 
+                // N-Triples, N-Quads and TQL are parsed from bytes, skipping UTF-8 decoding
+                final boolean nativeParser = NATIVE_PARSER && (RDFFormat.NTRIPLES.equals(format) //
+                        || RDFFormat.NQUADS.equals(format));
+                final boolean bytes = nativeParser || format.getFileExtensions().contains("tql");
+
+                // Block-based binary formats (BQ) are split at 0x00 block delimiters
+                final boolean blocks = Statements.isRDFFormatBlockBased(format);
+                final byte delimiter = blocks ? (byte) 0 : (byte) '\n';
+                final String type = blocks ? "binary" : "text";
+
                 final String logMsg = "Starting {} {} {} parsing for {}";
-                if (!Statements.isRDFFormatTextBased(format)) {
+                if (!Statements.isRDFFormatTextBased(format) && !blocks) {
                     LOGGER.debug(logMsg, "sequential", "binary", format.getName(), this.location);
                     this.in = IO.buffer(IO.read(this.location));
 
-                } else if (!FileSource.this.parallelize
-                        || !Statements.isRDFFormatLineBased(format)) {
-                    LOGGER.debug(logMsg, "sequential", "text", format.getName(), this.location);
-                    this.in = IO.buffer(new InputStreamReader(IO.read(this.location), Charset
-                            .forName("UTF-8")));
+                } else if (!FileSource.this.parallelize || !isSplittable(format)) {
+                    LOGGER.debug(logMsg, "sequential", type, format.getName(), this.location);
+                    this.in = bytes || blocks ? IO.read(this.location) : IO
+                            .buffer(new InputStreamReader(IO.read(this.location), Charset
+                                    .forName("UTF-8")));
+
+                } else if (MMAP && (this.in = openSplit(bytes || blocks, delimiter)) != null) {
+                    LOGGER.debug(logMsg, "parallel (split " + (this.split + 1) + "/"
+                            + this.splits + ")", type, format.getName(), this.location);
 
                 } else {
-                    LOGGER.debug(logMsg, "parallel", "text", format.getName(), this.location);
+                    LOGGER.debug(logMsg, "parallel", type, format.getName(), this.location);
                     synchronized (this.streams) {
                         InputStream stream = this.streams.get(this.location);
                         if (stream == null) {
@@ -583,14 +705,26 @@ public final class RDFSources {
                             stream = IO.read(this.location);
                             this.streams.put(this.location, stream);
                         }
-                        this.in = IO.utf8Reader(IO.parallelBuffer(stream, (byte) '\n'));
+                        final InputStream buffer = IO.parallelBuffer(stream, delimiter);
+                        this.in = bytes || blocks ? buffer : IO.utf8Reader(buffer);
                     }
                 }
 
                 try {
-                    final RDFHandler handler = FileSource.this.preserveBNodes ? this.handler //
-                            : rewriteBNodes(this.handler, Hash.murmur3(this.location).toString());
-                    final RDFParser parser = Rio.createParser(format);
+                    final RDFHandler handler = new AbstractRDFHandlerWrapper(
+                            FileSource.this.preserveBNodes ? this.handler : rewriteBNodes(
+                                    this.handler, Hash.murmur3(this.location).toString())) {
+
+                        @Override
+                        public void handleStatement(final Statement statement)
+                                throws RDFHandlerException {
+                            ++counter[0];
+                            super.handleStatement(statement);
+                        }
+
+                    };
+                    final RDFParser parser = nativeParser ? new NQuadsParser(format) : Rio
+                            .createParser(format);
                     parser.setParserConfig(FileSource.this.parserConfig);
                     parser.setValueFactory(Statements.VALUE_FACTORY);
                     parser.setRDFHandler(handler);
@@ -617,6 +751,57 @@ public final class RDFSources {
                 }
             }
 
+            @Nullable
+            private Closeable openSplit(final boolean bytes, final byte delimiter)
+                    throws IOException {
+                // Each job reads its own delimiter-aligned range of a local, uncompressed file,
+                // without sharing a stream (and a fetcher thread) with other jobs
+                final InputStream stream = IO.read(this.location, this.split, this.splits,
+                        delimiter);
+                return stream == null || bytes ? stream : IO.utf8Reader(stream);
+            }
+
+        }
+
+        private static final class ParseProgress {
+
+            final String location;
+
+            final long size;
+
+            final int splits;
+
+            final AtomicInteger pending;
+
+            final AtomicLong statements;
+
+            final AtomicLong startTime;
+
+            ParseProgress(final String location, final long size, final int splits) {
+                this.location = location;
+                this.size = size;
+                this.splits = splits;
+                this.pending = new AtomicInteger(splits);
+                this.statements = new AtomicLong(0L);
+                this.startTime = new AtomicLong(0L);
+            }
+
+            void begin() {
+                this.startTime.compareAndSet(0L, System.currentTimeMillis());
+            }
+
+            void end(final long statements) {
+                final long total = this.statements.addAndGet(statements);
+                if (this.pending.decrementAndGet() == 0 && LOGGER.isDebugEnabled()) {
+                    final long elapsed = Math.max(1L, System.currentTimeMillis()
+                            - this.startTime.get());
+                    LOGGER.debug("Parsed {}: {} triples, {} split(s), {} ms ({} tr/s){}",
+                            this.location, total, this.splits, elapsed, total * 1000 / elapsed,
+                            this.size < 0 ? "" : ", " + this.size * 1000 / elapsed / 1024
+                                    + " KB/s");
+                }
+            }
+
         }
 
     }
@@ -647,9 +832,9 @@ public final class RDFSources {
         public void emit(final RDFHandler handler, final int passes) throws RDFSourceException,
                 RDFHandlerException {
 
-            // different BNodes may be returned each time the query is evaluated;
-            // to allow preserving their identities, we should store the query result and
-            // read from it from disk the next times
+            // different BNodes may be returned each time the query is evaluated; to preserve
+            // their identities, enable the pass cache (rdfpro.source.passcache) so that the
+            // query result is stored on disk and read from it in the next passes
             Objects.requireNonNull(handler);
 
             RDFHandler actualHandler = handler;
@@ -853,4 +1038,140 @@ public final class RDFSources {
 
     }
 
+    private static class CachedSource implements RDFSource, AutoCloseable {
+
+        private final RDFSource source;
+
+        private final boolean parallelize;
+
+        private final File directory;
+
+        @Nullable
+        private StatementCache cache;
+
+        @Nullable
+        private List<String[]> metadata; // recorded comments {text} and namespaces {prefix, uri}
+
+        private boolean recording;
+
+        CachedSource(final RDFSource source, final boolean parallelize, final File directory) {
+            this.source = Objects.requireNonNull(source);
+            this.parallelize = parallelize;
+            this.directory = Objects.requireNonNull(directory);
+            this.cache = null;
+            this.metadata = null;
+            this.recording = false;
+        }
+
+        @Override
+        public void emit(final RDFHandler handler, final int passes) throws RDFSourceException,
+                RDFHandlerException {
+
+            // The first pass is recorded in the cache, together with comments and namespaces,
+            // while emitting statements from the wrapped source; later passes, either of the
+            // same call or of later calls (e.g., one per pass by RDFProcessors.inject()), replay
+            // the cache instead of parsing or querying again. The cache is deleted after the last
+            // pass of a multi-pass call, or when the source is closed, or at the latest when the
+            // JVM terminates; a call following the deletion records the cache again.
+            Objects.requireNonNull(handler);
+
+            try {
+                for (int i = 0; i < passes; ++i) {
+                    StatementCache cache;
+                    List<String[]> metadata;
+                    boolean record;
+                    synchronized (this) {
+                        cache = this.cache;
+                        metadata = this.metadata;
+                        record = cache == null && !this.recording;
+                        this.recording |= record;
+                    }
+                    if (cache != null) {
+                        final RDFHandler sink = this.parallelize ? RDFHandlers.decouple(handler)
+                                : handler;
+                        sink.startRDF();
+                        for (final String[] element : metadata) {
+                            if (element.length == 1) {
+                                sink.handleComment(element[0]);
+                            } else {
+                                sink.handleNamespace(element[0], element[1]);
+                            }
+                        }
+                        cache.replay(sink, this.parallelize);
+                        sink.endRDF();
+                    } else if (!record) {
+                        this.source.emit(RDFHandlers.ignoreMethods(handler,
+                                RDFHandlers.METHOD_CLOSE), 1);
+                    } else {
+                        cache = new StatementCache(this.directory);
+                        metadata = new ArrayList<String[]>();
+                        try {
+                            this.source.emit(RDFHandlers.ignoreMethods(
+                                    record(cache, metadata, handler), RDFHandlers.METHOD_CLOSE),
+                                    1);
+                        } catch (final Throwable ex) {
+                            cache.close();
+                            cache = null;
+                            metadata = null;
+                            throw ex;
+                        } finally {
+                            synchronized (this) {
+                                this.cache = cache;
+                                this.metadata = metadata;
+                                this.recording = false;
+                            }
+                        }
+                    }
+                }
+            } catch (RDFHandlerException | RuntimeException | Error ex) {
+                throw ex;
+            } catch (final Throwable ex) {
+                throw new RDFSourceException(ex);
+            } finally {
+                if (passes > 1) {
+                    release(); // no-op if another call is recording the cache
+                }
+                IO.closeQuietly(handler);
+            }
+        }
+
+        @Override
+        public void close() {
+            release();
+        }
+
+        private synchronized void release() {
+            if (this.cache != null && !this.recording) {
+                this.cache.close(); // deletes cache files; a following call records again
+                this.cache = null;
+                this.metadata = null;
+            }
+        }
+
+        private static RDFHandler record(final StatementCache cache,
+                final List<String[]> metadata, final RDFHandler handler) {
+            return new AbstractRDFHandlerWrapper(cache.record(handler)) {
+
+                @Override
+                public void handleComment(final String comment) throws RDFHandlerException {
+                    synchronized (metadata) {
+                        metadata.add(new String[] { comment });
+                    }
+                    super.handleComment(comment);
+                }
+
+                @Override
+                public void handleNamespace(final String prefix, final String uri)
+                        throws RDFHandlerException {
+                    synchronized (metadata) {
+                        metadata.add(new String[] { prefix, uri });
+                    }
+                    super.handleNamespace(prefix, uri);
+                }
+
+            };
+        }
+
+    }
+
 }
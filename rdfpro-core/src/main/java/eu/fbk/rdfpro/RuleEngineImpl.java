@@ -851,10 +851,10 @@ final class RuleEngineImpl extends RuleEngine {
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("Iteration of {} join rules ({} variants) and {} stream rules "
                         + "performed in {} ms ({} ms evaluation, {} ms model update), "
-                        + "{} insertions ({} buffered), {} quads in, {} quads out",
+                        + "{} insertions ({} buffered), {} quads in, {} quads out; {}",
                         this.joinRules.size(), numVariants,
                         this.allRules.size() - this.joinRules.size(), ts2 - ts0, ts1 - ts0, ts2
-                                - ts1, size1 - size0, buffer.size(), size0, size1);
+                                - ts1, size1 - size0, buffer.size(), size0, size1, deduplicator);
             }
         }
 
@@ -925,9 +925,10 @@ final class RuleEngineImpl extends RuleEngine {
                 final int numStreamRules = this.allRules.size() - this.joinRules.size();
                 LOGGER.debug("Iteration of {} join rules ({} variants) and fixpoint of {} stream "
                         + "rules evaluated in {} ms ({} ms evaluation, {} ms model update, {} ms "
-                        + "delta), {} insertions ({} buffered), {} quads in, {} quads out",
+                        + "delta), {} insertions ({} buffered), {} quads in, {} quads out; {}",
                         numJoinRules, numVariants, numStreamRules, ts3 - ts0, ts1 - ts0,
-                        ts2 - ts1, ts3 - ts2, size1 - size0, joinBufferSize, size0, size1);
+                        ts2 - ts1, ts3 - ts2, size1 - size0, joinBufferSize, size0, size1,
+                        deduplicator);
             }
 
             // Return the new delta model
@@ -962,8 +963,8 @@ final class RuleEngineImpl extends RuleEngine {
                 final int numStreamRules = this.allRules.size() - this.joinRules.size();
                 LOGGER.debug("Fixpoint of {} stream rules evaluated in {} ms ({} ms evaluation, "
                         + "{} ms model update), {} insertions ({} buffered), {} quads in, "
-                        + "{} quads out", numStreamRules, ts2 - ts0, ts1 - ts0, ts2 - ts1, size1
-                        - size0, buffer.size(), size0, size1);
+                        + "{} quads out; {}", numStreamRules, ts2 - ts0, ts1 - ts0, ts2 - ts1,
+                        size1 - size0, buffer.size(), size0, size1, deduplicator);
             }
         }
 
@@ -19,6 +19,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
@@ -36,6 +37,7 @@ import org.openrdf.model.vocabulary.XMLSchema;
 import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 
+import eu.fbk.rdfpro.util.Dictionary;
 import eu.fbk.rdfpro.util.Namespaces;
 import eu.fbk.rdfpro.util.Scripting;
 import eu.fbk.rdfpro.util.Statements;
@@ -682,6 +684,127 @@ final class RuleTransformer implements Transformer {
         }
     }
 
+    // Int quad counterpart of transform(), used by RDFProcessors.transform(). As components are
+    // tested independently, a quad is decoded only for components whose outcome is not cached,
+    // and quads left unchanged are forwarded as they are
+
+    Dictionary.QuadHandler wrap(final Dictionary dictionary, final Dictionary.QuadHandler handler) {
+
+        final CodeTransformer subjTransformer = CodeTransformer.create(this.subjectTransformer,
+                dictionary);
+        final CodeTransformer predTransformer = CodeTransformer.create(
+                this.predicateTransformer, dictionary);
+        final CodeTransformer objTransformer = CodeTransformer.create(this.objectTransformer,
+                dictionary);
+        final CodeTransformer ctxTransformer = CodeTransformer.create(this.contextTransformer,
+                dictionary);
+        final int nilCode = dictionary.encode(SESAME.NIL);
+        final int nullCode = dictionary.encode((Value) null);
+
+        return new Dictionary.QuadHandler() {
+
+            @Override
+            public void start() throws RDFHandlerException {
+                handler.start();
+            }
+
+            @Override
+            public void handleNamespace(final String prefix, final String uri)
+                    throws RDFHandlerException {
+                handler.handleNamespace(prefix, uri);
+            }
+
+            @Override
+            public void handleComment(final String comment) throws RDFHandlerException {
+                handler.handleComment(comment);
+            }
+
+            @Override
+            public void handle(final int subj, final int pred, final int obj, final int ctx)
+                    throws RDFHandlerException {
+
+                // Abort if any component is rejected; the default context is tested as sesame:nil
+                final int oldCtx = dictionary.isNull(ctx) ? nilCode : ctx;
+                if (subjTransformer != null && !subjTransformer.accepts(subj)
+                        || predTransformer != null && !predTransformer.accepts(pred)
+                        || objTransformer != null && !objTransformer.accepts(obj)
+                        || ctxTransformer != null && !ctxTransformer.accepts(oldCtx)) {
+                    return;
+                }
+
+                // Emit the possibly modified quad
+                final int newSubj = subjTransformer == null ? subj : subjTransformer.apply(subj);
+                final int newPred = predTransformer == null ? pred : predTransformer.apply(pred);
+                final int newObj = objTransformer == null ? obj : objTransformer.apply(obj);
+                final int newCtx = ctxTransformer == null ? oldCtx : ctxTransformer
+                        .apply(oldCtx);
+                if (newSubj == subj && newPred == pred && newObj == obj && newCtx == oldCtx) {
+                    handler.handle(subj, pred, obj, ctx); // unchanged
+                } else {
+                    handler.handle(newSubj, newPred, newObj, newCtx == nilCode ? nullCode
+                            : newCtx);
+                }
+            }
+
+            @Override
+            public void end() throws RDFHandlerException {
+                handler.end();
+            }
+
+            @Override
+            public void close() {
+                handler.close();
+            }
+
+        };
+    }
+
+    private static final class CodeTransformer {
+
+        private static final int CACHE_SIZE = 1024 - 1;
+
+        private final ValueTransformer transformer;
+
+        private final Dictionary dictionary;
+
+        private final boolean replaced;
+
+        private final int replacement;
+
+        private final AtomicLongArray cache; // code << 32 | 2 | accepted, 0 if empty
+
+        private CodeTransformer(final ValueTransformer transformer, final Dictionary dictionary) {
+            this.transformer = transformer;
+            this.dictionary = dictionary;
+            this.replaced = transformer.replacement != null;
+            this.replacement = this.replaced ? dictionary.encode(transformer.replacement) : 0;
+            this.cache = new AtomicLongArray(CACHE_SIZE);
+        }
+
+        @Nullable
+        static CodeTransformer create(@Nullable final ValueTransformer transformer,
+                final Dictionary dictionary) {
+            return transformer == null ? null : new CodeTransformer(transformer, dictionary);
+        }
+
+        boolean accepts(final int code) {
+            final int slot = (code & 0x7FFFFFFF) % CACHE_SIZE;
+            final long entry = this.cache.get(slot);
+            if ((int) (entry >>> 32) == code && entry != 0L) {
+                return (entry & 1L) != 0L;
+            }
+            final Value value = this.dictionary.decode(code);
+            final boolean accepted = this.transformer.transform(value) != null;
+            this.cache.set(slot, (long) code << 32 | (accepted ? 3L : 2L));
+            return accepted;
+        }
+
+        int apply(final int code) {
+            return this.replaced ? this.replacement : code;
+        }
+
+    }
+
     private static class ValueTransformer {
 
         @Nullable
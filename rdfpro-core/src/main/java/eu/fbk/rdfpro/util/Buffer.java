@@ -13,9 +13,22 @@
  */
 package eu.fbk.rdfpro.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
-abstract class Buffer {
+import javax.annotation.Nullable;
+
+/**
+ * A byte buffer addressed by 64-bit offsets, backed by a heap array, by heap pages allocated on
+ * demand, or by NIO pages allocated outside the Java heap, either directly or by memory mapping a
+ * file. Pages of resizable, direct and mapped buffers are created lazily and can be concurrently
+ * read and written at distinct offsets; chars are stored in one byte (1..127) or three bytes.
+ */
+public abstract class Buffer {
 
     public static Buffer newFixedBuffer(final byte[] bytes) {
         return new FixedBuffer(bytes);
@@ -25,12 +38,22 @@ abstract class Buffer {
         return new ResizableBuffer();
     }
 
+    public static Buffer newMappedBuffer(final File file) throws IOException {
+        return new PagedBuffer(file);
+    }
+
+    public static Buffer newDirectBuffer() {
+        return new PagedBuffer();
+    }
+
     public abstract byte read(long offset);
 
     public abstract short readShort(final long offset);
 
     public abstract int readInt(long offset);
 
+    public abstract long readLong(long offset);
+
     public abstract long readNumber(final long offset, final int length);
 
     public abstract String readString(final long offset, final int length);
@@ -54,6 +77,9 @@ abstract class Buffer {
 
     public abstract boolean equalString(final long offset, final int length, final String s);
 
+    public void close() {
+    }
+
     private static final class FixedBuffer extends Buffer {
 
         private final byte[] buffer;
@@ -80,6 +106,11 @@ abstract class Buffer {
                     | (this.buffer[index + 2] & 0xFF) << 8 | this.buffer[index + 3] & 0xFF;
         }
 
+        @Override
+        public long readLong(final long offset) {
+            return readNumber(offset, 8);
+        }
+
         @Override
         public long readNumber(final long offset, final int length) {
             int index = (int) offset;
@@ -94,18 +125,18 @@ abstract class Buffer {
         public String readString(final long offset, final int length) {
             final StringBuilder builder = new StringBuilder();
             int index = (int) offset;
-            int temp = 0;
+            int temp = -1; // -1 if no escape, MAX_VALUE if expecting high byte, else high byte
             for (int i = 0; i < length; ++i) {
                 final int b = this.buffer[index++] & 0xFF;
-                if (temp != 0) {
-                    if (temp < 0) {
+                if (temp >= 0) {
+                    if (temp == Integer.MAX_VALUE) {
                         temp = b;
                     } else {
                         builder.append((char) (temp << 8 | b));
-                        temp = 0;
+                        temp = -1;
                     }
                 } else if (b == 0) {
-                    temp = -1;
+                    temp = Integer.MAX_VALUE;
                 } else {
                     builder.append((char) b);
                 }
@@ -287,6 +318,11 @@ abstract class Buffer {
             }
         }
 
+        @Override
+        public long readLong(final long offset) {
+            return readNumber(offset, 8);
+        }
+
         @Override
         public long readNumber(final long offset, final int length) {
             int bufferIndex = (int) (offset >>> 16);
@@ -313,22 +349,22 @@ abstract class Buffer {
             int bufferIndex = (int) (offset >>> 16);
             int byteIndex = (int) offset & 0xFFFF;
             byte[] buffer = buffer(bufferIndex);
-            int temp = 0;
+            int temp = -1; // -1 if no escape, MAX_VALUE if expecting high byte, else high byte
             for (int i = 0; i < length; ++i) {
                 final int b = buffer[byteIndex++] & 0xFF;
                 if (byteIndex == 0x10000) {
                     buffer = buffer(++bufferIndex);
                     byteIndex = 0;
                 }
-                if (temp != 0) {
-                    if (temp < 0) {
+                if (temp >= 0) {
+                    if (temp == Integer.MAX_VALUE) {
                         temp = b;
                     } else {
                         builder.append((char) (temp << 8 | b));
-                        temp = 0;
+                        temp = -1;
                     }
                 } else if (b == 0) {
-                    temp = -1;
+                    temp = Integer.MAX_VALUE;
                 } else {
                     builder.append((char) b);
                 }
@@ -558,7 +594,8 @@ abstract class Buffer {
 
         private synchronized byte[] bufferHelper(final int index) {
             if (index >= this.buffers.length) {
-                this.buffers = Arrays.copyOf(this.buffers, this.buffers.length << 1);
+                this.buffers = Arrays.copyOf(this.buffers,
+                        Math.max(index + 1, this.buffers.length << 1));
             }
             byte[] buffer = this.buffers[index];
             if (buffer == null) {
@@ -570,4 +607,278 @@ abstract class Buffer {
 
     }
 
+    private static final class PagedBuffer extends Buffer {
+
+        // Same layout of ResizableBuffer, but pages are NIO buffers living outside the Java
+        // heap, either memory mapped from a file or directly allocated; pages are created lazily
+        // and never released before close()
+
+        private static final int MAPPED_PAGE_BITS = 26;
+
+        private static final int DIRECT_PAGE_BITS = 20;
+
+        private final int pageBits;
+
+        private final int pageSize;
+
+        private final int pageMask;
+
+        @Nullable
+        private final File file;
+
+        @Nullable
+        private final RandomAccessFile raf;
+
+        private volatile ByteBuffer[] pages;
+
+        PagedBuffer(final File file) throws IOException {
+            this.pageBits = MAPPED_PAGE_BITS;
+            this.pageSize = 1 << MAPPED_PAGE_BITS;
+            this.pageMask = this.pageSize - 1;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.pages = new ByteBuffer[4];
+        }
+
+        PagedBuffer() {
+            this.pageBits = DIRECT_PAGE_BITS;
+            this.pageSize = 1 << DIRECT_PAGE_BITS;
+            this.pageMask = this.pageSize - 1;
+            this.file = null;
+            this.raf = null;
+            this.pages = new ByteBuffer[4];
+        }
+
+        @Override
+        public byte read(final long offset) {
+            return page(offset).get((int) offset & this.pageMask);
+        }
+
+        @Override
+        public short readShort(final long offset) {
+            final int index = (int) offset & this.pageMask;
+            return index < this.pageSize - 1 ? page(offset).getShort(index) : (short) readNumber(
+                    offset, 2);
+        }
+
+        @Override
+        public int readInt(final long offset) {
+            final int index = (int) offset & this.pageMask;
+            return index < this.pageSize - 3 ? page(offset).getInt(index) : (int) readNumber(offset,
+                    4);
+        }
+
+        @Override
+        public long readLong(final long offset) {
+            final int index = (int) offset & this.pageMask;
+            return index < this.pageSize - 7 ? page(offset).getLong(index) : readNumber(offset,
+                    8);
+        }
+
+        @Override
+        public long readNumber(final long offset, final int length) {
+            long result = 0;
+            for (int i = 0; i < length; ++i) {
+                result = result << 8 | read(offset + i) & 0xFFL;
+            }
+            return result;
+        }
+
+        @Override
+        public String readString(final long offset, final int length) {
+            final StringBuilder builder = new StringBuilder();
+            int temp = -1; // -1 if no escape, MAX_VALUE if expecting high byte, else high byte
+            for (int i = 0; i < length; ++i) {
+                final int b = read(offset + i) & 0xFF;
+                if (temp >= 0) {
+                    if (temp == Integer.MAX_VALUE) {
+                        temp = b;
+                    } else {
+                        builder.append((char) (temp << 8 | b));
+                        temp = -1;
+                    }
+                } else if (b == 0) {
+                    temp = Integer.MAX_VALUE;
+                } else {
+                    builder.append((char) b);
+                }
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public void write(final long offset, final byte b) {
+            page(offset).put((int) offset & this.pageMask, b);
+        }
+
+        @Override
+        public void writeShort(final long offset, final short n) {
+            final int index = (int) offset & this.pageMask;
+            if (index < this.pageSize - 1) {
+                page(offset).putShort(index, n);
+            } else {
+                writeNumber(offset, 2, n);
+            }
+        }
+
+        @Override
+        public void writeInt(final long offset, final int n) {
+            final int index = (int) offset & this.pageMask;
+            if (index < this.pageSize - 3) {
+                page(offset).putInt(index, n);
+            } else {
+                writeNumber(offset, 4, n);
+            }
+        }
+
+        @Override
+        public void writeLong(final long offset, final long n) {
+            final int index = (int) offset & this.pageMask;
+            if (index < this.pageSize - 7) {
+                page(offset).putLong(index, n);
+            } else {
+                writeNumber(offset, 8, n);
+            }
+        }
+
+        @Override
+        public void writeNumber(final long offset, final int length, final long n) {
+            for (int i = 1; i <= length; ++i) {
+                write(offset + i - 1, (byte) (n >>> (length - i << 3)));
+            }
+        }
+
+        @Override
+        public void writeBytes(long offset, final byte[] bytes, int index, int length) {
+            while (length > 0) {
+                final int pageIndex = (int) offset & this.pageMask;
+                final int len = Math.min(length, this.pageSize - pageIndex);
+                final ByteBuffer page = page(offset).duplicate();
+                page.position(pageIndex);
+                page.put(bytes, index, len);
+                offset += len;
+                index += len;
+                length -= len;
+            }
+        }
+
+        @Override
+        public void writeBuffer(final long thisOffset, final Buffer buffer,
+                final long bufferOffset, final long length) {
+            if (buffer instanceof FixedBuffer) {
+                writeBytes(thisOffset, ((FixedBuffer) buffer).buffer, (int) bufferOffset,
+                        (int) length);
+            } else {
+                for (long i = 0; i < length; ++i) {
+                    write(thisOffset + i, buffer.read(bufferOffset + i));
+                }
+            }
+        }
+
+        @Override
+        public int writeString(final long offset, final String s) {
+            long index = offset;
+            final int length = s.length();
+            int byteLength = length;
+            for (int i = 0; i < length; ++i) {
+                final char ch = s.charAt(i);
+                if (ch > 0 && ch <= 127) {
+                    write(index++, (byte) ch);
+                } else {
+                    byteLength += 2;
+                    write(index++, (byte) 0);
+                    write(index++, (byte) (ch >>> 8));
+                    write(index++, (byte) ch);
+                }
+            }
+            return byteLength;
+        }
+
+        @Override
+        public boolean equalString(final long offset, final int length, final String s) {
+
+            final int strLength = s.length();
+            if (strLength == 0) {
+                return length == 0;
+            } else if (strLength > length) {
+                return false;
+            }
+
+            int temp = -1;
+            int strIndex = 0;
+            for (int i = 0; i < length; ++i) {
+                final byte b = read(offset + i);
+                if (temp >= 0) {
+                    if (temp == Integer.MAX_VALUE) {
+                        temp = b & 0xFF;
+                    } else {
+                        final char ch = (char) (temp << 8 | b & 0xFF);
+                        if (strIndex == strLength || s.charAt(strIndex++) != ch) {
+                            return false;
+                        }
+                        temp = -1;
+                    }
+                } else if (b == 0) {
+                    temp = Integer.MAX_VALUE;
+                } else {
+                    final char ch = (char) b;
+                    if (strIndex == strLength || s.charAt(strIndex++) != ch) {
+                        return false;
+                    }
+                }
+            }
+
+            return strIndex == strLength;
+        }
+
+        @Override
+        public synchronized void close() {
+            Arrays.fill(this.pages, null);
+            if (this.raf != null) {
+                try {
+                    this.raf.close();
+                } catch (final IOException ex) {
+                    // ignore
+                }
+                this.file.delete();
+            }
+        }
+
+        private ByteBuffer page(final long offset) {
+            final int index = (int) (offset >>> this.pageBits);
+            final ByteBuffer[] pages = this.pages;
+            if (index < pages.length) {
+                final ByteBuffer page = pages[index];
+                if (page != null) {
+                    return page;
+                }
+            }
+            return pageHelper(index);
+        }
+
+        private synchronized ByteBuffer pageHelper(final int index) {
+            ByteBuffer[] pages = this.pages;
+            if (index >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(index + 1, pages.length << 1));
+            }
+            ByteBuffer page = pages[index];
+            if (page == null && this.raf == null) {
+                page = ByteBuffer.allocateDirect(this.pageSize);
+                pages[index] = page;
+            } else if (page == null) {
+                try {
+                    page = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                            (long) index << this.pageBits, this.pageSize);
+                } catch (final IOException ex) {
+                    throw new RuntimeException("Cannot map page " + index + " of " + this.file,
+                            ex);
+                }
+                pages[index] = page;
+            }
+            this.pages = pages;
+            return page;
+        }
+
+    }
+
 }
@@ -0,0 +1,927 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A compression format handled within the JVM.
+ * <p>
+ * Codecs are looked up by {@link IO#read(String)} and {@link IO#write(String)} based on the last
+ * extension of a file name, and are used in place of external compression programs. Codecs are
+ * registered as plugins for this class in RDFpro properties files (e.g.,
+ * {@code plugin.eu.fbk.rdfpro.util.Codec.create.gz=...}), so that additional formats can be
+ * contributed by other modules; extensions without a codec (or all the extensions, if property
+ * {@code rdfpro.codec} is set to {@code process}) are handled by forking external programs.
+ * </p>
+ */
+public abstract class Codec {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Codec.class);
+
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final Tracker TRACKER = new Tracker(LOGGER, null,
+            "%d KB (de)compressed in JVM (%d KB/s avg)",
+            "%d KB (de)compressed in JVM (%d KB/s, %d KB/s avg)");
+
+    private static int trackerStreams = 0; // streams sharing TRACKER, guarded by TRACKER
+
+    private static final Map<String, Codec> CODECS = new ConcurrentHashMap<String, Codec>();
+
+    private static final Map<String, long[]> MEMBERS = new HashMap<String, long[]>();
+
+    private static final long SCAN_SIZE = 16 * 1024 * 1024; // max bytes scanned for a member
+
+    private static final int SCAN_PROBES = 4; // max failed scans before assuming single member
+
+    private static final Codec NONE = new Codec() {
+
+        @Override
+        public InputStream decompress(final InputStream stream) {
+            return stream;
+        }
+
+        @Override
+        public OutputStream compress(final OutputStream stream) {
+            return stream;
+        }
+
+    };
+
+    static Codec create(final String name, final String... args) {
+        switch (name) {
+        case "gz":
+        case "gzip":
+            return new GzipCodec(args.length > 0 ? Integer.parseInt(args[0]) : 9);
+        default:
+            throw new IllegalArgumentException("Unsupported codec " + name);
+        }
+    }
+
+    @Nullable
+    static Codec forExtension(final String extension) {
+        final String name = extension.substring(extension.lastIndexOf('.') + 1);
+        if (name.isEmpty()
+                || "process".equalsIgnoreCase(Environment.getProperty("rdfpro.codec", "java"))) {
+            return null;
+        }
+        Codec codec = CODECS.get(name);
+        if (codec == null) {
+            try {
+                codec = Environment.newPlugin(Codec.class, name);
+            } catch (final IllegalArgumentException ex) {
+                codec = NONE;
+            }
+            CODECS.put(name, codec);
+        }
+        return codec == NONE ? null : codec;
+    }
+
+    /**
+     * Returns a stream returning the data decompressed from the stream supplied.
+     *
+     * @param stream
+     *            the stream of compressed data, to be closed when the returned stream is closed
+     * @return the stream of decompressed data
+     * @throws IOException
+     *             on failure
+     */
+    public abstract InputStream decompress(InputStream stream) throws IOException;
+
+    /**
+     * Returns a stream compressing the data written to it and emitting it to the stream supplied.
+     *
+     * @param stream
+     *            the stream where to emit compressed data, to be closed when the returned stream
+     *            is closed
+     * @return the stream accepting data to compress
+     * @throws IOException
+     *             on failure
+     */
+    public abstract OutputStream compress(OutputStream stream) throws IOException;
+
+    /**
+     * Returns a stream returning the records decompressed from a part of the file supplied, if
+     * the file can be split. The file is divided in {@code splits} parts that can be
+     * decompressed independently, and records terminated by {@code delimiter} are assigned to the
+     * part where they start, so that the concatenation of returned data for all the parts is the
+     * whole decompressed file. This implementation returns null, meaning splitting is not
+     * supported.
+     *
+     * @param file
+     *            the compressed file
+     * @param split
+     *            the index of the part to decompress, starting from 0
+     * @param splits
+     *            the number of parts
+     * @param delimiter
+     *            the record delimiter
+     * @return the stream of decompressed data for the part, or null if the file cannot be split
+     * @throws IOException
+     *             on failure
+     */
+    @Nullable
+    public InputStream decompress(final File file, final int split, final int splits,
+            final byte delimiter) throws IOException {
+        return null;
+    }
+
+    private static final class GzipCodec extends Codec {
+
+        private final int level;
+
+        GzipCodec(final int level) {
+            this.level = level;
+        }
+
+        @Override
+        public InputStream decompress(final InputStream stream) {
+            return new AsyncInputStream(new GzipInputStream(stream));
+        }
+
+        @Override
+        public OutputStream compress(final OutputStream stream) throws IOException {
+            return new GzipOutputStream(stream, this.level);
+        }
+
+        @Override
+        @Nullable
+        public InputStream decompress(final File file, final int split, final int splits,
+                final byte delimiter) throws IOException {
+
+            // Locate split points at member boundaries; give up if there is only one member
+            final long[] starts = findMembers(file, splits);
+            if (starts == null) {
+                return null;
+            } else if (starts[split] < 0) {
+                return new ByteArrayInputStream(new byte[0]); // no member starts in this split
+            }
+            final long start = starts[split];
+            long end = starts[splits];
+            for (int i = split + 1; i < splits; ++i) {
+                if (starts[i] >= 0) {
+                    end = starts[i];
+                    break;
+                }
+            }
+
+            // Decompress members from start, with records crossing end returned by this split
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                in.getChannel().position(start);
+                LOGGER.debug("Reading gzip file {} range {}-{}", file, start, end);
+                return new SplitInputStream(new GzipInputStream(in, start, end), start > 0,
+                        delimiter);
+            } catch (final Throwable ex) {
+                IO.closeQuietly(in);
+                throw ex;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "gzip codec (level " + this.level + ")";
+        }
+
+        @Nullable
+        private static long[] findMembers(final File file, final int splits) throws IOException {
+
+            // Split points are shared by the jobs decompressing the same file
+            final String key = file.getAbsolutePath() + ":" + file.length() + ":"
+                    + file.lastModified() + ":" + splits;
+            synchronized (MEMBERS) {
+                if (MEMBERS.containsKey(key)) {
+                    return MEMBERS.get(key);
+                }
+                long[] starts = new long[splits + 1];
+                boolean multiMember = false;
+                try (FileChannel channel = FileChannel.open(file.toPath(),
+                        StandardOpenOption.READ)) {
+                    final long size = channel.size();
+                    starts[0] = 0L;
+                    starts[splits] = size;
+                    for (int i = 1; i < splits; ++i) {
+                        if (i > SCAN_PROBES && !multiMember) {
+                            break; // avoid scanning most of a large single-member file
+                        }
+                        final long from = size * i / splits;
+                        final long to = Math.min(size * (i + 1) / splits, from + SCAN_SIZE);
+                        starts[i] = findMember(channel, from, to);
+                        multiMember |= starts[i] >= 0;
+                    }
+                }
+                starts = multiMember ? starts : null;
+                MEMBERS.put(key, starts);
+                return starts;
+            }
+        }
+
+        private static long findMember(final FileChannel channel, final long from, final long to)
+                throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            for (long position = from; position < to;) {
+                buffer.clear();
+                final int n = channel.read(buffer, position);
+                if (n < 3) {
+                    break;
+                }
+                for (int i = 0; i + 2 < n && position + i < to; ++i) {
+                    if (buffer.get(i) == 0x1F && buffer.get(i + 1) == (byte) 0x8B
+                            && buffer.get(i + 2) == 8 && isMember(channel, position + i)) {
+                        return position + i;
+                    }
+                }
+                position += n - 2;
+            }
+            return -1L;
+        }
+
+        private static boolean isMember(final FileChannel channel, final long position) {
+            // Accept a candidate header only if the data following it can be inflated, which
+            // rules out the byte sequence occurring by chance within compressed data
+            try {
+                final InputStream in = Channels.newInputStream(channel.position(position));
+                @SuppressWarnings("resource")
+                final GzipInputStream stream = new GzipInputStream(in, position, Long.MAX_VALUE);
+                final byte[] buffer = new byte[BLOCK_SIZE];
+                int total = 0;
+                while (total < BLOCK_SIZE) {
+                    final int n = stream.read(buffer, 0, buffer.length);
+                    if (n < 0) {
+                        break;
+                    }
+                    total += n;
+                }
+                stream.inflater.end(); // channel is not closed
+                return true;
+            } catch (final Throwable ex) {
+                return false;
+            }
+        }
+
+    }
+
+    // Decodes a gzip stream possibly consisting of multiple members, as produced by pigz or by
+    // concatenating .gz files (GZIPInputStream may stop after the first member, depending on the
+    // value returned by available() on the underlying stream)
+
+    private static final class GzipInputStream extends InputStream {
+
+        private final InputStream in;
+
+        private final byte[] buffer;
+
+        private int offset;
+
+        private int length;
+
+        private final Inflater inflater;
+
+        private final CRC32 crc;
+
+        private long size;
+
+        private boolean eof;
+
+        private boolean started;
+
+        private long base; // offset of buffer[0] in the compressed file
+
+        private final long limit;
+
+        private boolean limitReached;
+
+        GzipInputStream(final InputStream in) {
+            this(in, 0L, Long.MAX_VALUE);
+        }
+
+        GzipInputStream(final InputStream in, final long start, final long limit) {
+            this.in = in;
+            this.buffer = new byte[BLOCK_SIZE];
+            this.inflater = new Inflater(true);
+            this.crc = new CRC32();
+            this.base = start;
+            this.limit = limit;
+        }
+
+        boolean isLimitReached() {
+            return this.limitReached; // true if returned data come from a member after limit
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.started) {
+                this.started = true;
+                if (!readHeader()) {
+                    throw new EOFException("Empty gzip stream");
+                }
+            }
+            try {
+                while (!this.eof) {
+                    if (this.inflater.finished()) {
+                        this.offset = this.length - this.inflater.getRemaining();
+                        readTrailer();
+                        this.inflater.reset();
+                        this.crc.reset();
+                        this.size = 0;
+                        this.eof = !readHeader();
+                    } else if (this.inflater.needsInput()) {
+                        if (this.offset == this.length && !fill()) {
+                            throw new EOFException("Unexpected end of gzip stream");
+                        }
+                        this.inflater.setInput(this.buffer, this.offset, this.length
+                                - this.offset);
+                        this.offset = this.length;
+                    } else {
+                        final int n = this.inflater.inflate(b, off, len);
+                        if (n > 0) {
+                            this.crc.update(b, off, n);
+                            this.size += n;
+                            return n;
+                        } else if (this.inflater.needsDictionary()) {
+                            throw new IOException("Invalid gzip stream (dictionary required)");
+                        }
+                    }
+                }
+                return -1;
+            } catch (final DataFormatException ex) {
+                throw new IOException("Invalid gzip stream", ex);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.inflater.end();
+            this.in.close();
+        }
+
+        private boolean readHeader() throws IOException {
+            if (this.offset == this.length && !fill()) {
+                return false;
+            }
+            final long memberStart = this.base + this.offset;
+            if (memberStart >= this.limit && !this.limitReached) {
+                if (memberStart > this.limit) {
+                    throw new IOException("No gzip member starts at split offset " + this.limit);
+                }
+                this.limitReached = true;
+            }
+            if (readByte() != 0x1F || readByte() != 0x8B || readByte() != 8) {
+                throw new IOException("Not in gzip format");
+            }
+            final int flags = readByte();
+            if ((flags & 0xE0) != 0) {
+                throw new IOException("Not in gzip format (reserved flags set)");
+            }
+            skipBytes(6); // mtime, xfl, os
+            if ((flags & 4) != 0) {
+                skipBytes(readByte() | readByte() << 8); // extra field
+            }
+            if ((flags & 8) != 0) {
+                while (readByte() > 0) {
+                    // skip file name
+                }
+            }
+            if ((flags & 16) != 0) {
+                while (readByte() > 0) {
+                    // skip comment
+                }
+            }
+            if ((flags & 2) != 0) {
+                skipBytes(2); // header CRC
+            }
+            return true;
+        }
+
+        private void readTrailer() throws IOException {
+            final long crc = readInt();
+            final long size = readInt();
+            if (crc != this.crc.getValue() || size != (this.size & 0xFFFFFFFFL)) {
+                throw new IOException("Corrupted gzip stream (CRC or size mismatch)");
+            }
+        }
+
+        private long readInt() throws IOException {
+            long result = 0;
+            for (int i = 0; i < 4; ++i) {
+                final int b = readByte();
+                if (b < 0) {
+                    throw new EOFException("Unexpected end of gzip stream");
+                }
+                result |= (long) b << i * 8;
+            }
+            return result;
+        }
+
+        private void skipBytes(final int count) throws IOException {
+            for (int i = 0; i < count; ++i) {
+                if (readByte() < 0) {
+                    throw new EOFException("Unexpected end of gzip stream");
+                }
+            }
+        }
+
+        private int readByte() throws IOException {
+            if (this.offset == this.length && !fill()) {
+                return -1;
+            }
+            return this.buffer[this.offset++] & 0xFF;
+        }
+
+        private boolean fill() throws IOException {
+            final int n = this.in.read(this.buffer);
+            if (n <= 0) {
+                return false;
+            }
+            this.base += this.length;
+            this.offset = 0;
+            this.length = n;
+            return true;
+        }
+
+    }
+
+    // Returns the records of a split: the partial record at the beginning is skipped (if not the
+    // first split), and once data from the next split is reached, data is returned till the end
+    // of the current record, which is exactly what is skipped by the next split
+
+    private static final class SplitInputStream extends InputStream {
+
+        private final GzipInputStream in;
+
+        private final byte delimiter;
+
+        private final byte[] buffer;
+
+        private int offset;
+
+        private int length;
+
+        private boolean skipping;
+
+        private boolean crossed;
+
+        private boolean done;
+
+        SplitInputStream(final GzipInputStream in, final boolean skipFirst, final byte delimiter) {
+            this.in = in;
+            this.delimiter = delimiter;
+            this.buffer = new byte[BLOCK_SIZE];
+            this.skipping = skipFirst;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!this.done) {
+                if (this.offset == this.length) {
+                    final int n = this.in.read(this.buffer, 0, this.buffer.length);
+                    if (n < 0) {
+                        this.done = true;
+                        break;
+                    }
+                    this.offset = 0;
+                    this.length = n;
+                    this.crossed = this.in.isLimitReached(); // read() never mixes members
+                }
+                if (this.skipping) {
+                    final int index = indexOf(this.buffer, this.offset, this.length);
+                    this.offset = index < 0 ? this.length : index + 1;
+                    this.skipping = index < 0;
+                    this.done = !this.skipping && this.crossed;
+                } else {
+                    final int index = !this.crossed ? -1 : indexOf(this.buffer, this.offset,
+                            this.length);
+                    final int end = index < 0 ? this.length : index + 1;
+                    final int n = Math.min(len, end - this.offset);
+                    System.arraycopy(this.buffer, this.offset, b, off, n);
+                    this.offset += n;
+                    this.done = index >= 0 && this.offset == end;
+                    return n;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.done = true;
+            this.in.close();
+        }
+
+        private int indexOf(final byte[] buffer, final int from, final int to) {
+            for (int i = from; i < to; ++i) {
+                if (buffer[i] == this.delimiter) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    // Compresses data in independent blocks in the thread pool, pigz style: each block is
+    // deflated using the last 32K of the previous block as dictionary and ends with a sync flush,
+    // so that their concatenation is a single, standard gzip member
+
+    private static final class GzipOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private final int level;
+
+        private final CRC32 crc;
+
+        private final ArrayDeque<Future<byte[]>> pending;
+
+        private final int maxPending;
+
+        private final AtomicLong compressNanos;
+
+        private final long startNanos;
+
+        private byte[] block;
+
+        private int blockLength;
+
+        @Nullable
+        private byte[] previousBlock;
+
+        private long size;
+
+        private long compressedSize;
+
+        private boolean closed;
+
+        GzipOutputStream(final OutputStream out, final int level) throws IOException {
+            this.out = out;
+            this.level = level;
+            this.crc = new CRC32();
+            this.pending = new ArrayDeque<Future<byte[]>>();
+            this.maxPending = 2 * Environment.getCores();
+            this.compressNanos = new AtomicLong(0L);
+            this.startNanos = System.nanoTime();
+            this.block = new byte[BLOCK_SIZE];
+            this.blockLength = 0;
+            this.previousBlock = null;
+            this.out.write(new byte[] { 0x1F, (byte) 0x8B, 8, 0, 0, 0, 0, 0,
+                    (byte) (level >= 9 ? 2 : level <= 1 ? 4 : 0), (byte) 0xFF });
+            this.compressedSize = 10;
+            trackerOpen();
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (this.blockLength == this.block.length) {
+                submit(false);
+            }
+            this.block[this.blockLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            int o = off;
+            int l = len;
+            while (l > 0) {
+                if (this.blockLength == this.block.length) {
+                    submit(false);
+                }
+                final int n = Math.min(l, this.block.length - this.blockLength);
+                System.arraycopy(b, o, this.block, this.blockLength, n);
+                this.blockLength += n;
+                o += n;
+                l -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush(); // blocks are not flushed, to avoid hurting compression
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            try {
+                submit(true);
+                while (!this.pending.isEmpty()) {
+                    emit();
+                }
+                final long crc = this.crc.getValue();
+                final long size = this.size & 0xFFFFFFFFL;
+                this.out.write(new byte[] { (byte) crc, (byte) (crc >>> 8), (byte) (crc >>> 16),
+                        (byte) (crc >>> 24), (byte) size, (byte) (size >>> 8),
+                        (byte) (size >>> 16), (byte) (size >>> 24) });
+                this.compressedSize += 8;
+                if (LOGGER.isDebugEnabled()) {
+                    final long wallMillis = (System.nanoTime() - this.startNanos) / 1000000 + 1;
+                    final long cpuMillis = this.compressNanos.get() / 1000000 + 1;
+                    LOGGER.debug("Gzip compressed {} KB to {} KB in {} ms ({} KB/s, "
+                            + "{} KB/s per core)", this.size / 1024, this.compressedSize / 1024,
+                            wallMillis, this.size / wallMillis * 1000 / 1024, this.size
+                                    / cpuMillis * 1000 / 1024);
+                }
+            } finally {
+                for (final Future<byte[]> future : this.pending) {
+                    future.cancel(false);
+                }
+                trackerClose();
+                this.out.close();
+            }
+        }
+
+        private void submit(final boolean last) throws IOException {
+
+            // Update CRC and size here, as CRC values of different blocks cannot be combined
+            final byte[] data = this.block;
+            final int length = this.blockLength;
+            final byte[] dictionary = this.previousBlock;
+            this.crc.update(data, 0, length);
+            this.size += length;
+
+            // Wait for older blocks if too many are pending, then schedule compression
+            while (this.pending.size() >= this.maxPending) {
+                emit();
+            }
+            this.pending.add(Environment.getPool().submit(
+                    () -> deflate(data, length, dictionary, last)));
+
+            // Allocate a new block, so that the submitted one stays unchanged till compressed
+            this.previousBlock = length >= DICTIONARY_SIZE ? data : null;
+            this.block = new byte[BLOCK_SIZE];
+            this.blockLength = 0;
+        }
+
+        private void emit() throws IOException {
+            final byte[] compressed;
+            try {
+                compressed = this.pending.removeFirst().get();
+            } catch (final InterruptedException ex) {
+                throw new IOException("Interrupted while compressing", ex);
+            } catch (final ExecutionException ex) {
+                throw new IOException("Compression failed", ex.getCause());
+            }
+            this.out.write(compressed);
+            this.compressedSize += compressed.length;
+        }
+
+        private byte[] deflate(final byte[] data, final int length,
+                @Nullable final byte[] dictionary, final boolean last) {
+            final long ts = System.nanoTime();
+            final Deflater deflater = new Deflater(this.level, true);
+            try {
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE,
+                            DICTIONARY_SIZE);
+                }
+                deflater.setInput(data, 0, length);
+                byte[] result = new byte[length / 2 + 1024];
+                int resultLength = 0;
+                if (last) {
+                    deflater.finish();
+                }
+                while (true) {
+                    if (resultLength == result.length) {
+                        result = Arrays.copyOf(result, result.length * 2);
+                    }
+                    final int n = deflater.deflate(result, resultLength, result.length
+                            - resultLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    resultLength += n;
+                    if (last ? deflater.finished() : resultLength < result.length) {
+                        break;
+                    }
+                }
+                return Arrays.copyOf(result, resultLength);
+            } finally {
+                deflater.end();
+                this.compressNanos.addAndGet(System.nanoTime() - ts);
+                TRACKER.add(length / 1024);
+            }
+        }
+
+    }
+
+    // The tracker reports the aggregate throughput of all the in-JVM (de)compression streams: it
+    // is started when the first stream is opened and ended when the last one is closed
+
+    private static void trackerOpen() {
+        synchronized (TRACKER) {
+            if (trackerStreams++ == 0) {
+                TRACKER.start();
+            }
+        }
+    }
+
+    private static void trackerClose() {
+        synchronized (TRACKER) {
+            if (--trackerStreams == 0) {
+                TRACKER.end();
+            }
+        }
+    }
+
+    // Reads from the supplied stream in a pool thread, so that decompression overlaps with the
+    // processing of decompressed data as it happened when decompressing in a separate process
+
+    private static final class AsyncInputStream extends InputStream {
+
+        private static final byte[] EOF = new byte[0];
+
+        private final BlockingQueue<byte[]> queue;
+
+        private final InputStream in;
+
+        private volatile boolean closed;
+
+        @Nullable
+        private volatile Throwable exception;
+
+        private byte[] buffer;
+
+        private int offset;
+
+        private long size;
+
+        private final long startNanos;
+
+        AsyncInputStream(final InputStream in) {
+            this.queue = new ArrayBlockingQueue<byte[]>(16);
+            this.in = in;
+            this.buffer = new byte[0];
+            this.offset = 0;
+            this.startNanos = System.nanoTime();
+            trackerOpen();
+            Environment.getPool().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    fetch();
+                }
+
+            });
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.offset == this.buffer.length && !next()) {
+                return -1;
+            }
+            return this.buffer[this.offset++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (this.offset == this.buffer.length && !next()) {
+                return -1;
+            }
+            final int n = Math.min(len, this.buffer.length - this.offset);
+            System.arraycopy(this.buffer, this.offset, b, off, n);
+            this.offset += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.buffer.length - this.offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.closed = true;
+            this.queue.clear(); // unblocks the fetcher, which will close the stream
+        }
+
+        private boolean next() throws IOException {
+            if (this.buffer == EOF) {
+                return false;
+            }
+            try {
+                this.buffer = this.queue.take();
+                this.offset = 0;
+            } catch (final InterruptedException ex) {
+                throw new IOException("Interrupted while reading", ex);
+            }
+            if (this.buffer == EOF) {
+                final Throwable exception = this.exception;
+                if (exception instanceof IOException) {
+                    throw (IOException) exception;
+                } else if (exception != null) {
+                    throw new IOException(exception);
+                }
+                if (LOGGER.isDebugEnabled()) {
+                    final long millis = (System.nanoTime() - this.startNanos) / 1000000 + 1;
+                    LOGGER.debug("Decompressed {} KB in {} ms ({} KB/s)", this.size / 1024,
+                            millis, this.size / millis * 1000 / 1024);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private void fetch() {
+            try {
+                int pending = 0;
+                while (!this.closed) {
+                    final byte[] buffer = new byte[BLOCK_SIZE / 2];
+                    int length = 0;
+                    while (length < buffer.length) {
+                        final int n = this.in.read(buffer, length, buffer.length - length);
+                        if (n < 0) {
+                            break;
+                        }
+                        length += n;
+                    }
+                    if (length > 0) {
+                        this.size += length;
+                        pending += length;
+                        if (pending >= 1024) {
+                            TRACKER.add(pending / 1024);
+                            pending %= 1024;
+                        }
+                        this.queue.put(length == buffer.length ? buffer : Arrays.copyOf(buffer,
+                                length));
+                    }
+                    if (length < buffer.length) {
+                        break;
+                    }
+                }
+            } catch (final Throwable ex) {
+                this.exception = ex;
+            } finally {
+                trackerClose();
+                IO.closeQuietly(this.in);
+                while (!this.closed && !this.queue.offer(EOF)) {
+                    Thread.yield(); // reader consuming buffers, will make room soon
+                }
+            }
+        }
+
+    }
+
+}
@@ -13,10 +13,13 @@
  */
 package eu.fbk.rdfpro.util;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.Nullable;
 import javax.xml.datatype.DatatypeConstants;
@@ -42,7 +45,26 @@ import eu.fbk.rdfpro.AbstractRDFHandler;
 // - from 0xC0000000 to 0xEFFFFFFF secondary buffer always used (3 GB, 384M values encodable)
 // codes from 0xF0000000 to 0xFFFFFFFF denote embedded values
 
-abstract class Dictionary implements AutoCloseable {
+/**
+ * A dictionary mapping RDF values to {@code int} codes and back.
+ * <p>
+ * Codes are 32 bit integers. Small numeric, boolean and date literals are packed in the code
+ * itself and never stored; other values are stored in byte buffers, with their codes derived
+ * from storage offsets (4-bytes aligned, then 8-bytes aligned past 8 GB), so that up to ~15 GB
+ * of values can be indexed. The default context is encoded as a reserved code (see
+ * {@link #isNull(int)}). Methods {@link #encode(QuadHandler)} and {@link #decode(RDFHandler)}
+ * convert between streams of {@code Statement}s and streams of int quads, notified to a
+ * {@link QuadHandler}.
+ * </p>
+ * <p>
+ * Dictionaries are thread-safe: encoding and decoding can be performed concurrently by
+ * multiple threads. A dictionary can keep its values in memory (see
+ * {@link #newMemoryDictionary()}) or in memory mapped files, so to hold more values than those
+ * fitting in the Java heap (see {@link #newMappedDictionary(File)}). Dictionaries should be
+ * closed when no more needed, so to release their storage.
+ * </p>
+ */
+public abstract class Dictionary implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Dictionary.class);
 
@@ -131,17 +153,17 @@ abstract class Dictionary implements AutoCloseable {
 
     private final DecodeCacheEntry[] decodeCache;
 
-    private final AtomicLong encodeEmbeddedCounter;
+    private final LongAdder encodeEmbeddedCounter;
 
-    private final AtomicLong encodeCacheCounter;
+    private final LongAdder encodeCacheCounter;
 
-    private final AtomicLong encodeIndexedCounter;
+    private final LongAdder encodeIndexedCounter;
 
-    private final AtomicLong decodeEmbeddedCounter;
+    private final LongAdder decodeEmbeddedCounter;
 
-    private final AtomicLong decodeCacheCounter;
+    private final LongAdder decodeCacheCounter;
 
-    private final AtomicLong decodeIndexedCounter;
+    private final LongAdder decodeIndexedCounter;
 
     Dictionary() {
         this.namespaceIndex = new SequentialDictionary<>(64 * 1024 - 2);
@@ -149,12 +171,12 @@ abstract class Dictionary implements AutoCloseable {
         this.datatypeIndex = new SequentialDictionary<>(INITIAL_DATATYPE_INDEX);
         this.encodeCache = new EncodeCacheEntry[1024 - 1];
         this.decodeCache = new DecodeCacheEntry[1024 - 1];
-        this.encodeEmbeddedCounter = new AtomicLong();
-        this.encodeCacheCounter = new AtomicLong();
-        this.encodeIndexedCounter = new AtomicLong();
-        this.decodeEmbeddedCounter = new AtomicLong();
-        this.decodeCacheCounter = new AtomicLong();
-        this.decodeIndexedCounter = new AtomicLong();
+        this.encodeEmbeddedCounter = new LongAdder();
+        this.encodeCacheCounter = new LongAdder();
+        this.encodeIndexedCounter = new LongAdder();
+        this.decodeEmbeddedCounter = new LongAdder();
+        this.decodeCacheCounter = new LongAdder();
+        this.decodeIndexedCounter = new LongAdder();
     }
 
     abstract int doEncode(int type, int index, String string);
@@ -202,10 +224,63 @@ abstract class Dictionary implements AutoCloseable {
         }
     }
 
+    /**
+     * Creates a new dictionary storing its values in the Java heap.
+     *
+     * @return the created dictionary
+     */
     public static Dictionary newMemoryDictionary() {
-        return new MemoryDictionary();
+        return new MemoryDictionary(Buffer.newResizableBuffer(), Buffer.newResizableBuffer(), 0L);
+    }
+
+    // Test hook: values are stored in direct buffers starting at the primary offset supplied,
+    // so that offsets above 8GB (and thus 8 byte aligned) can be tested without filling them
+
+    static Dictionary newMemoryDictionary(final long primaryOffset) {
+        return new MemoryDictionary(Buffer.newDirectBuffer(), Buffer.newDirectBuffer(),
+                primaryOffset);
     }
 
+    /**
+     * Creates a new dictionary storing its values in memory mapped temporary files, created in
+     * the directory specified and deleted when the dictionary is closed. Only the hash table
+     * used for encoding (8 bytes per value) is kept in the Java heap.
+     *
+     * @param directory
+     *            the directory where to create files, null to use the system temporary
+     *            directory
+     * @return the created dictionary
+     * @throws IOException
+     *             if files cannot be created
+     */
+    public static Dictionary newMappedDictionary(@Nullable final File directory)
+            throws IOException {
+        final File dir = directory != null ? directory : new File(
+                System.getProperty("java.io.tmpdir"));
+        Files.createDirectories(dir.toPath());
+        final File primary = File.createTempFile("rdfpro-dictionary-", ".primary", dir);
+        final File secondary = File.createTempFile("rdfpro-dictionary-", ".secondary", dir);
+        primary.deleteOnExit();
+        secondary.deleteOnExit();
+        try {
+            return new MemoryDictionary(Buffer.newMappedBuffer(primary),
+                    Buffer.newMappedBuffer(secondary), 0L);
+        } catch (final IOException | RuntimeException ex) {
+            primary.delete();
+            secondary.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns an {@code RDFHandler} that encodes received statements and forwards them as int
+     * quads to the {@code QuadHandler} specified. The returned handler is thread-safe if the
+     * sink is thread-safe.
+     *
+     * @param sink
+     *            the sink receiving encoded quads
+     * @return the created handler
+     */
     public final RDFHandler encode(final QuadHandler sink) {
         return new AbstractRDFHandler() {
 
@@ -214,6 +289,17 @@ abstract class Dictionary implements AutoCloseable {
                 sink.start();
             }
 
+            @Override
+            public void handleNamespace(final String prefix, final String uri)
+                    throws RDFHandlerException {
+                sink.handleNamespace(prefix, uri);
+            }
+
+            @Override
+            public void handleComment(final String comment) throws RDFHandlerException {
+                sink.handleComment(comment);
+            }
+
             @Override
             public void handleStatement(final Statement stmt) throws RDFHandlerException {
                 final int subj = encode(stmt.getSubject());
@@ -243,6 +329,13 @@ abstract class Dictionary implements AutoCloseable {
         this.encodeCache[slotIndex] = entry;
     }
 
+    /**
+     * Encodes the value specified.
+     *
+     * @param value
+     *            the value to encode, possibly null (for the default context)
+     * @return the corresponding code
+     */
     public final int encode(@Nullable final Value value) {
 
         // Handle default context
@@ -259,7 +352,7 @@ abstract class Dictionary implements AutoCloseable {
                 if (index < PACKING_TYPES.length) {
                     final int v = pack(PACKING_TYPES[index], l);
                     if (v >= 0) {
-                        this.encodeEmbeddedCounter.incrementAndGet();
+                        this.encodeEmbeddedCounter.increment();
                         return 0xE0000000 | index << 24 | v;
                     }
                 }
@@ -271,7 +364,7 @@ abstract class Dictionary implements AutoCloseable {
         final int slotIndex = (hash & 0x7FFFFFFF) % this.encodeCache.length;
         final EncodeCacheEntry entry = this.encodeCache[slotIndex];
         if (entry != null && entry.hash == hash && entry.value.equals(value)) {
-            this.encodeCacheCounter.incrementAndGet();
+            this.encodeCacheCounter.increment();
             return entry.code;
         }
 
@@ -310,10 +403,19 @@ abstract class Dictionary implements AutoCloseable {
         // Delegate and cache the result
         final int code = doEncode(type, index, string);
         this.encodeCache[slotIndex] = new EncodeCacheEntry(code, hash, value);
-        this.encodeIndexedCounter.incrementAndGet();
+        this.encodeIndexedCounter.increment();
         return code;
     }
 
+    /**
+     * Returns a {@code QuadHandler} that decodes received int quads and forwards them as
+     * statements to the {@code RDFHandler} specified. The returned handler is thread-safe if the
+     * sink is thread-safe.
+     *
+     * @param sink
+     *            the sink receiving decoded statements
+     * @return the created handler
+     */
     public final QuadHandler decode(final RDFHandler sink) {
         return new QuadHandler() {
 
@@ -322,6 +424,17 @@ abstract class Dictionary implements AutoCloseable {
                 sink.startRDF();
             }
 
+            @Override
+            public void handleNamespace(final String prefix, final String uri)
+                    throws RDFHandlerException {
+                sink.handleNamespace(prefix, uri);
+            }
+
+            @Override
+            public void handleComment(final String comment) throws RDFHandlerException {
+                sink.handleComment(comment);
+            }
+
             @Override
             public void handle(final int subj, final int pred, final int obj, final int ctx)
                     throws RDFHandlerException {
@@ -345,6 +458,13 @@ abstract class Dictionary implements AutoCloseable {
         };
     }
 
+    /**
+     * Decodes the code specified, which must have been returned by this dictionary.
+     *
+     * @param code
+     *            the code to decode
+     * @return the corresponding value, null for the code of the default context
+     */
     @Nullable
     public final Value decode(final int code) {
 
@@ -359,7 +479,7 @@ abstract class Dictionary implements AutoCloseable {
             final URI datatype = this.datatypeIndex.decode(index);
             final String label = unpack(PACKING_TYPES[index], code & 0xFFFFFF);
             final Value value = Statements.VALUE_FACTORY.createLiteral(label, datatype);
-            this.decodeEmbeddedCounter.incrementAndGet();
+            this.decodeEmbeddedCounter.increment();
             return value;
         }
 
@@ -368,37 +488,67 @@ abstract class Dictionary implements AutoCloseable {
         final int slotIndex = (hash & 0x7FFFFFFF) % this.decodeCache.length;
         final DecodeCacheEntry entry = this.decodeCache[slotIndex];
         if (entry != null && entry.code == code) {
-            this.decodeCacheCounter.incrementAndGet();
+            this.decodeCacheCounter.increment();
             return entry.value;
         }
 
         // Delegate and cache the result
         final Value value = doDecode(code);
         this.decodeCache[slotIndex] = new DecodeCacheEntry(code, value);
-        this.decodeIndexedCounter.incrementAndGet();
+        this.decodeIndexedCounter.increment();
         return value;
     }
 
+    /**
+     * Returns true if the code denotes the default context (i.e., a null value).
+     *
+     * @param code
+     *            the code
+     * @return true if the code is the one of the default context
+     */
     public final boolean isNull(final int code) {
         return code == NULL_CODE;
     }
 
+    /**
+     * Returns true if the code denotes a URI or a BNode. This and the following methods do not
+     * require decoding the value.
+     *
+     * @param code
+     *            the code
+     * @return true if the code is the one of a resource
+     */
     public final boolean isResource(final int code) {
-        return doType(code) <= TYPE_BNODE;
+        final int type = type(code);
+        return type >= 0 && type <= TYPE_BNODE;
     }
 
     public final boolean isURI(final int code) {
-        return doType(code) <= TYPE_URI_NAME;
+        final int type = type(code);
+        return type >= 0 && type <= TYPE_URI_NAME;
     }
 
     public final boolean isBNode(final int code) {
-        return doType(code) == TYPE_BNODE;
+        return type(code) == TYPE_BNODE;
     }
 
     public final boolean isLiteral(final int code) {
-        return doType(code) >= TYPE_LITERAL_PLAIN;
+        return type(code) >= TYPE_LITERAL_PLAIN;
     }
 
+    private int type(final int code) {
+        if (code == NULL_CODE) {
+            return -1; // default context
+        } else if (code >>> 29 == 0x7) {
+            return TYPE_LITERAL_DT; // packed literal
+        } else {
+            return doType(code);
+        }
+    }
+
+    /**
+     * Closes the dictionary, releasing its storage. The dictionary cannot be used afterwards.
+     */
     @Override
     public final void close() {
         doClose();
@@ -413,11 +563,11 @@ abstract class Dictionary implements AutoCloseable {
         builder.append(this.namespaceIndex.size()).append(" namespaces, ")
                 .append(this.datatypeIndex.size()).append(" datatypes, ")
                 .append(this.languageIndex.size()).append(" languages, ");
-        toStringHelper(builder, "encode", this.encodeEmbeddedCounter.get(),
-                this.encodeCacheCounter.get(), this.encodeIndexedCounter.get());
+        toStringHelper(builder, "encode", this.encodeEmbeddedCounter.sum(),
+                this.encodeCacheCounter.sum(), this.encodeIndexedCounter.sum());
         builder.append(", ");
-        toStringHelper(builder, "decode", this.decodeEmbeddedCounter.get(),
-                this.decodeCacheCounter.get(), this.decodeIndexedCounter.get());
+        toStringHelper(builder, "decode", this.decodeEmbeddedCounter.sum(),
+                this.decodeCacheCounter.sum(), this.decodeIndexedCounter.sum());
         return builder.toString();
     }
 
@@ -534,6 +684,10 @@ abstract class Dictionary implements AutoCloseable {
         return x;
     }
 
+    /**
+     * Receiver of a stream of int quads, encoded with a {@code Dictionary}. This is the
+     * counterpart of {@code RDFHandler} for encoded statements.
+     */
     public interface QuadHandler extends AutoCloseable {
 
         final QuadHandler NIL = new QuadHandler() {
@@ -547,6 +701,13 @@ abstract class Dictionary implements AutoCloseable {
         default void start() throws RDFHandlerException {
         }
 
+        default void handleNamespace(final String prefix, final String uri)
+                throws RDFHandlerException {
+        }
+
+        default void handleComment(final String comment) throws RDFHandlerException {
+        }
+
         void handle(int subj, int pred, int obj, int ctx) throws RDFHandlerException;
 
         default void end() throws RDFHandlerException {
@@ -591,9 +752,9 @@ abstract class Dictionary implements AutoCloseable {
 
         private final int capacity;
 
-        private Object[] array;
+        private volatile Object[] array;
 
-        private long[] table;
+        private volatile long[] table;
 
         private int size;
 
@@ -616,45 +777,53 @@ abstract class Dictionary implements AutoCloseable {
         }
 
         int encode(final T element, final int resultIfFull) {
+
+            // Lookup the element without locking, on possibly stale table and array snapshots
             final long[] table = this.table; // may change on rehash
-            Object[] array = this.array; // may change on rehash
+            final Object[] array = this.array; // may change on rehash
             final int mask = table.length - 1;
             final int hash = element.hashCode();
             for (int slot = hash & mask;; slot = slot + 1 & mask) {
                 final long cell = table[slot];
                 if (cell == 0L) {
-                    synchronized (this) {
-                        if (table == this.table && table[slot] == 0L) {
-                            array = this.array; // may have changed in the meanwhile
-                            if (this.size == this.capacity) {
-                                return resultIfFull;
-                            }
-                            if (this.size > table.length / 3 * 2) {
-                                rehash(); // enforce load factor < .66
-                            } else {
-                                final int index = this.size + 1; // Skip index 0
-                                if (index >= array.length) {
-                                    array = Arrays.copyOf(array, array.length << 1);
-                                    this.array = array;
-                                }
-                                array[index] = element;
-                                table[slot] = (long) index << 32 | hash & 0xFFFFFFFFL;
-                                ++this.size;
-                                return index;
-                            }
-                        }
-                    }
-                    return encode(element, resultIfFull); // retry on rehash and concurrent change
+                    break;
                 }
                 if ((int) cell == hash) {
                     final int index = (int) (cell >>> 32);
-                    if (index >= array.length) {
-                        return encode(element, resultIfFull); // array not aligned to table: retry
+                    if (index < array.length && element.equals(array[index])) {
+                        return index;
                     }
-                    if (element.equals(array[index])) {
+                }
+            }
+
+            // Not found: probe again from the start of the chain under the lock, as elements
+            // being added concurrently may have been missed, and add the element if missing
+            synchronized (this) {
+                if (this.size > this.table.length / 3 * 2) {
+                    rehash(); // enforce load factor < .66
+                }
+                final long[] lockedTable = this.table;
+                Object[] lockedArray = this.array;
+                final int lockedMask = lockedTable.length - 1;
+                int slot = hash & lockedMask;
+                for (long cell; (cell = lockedTable[slot]) != 0L; slot = slot + 1 & lockedMask) {
+                    final int index = (int) (cell >>> 32);
+                    if ((int) cell == hash && element.equals(lockedArray[index])) {
                         return index;
                     }
                 }
+                if (this.size == this.capacity) {
+                    return resultIfFull;
+                }
+                final int index = this.size + 1; // Skip index 0
+                if (index >= lockedArray.length) {
+                    lockedArray = Arrays.copyOf(lockedArray, lockedArray.length << 1);
+                    this.array = lockedArray;
+                }
+                lockedArray[index] = element;
+                lockedTable[slot] = (long) index << 32 | hash & 0xFFFFFFFFL;
+                ++this.size;
+                return index;
             }
         }
 
@@ -706,16 +875,17 @@ abstract class Dictionary implements AutoCloseable {
 
         private long secondaryOffset;
 
-        private long[] table;
+        private volatile long[] table;
 
         private int size;
 
         private final Object[] locks;
 
-        MemoryDictionary() {
-            this.primaryBuffer = Buffer.newResizableBuffer();
-            this.secondaryBuffer = Buffer.newResizableBuffer();
-            this.primaryOffset = 0L;
+        MemoryDictionary(final Buffer primaryBuffer, final Buffer secondaryBuffer,
+                final long primaryOffset) {
+            this.primaryBuffer = primaryBuffer;
+            this.secondaryBuffer = secondaryBuffer;
+            this.primaryOffset = primaryOffset;
             this.secondaryOffset = 0L;
             this.table = new long[512]; // 4K
             this.size = 0;
@@ -732,36 +902,45 @@ abstract class Dictionary implements AutoCloseable {
 
             final int hash = type * 6661 + index * 661 + string.hashCode() & 0x7FFFFFFF;
 
+            // Lookup the value without locking, on a possibly stale table snapshot
             final long[] table = this.table; // may concurrently change
             final int mask = table.length - 1;
-
             for (int slot = hash & mask;; slot = slot + 1 & mask) {
                 final long cell = table[slot];
                 if (cell == 0L) {
-                    final Buffer buffer = Buffer.newFixedBuffer(new byte[string.length() * 3 + 6]);
-                    final int bufferLength = buffer.writeString(4, string);
-                    synchronized (this) {
-                        if (table == this.table && table[slot] == 0L) {
-                            if (this.size > this.table.length / 3 * 2) {
-                                rehash(); // enforce load factor < .66
-                            } else {
-                                final long offset = append(type, index, buffer, 4, bufferLength);
-                                final int code = offsetToCode(offset);
-                                table[slot] = (long) code << 32 | hash & 0xFFFFFFFFL;
-                                ++this.size;
-                                return code;
-                            }
-                        }
-                    }
-                    return doEncode(type, index, string); // retry on rehash and concurrent change
+                    break;
                 }
                 if ((int) cell == hash) {
-                    final long offset = codeToOffset((int) (cell >>> 32));
-                    if (equals(offset, type, index, string)) {
-                        return (int) (offset >>> 2);
+                    final int code = (int) (cell >>> 32);
+                    if (equals(codeToOffset(code), type, index, string)) {
+                        return code;
                     }
                 }
             }
+
+            // Not found: probe again from the start of the chain under the lock, as values being
+            // added concurrently may have been missed (e.g., their bytes were not visible yet)
+            final Buffer buffer = Buffer.newFixedBuffer(new byte[string.length() * 3 + 6]);
+            final int bufferLength = buffer.writeString(4, string);
+            synchronized (this) {
+                if (this.size > this.table.length / 3 * 2) {
+                    rehash(); // enforce load factor < .66
+                }
+                final long[] lockedTable = this.table;
+                final int lockedMask = lockedTable.length - 1;
+                int slot = hash & lockedMask;
+                for (long cell; (cell = lockedTable[slot]) != 0L; slot = slot + 1 & lockedMask) {
+                    final int code = (int) (cell >>> 32);
+                    if ((int) cell == hash && equals(codeToOffset(code), type, index, string)) {
+                        return code;
+                    }
+                }
+                final long offset = append(type, index, buffer, 4, bufferLength);
+                final int code = offsetToCode(offset);
+                lockedTable[slot] = (long) code << 32 | hash & 0xFFFFFFFFL;
+                ++this.size;
+                return code;
+            }
         }
 
         int doEncode2(final int type, final int index, final String string) {
@@ -808,9 +987,9 @@ abstract class Dictionary implements AutoCloseable {
                     return doEncode(type, index, string); // retry on rehash and concurrent change
                 }
                 if ((int) cell == hash) {
-                    final long offset = codeToOffset((int) (cell >>> 32));
-                    if (equals(offset, type, index, string)) {
-                        return (int) (offset >>> 2);
+                    final int code = (int) (cell >>> 32);
+                    if (equals(codeToOffset(code), type, index, string)) {
+                        return code;
                     }
                 }
             }
@@ -856,8 +1035,13 @@ abstract class Dictionary implements AutoCloseable {
 
         @Override
         int doType(final int code) {
-            final long offset = (long) code << 2;
-            return this.primaryBuffer.read(offset) >>> 5 & 0x7;
+            return this.primaryBuffer.read(codeToOffset(code)) >>> 5 & 0x7;
+        }
+
+        @Override
+        void doClose() {
+            this.primaryBuffer.close();
+            this.secondaryBuffer.close();
         }
 
         @Override
@@ -1034,15 +1218,15 @@ abstract class Dictionary implements AutoCloseable {
             return strBuffer.equalString(strOffset, strLen, string);
         }
 
-        private static long codeToOffset(final int code) {
+        static long codeToOffset(final int code) {
             // return (long) (code & 0xFFFFFFF) << 2;
             return (code & 0x80000000) == 0 ? (long) code << 2 : ((code & 0xFFFFFFFFL) << 3)
                     - (1L << 33);
         }
 
-        private static int offsetToCode(final long offset) {
+        static int offsetToCode(final long offset) {
             // return (int) (offset >>> 2);
-            return (int) (offset < 1L << 33 ? offset >>> 2 : (1L << 30) + offset >>> 3);
+            return (int) (offset < 1L << 33 ? offset >>> 2 : (offset >>> 3) + (1L << 30));
         }
 
         private static long padOffset(final long offset) {
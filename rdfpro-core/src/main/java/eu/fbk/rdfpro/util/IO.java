@@ -28,6 +28,9 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -136,9 +139,12 @@ public final class IO {
 
         final String ext = extractExtension(location);
         final URL url = extractURL(location);
+        final Codec codec = Codec.forExtension(ext);
 
         String cmd = null;
-        if (ext.endsWith(".bz2")) {
+        if (codec != null) {
+            // decompress in the JVM
+        } else if (ext.endsWith(".bz2")) {
             cmd = Environment.getProperty("rdfpro.cmd.bzip2", "bzip2") + " -dck";
         } else if (ext.endsWith(".gz")) {
             cmd = Environment.getProperty("rdfpro.cmd.gzip", "gzip") + " -dc";
@@ -148,6 +154,8 @@ public final class IO {
             cmd = Environment.getProperty("rdfpro.cmd.7za", "7za") + " -so e";
         } else if (ext.endsWith(".lz4")) {
             cmd = Environment.getProperty("rdfpro.cmd.lz4", "lz4") + " -dc";
+        } else if (ext.endsWith(".zst")) {
+            cmd = Environment.getProperty("rdfpro.cmd.zstd", "zstd") + " -dc";
         }
 
         if ("file".equals(url.getProtocol())) {
@@ -158,7 +166,11 @@ public final class IO {
                 throw new IllegalArgumentException("Invalid file:// URL: " + location);
             }
 
-            if (cmd == null) {
+            if (codec != null) {
+                LOGGER.debug("Reading file {} using {}", file, codec);
+                return codec.decompress(new FileInputStream(file));
+
+            } else if (cmd == null) {
                 LOGGER.debug("Reading file {}", file);
                 return new FileInputStream(file);
 
@@ -172,7 +184,11 @@ public final class IO {
 
         } else {
             final InputStream stream = url.openStream();
-            if (cmd == null) {
+            if (codec != null) {
+                LOGGER.debug("Downloading file {} using {}", url, codec);
+                return codec.decompress(stream);
+
+            } else if (cmd == null) {
                 LOGGER.debug("Downloading file {}", url);
                 return stream;
 
@@ -208,6 +224,73 @@ public final class IO {
         }
     }
 
+    @Nullable
+    public static InputStream read(final String location, final int split, final int splits,
+            final byte delimiter) throws IOException {
+
+        // Only local files can be split, if uncompressed or if supported by their codec
+        final String ext = extractExtension(location);
+        final URL url = extractURL(location);
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        final File file;
+        try {
+            file = new File(url.toURI());
+        } catch (final URISyntaxException ex) {
+            throw new IllegalArgumentException("Invalid file:// URL: " + location);
+        }
+        if (isCompressed(ext)) {
+            final Codec codec = Codec.forExtension(ext);
+            return codec == null ? null : codec.decompress(file, split, splits, delimiter);
+        }
+
+        // Split the file in equal ranges, moving range boundaries after the next delimiter
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            final long start = align(channel, size * split / splits, size, delimiter);
+            final long end = align(channel, size * (split + 1) / splits, size, delimiter);
+            LOGGER.debug("Reading file {} range {}-{} using memory mapping", file, start, end);
+            return new MappedInputStream(channel, start, end);
+        } catch (final Throwable ex) {
+            closeQuietly(channel);
+            throw ex;
+        }
+    }
+
+    private static long align(final FileChannel channel, final long offset, final long size,
+            final byte delimiter) throws IOException {
+        if (offset == 0 || offset >= size) {
+            return Math.min(offset, size);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        long position = offset - 1; // range starts at offset if preceded by the delimiter
+        while (true) {
+            buffer.clear();
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                return size;
+            }
+            for (int i = 0; i < n; ++i) {
+                if (buffer.get(i) == delimiter) {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+    }
+
+    private static boolean isCompressed(final String ext) {
+        for (final String compressedExt : new String[] { ".bz2", ".gz", ".xz", ".7z", ".lz4",
+                ".zst" }) {
+            if (ext.endsWith(compressedExt)) {
+                return true;
+            }
+        }
+        return Codec.forExtension(ext) != null;
+    }
+
     public static OutputStream write(final String location) throws IOException {
 
         final String ext = extractExtension(location);
@@ -224,8 +307,11 @@ public final class IO {
             throw new IllegalArgumentException("Invalid file:// URL: " + location);
         }
 
+        final Codec codec = Codec.forExtension(ext);
         final String cmd;
-        if (ext.endsWith(".bz2")) {
+        if (codec != null) {
+            cmd = null;
+        } else if (ext.endsWith(".bz2")) {
             cmd = Environment.getProperty("rdfpro.cmd.bzip2", "bzip2") + " -c -9";
         } else if (ext.endsWith(".gz")) {
             cmd = Environment.getProperty("rdfpro.cmd.gzip", "gzip") + " -c -9";
@@ -233,11 +319,17 @@ public final class IO {
             cmd = Environment.getProperty("rdfpro.cmd.xz", "xz") + " -c -9";
         } else if (ext.endsWith(".lz4")) {
             cmd = Environment.getProperty("rdfpro.cmd.lz4", "lz4") + " -c -9";
+        } else if (ext.endsWith(".zst")) {
+            cmd = Environment.getProperty("rdfpro.cmd.zstd", "zstd") + " -c -9";
         } else {
             cmd = null;
         }
 
-        if (cmd == null) {
+        if (codec != null) {
+            LOGGER.debug("Writing file {} using {}", file, codec);
+            return codec.compress(new FileOutputStream(file));
+
+        } else if (cmd == null) {
             LOGGER.debug("Writing file {}", file);
             return new FileOutputStream(file);
 
@@ -339,6 +431,93 @@ public final class IO {
     private IO() {
     }
 
+    private static final class MappedInputStream extends InputStream {
+
+        private static final long WINDOW_SIZE = 256 * 1024 * 1024;
+
+        private final FileChannel channel;
+
+        private final long end;
+
+        private long position;
+
+        @Nullable
+        private ByteBuffer buffer;
+
+        private boolean closed;
+
+        MappedInputStream(final FileChannel channel, final long start, final long end) {
+            this.channel = channel;
+            this.end = end;
+            this.position = start;
+            this.buffer = null;
+            this.closed = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return this.buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buf, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, this.buffer.remaining());
+            this.buffer.get(buf, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && fill()) {
+                final int delta = (int) Math.min(n - skipped, this.buffer.remaining());
+                this.buffer.position(this.buffer.position() + delta);
+                skipped += delta;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return this.buffer == null ? 0 : this.buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            this.buffer = null; // unmapped on GC
+            this.channel.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (this.buffer != null && this.buffer.hasRemaining()) {
+                return true;
+            } else if (this.closed) {
+                throw new IOException("Stream has been closed");
+            } else if (this.position >= this.end) {
+                return false;
+            }
+            final long size = Math.min(WINDOW_SIZE, this.end - this.position);
+            this.buffer = this.channel.map(MapMode.READ_ONLY, this.position, size);
+            this.position += size;
+            return true;
+        }
+
+    }
+
     private static final class SimpleBufferedInputStream extends InputStream {
 
         private final InputStream stream;
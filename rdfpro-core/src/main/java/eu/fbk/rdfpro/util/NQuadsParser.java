@@ -0,0 +1,551 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.NTriplesParserSettings;
+import org.openrdf.rio.helpers.RDFParserBase;
+
+/**
+ * A parser for N-Triples and N-Quads working directly on UTF-8 bytes.
+ * <p>
+ * Compared to the Sesame parsers, this parser does not decode its input into characters nor
+ * allocates strings for whole lines or intermediate tokens: input is read in a byte buffer, each
+ * line is tokenized in place and strings are created only for the lexical forms of the values
+ * produced. Recently seen URIs (including datatypes) and language tags are cached based on their
+ * byte representation, so that repeated URIs do not cause any allocation. As the parser is
+ * meant for large line-based dumps, it is lenient with respect to the characters allowed in
+ * URIs and BNode labels. Parsing from a {@code Reader} is supported for compatibility but does
+ * not provide any benefit over the Sesame parsers.
+ * </p>
+ */
+public class NQuadsParser extends RDFParserBase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int URI_CACHE_SIZE = 4 * 1024; // must be a power of 2
+
+    private static final int LANGUAGE_CACHE_SIZE = 64; // must be a power of 2
+
+    private final RDFFormat format;
+
+    private final boolean quads;
+
+    private InputStream in;
+
+    private byte[] buffer;
+
+    private int pos; // position of next byte to parse
+
+    private int end; // end of current line, excluding line terminators
+
+    private int limit; // end of valid data in buffer
+
+    private boolean eof;
+
+    private int lineNo;
+
+    private StringBuilder builder;
+
+    private byte[][] uriKeys;
+
+    private URI[] uriValues;
+
+    private byte[][] languageKeys;
+
+    private String[] languageValues;
+
+    /**
+     * Creates a new {@code NQuadsParser} for the format specified.
+     *
+     * @param format
+     *            either {@link RDFFormat#NTRIPLES} or {@link RDFFormat#NQUADS}
+     */
+    public NQuadsParser(final RDFFormat format) {
+        if (!RDFFormat.NTRIPLES.equals(format) && !RDFFormat.NQUADS.equals(format)) {
+            throw new IllegalArgumentException("Unsupported format " + format);
+        }
+        this.format = format;
+        this.quads = RDFFormat.NQUADS.equals(format);
+    }
+
+    @Override
+    public RDFFormat getRDFFormat() {
+        return this.format;
+    }
+
+    @Override
+    public void parse(final Reader reader, final String baseURI) throws IOException,
+            RDFParseException, RDFHandlerException {
+        Objects.requireNonNull(reader);
+        parse(new InputStream() {
+
+            private final char[] chars = new char[1];
+
+            private byte[] bytes = new byte[0];
+
+            private int offset = 0;
+
+            @Override
+            public int read() throws IOException {
+                while (this.offset == this.bytes.length) {
+                    final int c = reader.read();
+                    if (c < 0) {
+                        return -1;
+                    }
+                    if (Character.isHighSurrogate((char) c)) {
+                        final int c2 = reader.read();
+                        this.bytes = (c2 < 0 ? String.valueOf((char) c) : new String(new char[] {
+                                (char) c, (char) c2 })).getBytes(UTF8);
+                    } else {
+                        this.chars[0] = (char) c;
+                        this.bytes = new String(this.chars).getBytes(UTF8);
+                    }
+                    this.offset = 0;
+                }
+                return this.bytes[this.offset++] & 0xFF;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+
+        }, baseURI);
+    }
+
+    @Override
+    public void parse(final InputStream stream, final String baseURI) throws IOException,
+            RDFParseException, RDFHandlerException {
+
+        Objects.requireNonNull(stream);
+
+        if (this.rdfHandler != null) {
+            this.rdfHandler.startRDF();
+        }
+
+        this.in = stream;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.end = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.lineNo = 0;
+        this.builder = new StringBuilder();
+        this.uriKeys = new byte[URI_CACHE_SIZE][];
+        this.uriValues = new URI[URI_CACHE_SIZE];
+        this.languageKeys = new byte[LANGUAGE_CACHE_SIZE][];
+        this.languageValues = new String[LANGUAGE_CACHE_SIZE];
+
+        try {
+            while (nextLine()) {
+                parseLine();
+            }
+        } finally {
+            clear();
+            this.in = null;
+            this.buffer = null;
+            this.builder = null;
+            this.uriKeys = null;
+            this.uriValues = null;
+            this.languageKeys = null;
+            this.languageValues = null;
+        }
+
+        if (this.rdfHandler != null) {
+            this.rdfHandler.endRDF();
+        }
+    }
+
+    private boolean nextLine() throws IOException {
+
+        // Skip the terminator of the previous line, if any; the LF of a CR LF pair may not be
+        // buffered yet, so it is skipped while scanning (otherwise it would end an empty line)
+        this.pos = this.end;
+        boolean afterCR = false;
+        if (this.pos < this.limit) {
+            afterCR = this.buffer[this.pos++] == '\r';
+        }
+
+        // Locate the end of the next line, refilling or growing the buffer as necessary
+        int index = this.pos;
+        while (true) {
+            while (index < this.limit) {
+                final byte b = this.buffer[index];
+                if (afterCR) {
+                    afterCR = false;
+                    if (b == '\n') {
+                        this.pos = ++index;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    this.end = index;
+                    ++this.lineNo;
+                    return true;
+                }
+                ++index;
+            }
+            if (this.eof) {
+                this.end = this.limit;
+                ++this.lineNo;
+                return this.pos < this.limit;
+            }
+            if (this.pos > 0) {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+                index -= this.pos;
+                this.limit -= this.pos;
+                this.pos = 0;
+            } else if (this.limit == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            }
+            final int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (n < 0) {
+                this.eof = true;
+            } else {
+                this.limit += n;
+            }
+        }
+    }
+
+    private void parseLine() throws RDFParseException, RDFHandlerException {
+
+        skipWhitespace();
+        if (this.pos == this.end || this.buffer[this.pos] == '#') {
+            return; // empty or comment line
+        }
+
+        try {
+            final Resource subject = parseResource();
+            skipWhitespace();
+            final URI predicate = parseURI();
+            skipWhitespace();
+            final Value object = parseValue();
+            skipWhitespace();
+            Resource context = null;
+            if (this.quads && this.pos < this.end && this.buffer[this.pos] != '.') {
+                context = parseResource();
+                skipWhitespace();
+            }
+            if (this.pos == this.end) {
+                throwEOLException();
+            } else if (this.buffer[this.pos] != '.') {
+                throwParseException("Expected '.'");
+            }
+            ++this.pos;
+            skipWhitespace();
+            if (this.pos < this.end && this.buffer[this.pos] != '#') {
+                throwParseException("Content after '.' is not allowed");
+            }
+
+            if (this.rdfHandler != null) {
+                final Statement statement;
+                if (context == null) {
+                    statement = createStatement(subject, predicate, object);
+                } else {
+                    statement = createStatement(subject, predicate, object, context);
+                }
+                this.rdfHandler.handleStatement(statement);
+            }
+
+        } catch (final RDFParseException ex) {
+            if (getParserConfig().isNonFatalError(
+                    NTriplesParserSettings.FAIL_ON_NTRIPLES_INVALID_LINES)) {
+                reportError(ex, this.lineNo, -1,
+                        NTriplesParserSettings.FAIL_ON_NTRIPLES_INVALID_LINES);
+            } else {
+                throw ex;
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (this.pos < this.end) {
+            final byte b = this.buffer[this.pos];
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            ++this.pos;
+        }
+    }
+
+    private Value parseValue() throws RDFParseException {
+        if (this.pos < this.end && this.buffer[this.pos] == '"') {
+            return parseLiteral();
+        }
+        return parseResource();
+    }
+
+    private Resource parseResource() throws RDFParseException {
+        if (this.pos == this.end) {
+            throwEOLException();
+        }
+        final byte b = this.buffer[this.pos];
+        if (b == '<') {
+            return parseURI();
+        } else if (b == '_') {
+            return parseBNode();
+        }
+        throwParseException("Expected '<' or '_', found: " + (char) b);
+        return null;
+    }
+
+    private URI parseURI() throws RDFParseException {
+
+        if (this.pos == this.end) {
+            throwEOLException();
+        } else if (this.buffer[this.pos] != '<') {
+            throwParseException("Expected '<', found: " + (char) this.buffer[this.pos]);
+        }
+
+        // Scan the URI, checking whether unescaping and UTF-8 decoding are needed
+        final int start = this.pos + 1;
+        int index = start;
+        int hash = 0;
+        boolean escaped = false;
+        boolean ascii = true;
+        while (true) {
+            if (index == this.end) {
+                throwEOLException();
+            }
+            final byte b = this.buffer[index];
+            if (b == '>') {
+                break;
+            } else if (b == '\\') {
+                escaped = true;
+                if (++index == this.end) {
+                    throwEOLException();
+                }
+            } else if (b < 0) {
+                ascii = false;
+            } else if (b < 32) {
+                throwParseException("Expected valid IRI char, found: " + b);
+            }
+            hash = 31 * hash + b;
+            ++index;
+        }
+        this.pos = index + 1;
+
+        if (escaped) {
+            return createURI(unescape(start, index));
+        }
+
+        // Lookup the URI in the cache, decoding and caching it on a miss
+        final int length = index - start;
+        final int slot = (hash ^ hash >>> 16) & URI_CACHE_SIZE - 1;
+        final byte[] key = this.uriKeys[slot];
+        if (key != null && equals(key, start, length)) {
+            return this.uriValues[slot];
+        }
+        final URI uri = createURI(new String(this.buffer, start, length, ascii ? ISO_8859_1
+                : UTF8));
+        this.uriKeys[slot] = Arrays.copyOfRange(this.buffer, start, index);
+        this.uriValues[slot] = uri;
+        return uri;
+    }
+
+    private Resource parseBNode() throws RDFParseException {
+
+        if (this.pos + 2 > this.end) {
+            throwEOLException();
+        } else if (this.buffer[this.pos] != '_' || this.buffer[this.pos + 1] != ':') {
+            throwParseException("Expected '_:'");
+        }
+
+        // Accept letters, digits, '_', '-', '.' and non-ASCII chars; trailing '.' are excluded
+        final int start = this.pos + 2;
+        int index = start;
+        while (index < this.end) {
+            final byte b = this.buffer[index];
+            if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9'
+                    || b == '_' || b == '-' || b == '.' || b < 0)) {
+                break;
+            }
+            ++index;
+        }
+        while (index > start && this.buffer[index - 1] == '.') {
+            --index;
+        }
+        if (index == start) {
+            throwParseException("Empty BNode label");
+        }
+        this.pos = index;
+        return createBNode(new String(this.buffer, start, index - start, UTF8));
+    }
+
+    private Value parseLiteral() throws RDFParseException {
+
+        // Scan the label, checking whether unescaping and UTF-8 decoding are needed
+        final int start = this.pos + 1;
+        int index = start;
+        boolean escaped = false;
+        boolean ascii = true;
+        while (true) {
+            if (index == this.end) {
+                throwEOLException();
+            }
+            final byte b = this.buffer[index];
+            if (b == '"') {
+                break;
+            } else if (b == '\\') {
+                escaped = true;
+                if (++index == this.end) {
+                    throwEOLException();
+                }
+            } else if (b < 0) {
+                ascii = false;
+            }
+            ++index;
+        }
+        this.pos = index + 1;
+        final String label = escaped ? unescape(start, index) : new String(this.buffer, start,
+                index - start, ascii ? ISO_8859_1 : UTF8);
+
+        // Parse the optional language tag or datatype
+        if (this.pos < this.end && this.buffer[this.pos] == '@') {
+            return createLiteral(label, parseLanguage(), null, this.lineNo, -1);
+        } else if (this.pos + 1 < this.end && this.buffer[this.pos] == '^'
+                && this.buffer[this.pos + 1] == '^') {
+            this.pos += 2;
+            return createLiteral(label, null, parseURI(), this.lineNo, -1);
+        }
+        return createLiteral(label, null, null, this.lineNo, -1);
+    }
+
+    private String parseLanguage() throws RDFParseException {
+
+        final int start = this.pos + 1;
+        int index = start;
+        int hash = 0;
+        while (index < this.end) {
+            final byte b = this.buffer[index];
+            if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b == '-' || b >= '0'
+                    && b <= '9' && index > start)) {
+                break;
+            }
+            hash = 31 * hash + b;
+            ++index;
+        }
+        if (index == start || this.buffer[index - 1] == '-') {
+            throwParseException("Invalid language tag");
+        }
+        this.pos = index;
+
+        final int length = index - start;
+        final int slot = (hash ^ hash >>> 16) & LANGUAGE_CACHE_SIZE - 1;
+        final byte[] key = this.languageKeys[slot];
+        if (key != null && equals(key, start, length)) {
+            return this.languageValues[slot];
+        }
+        final String language = new String(this.buffer, start, length, ISO_8859_1);
+        this.languageKeys[slot] = Arrays.copyOfRange(this.buffer, start, index);
+        this.languageValues[slot] = language;
+        return language;
+    }
+
+    private String unescape(final int start, final int end) throws RDFParseException {
+        final StringBuilder builder = this.builder;
+        builder.setLength(0);
+        int run = start; // start of current run of unescaped bytes
+        for (int index = start; index < end; ++index) {
+            if (this.buffer[index] != '\\') {
+                continue;
+            }
+            builder.append(new String(this.buffer, run, index - run, UTF8));
+            final byte b = this.buffer[++index];
+            switch (b) {
+            case 'b':
+                builder.append('\b');
+                break;
+            case 'f':
+                builder.append('\f');
+                break;
+            case 'n':
+                builder.append('\n');
+                break;
+            case 'r':
+                builder.append('\r');
+                break;
+            case 't':
+                builder.append('\t');
+                break;
+            case 'u':
+            case 'U':
+                final int count = b == 'u' ? 4 : 8;
+                if (index + count >= end) {
+                    throwParseException("Incomplete unicode escape");
+                }
+                int code = 0;
+                for (int i = 1; i <= count; ++i) {
+                    final int digit = Character.digit(this.buffer[index + i], 16);
+                    if (digit < 0) {
+                        throwParseException("Expected hex digit, found: "
+                                + (char) this.buffer[index + i]);
+                    }
+                    code = code * 16 + digit;
+                }
+                if (!Character.isValidCodePoint(code)) {
+                    throwParseException("Invalid unicode code point: " + code);
+                }
+                builder.appendCodePoint(code);
+                index += count;
+                break;
+            default:
+                builder.append((char) b); // handles ' " \ > and others
+                break;
+            }
+            run = index + 1;
+        }
+        builder.append(new String(this.buffer, run, end - run, UTF8));
+        return builder.toString();
+    }
+
+    private boolean equals(final byte[] key, final int offset, final int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (key[i] != this.buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void throwEOLException() throws RDFParseException {
+        throw new RDFParseException("Unexpected end of line", this.lineNo, -1);
+    }
+
+    private void throwParseException(final String message) throws RDFParseException {
+        throw new RDFParseException(message, this.lineNo, -1);
+    }
+
+}
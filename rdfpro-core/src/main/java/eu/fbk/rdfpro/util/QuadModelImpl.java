@@ -48,6 +48,9 @@ import org.openrdf.model.vocabulary.XMLSchema;
 
 final class QuadModelImpl extends QuadModel {
 
+    private static final boolean OFF_HEAP = Boolean.parseBoolean(Environment.getProperty(
+            "rdfpro.model.offheap", "false"));
+
     private static final int INITIAL_VALUE_TABLE_SIZE = 256 - 1;
 
     private static final int INITIAL_STATEMENT_TABLE_SIZE = 256 - 1;
@@ -91,7 +94,8 @@ final class QuadModelImpl extends QuadModel {
 
     public QuadModelImpl() {
         this.namespaces = new HashMap<>();
-        this.stringIndex = new StringIndex();
+        this.stringIndex = OFF_HEAP ? new StringIndex(Buffer.newDirectBuffer(),
+                Buffer.newDirectBuffer()) : new StringIndex();
         this.valueTable = new ModelValue[INITIAL_VALUE_TABLE_SIZE];
         this.valueCount = 0;
         this.valueSlots = 0;
@@ -949,8 +953,8 @@ final class QuadModelImpl extends QuadModel {
             super(model);
             final int index = URIUtil.getLocalNameIndex(string);
             if (model != null) {
-                this.namespace = model.stringIndex.put(string.substring(0, index));
-                this.localName = model.stringIndex.put(string.substring(index));
+                this.namespace = model.stringIndex.put(string, 0, index);
+                this.localName = model.stringIndex.put(string, index, string.length());
                 this.cachedString = null;
             } else {
                 this.namespace = 0;
@@ -0,0 +1,935 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// In-JVM external sort of zero-terminated byte records, ordered as 'LC_ALL=C sort -z' would do.
+// Each producer thread fills its own direct buffer; full buffers are sorted by the producer
+// itself (so run generation uses as many cores as producers) and spilled to compressed run files;
+// at the end all runs are merged with a loser tree, optionally dropping duplicate records.
+// Keyed records (see Sorter.Output.endKey()) start with a fixed-width 8 byte key carrying 7 bits
+// per byte (high bit set, so no zero bytes): they are MSD radix sorted on the key value, and full
+// records are compared only for ties.
+
+final class SortEngine implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SortEngine.class);
+
+    private static final int BUFFER_SIZE = Integer.parseInt(Environment.getProperty(
+            "rdfpro.sorter.buffer.size", ""
+                    + (int) Math.max(1024 * 1024, Math.min(256 * 1024 * 1024, Runtime
+                            .getRuntime().maxMemory() / 8 / Environment.getCores()))));
+
+    private static final int FAN_IN = Math.max(2, Integer.parseInt(Environment.getProperty(
+            "rdfpro.sorter.fanin", "128"))); // merging less than 2 runs makes no progress
+
+    private static final boolean COMPRESS = Boolean.parseBoolean(Environment.getProperty(
+            "rdfpro.sorter.compress", "true"));
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final int KEY_LENGTH = Sorter.KEY_LENGTH;
+
+    private static final int RADIX_THRESHOLD = 32;
+
+    private final boolean deduplicate;
+
+    private final boolean keyed;
+
+    private final File directory;
+
+    private final int bufferSize;
+
+    private final List<RunBuffer> buffers;
+
+    private final List<File> files;
+
+    private boolean closed;
+
+    SortEngine(final boolean deduplicate, final boolean keyed) {
+        this(deduplicate, keyed, new File(Environment.getProperty("rdfpro.sorter.tmpdir",
+                System.getProperty("java.io.tmpdir"))), BUFFER_SIZE);
+    }
+
+    SortEngine(final boolean deduplicate, final boolean keyed, final File directory,
+            final int bufferSize) {
+        this.deduplicate = deduplicate;
+        this.keyed = keyed;
+        this.directory = directory;
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayList<RunBuffer>();
+        this.files = new ArrayList<File>();
+        this.closed = false;
+    }
+
+    public OutputStream newOutput() {
+        final RunBuffer buffer = new RunBuffer();
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Sort engine has been closed");
+            }
+            this.buffers.add(buffer);
+        }
+        return buffer;
+    }
+
+    public InputStream end() throws IOException {
+
+        // Sort in parallel the records still in memory, keeping them there
+        final List<Runnable> runnables = new ArrayList<Runnable>();
+        for (final RunBuffer buffer : this.buffers) {
+            runnables.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    buffer.sort();
+                }
+
+            });
+        }
+        Environment.run(runnables);
+
+        // Reduce the number of spilled runs below the merge fan-in, if necessary
+        List<File> files;
+        synchronized (this) {
+            files = new ArrayList<File>(this.files);
+        }
+        final int maxFiles = Math.max(2, FAN_IN - this.buffers.size());
+        while (files.size() > maxFiles) {
+            files = mergeFiles(files);
+        }
+
+        // Setup the final merge of spilled and in-memory runs
+        final List<Run> runs = new ArrayList<Run>();
+        try {
+            for (final File file : files) {
+                runs.add(new FileRun(file));
+            }
+            for (final RunBuffer buffer : this.buffers) {
+                if (buffer.size() > 0) {
+                    runs.add(new MemoryRun(buffer));
+                }
+            }
+        } catch (final Throwable ex) {
+            for (final Run run : runs) {
+                IO.closeQuietly(run);
+            }
+            throw ex;
+        }
+        LOGGER.debug("Merging {} sorted runs ({} spilled)", runs.size(), files.size());
+        return new MergeInputStream(new Merger(runs, this.deduplicate));
+    }
+
+    @Override
+    public void close() {
+        final List<File> files;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            files = new ArrayList<File>(this.files);
+            this.files.clear();
+            this.buffers.clear();
+        }
+        for (final File file : files) {
+            delete(file);
+        }
+    }
+
+    private List<File> mergeFiles(final List<File> files) throws IOException {
+
+        // Merge groups of FAN_IN runs into single, larger runs, in parallel
+        final int numGroups = (files.size() + FAN_IN - 1) / FAN_IN;
+        final File[] result = new File[numGroups];
+        final List<Runnable> runnables = new ArrayList<Runnable>();
+        for (int i = 0; i < numGroups; ++i) {
+            final int index = i;
+            final List<File> group = files.subList(i * FAN_IN,
+                    Math.min(files.size(), (i + 1) * FAN_IN));
+            runnables.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        result[index] = mergeGroup(group);
+                    } catch (final IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+            });
+        }
+        Environment.run(runnables);
+        return Arrays.asList(result);
+    }
+
+    private File mergeGroup(final List<File> group) throws IOException {
+        if (group.size() == 1) {
+            return group.get(0);
+        }
+        final List<Run> runs = new ArrayList<Run>();
+        try {
+            for (final File file : group) {
+                runs.add(new FileRun(file));
+            }
+        } catch (final Throwable ex) {
+            for (final Run run : runs) {
+                IO.closeQuietly(run);
+            }
+            throw ex;
+        }
+        final Merger merger = new Merger(runs, this.deduplicate);
+        final File file = newFile();
+        try (OutputStream out = newFileOutput(file)) {
+            while (merger.next()) {
+                out.write(merger.record(), 0, merger.length());
+            }
+        } finally {
+            merger.close();
+        }
+        for (final File f : group) {
+            delete(f);
+        }
+        return file;
+    }
+
+    private File newFile() throws IOException {
+        final File file = File.createTempFile("rdfpro-sort-", ".run", this.directory);
+        file.deleteOnExit();
+        synchronized (this) {
+            if (this.closed) {
+                file.delete();
+                throw new IOException("Sort engine has been closed");
+            }
+            this.files.add(file);
+        }
+        return file;
+    }
+
+    private void delete(final File file) {
+        synchronized (this) {
+            this.files.remove(file);
+        }
+        if (!file.delete() && file.exists()) {
+            LOGGER.warn("Could not delete sort run file {}", file);
+        }
+    }
+
+    static OutputStream newFileOutput(final File file) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        if (!COMPRESS) {
+            return IO.buffer(out);
+        }
+        return IO.buffer(new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED),
+                IO_BUFFER_SIZE) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    this.def.end();
+                }
+            }
+
+        });
+    }
+
+    static InputStream newFileInput(final File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        if (!COMPRESS) {
+            return IO.buffer(in);
+        }
+        return IO.buffer(new InflaterInputStream(in, new Inflater(), IO_BUFFER_SIZE) {
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    this.inf.end();
+                }
+            }
+
+        });
+    }
+
+    static int compare(final byte[] leftRecord, final byte[] rightRecord) {
+        for (int i = 0;; ++i) {
+            final int l = leftRecord[i] & 0xFF;
+            final int r = rightRecord[i] & 0xFF;
+            if (l != r) {
+                return l - r;
+            } else if (l == 0) {
+                return 0;
+            }
+        }
+    }
+
+    private final class RunBuffer extends OutputStream {
+
+        private ByteBuffer data;
+
+        private int[] starts;
+
+        private int size;
+
+        @Nullable
+        private long[] keys;
+
+        @Nullable
+        private int[] order;
+
+        private int numKeys;
+
+        RunBuffer() {
+            this.data = ByteBuffer.allocateDirect(SortEngine.this.bufferSize);
+            this.starts = new int[1024];
+            this.size = 0;
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (!this.data.hasRemaining()) {
+                makeRoom();
+            }
+            this.data.put((byte) b);
+            if (b == 0) {
+                if (++this.size == this.starts.length) {
+                    this.starts = Arrays.copyOf(this.starts, this.size * 2);
+                }
+                this.starts[this.size] = this.data.position();
+            }
+        }
+
+        @Override
+        public void close() {
+            // records are kept in memory till end() is called
+        }
+
+        private void makeRoom() throws IOException {
+
+            // Record larger than the whole buffer: enlarge it (it should not happen in practice)
+            if (this.size == 0) {
+                final ByteBuffer newData = ByteBuffer.allocateDirect(this.data.capacity() * 2);
+                this.data.flip();
+                newData.put(this.data);
+                this.data = newData;
+                LOGGER.debug("Sort buffer enlarged to {} bytes", newData.capacity());
+                return;
+            }
+
+            // Otherwise sort and spill complete records, moving the partial one at the beginning
+            final int end = this.starts[this.size];
+            sort();
+            spill();
+            final ByteBuffer partial = this.data.duplicate();
+            partial.position(end);
+            this.data.clear();
+            this.data.put(partial);
+            this.size = 0;
+            this.starts[0] = 0;
+        }
+
+        void sort() {
+
+            // Allocate sort arrays, reusing previous ones if large enough
+            final int size = this.size;
+            if (this.keys == null || this.keys.length < size) {
+                this.keys = new long[Math.max(size, this.starts.length)];
+                this.order = new int[this.keys.length];
+            }
+
+            // Sort record indexes into this.order, based on record encoding
+            if (SortEngine.this.keyed) {
+                sortKeyed();
+            } else {
+                sortPrefixed();
+            }
+
+            // Drop duplicate records, if requested
+            final int[] order = this.order;
+            int numKeys = size;
+            if (SortEngine.this.deduplicate && size > 1) {
+                numKeys = 1;
+                for (int i = 1; i < size; ++i) {
+                    final int last = order[numKeys - 1];
+                    final int index = order[i];
+                    if (length(last) != length(index) || compare(last, index, 0) != 0) {
+                        order[numKeys++] = index;
+                    }
+                }
+            }
+            this.numKeys = numKeys;
+        }
+
+        private void sortKeyed() {
+
+            // Decode the 56 bit radix key at the beginning of each record
+            final int size = this.size;
+            final ByteBuffer data = this.data;
+            final long[] keys = this.keys;
+            final int[] order = this.order;
+            for (int i = 0; i < size; ++i) {
+                final int start = this.starts[i];
+                long key = 0L;
+                for (int j = 0; j < KEY_LENGTH; ++j) {
+                    key = key << 7 | data.get(start + j) & 0x7F;
+                }
+                keys[i] = key;
+                order[i] = i;
+            }
+
+            // MSD radix sort on keys, then sort by payload each group of equal keys
+            final long[] auxKeys = new long[size];
+            final int[] auxOrder = new int[size];
+            radixSort(keys, order, auxKeys, auxOrder, 0, size, 48);
+            int lo = 0;
+            while (lo < size) {
+                final long key = keys[lo];
+                int hi = lo + 1;
+                while (hi < size && keys[hi] == key) {
+                    ++hi;
+                }
+                if (hi - lo > 1) {
+                    System.arraycopy(order, lo, auxOrder, lo, hi - lo);
+                    mergeSort(auxOrder, order, lo, hi);
+                }
+                lo = hi;
+            }
+        }
+
+        private void sortPrefixed() {
+
+            // Compute sort keys: first four bytes (sign-flipped) in upper half, index in lower one
+            final int size = this.size;
+            final ByteBuffer data = this.data;
+            final long[] keys = this.keys;
+            for (int i = 0; i < size; ++i) {
+                final int start = this.starts[i];
+                final int end = this.starts[i + 1];
+                int prefix;
+                if (end - start >= 4) {
+                    prefix = data.getInt(start);
+                } else {
+                    prefix = 0;
+                    for (int j = 0; j < 4; ++j) {
+                        prefix = prefix << 8 | (start + j < end ? data.get(start + j) & 0xFF : 0);
+                    }
+                }
+                keys[i] = (long) (prefix ^ 0x80000000) << 32 | i;
+            }
+
+            // Sort on prefixes, then sort by full comparison each group of equal prefixes
+            Arrays.sort(keys, 0, size);
+            long[] aux = null;
+            int lo = 0;
+            while (lo < size) {
+                final long prefix = keys[lo] >>> 32;
+                int hi = lo + 1;
+                while (hi < size && keys[hi] >>> 32 == prefix) {
+                    ++hi;
+                }
+                if (hi - lo > 1 && (prefix & 0xFF) != 0) {
+                    if (aux == null) {
+                        aux = new long[size];
+                    }
+                    System.arraycopy(keys, lo, aux, lo, hi - lo);
+                    mergeSort(aux, keys, lo, hi);
+                }
+                lo = hi;
+            }
+            for (int i = 0; i < size; ++i) {
+                this.order[i] = (int) keys[i];
+            }
+        }
+
+        private void radixSort(final long[] keys, final int[] order, final long[] auxKeys,
+                final int[] auxOrder, final int lo, final int hi, final int shift) {
+
+            // Small ranges are sorted with insertion sort
+            if (hi - lo < RADIX_THRESHOLD) {
+                for (int i = lo + 1; i < hi; ++i) {
+                    final long key = keys[i];
+                    final int index = order[i];
+                    int j = i;
+                    while (j > lo && keys[j - 1] > key) {
+                        keys[j] = keys[j - 1];
+                        order[j] = order[j - 1];
+                        --j;
+                    }
+                    keys[j] = key;
+                    order[j] = index;
+                }
+                return;
+            }
+
+            // Distribute keys in 256 buckets based on current byte, then recurse on each bucket
+            final int[] offsets = new int[257];
+            for (int i = lo; i < hi; ++i) {
+                ++offsets[((int) (keys[i] >>> shift) & 0xFF) + 1];
+            }
+            offsets[0] = lo;
+            for (int b = 1; b <= 256; ++b) {
+                offsets[b] += offsets[b - 1];
+            }
+            final int[] positions = Arrays.copyOf(offsets, 256);
+            for (int i = lo; i < hi; ++i) {
+                final int pos = positions[(int) (keys[i] >>> shift) & 0xFF]++;
+                auxKeys[pos] = keys[i];
+                auxOrder[pos] = order[i];
+            }
+            System.arraycopy(auxKeys, lo, keys, lo, hi - lo);
+            System.arraycopy(auxOrder, lo, order, lo, hi - lo);
+            if (shift > 0) {
+                for (int b = 0; b < 256; ++b) {
+                    if (offsets[b + 1] - offsets[b] > 1) {
+                        radixSort(keys, order, auxKeys, auxOrder, offsets[b], offsets[b + 1],
+                                shift - 8);
+                    }
+                }
+            }
+        }
+
+        private void mergeSort(final int[] src, final int[] dest, final int lo, final int hi) {
+            if (hi - lo < 8) {
+                for (int i = lo + 1; i < hi; ++i) {
+                    final int index = dest[i];
+                    int j = i;
+                    while (j > lo && compare(dest[j - 1], index, KEY_LENGTH) > 0) {
+                        dest[j] = dest[j - 1];
+                        --j;
+                    }
+                    dest[j] = index;
+                }
+                return;
+            }
+            final int mid = lo + hi >>> 1;
+            mergeSort(dest, src, lo, mid);
+            mergeSort(dest, src, mid, hi);
+            int l = lo;
+            int r = mid;
+            for (int i = lo; i < hi; ++i) {
+                if (r >= hi || l < mid && compare(src[l], src[r], KEY_LENGTH) <= 0) {
+                    dest[i] = src[l++];
+                } else {
+                    dest[i] = src[r++];
+                }
+            }
+        }
+
+        private void mergeSort(final long[] src, final long[] dest, final int lo, final int hi) {
+            if (hi - lo < 8) {
+                for (int i = lo + 1; i < hi; ++i) {
+                    final long key = dest[i];
+                    int j = i;
+                    while (j > lo && compare(dest[j - 1], key) > 0) {
+                        dest[j] = dest[j - 1];
+                        --j;
+                    }
+                    dest[j] = key;
+                }
+                return;
+            }
+            final int mid = lo + hi >>> 1;
+            mergeSort(dest, src, lo, mid);
+            mergeSort(dest, src, mid, hi);
+            int l = lo;
+            int r = mid;
+            for (int i = lo; i < hi; ++i) {
+                if (r >= hi || l < mid && compare(src[l], src[r]) <= 0) {
+                    dest[i] = src[l++];
+                } else {
+                    dest[i] = src[r++];
+                }
+            }
+        }
+
+        private int compare(final long leftKey, final long rightKey) {
+            final long prefix = leftKey >>> 32;
+            if (prefix != rightKey >>> 32) {
+                return prefix < rightKey >>> 32 ? -1 : 1;
+            } else if ((prefix & 0xFF) == 0) {
+                return 0; // both records terminate within the prefix
+            }
+            return compare((int) leftKey, (int) rightKey, 4);
+        }
+
+        private int compare(final int leftIndex, final int rightIndex, final int offset) {
+            int l = this.starts[leftIndex] + offset;
+            int r = this.starts[rightIndex] + offset;
+            final ByteBuffer data = this.data;
+            while (true) {
+                final int lb = data.get(l++) & 0xFF;
+                final int rb = data.get(r++) & 0xFF;
+                if (lb != rb) {
+                    return lb - rb;
+                } else if (lb == 0) {
+                    return 0;
+                }
+            }
+        }
+
+        private int length(final int index) {
+            return this.starts[index + 1] - this.starts[index];
+        }
+
+        ByteBuffer view() {
+            return this.data.duplicate();
+        }
+
+        int copy(final int index, final ByteBuffer view, final byte[][] holder) {
+            final int i = this.order[index];
+            final int start = this.starts[i];
+            final int length = this.starts[i + 1] - start;
+            if (holder[0].length < length) {
+                holder[0] = new byte[Math.max(length, holder[0].length * 2)];
+            }
+            view.limit(start + length).position(start);
+            view.get(holder[0], 0, length);
+            return length;
+        }
+
+        private void spill() throws IOException {
+            final long ts = System.currentTimeMillis();
+            final File file = newFile();
+            final byte[][] holder = new byte[][] { new byte[1024] };
+            final ByteBuffer view = view();
+            try (OutputStream out = newFileOutput(file)) {
+                for (int i = 0; i < this.numKeys; ++i) {
+                    final int length = copy(i, view, holder);
+                    out.write(holder[0], 0, length);
+                }
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Spilled {} records to {} ({} bytes, {} ms)", this.numKeys, file,
+                        file.length(), System.currentTimeMillis() - ts);
+            }
+        }
+
+    }
+
+    private static abstract class Run implements AutoCloseable {
+
+        byte[] record = new byte[1024];
+
+        int length;
+
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+    private static final class MemoryRun extends Run {
+
+        private final RunBuffer buffer;
+
+        private final ByteBuffer view;
+
+        private final byte[][] holder;
+
+        private int index;
+
+        MemoryRun(final RunBuffer buffer) {
+            this.buffer = buffer;
+            this.view = buffer.view();
+            this.holder = new byte[1][];
+            this.index = 0;
+        }
+
+        @Override
+        boolean next() {
+            if (this.index >= this.buffer.numKeys) {
+                return false;
+            }
+            this.holder[0] = this.record;
+            this.length = this.buffer.copy(this.index++, this.view, this.holder);
+            this.record = this.holder[0];
+            return true;
+        }
+
+    }
+
+    private final class FileRun extends Run {
+
+        private final File file;
+
+        @Nullable
+        private InputStream in;
+
+        FileRun(final File file) throws IOException {
+            this.file = file;
+            this.in = newFileInput(file);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (this.in == null) {
+                return false;
+            }
+            int length = 0;
+            while (true) {
+                final int b = this.in.read();
+                if (b < 0) {
+                    if (length > 0) {
+                        throw new IOException("Truncated sort run file " + this.file);
+                    }
+                    close();
+                    return false;
+                }
+                if (length == this.record.length) {
+                    this.record = Arrays.copyOf(this.record, length * 2);
+                }
+                this.record[length++] = (byte) b;
+                if (b == 0) {
+                    this.length = length;
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (this.in != null) {
+                IO.closeQuietly(this.in);
+                this.in = null;
+                delete(this.file);
+            }
+        }
+
+    }
+
+    private static final class Merger implements AutoCloseable {
+
+        private final Run[] runs;
+
+        private final boolean deduplicate;
+
+        private final int[] tree; // losers at internal nodes, tree[0] = overall winner
+
+        private boolean started;
+
+        private byte[] last;
+
+        private int lastLength;
+
+        Merger(final List<Run> runs, final boolean deduplicate) {
+            this.runs = runs.toArray(new Run[runs.size()]);
+            this.deduplicate = deduplicate;
+            this.tree = new int[Math.max(1, this.runs.length)];
+            this.started = false;
+            this.last = new byte[1024];
+            this.lastLength = -1;
+        }
+
+        boolean next() throws IOException {
+            if (this.runs.length == 0) {
+                return false;
+            }
+            while (true) {
+                if (!this.started) {
+                    for (int i = 0; i < this.runs.length; ++i) {
+                        if (!this.runs[i].next()) {
+                            this.runs[i].length = -1;
+                        }
+                    }
+                    this.tree[0] = init(1);
+                    this.started = true;
+                } else {
+                    final int winner = this.tree[0];
+                    final Run run = this.runs[winner];
+                    if (!run.next()) {
+                        run.length = -1;
+                    }
+                    replay(winner);
+                }
+                final Run winner = this.runs[this.tree[0]];
+                if (winner.length < 0) {
+                    return false;
+                }
+                if (this.deduplicate) {
+                    if (this.lastLength == winner.length
+                            && SortEngine.compare(this.last, winner.record) == 0) {
+                        continue;
+                    }
+                    if (this.last.length < winner.length) {
+                        this.last = new byte[Math.max(winner.length, this.last.length * 2)];
+                    }
+                    System.arraycopy(winner.record, 0, this.last, 0, winner.length);
+                    this.lastLength = winner.length;
+                }
+                return true;
+            }
+        }
+
+        byte[] record() {
+            return this.runs[this.tree[0]].record;
+        }
+
+        int length() {
+            return this.runs[this.tree[0]].length;
+        }
+
+        @Override
+        public void close() {
+            for (final Run run : this.runs) {
+                IO.closeQuietly(run);
+            }
+        }
+
+        private int init(final int node) {
+            // leaves are virtual nodes numbered from k to 2k - 1 and mapped to run k - node
+            final int k = this.runs.length;
+            if (node >= k) {
+                return node - k;
+            }
+            final int left = init(2 * node);
+            final int right = init(2 * node + 1);
+            if (less(left, right)) {
+                this.tree[node] = right;
+                return left;
+            } else {
+                this.tree[node] = left;
+                return right;
+            }
+        }
+
+        private void replay(final int run) {
+            int winner = run;
+            for (int node = run + this.runs.length >>> 1; node > 0; node >>>= 1) {
+                if (less(this.tree[node], winner)) {
+                    final int loser = winner;
+                    winner = this.tree[node];
+                    this.tree[node] = loser;
+                }
+            }
+            this.tree[0] = winner;
+        }
+
+        private boolean less(final int left, final int right) {
+            final Run l = this.runs[left];
+            final Run r = this.runs[right];
+            if (l.length < 0) {
+                return false;
+            } else if (r.length < 0) {
+                return true;
+            }
+            final int c = SortEngine.compare(l.record, r.record);
+            return c < 0 || c == 0 && left < right;
+        }
+
+    }
+
+    private static final class MergeInputStream extends InputStream {
+
+        private final Merger merger;
+
+        @Nullable
+        private byte[] record;
+
+        private int pos;
+
+        private int count;
+
+        private boolean closed;
+
+        MergeInputStream(final Merger merger) {
+            this.merger = merger;
+            this.record = null;
+            this.pos = 0;
+            this.count = 0;
+            this.closed = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.pos >= this.count && !fill()) {
+                return -1;
+            }
+            return this.record[this.pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buf, int off, final int len) throws IOException {
+            if ((off | len | off + len | buf.length - (off + len)) < 0) {
+                throw new IndexOutOfBoundsException();
+            }
+            final int end = off + len;
+            final int start = off;
+            while (off < end) {
+                if (this.pos >= this.count && !fill()) {
+                    break;
+                }
+                final int n = Math.min(end - off, this.count - this.pos);
+                System.arraycopy(this.record, this.pos, buf, off, n);
+                this.pos += n;
+                off += n;
+            }
+            return off == start && len > 0 ? -1 : off - start;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+            }
+            this.merger.close();
+        }
+
+        private boolean fill() throws IOException {
+            if (this.closed) {
+                throw new IOException("Stream has been closed");
+            }
+            if (!this.merger.next()) {
+                return false;
+            }
+            this.record = this.merger.record();
+            this.count = this.merger.length();
+            this.pos = 0;
+            return true;
+        }
+
+    }
+
+}
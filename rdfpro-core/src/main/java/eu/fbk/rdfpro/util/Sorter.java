@@ -14,7 +14,10 @@
 package eu.fbk.rdfpro.util;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -22,10 +25,16 @@ import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import javax.annotation.Nullable;
 
@@ -44,9 +53,14 @@ public abstract class Sorter<T> implements AutoCloseable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Sorter.class);
 
+    private static final Map<File, Spill> SPILLS = new HashMap<File, Spill>();
+
     @Nullable
     private Dictionary dictionary;
 
+    @Nullable
+    private SortEngine sortEngine;
+
     @Nullable
     private Process sortProcess;
 
@@ -77,6 +91,19 @@ public abstract class Sorter<T> implements AutoCloseable {
     @Nullable
     private Throwable exception;
 
+    @Nullable
+    private Spill spill;
+
+    @Nullable
+    private Spill replayedSpill;
+
+    @Nullable
+    private List<Digest> digests;
+
+    private boolean keyed;
+
+    private boolean deduplicate;
+
     private boolean startable;
 
     public static Sorter<Statement> newStatementSorter(final boolean compress) {
@@ -87,6 +114,10 @@ public abstract class Sorter<T> implements AutoCloseable {
         return new TupleSorter(compress, schema);
     }
 
+    public static Sorter<long[]> newNumberSorter(final int arity) {
+        return new NumberSorter(arity);
+    }
+
     protected Sorter() {
         // No initialization here: done in start()
         this.startable = true;
@@ -104,6 +135,17 @@ public abstract class Sorter<T> implements AutoCloseable {
 
         // Allocate dictionary indexes
         this.dictionary = new Dictionary();
+        this.deduplicate = deduplicate;
+
+        // Select record encoding: plain (lexicographic order) or prefixed by a radix-sortable key
+        final String encoding = Environment.getProperty("rdfpro.sorter.encoding", "text");
+        if ("radix".equalsIgnoreCase(encoding)) {
+            this.keyed = true;
+        } else if ("text".equalsIgnoreCase(encoding)) {
+            this.keyed = false;
+        } else {
+            throw new IllegalArgumentException("Unknown sorter encoding: " + encoding);
+        }
 
         // Setup streams for sending data to sort
         this.outputs = new ArrayList<Output>();
@@ -111,8 +153,13 @@ public abstract class Sorter<T> implements AutoCloseable {
 
             @Override
             protected Output initialValue() {
-                final OutputStream out = IO.parallelBuffer(Sorter.this.sortOut, (byte) 0);
-                final Output output = new Output(out, Sorter.this.dictionary);
+                OutputStream out = Sorter.this.sortEngine != null ? Sorter.this.sortEngine
+                        .newOutput() : IO.parallelBuffer(Sorter.this.sortOut, (byte) 0);
+                if (Sorter.this.digests != null) {
+                    out = newDigest(out); // digest records saved in the spill
+                }
+                final Output output = new Output(out, Sorter.this.dictionary,
+                        Sorter.this.keyed);
                 synchronized (Sorter.this.outputs) {
                     Sorter.this.outputs.add(output);
                 }
@@ -121,6 +168,102 @@ public abstract class Sorter<T> implements AutoCloseable {
 
         };
 
+        // Either sort in the JVM or invoke external sort, based on configuration
+        final String engine = Environment.getProperty("rdfpro.sorter.engine", "process");
+        if ("java".equalsIgnoreCase(engine)) {
+            this.sortEngine = new SortEngine(deduplicate, this.keyed);
+        } else if ("process".equalsIgnoreCase(engine)) {
+            startProcess(deduplicate);
+        } else {
+            throw new IllegalArgumentException("Unknown sorter engine: " + engine);
+        }
+
+        // Initialize and start trackers
+        startTrackers();
+    }
+
+    public boolean replay(final String name) throws IOException {
+
+        // Lookup a complete spill with that name, written by a compatible sorter in this JVM
+        // (spills are not shared across JVMs, as their records refer to an in-memory dictionary)
+        final File directory = spillDirectory(name);
+        final Spill spill;
+        synchronized (SPILLS) {
+            spill = SPILLS.get(directory);
+        }
+        if (spill == null || !spill.signature.equals(signature())) {
+            LOGGER.debug("No reusable sorted spill '{}' in {}", name, directory);
+            return false;
+        }
+
+        // Check state
+        synchronized (this) {
+            if (!this.startable) {
+                throw new IllegalArgumentException();
+            }
+            this.startable = false;
+        }
+
+        // Reuse the dictionary of the sorter that wrote the spill, as records depend on it
+        this.dictionary = spill.dictionary;
+        this.deduplicate = spill.deduplicate;
+        this.keyed = spill.keyed;
+
+        // Encode new elements only to digest them, as sorted records will be read from the spill
+        this.outputs = new ArrayList<Output>();
+        this.digests = new ArrayList<Digest>();
+        this.threadOutput = new ThreadLocal<Output>() {
+
+            @Override
+            protected Output initialValue() {
+                final Output output = new Output(newDigest(null), Sorter.this.dictionary,
+                        Sorter.this.keyed);
+                synchronized (Sorter.this.outputs) {
+                    Sorter.this.outputs.add(output);
+                }
+                return output;
+            }
+
+        };
+        this.replayedSpill = spill;
+        this.sortIn = spill.read();
+
+        // Initialize and start trackers
+        startTrackers();
+        LOGGER.debug("Replaying sorted spill '{}' from {}", name, directory);
+        return true;
+    }
+
+    public void persist(final String name) {
+
+        // Check state: must be called after start() and before end()
+        synchronized (this) {
+            if (this.threadOutput == null || this.spill != null || this.sortEngine == null
+                    && this.sortProcess == null || !this.outputs.isEmpty()) {
+                throw new IllegalStateException();
+            }
+            this.spill = new Spill(spillDirectory(name), signature(), this.dictionary,
+                    this.deduplicate, this.keyed);
+            this.digests = new ArrayList<Digest>();
+        }
+    }
+
+    private void startTrackers() {
+
+        // Initialize trackers
+        this.writeTracker = new Tracker(LOGGER, null, //
+                "%d records to sort (%d rec/s avg)", //
+                "%d records to sort (%d rec/s, %d rec/s avg)");
+        this.readTracker = new Tracker(LOGGER, null, //
+                "%d records from sort (%d rec/s avg)", //
+                "%d records from sort (%d rec/s, %d rec/s avg)");
+
+        // Start write tracker
+        this.writeTracker.start();
+    }
+
+    private void startProcess(final boolean deduplicate) throws IOException {
+
         // Invoke sort
         final List<String> command = new ArrayList<String>(Arrays.asList(Environment.getProperty(
                 "rdfpro.cmd.sort", "sort").split("\\s+")));
@@ -156,17 +299,6 @@ public abstract class Sorter<T> implements AutoCloseable {
             }
 
         });
-
-        // Initialize trackers
-        this.writeTracker = new Tracker(LOGGER, null, //
-                "%d records to sort (%d rec/s avg)", //
-                "%d records to sort (%d rec/s, %d rec/s avg)");
-        this.readTracker = new Tracker(LOGGER, null, //
-                "%d records from sort (%d rec/s avg)", //
-                "%d records from sort (%d rec/s, %d rec/s avg)");
-
-        // Start write tracker
-        this.writeTracker.start();
     }
 
     public void emit(final T element) throws IOException {
@@ -183,28 +315,9 @@ public abstract class Sorter<T> implements AutoCloseable {
 
     public void end(final boolean parallelize, final Consumer<T> consumer) throws IOException {
 
-        // Check state and invalidate thread local to reject further elements
-        synchronized (this) {
-            if (this.threadOutput == null) {
-                throw new IllegalStateException();
-            }
-            this.threadOutput = null;
-            this.writeTracker.end();
-        }
-
-        // Log dictionary status
-        LOGGER.debug("Dictionary status:\n{}", this.dictionary);
-
         try {
             // Complete data sending to sort
-            try {
-                for (final Output output : this.outputs) {
-                    output.close();
-                }
-                this.outputs.clear();
-            } finally {
-                this.sortOut.close();
-            }
+            endWrite();
 
             // Consume sort output, possibly using multiple decode threads
             final int decoders = parallelize ? Environment.getCores() : 1;
@@ -217,7 +330,7 @@ public abstract class Sorter<T> implements AutoCloseable {
             // } else {
             for (int i = 0; i < decoders; ++i) {
                 final InputStream in = IO.parallelBuffer(this.sortIn, (byte) 0);
-                this.inputs.add(new Input(in, this.dictionary));
+                this.inputs.add(new Input(in, this.dictionary, this.keyed));
             }
             for (int i = 1; i < decoders; ++i) {
                 final Input input = this.inputs.get(i);
@@ -239,26 +352,288 @@ public abstract class Sorter<T> implements AutoCloseable {
             this.exception = ex;
 
         } finally {
-            // Close streams and propagate exception, if any
-            IO.closeQuietly(this.sortIn);
-            if (this.inputs != null) {
-                for (final Input input : this.inputs) {
-                    input.close();
+            endRead();
+        }
+    }
+
+    public void endGrouped(final Supplier<? extends Consumer<T>> consumerFactory)
+            throws IOException {
+
+        // Decode sequentially if keys are not available or there is a single core
+        final int decoders = Environment.getCores();
+        if (decoders == 1 || !hasKeys()) {
+            LOGGER.debug("Decoding sorted records sequentially ({} cores, keys: {})", decoders,
+                    hasKeys());
+            end(false, consumerFactory.get());
+            return;
+        }
+
+        try {
+            // Complete data sending to sort
+            endWrite();
+
+            // Allocate the consumers in the calling thread, one per decoder
+            final List<Consumer<T>> consumers = new ArrayList<Consumer<T>>();
+            for (int i = 0; i < decoders; ++i) {
+                consumers.add(consumerFactory.get());
+            }
+
+            // Start decoders, each one consuming whole chunks of records
+            final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(2 * decoders);
+            this.decodersLatch = new CountDownLatch(decoders);
+            this.readTracker.start();
+            for (int i = 0; i < decoders; ++i) {
+                final Consumer<T> consumer = consumers.get(i);
+                Environment.getPool().execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        tryDecode(queue, consumer);
+                    }
+
+                });
+            }
+
+            // Split sort output in chunks at key boundaries, so that groups are never split
+            try {
+                split(IO.buffer(this.sortIn), queue);
+            } finally {
+                offer(queue, EOF);
+            }
+            this.decodersLatch.await();
+            this.readTracker.end();
+
+        } catch (final Throwable ex) {
+            if (this.exception == null) {
+                this.exception = ex;
+            }
+
+        } finally {
+            endRead();
+        }
+    }
+
+    private void endWrite() throws IOException {
+
+        // Check state and invalidate thread local to reject further elements
+        synchronized (this) {
+            if (this.threadOutput == null) {
+                throw new IllegalStateException();
+            }
+            this.threadOutput = null;
+            this.writeTracker.end();
+        }
+
+        // Log dictionary status
+        LOGGER.debug("Dictionary status:\n{}", this.dictionary);
+
+        // Complete data sending to sort
+        try {
+            for (final Output output : this.outputs) {
+                output.close();
+            }
+            this.outputs.clear();
+        } finally {
+            if (this.sortOut != null) {
+                this.sortOut.close();
+            }
+        }
+
+        // Save the digest of spilled elements, or check that replayed elements match it
+        if (this.digests != null) {
+            final long[] digest = Digest.combine(this.digests);
+            if (this.spill != null) {
+                this.spill.digest = digest;
+            } else if (!Arrays.equals(digest, this.replayedSpill.digest)) {
+                throw new IllegalStateException("The " + digest[0] + " elements emitted while "
+                        + "replaying spill " + this.replayedSpill.directory + " differ from the "
+                        + this.replayedSpill.digest[0] + " elements it was sorted from");
+            }
+        }
+
+        // Obtain the merged stream of sorted records, in case of in-JVM sorting
+        if (this.sortEngine != null) {
+            this.sortIn = this.sortEngine.end();
+        }
+
+        // Save sorted records while they are consumed, if asked to
+        if (this.spill != null) {
+            this.sortIn = this.spill.write(this.sortIn);
+        }
+    }
+
+    private void endRead() throws IOException {
+
+        // Close streams and propagate exception, if any
+        IO.closeQuietly(this.sortIn);
+        if (this.inputs != null) {
+            for (final Input input : this.inputs) {
+                input.close();
+            }
+        }
+        if (this.exception != null) {
+            if (this.exception instanceof IOException) {
+                throw (IOException) this.exception;
+            } else if (this.exception instanceof RuntimeException) {
+                throw (RuntimeException) this.exception;
+            } else if (this.exception instanceof Error) {
+                throw (Error) this.exception;
+            }
+            throw new RuntimeException(this.exception);
+        }
+    }
+
+    private void split(final InputStream in, final BlockingQueue<Object> queue)
+            throws IOException, InterruptedException {
+
+        byte[] chunk = new byte[2 * CHUNK_SIZE];
+        int length = 0; // bytes in chunk
+        int scanned = 0; // bytes already checked for record terminators
+        int recordStart = 0; // start of record being read
+        int lastStart = -1; // start of last complete record in chunk
+        int lastKeyLength = -1;
+
+        while (true) {
+
+            // Read more bytes, enlarging the chunk if full (records should be small, though)
+            if (length == chunk.length) {
+                chunk = Arrays.copyOf(chunk, chunk.length * 2);
+            }
+            final int n = in.read(chunk, length, chunk.length - length);
+            if (n < 0) {
+                break;
+            }
+            length += n;
+
+            // Process complete records, cutting the chunk before a record starting a new group
+            for (; scanned < length; ++scanned) {
+                if (chunk[scanned] != 0) {
+                    continue;
+                }
+                final int keyLength = keyLength(chunk, recordStart);
+                if (recordStart >= CHUNK_SIZE && lastStart >= 0 && keyLength >= 0
+                        && (keyLength != lastKeyLength || !equals(chunk, lastStart, chunk,
+                                recordStart, keyLength))) {
+                    offer(queue, new ByteArrayInputStream(chunk, 0, recordStart));
+                    final byte[] newChunk = new byte[Math.max(2 * CHUNK_SIZE, chunk.length)];
+                    System.arraycopy(chunk, recordStart, newChunk, 0, length - recordStart);
+                    length -= recordStart;
+                    scanned -= recordStart;
+                    chunk = newChunk;
+                    recordStart = 0;
                 }
+                lastStart = recordStart;
+                lastKeyLength = keyLength;
+                recordStart = scanned + 1;
             }
+        }
+
+        // Emit last chunk
+        if (length > 0) {
+            offer(queue, new ByteArrayInputStream(chunk, 0, length));
+        }
+    }
+
+    private void offer(final BlockingQueue<Object> queue, final Object element)
+            throws InterruptedException {
+        while (!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
             if (this.exception != null) {
-                if (this.exception instanceof IOException) {
-                    throw (IOException) this.exception;
-                } else if (this.exception instanceof RuntimeException) {
-                    throw (RuntimeException) this.exception;
-                } else if (this.exception instanceof Error) {
-                    throw (Error) this.exception;
+                throw new IllegalStateException("Decoding aborted", this.exception);
+            }
+        }
+    }
+
+    private void tryDecode(final BlockingQueue<Object> queue, final Consumer<T> consumer) {
+        try {
+            while (true) {
+                final Object chunk = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (this.exception != null) {
+                    break;
+                } else if (chunk == EOF) {
+                    queue.put(EOF); // let other decoders see it
+                    break;
+                } else if (chunk != null) {
+                    final Input input = new Input((InputStream) chunk, this.dictionary,
+                            this.keyed);
+                    while (input.nextRecord()) {
+                        final T element = decode(input);
+                        consumer.accept(element);
+                        this.readTracker.increment();
+                    }
                 }
-                throw new RuntimeException(this.exception);
             }
+        } catch (final Throwable ex) {
+            if (this.exception == null) {
+                this.exception = ex;
+            }
+        } finally {
+            this.decodersLatch.countDown();
         }
     }
 
+    private static boolean equals(final byte[] leftBuffer, final int leftOffset,
+            final byte[] rightBuffer, final int rightOffset, final int length) {
+        for (int i = 0; i < length; ++i) {
+            if (leftBuffer[leftOffset + i] != rightBuffer[rightOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String signature() {
+        return getClass().getName();
+    }
+
+    boolean hasKeys() {
+        return this.keyed;
+    }
+
+    int keyLength(final byte[] buffer, final int offset) {
+        return this.keyed ? KEY_LENGTH : -1;
+    }
+
+    // Byte-level skipping of encoded fields, for locating keys without decoding them; each
+    // method returns the offset following the skipped field
+
+    static int skipStatement(final byte[] buffer, final int offset) {
+        if (buffer[offset] == 1) {
+            return offset + 1; // null statement
+        }
+        int o = offset;
+        for (int i = 0; i < 4; ++i) {
+            o = skipValue(buffer, o);
+        }
+        return o;
+    }
+
+    static int skipValue(final byte[] buffer, final int offset) {
+        final int o = skipString(buffer, offset);
+        final int delim = buffer[o - 1];
+        if (delim == 3) {
+            return skipString(buffer, o);
+        } else if (delim == 4 || delim == 5 || delim == 7) {
+            return skipNumber(buffer, o);
+        }
+        return o;
+    }
+
+    static int skipString(final byte[] buffer, final int offset) {
+        int o = offset;
+        while ((buffer[o] & 0xFF) > 0x07) {
+            ++o;
+        }
+        return o + 1;
+    }
+
+    static int skipNumber(final byte[] buffer, final int offset) {
+        final int b = buffer[offset] & 0xFF;
+        final int len = b <= 0x7F ? 1 : b <= 0xBF ? 2 : b <= 0xCF ? 3 : b <= 0xDF ? 4
+                : b <= 0xEF ? 5 : b <= 0xF3 ? 6 : b <= 0xF7 ? 7 : b <= 0xFB ? 8 : b <= 0xFD ? 9
+                        : 10;
+        return offset + len;
+    }
+
     private void tryDecode(final Input input, final Consumer<T> consumer) {
         try {
             while (input.nextRecord()) {
@@ -287,6 +662,11 @@ public abstract class Sorter<T> implements AutoCloseable {
                 this.sortProcess.destroy();
             }
 
+            // Release sort buffers and delete run files, if sorting in the JVM
+            if (this.sortEngine != null) {
+                this.sortEngine.close();
+            }
+
         } catch (final Throwable ex) {
             LOGGER.error("Exception caught while killing sort process", ex);
 
@@ -294,9 +674,13 @@ public abstract class Sorter<T> implements AutoCloseable {
             // Mark as non startable and release everything
             this.startable = false;
             this.dictionary = null;
+            this.sortEngine = null;
             this.sortProcess = null;
             this.sortOut = null;
             this.sortIn = null;
+            this.spill = null;
+            this.replayedSpill = null;
+            this.digests = null;
             this.outputs = null;
             this.threadOutput = null;
             this.inputs = null;
@@ -325,6 +709,17 @@ public abstract class Sorter<T> implements AutoCloseable {
     // 10 6 7 -- 13 = 0x1FFF
     // 11 6 7 7 -- 20
 
+    // Keyed records are buffered and emitted as: 8 byte key (7 hash bits per byte, high bit set),
+    // record bytes, 0 terminator. The key is a 56 bit hash of the record bytes written before
+    // endKey() (or of all the record bytes if endKey() is not called), so that records sharing the
+    // same key are kept adjacent by sorting while the key itself can be radix sorted
+
+    static final int KEY_LENGTH = 8;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private static final Object EOF = new Object();
+
     public static final class Output {
 
         private final OutputStream out;
@@ -333,13 +728,39 @@ public abstract class Sorter<T> implements AutoCloseable {
 
         private final int[] remaining;
 
-        Output(final OutputStream out, final Dictionary dictionary) {
+        @Nullable
+        private byte[] record;
+
+        private int recordLength;
+
+        private int keyLength;
+
+        Output(final OutputStream out, final Dictionary dictionary, final boolean keyed) {
             this.out = out;
             this.dictionary = dictionary;
             this.remaining = new int[] { -1 };
+            this.record = keyed ? new byte[256] : null;
+            this.recordLength = 0;
+            this.keyLength = -1;
         }
 
         void endRecord() throws IOException {
+            if (this.record != null) {
+                final int keyLength = this.keyLength >= 0 ? this.keyLength : this.recordLength;
+                long hash = 0xcbf29ce484222325L;
+                for (int i = 0; i < keyLength; ++i) {
+                    hash = (hash ^ this.record[i]) * 0x100000001b3L;
+                }
+                hash ^= hash >>> 33;
+                hash *= 0xff51afd7ed558ccdL;
+                hash ^= hash >>> 33;
+                for (int i = KEY_LENGTH - 1; i >= 0; --i) {
+                    this.out.write(0x80 | (int) (hash >>> i * 7) & 0x7F);
+                }
+                this.out.write(this.record, 0, this.recordLength);
+                this.recordLength = 0;
+                this.keyLength = -1;
+            }
             this.out.write(0);
         }
 
@@ -347,6 +768,12 @@ public abstract class Sorter<T> implements AutoCloseable {
             this.out.close();
         }
 
+        public final void endKey() {
+            if (this.keyLength < 0) {
+                this.keyLength = this.recordLength;
+            }
+        }
+
         public final void writeStatement(@Nullable final Statement statement,
                 final boolean compress) throws IOException {
             if (statement == null) {
@@ -458,7 +885,7 @@ public abstract class Sorter<T> implements AutoCloseable {
             for (int i = offset; i < len; ++i) {
                 int c = s.charAt(i);
                 if (c <= 0x07) {
-                    c += 0xFFFF;
+                    c += 0x10000; // escape delimiters, decoded back by subtracting 0x10000
                 }
                 if (c <= 0x7F) {
                     write(c);
@@ -484,7 +911,14 @@ public abstract class Sorter<T> implements AutoCloseable {
 
         private void write(final int b) throws IOException {
             assert (b & 0xFF) != 0;
-            this.out.write(b);
+            if (this.record == null) {
+                this.out.write(b);
+            } else {
+                if (this.recordLength == this.record.length) {
+                    this.record = Arrays.copyOf(this.record, this.recordLength * 2);
+                }
+                this.record[this.recordLength++] = (byte) b;
+            }
         }
 
     }
@@ -497,12 +931,15 @@ public abstract class Sorter<T> implements AutoCloseable {
 
         private final StringBuilder builder;
 
+        private final boolean keyed;
+
         private int c;
 
-        Input(final InputStream in, final Dictionary dictionary) {
+        Input(final InputStream in, final Dictionary dictionary, final boolean keyed) {
             this.in = in;
             this.dictionary = dictionary;
             this.builder = new StringBuilder();
+            this.keyed = keyed;
             this.c = 0;
         }
 
@@ -521,6 +958,11 @@ public abstract class Sorter<T> implements AutoCloseable {
             if (this.c == 0) {
                 throw new Error("Empty record!");
             }
+            if (this.keyed) {
+                for (int i = 0; i < KEY_LENGTH; ++i) {
+                    read(); // skip key
+                }
+            }
             return true;
         }
 
@@ -638,7 +1080,7 @@ public abstract class Sorter<T> implements AutoCloseable {
                     final int c2 = read();
                     int n = (c & 0x3F) << 14 | (c1 & 0x7F) << 7 | c2 & 0x7F;
                     if (n > 0xFFFF) {
-                        n = n - 0xFFFF;
+                        n = n - 0x10000;
                     }
                     this.builder.append((char) n);
                 }
@@ -673,6 +1115,11 @@ public abstract class Sorter<T> implements AutoCloseable {
             this.compress = compress;
         }
 
+        @Override
+        String signature() {
+            return super.signature() + (this.compress ? ":compress" : "");
+        }
+
         @Override
         protected void encode(final Output output, final Statement record) throws IOException {
             output.writeStatement(record, this.compress);
@@ -721,6 +1168,9 @@ public abstract class Sorter<T> implements AutoCloseable {
         @Override
         protected void encode(final Output output, final Object[] record) throws IOException {
             for (int i = 0; i < this.schema.length; ++i) {
+                if (i == 1) {
+                    output.endKey(); // records sharing first field kept adjacent with any encoding
+                }
                 final Object field = record[i];
                 final int type = this.schema[i];
                 switch (type) {
@@ -742,6 +1192,37 @@ public abstract class Sorter<T> implements AutoCloseable {
             }
         }
 
+        @Override
+        String signature() {
+            return super.signature() + (this.compress ? ":compress:" : ":")
+                    + Arrays.toString(this.schema);
+        }
+
+        @Override
+        boolean hasKeys() {
+            return true;
+        }
+
+        @Override
+        int keyLength(final byte[] buffer, final int offset) {
+            if (super.hasKeys()) {
+                return super.keyLength(buffer, offset);
+            }
+            final int type = this.schema[0];
+            switch (type) {
+            case TYPE_STATEMENT:
+                return skipStatement(buffer, offset) - offset;
+            case TYPE_VALUE:
+                return skipValue(buffer, offset) - offset;
+            case TYPE_STRING:
+                return skipString(buffer, offset) - offset;
+            case TYPE_NUMBER:
+                return skipNumber(buffer, offset) - offset;
+            default:
+                throw new Error("Unexpected type " + type);
+            }
+        }
+
         @Override
         protected Object[] decode(final Input input) throws IOException {
             final Object[] record = new Object[this.schema.length];
@@ -769,7 +1250,318 @@ public abstract class Sorter<T> implements AutoCloseable {
 
     }
 
-    private static final class Dictionary {
+    // Tuples of numbers (e.g., unsigned dictionary codes) grouped by their first number, which
+    // need no value encoding and are decoded without boxing
+
+    private static final class NumberSorter extends Sorter<long[]> {
+
+        private final int arity;
+
+        NumberSorter(final int arity) {
+            if (arity <= 0) {
+                throw new IllegalArgumentException("Invalid arity " + arity);
+            }
+            this.arity = arity;
+        }
+
+        @Override
+        protected void encode(final Output output, final long[] record) throws IOException {
+            for (int i = 0; i < this.arity; ++i) {
+                if (i == 1) {
+                    output.endKey(); // records sharing first number kept adjacent
+                }
+                output.writeNumber(record[i]);
+            }
+        }
+
+        @Override
+        String signature() {
+            return super.signature() + ":" + this.arity;
+        }
+
+        @Override
+        boolean hasKeys() {
+            return true;
+        }
+
+        @Override
+        int keyLength(final byte[] buffer, final int offset) {
+            if (super.hasKeys()) {
+                return super.keyLength(buffer, offset);
+            }
+            return skipNumber(buffer, offset) - offset;
+        }
+
+        @Override
+        protected long[] decode(final Input input) throws IOException {
+            final long[] record = new long[this.arity];
+            for (int i = 0; i < this.arity; ++i) {
+                record[i] = input.readNumber();
+            }
+            return record;
+        }
+
+    }
+
+    // A spill is a directory holding the sorted records of a sorter, saved while they are read by
+    // end() and registered in SPILLS only once all the records have been saved. Records refer to
+    // the dictionary of the sorter, which lives in memory: spills can thus be replayed only in
+    // the JVM that wrote them, and their files are deleted by discard() or at the latest on exit.
+    // Elements emitted while replaying are still encoded and digested, and replay fails in end()
+    // if their digest differs from the one of the elements the spill was sorted from
+
+    private static final class Spill {
+
+        private static final String RUN = "run-0";
+
+        final File directory;
+
+        final String signature;
+
+        final Dictionary dictionary;
+
+        final boolean deduplicate;
+
+        final boolean keyed;
+
+        volatile long[] digest; // digest of the elements emitted to build the spill
+
+        Spill(final File directory, final String signature, final Dictionary dictionary,
+                final boolean deduplicate, final boolean keyed) {
+            this.directory = directory;
+            this.signature = signature;
+            this.dictionary = dictionary;
+            this.deduplicate = deduplicate;
+            this.keyed = keyed;
+        }
+
+        InputStream read() throws IOException {
+            return SortEngine.newFileInput(new File(this.directory, RUN));
+        }
+
+        void delete() {
+            new File(this.directory, RUN).delete();
+            this.directory.delete(); // fails silently if other files were put there
+        }
+
+        InputStream write(final InputStream in) throws IOException {
+
+            // Invalidate a previous spill in the same directory, as it is going to be overwritten
+            synchronized (SPILLS) {
+                SPILLS.remove(this.directory);
+            }
+            final File run = new File(this.directory, RUN);
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IOException("Cannot create spill directory " + this.directory);
+            }
+            this.directory.deleteOnExit(); // files registered after are deleted before
+            run.deleteOnExit();
+
+            // Copy records to the run file as they are read, completing the spill on EOF
+            final OutputStream out = SortEngine.newFileOutput(run);
+            return new FilterInputStream(in) {
+
+                private long records = 0L;
+
+                private long bytes = 0L;
+
+                private boolean done = false;
+
+                @Override
+                public int read() throws IOException {
+                    final int b = super.read();
+                    if (b < 0) {
+                        complete();
+                    } else {
+                        save(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(final byte[] buf, final int off, final int len)
+                        throws IOException {
+                    final int n = super.read(buf, off, len);
+                    if (n < 0) {
+                        complete();
+                    } else {
+                        out.write(buf, off, n);
+                        for (int i = off; i < off + n; ++i) {
+                            if (buf[i] == 0) {
+                                ++this.records;
+                            }
+                        }
+                        this.bytes += n;
+                    }
+                    return n;
+                }
+
+                @Override
+                public long skip(final long n) throws IOException {
+                    long skipped = 0;
+                    while (skipped < n && read() >= 0) {
+                        ++skipped;
+                    }
+                    return skipped;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        IO.closeQuietly(out); // no-op if complete() was called
+                    }
+                }
+
+                private void save(final int b) throws IOException {
+                    out.write(b);
+                    if (b == 0) {
+                        ++this.records;
+                    }
+                    ++this.bytes;
+                }
+
+                private void complete() throws IOException {
+                    if (!this.done) {
+                        this.done = true;
+                        out.close();
+                        synchronized (SPILLS) {
+                            SPILLS.put(Spill.this.directory, Spill.this);
+                        }
+                        LOGGER.debug("Sorted spill completed in {}: {} records, {} bytes",
+                                Spill.this.directory, this.records, this.bytes);
+                    }
+                }
+
+            };
+        }
+
+    }
+
+    public static void discard(final String name) {
+
+        // Unregister the spill, if any, and delete its files, so that its dictionary and disk
+        // space are released; a replay of an open input stream is unaffected on Unix
+        final File directory = spillDirectory(name);
+        final Spill spill;
+        synchronized (SPILLS) {
+            spill = SPILLS.remove(directory);
+        }
+        if (spill != null) {
+            spill.delete();
+            LOGGER.debug("Sorted spill discarded in {}", directory);
+        }
+    }
+
+    private Digest newDigest(@Nullable final OutputStream out) {
+        final Digest digest = new Digest(out);
+        synchronized (this.digests) {
+            this.digests.add(digest);
+        }
+        return digest;
+    }
+
+    // A digest of the records written through it, which are possibly forwarded to another stream.
+    // Each record is hashed with two 64 bit FNV-1a variants, and hashes are summed so that the
+    // digest does not depend on the order and the threads records are emitted with
+
+    private static final class Digest extends OutputStream {
+
+        private static final long SEED1 = 0xcbf29ce484222325L;
+
+        private static final long SEED2 = 0x84222325cbf29ce4L;
+
+        @Nullable
+        private final OutputStream out;
+
+        private long hash1;
+
+        private long hash2;
+
+        private long records;
+
+        private long sum1;
+
+        private long sum2;
+
+        Digest(@Nullable final OutputStream out) {
+            this.out = out;
+            this.hash1 = SEED1;
+            this.hash2 = SEED2;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            if (this.out != null) {
+                this.out.write(b);
+            }
+            update(b & 0xFF);
+        }
+
+        @Override
+        public void write(final byte[] buf, final int off, final int len) throws IOException {
+            if (this.out != null) {
+                this.out.write(buf, off, len);
+            }
+            for (int i = off; i < off + len; ++i) {
+                update(buf[i] & 0xFF);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.out != null) {
+                this.out.close();
+            }
+        }
+
+        private void update(final int b) {
+            if (b != 0) {
+                this.hash1 = (this.hash1 ^ b) * 0x100000001b3L;
+                this.hash2 = (this.hash2 + b) * 0x9e3779b97f4a7c15L;
+            } else {
+                this.sum1 += mix(this.hash1);
+                this.sum2 += mix(this.hash2);
+                ++this.records;
+                this.hash1 = SEED1;
+                this.hash2 = SEED2;
+            }
+        }
+
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+
+        static long[] combine(final Iterable<Digest> digests) {
+            final long[] result = new long[3]; // number of records and sums of hashes
+            for (final Digest digest : digests) {
+                result[0] += digest.records;
+                result[1] += digest.sum1;
+                result[2] += digest.sum2;
+            }
+            return result;
+        }
+
+    }
+
+    private static File spillDirectory(final String name) {
+        final File root = new File(Environment.getProperty("rdfpro.sorter.spilldir",
+                System.getProperty("java.io.tmpdir") + File.separator + "rdfpro-spill"));
+        return new File(root, name).getAbsoluteFile();
+    }
+
+    static final class Dictionary {
 
         private static final int LANGUAGE_INDEX_SIZE = 1024;
 
@@ -0,0 +1,263 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ * 
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ * 
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ * 
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.fbk.rdfpro.AbstractRDFHandlerWrapper;
+
+/**
+ * A disk-backed, append-then-replay store of statements.
+ * <p>
+ * A {@code StatementCache} records the statements flowing through the handler returned by
+ * {@link #record(RDFHandler)} in a compact binary form (the same dictionary-compressed record
+ * encoding used by {@link Sorter}), so that they can be later replayed via
+ * {@link #replay(RDFHandler, boolean)} without re-parsing or re-downloading the original data.
+ * Each recording thread writes its own part file, so recording does not require
+ * synchronization and replay can be performed in parallel, one thread per part. Replaying
+ * closes the recording phase: statements can no more be recorded afterwards. Files are deleted
+ * when the cache is closed.
+ * </p>
+ */
+public final class StatementCache implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+    private final File directory;
+
+    private final Sorter.Dictionary dictionary;
+
+    private final List<File> files;
+
+    private final List<Sorter.Output> outputs;
+
+    private final ThreadLocal<Sorter.Output> threadOutput;
+
+    private final AtomicLong counter;
+
+    private boolean sealed;
+
+    private boolean closed;
+
+    /**
+     * Creates a new {@code StatementCache} storing its data in a fresh sub-directory of the
+     * directory specified.
+     *
+     * @param directory
+     *            the parent directory where to store cache files, created if missing
+     * @throws IOException
+     *             on failure
+     */
+    public StatementCache(final File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        this.directory = Files.createTempDirectory(directory.toPath(), "rdfpro-cache-").toFile();
+        this.directory.deleteOnExit();
+        this.dictionary = new Sorter.Dictionary();
+        this.files = new ArrayList<File>();
+        this.outputs = new ArrayList<Sorter.Output>();
+        this.counter = new AtomicLong(0L);
+        this.sealed = false;
+        this.closed = false;
+        this.threadOutput = new ThreadLocal<Sorter.Output>() {
+
+            @Override
+            protected Sorter.Output initialValue() {
+                return newOutput();
+            }
+
+        };
+    }
+
+    /**
+     * Returns a handler that records statements in the cache and forwards all the notifications
+     * to the handler specified. The returned handler can be invoked concurrently.
+     *
+     * @param handler
+     *            the handler to forward notifications to
+     * @return the recording handler
+     */
+    public RDFHandler record(final RDFHandler handler) {
+        Objects.requireNonNull(handler);
+        return new AbstractRDFHandlerWrapper(handler) {
+
+            @Override
+            public void handleStatement(final Statement statement) throws RDFHandlerException {
+                final Sorter.Output output = StatementCache.this.threadOutput.get();
+                try {
+                    output.writeStatement(statement, true);
+                    output.endRecord();
+                } catch (final IOException ex) {
+                    throw new RDFHandlerException(ex);
+                }
+                StatementCache.this.counter.incrementAndGet();
+                super.handleStatement(statement);
+            }
+
+        };
+    }
+
+    /**
+     * Replays all the recorded statements, feeding them to the handler specified. Only
+     * {@code handleStatement()} is called on the handler. Statements are emitted in no
+     * particular order; if {@code parallel} is true, multiple threads may be used to decode and
+     * emit them, in which case the handler must be thread-safe.
+     *
+     * @param handler
+     *            the handler to feed statements to
+     * @param parallel
+     *            true if statements can be emitted concurrently by multiple threads
+     * @throws RDFHandlerException
+     *             on failure
+     */
+    public void replay(final RDFHandler handler, final boolean parallel)
+            throws RDFHandlerException {
+
+        Objects.requireNonNull(handler);
+
+        final List<File> files;
+        synchronized (this) {
+            if (this.closed) {
+                throw new IllegalStateException("Cache closed");
+            }
+            if (!this.sealed) {
+                this.sealed = true;
+                try {
+                    for (final Sorter.Output output : this.outputs) {
+                        output.close();
+                    }
+                } catch (final IOException ex) {
+                    throw new RDFHandlerException(ex);
+                }
+                LOGGER.debug("{} statements cached in {} part(s) under {}", this.counter.get(),
+                        this.files.size(), this.directory);
+            }
+            files = new ArrayList<File>(this.files);
+        }
+
+        final List<Runnable> runnables = new ArrayList<Runnable>();
+        for (final File file : files) {
+            runnables.add(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        replay(file, handler);
+                    } catch (final IOException | RDFHandlerException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+
+            });
+        }
+
+        try {
+            if (parallel) {
+                Environment.run(runnables);
+            } else {
+                for (final Runnable runnable : runnables) {
+                    runnable.run();
+                }
+            }
+        } catch (final RuntimeException ex) {
+            if (ex.getCause() instanceof RDFHandlerException) {
+                throw (RDFHandlerException) ex.getCause();
+            } else if (ex.getCause() instanceof IOException) {
+                throw new RDFHandlerException(ex.getCause());
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the number of statements recorded so far.
+     *
+     * @return the number of recorded statements
+     */
+    public long size() {
+        return this.counter.get();
+    }
+
+    /**
+     * Closes the cache, deleting all its files. Calling this method multiple times has no
+     * effect.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            if (!this.sealed) {
+                for (final Sorter.Output output : this.outputs) {
+                    try {
+                        output.close();
+                    } catch (final Throwable ex) {
+                        // ignore
+                    }
+                }
+            }
+            for (final File file : this.files) {
+                if (!file.delete() && file.exists()) {
+                    LOGGER.warn("Could not delete cache file {}", file);
+                }
+            }
+            this.directory.delete();
+        }
+    }
+
+    private synchronized Sorter.Output newOutput() {
+        if (this.sealed || this.closed) {
+            throw new IllegalStateException("Cannot record after replay or close");
+        }
+        final File file = new File(this.directory, "part-" + this.files.size());
+        file.deleteOnExit();
+        try {
+            final Sorter.Output output = new Sorter.Output(SortEngine.newFileOutput(file),
+                    this.dictionary, false);
+            this.files.add(file);
+            this.outputs.add(output);
+            return output;
+        } catch (final IOException ex) {
+            throw new RuntimeException("Cannot create cache file " + file, ex);
+        }
+    }
+
+    private void replay(final File file, final RDFHandler handler) throws IOException,
+            RDFHandlerException {
+        final Sorter.Input input = new Sorter.Input(SortEngine.newFileInput(file),
+                this.dictionary, false);
+        try {
+            while (input.nextRecord()) {
+                handler.handleStatement(input.readStatement());
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -13,6 +13,10 @@
  */
 package eu.fbk.rdfpro.util;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
 import javax.annotation.Nullable;
 
 import com.google.common.base.Preconditions;
@@ -69,6 +73,15 @@ public abstract class StatementDeduplicator {
         }
     }
 
+    public static StatementDeduplicator newApproximateDeduplicator(final double falseDropRate,
+            final long memoryBudget) {
+
+        Preconditions.checkArgument(falseDropRate > 0.0 && falseDropRate < 1.0);
+        Preconditions.checkArgument(memoryBudget > 0);
+
+        return new ApproximateDeduplicator(falseDropRate, memoryBudget);
+    }
+
     public static StatementDeduplicator newChainedDeduplicator(
             final StatementDeduplicator... deduplicators) {
 
@@ -118,6 +131,11 @@ public abstract class StatementDeduplicator {
         };
     }
 
+    @Override
+    public String toString() {
+        return getClass().getSimpleName();
+    }
+
     abstract boolean total();
 
     abstract boolean process(Resource subj, URI pred, Value obj, @Nullable Resource ctx,
@@ -164,13 +182,27 @@ public abstract class StatementDeduplicator {
 
     private static final class TotalHashDeduplicator extends StatementDeduplicator {
 
-        private final Table[] tables;
+        // Hashes are partitioned in independently locked and resized segments, selected by the
+        // low bits of the hash high word (table slots are chosen based on the low word). Each
+        // segment stores (lo, hi) pairs in a long[] using open addressing; the number of
+        // segments scales with the number of cores, keeping lock contention low. Contended
+        // lock acquisitions are counted and reported by toString().
+
+        private final Segment[] segments;
+
+        private final int segmentMask;
+
+        private final LongAdder contentions;
 
         TotalHashDeduplicator() {
-            this.tables = new Table[64];
-            for (int i = 0; i < this.tables.length; ++i) {
-                this.tables[i] = new Table();
+            final int numSegments = Integer.highestOneBit(Math.max(LOCK_NUM,
+                    Environment.getCores() * 8) * 2 - 1);
+            this.segments = new Segment[numSegments];
+            for (int i = 0; i < numSegments; ++i) {
+                this.segments[i] = new Segment();
             }
+            this.segmentMask = numSegments - 1;
+            this.contentions = new LongAdder();
         }
 
         @Override
@@ -187,63 +219,82 @@ public abstract class StatementDeduplicator {
             final long lo = hash.getLow();
             final long hi = hash.getHigh();
 
-            return this.tables[(int) hi & 0x3F].process(lo, hi, add);
+            final Segment segment = this.segments[(int) hi & this.segmentMask];
+            if (!segment.tryLock()) {
+                this.contentions.increment();
+                segment.lock();
+            }
+            try {
+                return segment.process(lo, hi, add);
+            } finally {
+                segment.unlock();
+            }
         }
 
-        private static class Table {
+        @Override
+        public String toString() {
+            long size = 0;
+            for (final Segment segment : this.segments) {
+                size += segment.size; // approximate, as read without locking
+            }
+            return "hash deduplicator: " + size + " statements, " + this.segments.length
+                    + " segments, " + this.contentions.sum() + " contended lock acquisitions";
+        }
+
+        private static final class Segment extends ReentrantLock {
+
+            private static final long serialVersionUID = 1L;
 
             private long[] hashes;
 
-            private int size;
+            int size;
 
-            Table() {
+            Segment() {
                 this.hashes = new long[2 * INITIAL_TABLE_SIZE];
                 this.size = 0;
             }
 
-            synchronized boolean process(final long lo, final long hi, final boolean add) {
+            boolean process(final long lo, final long hi, final boolean add) {
 
-                int slot = ((int) lo & 0x7FFFFFFF) % (this.hashes.length >>> 1) << 1;
+                final long[] hashes = this.hashes;
+                final int mask = hashes.length - 1;
+                int slot = (int) lo << 1 & mask;
                 while (true) {
-                    final long storedLo = this.hashes[slot];
-                    final long storedHi = this.hashes[slot + 1];
+                    final long storedLo = hashes[slot];
                     if (storedLo == 0L) {
                         if (add) {
-                            this.hashes[slot] = lo;
-                            this.hashes[slot + 1] = hi;
-                            ++this.size;
-                            if (this.size >= this.hashes.length / 3) { // fill factor 0.66
+                            hashes[slot] = lo;
+                            hashes[slot + 1] = hi;
+                            final int size = this.size + 1;
+                            this.size = size;
+                            if (size >= hashes.length / 3) { // fill factor 0.66
                                 rehash();
                             }
                         }
                         return true;
 
-                    } else if (storedLo == lo && storedHi == hi) {
+                    } else if (storedLo == lo && hashes[slot + 1] == hi) {
                         return false;
 
                     } else {
-                        slot += 2;
-                        if (slot >= this.hashes.length) {
-                            slot = 0;
-                        }
+                        slot = slot + 2 & mask;
                     }
                 }
             }
 
             private void rehash() {
                 final long[] newTable = new long[this.hashes.length * 2];
+                final int mask = newTable.length - 1;
                 for (int slot = 0; slot < this.hashes.length; slot += 2) {
                     final long lo = this.hashes[slot];
-                    final long hi = this.hashes[slot + 1];
-                    int newSlot = ((int) lo & 0x7FFFFFFF) % (newTable.length >>> 1) << 1;
-                    while (newTable[newSlot] != 0L) {
-                        newSlot += 2;
-                        if (newSlot >= newTable.length) {
-                            newSlot = 0;
+                    if (lo != 0L) {
+                        int newSlot = (int) lo << 1 & mask;
+                        while (newTable[newSlot] != 0L) {
+                            newSlot = newSlot + 2 & mask;
                         }
+                        newTable[newSlot] = lo;
+                        newTable[newSlot + 1] = this.hashes[slot + 1];
                     }
-                    newTable[newSlot] = lo;
-                    newTable[newSlot + 1] = hi;
                 }
                 this.hashes = newTable;
             }
@@ -546,6 +597,233 @@ public abstract class StatementDeduplicator {
 
     }
 
+    private static final class ApproximateDeduplicator extends StatementDeduplicator {
+
+        // Cuckoo filter (Fan et al., 2014) split in 64 independently locked shards. Each shard
+        // starts with a small table and adds a table twice as large whenever the last one is 90%
+        // full, until the memory budget is used up (as in scalable Bloom filters). Table i packs
+        // buckets of 4 fingerprints of FP_BITS + i bits in a long[]; with load L its false
+        // positive rate is about 8 * L / 2^(FP_BITS + i), so that rates of all the tables sum up
+        // to less than the requested one. If an insertion fails after MAX_KICKS relocations the
+        // last evicted fingerprint is dropped: later duplicates of that statement go undetected,
+        // but no statement is wrongly discarded because of that.
+
+        private static final int SHARDS = 64;
+
+        private static final int BUCKET_SIZE = 4;
+
+        private static final int MAX_KICKS = 500;
+
+        private static final int MIN_BUCKETS = 1024;
+
+        private final Shard[] shards;
+
+        private final int bits;
+
+        private final long shardBudget;
+
+        ApproximateDeduplicator(final double falseDropRate, final long memoryBudget) {
+            final double firstTableRate = falseDropRate / 2;
+            this.bits = Math.max(4, Math.min(32, (int) Math.ceil(Math.log(2 * BUCKET_SIZE
+                    / firstTableRate) / Math.log(2))));
+            this.shardBudget = memoryBudget / SHARDS;
+            this.shards = new Shard[SHARDS];
+            for (int i = 0; i < SHARDS; ++i) {
+                this.shards[i] = new Shard();
+            }
+        }
+
+        @Override
+        boolean total() {
+            return false;
+        }
+
+        @Override
+        boolean process(final Resource subj, final URI pred, final Value obj,
+                @Nullable final Resource ctx, final boolean add) {
+
+            final Hash hash = hash(subj, pred, obj, ctx);
+
+            final long lo = hash.getLow();
+            final long hi = hash.getHigh();
+
+            return this.shards[(int) hi & SHARDS - 1].process((int) lo, (int) (hi >>> 32), add);
+        }
+
+        private final class Shard {
+
+            private Table[] tables;
+
+            private long size;
+
+            private boolean full;
+
+            private int seed;
+
+            Shard() {
+                this.tables = new Table[0];
+                this.size = 0;
+                this.full = false;
+                this.seed = 1;
+            }
+
+            synchronized boolean process(final int lo, final int hi, final boolean add) {
+
+                for (final Table table : this.tables) {
+                    if (table.mightContain(lo, hi)) {
+                        return false;
+                    }
+                }
+                if (add) {
+                    Table table = this.tables.length == 0 ? null
+                            : this.tables[this.tables.length - 1];
+                    if (table == null || !this.full
+                            && table.count >= table.capacity() * 9 / 10) {
+                        table = grow(table);
+                    }
+                    this.seed = table.insert(lo, hi, this.seed);
+                }
+                return true;
+            }
+
+            private Table grow(@Nullable final Table last) {
+                final int bits = Math.min(32, ApproximateDeduplicator.this.bits
+                        + this.tables.length);
+                final long available = ApproximateDeduplicator.this.shardBudget - this.size;
+                long buckets = last == null ? MIN_BUCKETS : Math.min(1 << 28,
+                        2L * (last.bucketMask + 1));
+                while (buckets > MIN_BUCKETS && Table.bytes(buckets, bits) > available) {
+                    buckets >>= 1;
+                }
+                if (last != null && Table.bytes(buckets, bits) > available) {
+                    this.full = true; // budget exhausted: keep filling the last table
+                    return last;
+                }
+                final Table table = new Table((int) buckets, bits);
+                this.tables = Arrays.copyOf(this.tables, this.tables.length + 1);
+                this.tables[this.tables.length - 1] = table;
+                this.size += Table.bytes(buckets, bits);
+                return table;
+            }
+
+        }
+
+        private static final class Table {
+
+            private final long[] words;
+
+            private final int bucketMask;
+
+            private final int bits;
+
+            private final int fingerprintMask;
+
+            int count;
+
+            Table(final int buckets, final int bits) {
+                this.words = new long[(int) ((long) buckets * BUCKET_SIZE * bits + 63 >>> 6)];
+                this.bucketMask = buckets - 1;
+                this.bits = bits;
+                this.fingerprintMask = bits >= 32 ? -1 : (1 << bits) - 1;
+            }
+
+            static long bytes(final long buckets, final int bits) {
+                return buckets * BUCKET_SIZE * bits / 8;
+            }
+
+            int capacity() {
+                return (this.bucketMask + 1) * BUCKET_SIZE;
+            }
+
+            boolean mightContain(final int lo, final int hi) {
+                final int fingerprint = fingerprint(hi);
+                final int bucket1 = lo & this.bucketMask;
+                final int bucket2 = alternate(bucket1, fingerprint);
+                return contains(bucket1, fingerprint) || contains(bucket2, fingerprint);
+            }
+
+            int insert(final int lo, final int hi, int seed) {
+                final int fingerprint = fingerprint(hi);
+                final int bucket1 = lo & this.bucketMask;
+                final int bucket2 = alternate(bucket1, fingerprint);
+                if (!insert(bucket1, fingerprint) && !insert(bucket2, fingerprint)) {
+                    int bucket = (seed & 1) == 0 ? bucket1 : bucket2;
+                    int victim = fingerprint;
+                    for (int i = 0; i < MAX_KICKS; ++i) {
+                        seed = seed * 1103515245 + 12345;
+                        final int index = bucket * BUCKET_SIZE + (seed >>> 16 & 3);
+                        final int evicted = get(index);
+                        set(index, victim);
+                        victim = evicted;
+                        bucket = alternate(bucket, victim);
+                        if (insert(bucket, victim)) {
+                            break;
+                        }
+                    }
+                }
+                return seed;
+            }
+
+            private int fingerprint(final int hi) {
+                final int fingerprint = hi & this.fingerprintMask;
+                return fingerprint != 0 ? fingerprint : 1;
+            }
+
+            private int alternate(final int bucket, final int fingerprint) {
+                return (bucket ^ fingerprint * 0x5bd1e995) & this.bucketMask;
+            }
+
+            private boolean contains(final int bucket, final int fingerprint) {
+                final int offset = bucket * BUCKET_SIZE;
+                for (int i = 0; i < BUCKET_SIZE; ++i) {
+                    if (get(offset + i) == fingerprint) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            private boolean insert(final int bucket, final int fingerprint) {
+                final int offset = bucket * BUCKET_SIZE;
+                for (int i = 0; i < BUCKET_SIZE; ++i) {
+                    if (get(offset + i) == 0) {
+                        set(offset + i, fingerprint);
+                        ++this.count;
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            private int get(final int index) {
+                final long bit = (long) index * this.bits;
+                final int word = (int) (bit >>> 6);
+                final int shift = (int) bit & 63;
+                long value = this.words[word] >>> shift;
+                if (shift + this.bits > 64) {
+                    value |= this.words[word + 1] << 64 - shift;
+                }
+                return (int) value & this.fingerprintMask;
+            }
+
+            private void set(final int index, final int fingerprint) {
+                final long bit = (long) index * this.bits;
+                final int word = (int) (bit >>> 6);
+                final int shift = (int) bit & 63;
+                final long mask = this.fingerprintMask & 0xFFFFFFFFL;
+                final long value = fingerprint & mask;
+                this.words[word] = this.words[word] & ~(mask << shift) | value << shift;
+                if (shift + this.bits > 64) {
+                    final int rshift = 64 - shift;
+                    this.words[word + 1] = this.words[word + 1] & ~(mask >>> rshift)
+                            | value >>> rshift;
+                }
+            }
+
+        }
+
+    }
+
     private static class ChainedDeduplicator extends StatementDeduplicator {
 
         private final StatementDeduplicator[] deduplicators;
@@ -280,6 +280,15 @@ public final class Statements {
         return false;
     }
 
+    public static boolean isRDFFormatBlockBased(final RDFFormat format) {
+        for (final String ext : format.getFileExtensions()) {
+            if (ext.equalsIgnoreCase("bq")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static Value shortenValue(final Value value, final int threshold) {
         if (value instanceof Literal) {
             final Literal literal = (Literal) value;
@@ -519,27 +528,8 @@ public final class Statements {
         final String language = literal.getLanguage();
         if (language != null) {
             out.append('@');
-            final int len = language.length();
-            boolean minusFound = false;
-            boolean valid = true;
-            for (int i = 0; i < len; ++i) {
-                final char ch = language.charAt(i);
-                if (ch == '-') {
-                    minusFound = true;
-                    if (i == 0) {
-                        valid = false;
-                    } else {
-                        final char prev = language.charAt(i - 1);
-                        valid &= isLetter(prev) || isNumber(prev);
-                    }
-                } else if (isNumber(ch)) {
-                    valid &= minusFound;
-                } else {
-                    valid &= isLetter(ch);
-                }
-                out.append(ch);
-            }
-            if (!valid || language.charAt(len - 1) == '-') {
+            out.append(language);
+            if (!isValidLanguageTag(language)) {
                 throw new IllegalArgumentException("Invalid language tag '" + language + "' in '"
                         + literal + "'");
             }
@@ -792,6 +782,29 @@ public final class Statements {
                 && c <= 0xFDCF || c >= 0xFDF0 && c <= 0xFFFD || c >= 0x10000 && c <= 0xEFFFF;
     }
 
+    public static boolean isValidLanguageTag(final String language) {
+        final int len = language.length();
+        boolean minusFound = false;
+        boolean valid = len > 0;
+        for (int i = 0; i < len; ++i) {
+            final char ch = language.charAt(i);
+            if (ch == '-') {
+                minusFound = true;
+                if (i == 0) {
+                    valid = false;
+                } else {
+                    final char prev = language.charAt(i - 1);
+                    valid &= isLetter(prev) || isNumber(prev);
+                }
+            } else if (isNumber(ch)) {
+                valid &= minusFound;
+            } else {
+                valid &= isLetter(ch);
+            }
+        }
+        return valid && language.charAt(len - 1) != '-';
+    }
+
     private static boolean isLetter(final int c) {
         return c >= 65 && c <= 90 || c >= 97 && c <= 122;
     }
@@ -14,53 +14,66 @@
 package eu.fbk.rdfpro.util;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
 
 // TODO
 // (1) move hash values out of hash table or drop them, revising rehashing code
 
+// Strings are stored in two Buffers (on heap or off heap), logically split in pages so that IDs
+// encode page and offset. Small strings (up to 255 chars) have layout [length:1][shared:1] and,
+// if shared > 0, [anchor offset:2], followed by the chars not shared with the anchor, i.e., the
+// last non front-coded string of the same page (front coding); large strings have layout
+// [length:4][chars]. Chars in 1..127 take one byte, other chars three bytes (0 + 2 bytes char).
+
 final class StringIndex {
 
     private static final int SMALL_BUFFER_SIZE = 64 * 1024;
 
     private static final int LARGE_BUFFER_SIZE = SMALL_BUFFER_SIZE * 8;
 
-    private final List<byte[]> smallBuffers;
+    private static final int MIN_SHARED_LENGTH = 4;
+
+    private final Buffer smallBuffer;
 
-    private final List<byte[]> largeBuffers;
+    private final Buffer largeBuffer;
 
     private int smallNextID;
 
     private int largeNextID;
 
+    private int smallAnchorID;
+
     private int[] table;
 
     private int size;
 
     public StringIndex() {
+        this(Buffer.newResizableBuffer(), Buffer.newResizableBuffer());
+    }
 
-        this.smallBuffers = new ArrayList<>();
-        this.largeBuffers = new ArrayList<>();
+    public StringIndex(final Buffer smallBuffer, final Buffer largeBuffer) {
+        this.smallBuffer = smallBuffer;
+        this.largeBuffer = largeBuffer;
         this.smallNextID = getID(true, 0, 0);
         this.largeNextID = getID(false, 0, 0);
+        this.smallAnchorID = 0;
         this.table = new int[1022]; // 511 entries, ~4K memory page
         this.size = 0;
-
-        this.smallBuffers.add(new byte[SMALL_BUFFER_SIZE]);
-        this.largeBuffers.add(new byte[LARGE_BUFFER_SIZE]);
     }
 
     public int size() {
         return this.size;
     }
 
-    public boolean contains(final String string) {
-        return lookup(string, false) != 0;
+    public boolean contains(final CharSequence string) {
+        return lookup(string, 0, string.length(), false) != 0;
     }
 
-    public int put(final String string) {
-        return lookup(string, true);
+    public int put(final CharSequence string) {
+        return lookup(string, 0, string.length(), true);
+    }
+
+    public int put(final CharSequence string, final int startIndex, final int endIndex) {
+        return lookup(string, startIndex, endIndex, true);
     }
 
     public String get(final int id) {
@@ -77,94 +90,68 @@ final class StringIndex {
     }
 
     public <T extends Appendable> T get(final int id, final T out) throws IOException {
-
-        final boolean small = isSmall(id);
-        final int page = getPage(id);
-        int offset = getOffset(id);
-
-        final byte[] buffer;
-        int length;
-        if (small) {
-            buffer = this.smallBuffers.get(page);
-            length = buffer[offset] & 0xFF;
-            offset++;
-        } else {
-            buffer = this.largeBuffers.get(page);
-            length = getInt(buffer, offset);
-            offset += 4;
-        }
-
-        for (int i = 0; i < length; ++i) {
-            final byte b = buffer[offset++];
-            if (b != 0) {
-                out.append((char) b);
+        if (isSmall(id)) {
+            final long address = getAddress(id);
+            final int length = this.smallBuffer.read(address) & 0xFF;
+            final int shared = this.smallBuffer.read(address + 1) & 0xFF;
+            if (shared == 0) {
+                append(this.smallBuffer, address + 2, length, out);
             } else {
-                out.append(getChar(buffer, offset));
-                offset += 2;
+                append(this.smallBuffer, getAnchorAddress(address), shared, out);
+                append(this.smallBuffer, address + 4, length - shared, out);
             }
+        } else {
+            final long address = getAddress(id);
+            append(this.largeBuffer, address + 4, this.largeBuffer.readInt(address), out);
         }
-
         return out;
     }
 
     public int length(final int id) {
-        final boolean small = isSmall(id);
-        final int page = getPage(id);
-        final int offset = getOffset(id);
-        return small ? this.smallBuffers.get(page)[offset] & 0xFF //
-                : getInt(this.largeBuffers.get(page), offset);
+        final long address = getAddress(id);
+        return isSmall(id) ? this.smallBuffer.read(address) & 0xFF //
+                : this.largeBuffer.readInt(address);
     }
 
-    public boolean equals(final int id, final String string) {
+    public boolean equals(final int id, final CharSequence string) {
         return equals(id, string, 0, string.length());
     }
 
-    public boolean equals(final int id, final String string, final int startIndex,
+    public boolean equals(final int id, final CharSequence string, final int startIndex,
             final int endIndex) {
 
+        final int length = endIndex - startIndex;
         final boolean idSmall = isSmall(id);
-        final boolean stringSmall = isSmall(string);
-        if (idSmall != stringSmall) {
+        if (idSmall != isSmallLength(length)) {
             return false;
         }
 
-        final int page = getPage(id);
-        int offset = getOffset(id);
-
-        final byte[] buffer;
-        int length;
-        if (idSmall) {
-            buffer = this.smallBuffers.get(page);
-            length = buffer[offset] & 0xFF;
-            offset++;
-        } else {
-            buffer = this.largeBuffers.get(page);
-            length = getInt(buffer, offset);
-            offset += 4;
+        final long address = getAddress(id);
+        if (!idSmall) {
+            return this.largeBuffer.readInt(address) == length
+                    && equals(this.largeBuffer, address + 4, string, startIndex, endIndex);
         }
 
-        if (length != endIndex - startIndex) {
+        if ((this.smallBuffer.read(address) & 0xFF) != length) {
             return false;
         }
-
-        for (int i = startIndex; i < endIndex; ++i) {
-            char c;
-            final byte b = buffer[offset++];
-            if (b != 0) {
-                c = (char) b;
-            } else {
-                c = getChar(buffer, offset);
-                offset += 2;
-            }
-            if (c != string.charAt(i)) {
-                return false;
-            }
+        final int shared = this.smallBuffer.read(address + 1) & 0xFF;
+        if (shared == 0) {
+            return equals(this.smallBuffer, address + 2, string, startIndex, endIndex);
         }
-        return true;
+        return equals(this.smallBuffer, getAnchorAddress(address), string, startIndex,
+                startIndex + shared)
+                && equals(this.smallBuffer, address + 4, string, startIndex + shared, endIndex);
     }
 
-    private int lookup(final String string, final boolean canAppend) {
-        final int hash = string.hashCode();
+    public void close() {
+        this.smallBuffer.close();
+        this.largeBuffer.close();
+    }
+
+    private int lookup(final CharSequence string, final int startIndex, final int endIndex,
+            final boolean canAppend) {
+        final int hash = hash(string, startIndex, endIndex);
         int slot = (hash & 0x7FFFFFFF) % (this.table.length / 2) * 2;
         while (true) {
             int id = this.table[slot];
@@ -173,15 +160,15 @@ final class StringIndex {
                     return 0;
                 } else if (this.size > this.table.length * 2 / 5) { // enforce load factor < .8
                     rehash();
-                    return lookup(string, canAppend); // repeat after rehashing
+                    return lookup(string, startIndex, endIndex, canAppend); // repeat
                 }
-                id = append(string);
+                id = append(string, startIndex, endIndex);
                 this.table[slot] = id;
                 this.table[slot + 1] = hash;
                 ++this.size;
                 return id;
             }
-            if (this.table[slot + 1] == hash && equals(id, string)) {
+            if (this.table[slot + 1] == hash && equals(id, string, startIndex, endIndex)) {
                 return id;
             }
             slot += 2;
@@ -212,57 +199,75 @@ final class StringIndex {
         this.table = newTable;
     }
 
-    private int append(final String string) {
+    private int append(final CharSequence string, final int startIndex, final int endIndex) {
 
-        final boolean small = isSmall(string);
-        final int length = string.length();
+        final int length = endIndex - startIndex;
 
-        byte[] buffer;
-        int offset;
-        final int id;
-        if (small) {
-            offset = getOffset(this.smallNextID);
-            if (offset + 1 + length * 3 >= SMALL_BUFFER_SIZE) {
-                this.smallBuffers.add(new byte[SMALL_BUFFER_SIZE]);
-                this.smallNextID = getID(true, this.smallBuffers.size() - 1, 0);
-                offset = 0;
+        if (!isSmallLength(length)) {
+            final int offset = getOffset(this.largeNextID);
+            if (offset > 0 && offset + 4 + length * 3 >= LARGE_BUFFER_SIZE) {
+                this.largeNextID = getID(false, getPage(this.largeNextID) + 1, 0);
             }
-            id = this.smallNextID;
-            buffer = this.smallBuffers.get(this.smallBuffers.size() - 1);
-            buffer[offset++] = (byte) length;
-        } else {
-            offset = getOffset(this.largeNextID);
-            if (offset + 4 + length * 3 >= LARGE_BUFFER_SIZE) {
-                this.largeBuffers.add(new byte[LARGE_BUFFER_SIZE]);
-                this.largeNextID = getID(false, this.largeBuffers.size() - 1, 0);
-                offset = 0;
+            final int id = this.largeNextID;
+            final int page = getPage(id);
+            final long address = getAddress(id);
+            this.largeBuffer.writeInt(address, length);
+            final long end = write(this.largeBuffer, address + 4, string, startIndex, endIndex);
+            final long pageStart = (long) page * LARGE_BUFFER_SIZE;
+            if (end - pageStart + 7 >= LARGE_BUFFER_SIZE) {
+                // string filled or overflowed its page (offsets cannot address past 512KB):
+                // continue on the page following the one the string ends on
+                final long nextPage = (end + LARGE_BUFFER_SIZE - 1) / LARGE_BUFFER_SIZE;
+                this.largeNextID = getID(false, (int) nextPage, 0);
+            } else {
+                this.largeNextID = getID(false, page, (int) (end - pageStart));
             }
-            id = this.largeNextID;
-            buffer = this.largeBuffers.get(this.largeBuffers.size() - 1);
-            putInt(buffer, offset, length);
-            offset += 4;
+            return id;
         }
 
-        for (int i = 0; i < length; ++i) {
-            final char ch = string.charAt(i);
-            if (ch > 0 && ch <= 127) {
-                buffer[offset++] = (byte) ch;
-            } else {
-                buffer[offset++] = (byte) 0;
-                putChar(buffer, offset, ch);
-                offset += 2;
-            }
+        int offset = getOffset(this.smallNextID);
+        if (offset + 4 + length * 3 >= SMALL_BUFFER_SIZE) {
+            this.smallNextID = getID(true, getPage(this.smallNextID) + 1, 0);
+            this.smallAnchorID = 0; // anchors cannot be referenced across pages
+            offset = 0;
+        }
+        final int id = this.smallNextID;
+        final int page = getPage(id);
+        final long address = getAddress(id);
+
+        int shared = 0;
+        if (this.smallAnchorID != 0) {
+            final long anchorAddress = getAddress(this.smallAnchorID);
+            final int anchorLength = this.smallBuffer.read(anchorAddress) & 0xFF;
+            shared = shared(this.smallBuffer, anchorAddress + 2,
+                    Math.min(anchorLength, length), string, startIndex);
         }
 
-        if (small) {
-            this.smallNextID = getID(small, this.smallBuffers.size() - 1, offset);
+        final long end;
+        this.smallBuffer.write(address, (byte) length);
+        if (shared < MIN_SHARED_LENGTH) {
+            this.smallBuffer.write(address + 1, (byte) 0);
+            end = write(this.smallBuffer, address + 2, string, startIndex, endIndex);
+            this.smallAnchorID = id;
         } else {
-            this.largeNextID = getID(small, this.largeBuffers.size() - 1, offset);
+            this.smallBuffer.write(address + 1, (byte) shared);
+            this.smallBuffer.writeShort(address + 2, (short) getOffset(this.smallAnchorID));
+            end = write(this.smallBuffer, address + 4, string, startIndex + shared, endIndex);
         }
-
+        this.smallNextID = getID(true, page, (int) (end - address) + offset);
         return id;
     }
 
+    private long getAddress(final int id) {
+        final long pageSize = isSmall(id) ? SMALL_BUFFER_SIZE : LARGE_BUFFER_SIZE;
+        return getPage(id) * pageSize + getOffset(id);
+    }
+
+    private long getAnchorAddress(final long address) {
+        final long pageStart = address - address % SMALL_BUFFER_SIZE;
+        return pageStart + (this.smallBuffer.readShort(address + 2) & 0xFFFF) + 2;
+    }
+
     private int getID(final boolean small, final int page, final int offset) {
         return small ? (page + 1 & 0x7FFF) << 16 | offset & 0xFFFF
                 : 0x80000000 | (page + 1 & 0x7FFF) << 16 | offset + 7 >> 3 & 0xFFFF;
@@ -280,34 +285,80 @@ final class StringIndex {
         return (id & 0x80000000) == 0;
     }
 
-    private boolean isSmall(final String string) {
-        return string.length() <= 255;
+    private static boolean isSmallLength(final int length) {
+        return length <= 255;
     }
 
-    private static char getChar(final byte[] buffer, final int offset) {
-        final int byte0 = buffer[offset] & 0xFF;
-        final int byte1 = buffer[offset + 1] & 0xFF;
-        return (char) (byte0 << 8 | byte1);
+    private static int hash(final CharSequence string, final int startIndex, final int endIndex) {
+        int hash = 0; // same as String.hashCode()
+        for (int i = startIndex; i < endIndex; ++i) {
+            hash = 31 * hash + string.charAt(i);
+        }
+        return hash;
     }
 
-    private static void putChar(final byte[] buffer, final int offset, final char value) {
-        buffer[offset] = (byte) (value >>> 8);
-        buffer[offset + 1] = (byte) value;
+    private static int shared(final Buffer buffer, long address, final int length,
+            final CharSequence string, final int startIndex) {
+        for (int i = 0; i < length; ++i) {
+            final byte b = buffer.read(address++);
+            final char c;
+            if (b != 0) {
+                c = (char) b;
+            } else {
+                c = (char) buffer.readShort(address);
+                address += 2;
+            }
+            if (c != string.charAt(startIndex + i)) {
+                return i;
+            }
+        }
+        return length;
     }
 
-    private static int getInt(final byte[] buffer, final int offset) {
-        final int byte0 = buffer[offset] & 0xFF;
-        final int byte1 = buffer[offset + 1] & 0xFF;
-        final int byte2 = buffer[offset + 2] & 0xFF;
-        final int byte3 = buffer[offset + 3] & 0xFF;
-        return byte0 << 24 | byte1 << 16 | byte2 << 8 | byte3;
+    private static boolean equals(final Buffer buffer, long address, final CharSequence string,
+            final int startIndex, final int endIndex) {
+        for (int i = startIndex; i < endIndex; ++i) {
+            final byte b = buffer.read(address++);
+            final char c;
+            if (b != 0) {
+                c = (char) b;
+            } else {
+                c = (char) buffer.readShort(address);
+                address += 2;
+            }
+            if (c != string.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private static void putInt(final byte[] buffer, final int offset, final int value) {
-        buffer[offset] = (byte) (value >>> 24);
-        buffer[offset + 1] = (byte) (value >>> 16);
-        buffer[offset + 2] = (byte) (value >>> 8);
-        buffer[offset + 3] = (byte) value;
+    private static void append(final Buffer buffer, long address, final int length,
+            final Appendable out) throws IOException {
+        for (int i = 0; i < length; ++i) {
+            final byte b = buffer.read(address++);
+            if (b != 0) {
+                out.append((char) b);
+            } else {
+                out.append((char) buffer.readShort(address));
+                address += 2;
+            }
+        }
+    }
+
+    private static long write(final Buffer buffer, long address, final CharSequence string,
+            final int startIndex, final int endIndex) {
+        for (int i = startIndex; i < endIndex; ++i) {
+            final char ch = string.charAt(i);
+            if (ch > 0 && ch <= 127) {
+                buffer.write(address++, (byte) ch);
+            } else {
+                buffer.write(address++, (byte) 0);
+                buffer.writeShort(address, (short) ch);
+                address += 2;
+            }
+        }
+        return address;
     }
 
 }
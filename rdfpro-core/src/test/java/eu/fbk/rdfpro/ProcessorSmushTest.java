@@ -0,0 +1,528 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti <francesco.corcoglioniti@gmail.com> with support by
+ * Marco Rospocher, Marco Amadori and Michele Mostarda.
+ *
+ * To the extent possible under law, the author has dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+package eu.fbk.rdfpro;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.vocabulary.OWL;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+
+import eu.fbk.rdfpro.util.Dictionary;
+import eu.fbk.rdfpro.util.IO;
+import eu.fbk.rdfpro.util.Statements;
+
+public class ProcessorSmushTest {
+
+    private static final String NS_A = "http://example.org/a/";
+
+    private static final String NS_B = "http://example.org/b/";
+
+    private static final String NS_OTHER = "http://other.org/";
+
+    private static final String[] RANKED = new String[] { NS_A, NS_B };
+
+    private static final URI PROPERTY = uri("http://example.org/p");
+
+    @Test
+    public void testChains() throws Throwable {
+        final List<Statement> input = new ArrayList<Statement>();
+        for (int i = 0; i < 50; ++i) {
+            final int length = 2 + i % 10;
+            for (int j = 0; j + 1 < length; ++j) {
+                input.add(sameAs(resource(i * 100 + j), resource(i * 100 + j + 1)));
+            }
+            addData(input, i * 100, length);
+        }
+        check(input, 1);
+    }
+
+    @Test
+    public void testCycles() throws Throwable {
+        final List<Statement> input = new ArrayList<Statement>();
+        for (int i = 0; i < 50; ++i) {
+            final int length = 2 + i % 10;
+            for (int j = 0; j < length; ++j) {
+                input.add(sameAs(resource(i * 100 + j), resource(i * 100 + (j + 1) % length)));
+            }
+            input.add(sameAs(resource(i * 100), resource(i * 100))); // self link, ignored
+            addData(input, i * 100, length);
+        }
+        check(input, 1);
+    }
+
+    @Test
+    public void testRankingTies() throws Throwable {
+        // same rank: lexicographic order; no rank: URIs before BNodes; BNodes by ID
+        final Resource[][] clusters = new Resource[][] {
+                { uri(NS_A + "zz"), uri(NS_A + "aa"), uri(NS_A + "m"), uri(NS_B + "a") },
+                { uri(NS_B + "y"), uri(NS_B + "x"), uri(NS_OTHER + "a"), bnode("a") },
+                { uri(NS_OTHER + "z"), bnode("b"), uri(NS_OTHER + "y"), bnode("c") },
+                { bnode("z9"), bnode("z1"), bnode("z5") } };
+        final Resource[] expected = new Resource[] { uri(NS_A + "aa"), uri(NS_B + "x"),
+                uri(NS_OTHER + "y"), bnode("z1") };
+        final List<Statement> input = new ArrayList<Statement>();
+        for (final Resource[] cluster : clusters) {
+            for (int i = cluster.length - 1; i > 0; --i) {
+                input.add(sameAs(cluster[i], cluster[i - 1]));
+            }
+            for (final Resource resource : cluster) {
+                input.add(statement(resource, PROPERTY, resource));
+            }
+        }
+        final List<Statement> output = check(input, 1);
+        for (int i = 0; i < clusters.length; ++i) {
+            for (final Resource resource : clusters[i]) {
+                Assert.assertTrue(output.contains(statement(expected[i], PROPERTY, expected[i])));
+                if (!resource.equals(expected[i])) {
+                    Assert.assertTrue(output.contains(sameAs(expected[i], resource)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRandomGraph() throws Throwable {
+        // more than 64K resources, so that the union-find array spans multiple chunks
+        check(randomGraph(100000, 0), 1);
+    }
+
+    @Test
+    public void testConcurrentLinking() throws Throwable {
+        for (int i = 0; i < 3; ++i) {
+            final List<Statement> input = randomGraph(100000, i);
+            Collections.shuffle(input, new Random(i));
+            check(input, 8);
+        }
+    }
+
+    @Test
+    public void testTableCanonicalResources() throws Throwable {
+        // each resource is the canonical one of its cluster, so output strings are read back
+        final List<Resource> resources = tableResources();
+        final List<Statement> input = new ArrayList<Statement>();
+        for (int i = 0; i < resources.size(); ++i) {
+            final Resource resource = resources.get(i);
+            final Resource other = resource instanceof URI ? bnode("w" + i) : bnode("~" + i);
+            input.add(sameAs(resource, other));
+            input.add(statement(other, PROPERTY, other));
+        }
+        final List<Statement> output = check(input, 1);
+        for (int i = 0; i < resources.size(); ++i) {
+            final Resource resource = resources.get(i);
+            Assert.assertTrue(output.contains(statement(resource, PROPERTY, resource)));
+        }
+    }
+
+    @Test
+    public void testTableLinkedResources() throws Throwable {
+        // resources are appended one after the other and rewritten to a preferred URI, so that
+        // they must be matched against the stored strings
+        final List<Resource> resources = tableResources();
+        final URI canonical = uri(NS_A + "canonical");
+        final List<Statement> input = new ArrayList<Statement>();
+        input.add(sameAs(canonical, resources.get(0)));
+        for (int i = 0; i + 1 < resources.size(); ++i) {
+            input.add(sameAs(resources.get(i), resources.get(i + 1)));
+        }
+        for (final Resource resource : resources) {
+            input.add(statement(resource, PROPERTY, resource));
+        }
+        final List<Statement> output = check(input, 1);
+        Assert.assertEquals(resources.size(), Collections.frequency(output,
+                statement(canonical, PROPERTY, canonical)));
+    }
+
+    @Test
+    public void testIndex() throws Throwable {
+        final File file = File.createTempFile("rdfpro-smush-", ".idx");
+        final File file2 = File.createTempFile("rdfpro-smush-", ".idx");
+        file.deleteOnExit();
+        file2.deleteOnExit();
+        try {
+            // saving with -s does not change the result, loading with -i gives the same output
+            final List<Statement> input = randomGraph(20000, 7);
+            final List<Statement> expected = smushReference(input, RANKED);
+            final RDFProcessor saver = RDFProcessors.smush(null, file.getAbsolutePath(), RANKED);
+            Assert.assertEquals(1, saver.getExtraPasses());
+            Assert.assertEquals(keys(expected), keys(process(saver, input, 4)));
+            final RDFProcessor loader = RDFProcessors.smush(file.getAbsolutePath(), null, RANKED);
+            Assert.assertEquals(0, loader.getExtraPasses());
+            Assert.assertEquals(keys(expected), keys(process(loader, input, 4)));
+
+            // links arriving in loaded mode apply to the statements that follow them, also
+            // when they involve new resources, and are saved if -s is also given
+            final List<Statement> input2 = new ArrayList<Statement>();
+            input2.add(sameAs(resource(1), resource(2)));
+            input2.add(sameAs(uri(NS_A + "new"), resource(3)));
+            input2.add(sameAs(bnode("new"), bnode("new2")));
+            input2.addAll(input);
+            final List<Statement> expected2 = smushReference(input2, RANKED);
+            Assert.assertEquals(keys(expected2), keys(process(RDFProcessors.smush(
+                    file.getAbsolutePath(), file2.getAbsolutePath(), RANKED), input2, 1)));
+            Assert.assertEquals(keys(expected2), keys(process(RDFProcessors.smush(
+                    file2.getAbsolutePath(), null, RANKED), input2, 4)));
+
+            // bad magic number and truncated files are rejected
+            final byte[] bytes = Files.readAllBytes(file.toPath());
+            final byte[] badMagic = bytes.clone();
+            badMagic[0] = 'X';
+            Files.write(file2.toPath(), badMagic);
+            assertRejected(RDFProcessors.smush(file2.getAbsolutePath(), null, RANKED), input,
+                    "Not an owl:sameAs index");
+            for (final int length : new int[] { 0, 6, bytes.length / 2, bytes.length - 1 }) {
+                Files.write(file2.toPath(), Arrays.copyOf(bytes, length));
+                assertRejected(RDFProcessors.smush(file2.getAbsolutePath(), null, RANKED),
+                        input, "Truncated owl:sameAs index");
+            }
+        } finally {
+            file.delete();
+            file2.delete();
+        }
+    }
+
+    @Test
+    public void testQuads() throws Throwable {
+        // on int quads resources are keyed by dictionary codes, with the same results
+        final File file = File.createTempFile("rdfpro-smush-", ".idx");
+        file.deleteOnExit();
+        try {
+            final List<Statement> input = randomGraph(100000, 3);
+            Collections.shuffle(input, new Random(3));
+            final List<Statement> expected = smushReference(input, RANKED);
+            final RDFProcessor saver = RDFProcessors.smush(null, file.getAbsolutePath(), RANKED);
+            Assert.assertTrue(saver.isQuadNative());
+            Assert.assertEquals(keys(expected), keys(process(saver, input, 8, true)));
+
+            // indexes are exchanged with the statement lane, as they store strings
+            final RDFProcessor loader = RDFProcessors.smush(file.getAbsolutePath(), null, RANKED);
+            Assert.assertEquals(keys(expected), keys(process(loader, input, 4, false)));
+            process(RDFProcessors.smush(null, file.getAbsolutePath(), RANKED), input, 4, false);
+            Assert.assertEquals(keys(expected), keys(process(loader, input, 4, true)));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static List<Statement> check(final List<Statement> input, final int numThreads)
+            throws Throwable {
+        final List<Statement> expected = smushReference(input, RANKED);
+        final List<Statement> actual = process(RDFProcessors.smush(RANKED), input, numThreads);
+        Assert.assertEquals(keys(expected), keys(actual));
+        return actual;
+    }
+
+    // Same result as the baseline @smush: resources linked by owl:sameAs form clusters, whose
+    // canonical resource is the minimum one based on the ranked namespaces comparator; sameAs
+    // statements are replaced by links from the canonical resources, other statements rewritten
+
+    private static List<Statement> smushReference(final List<Statement> input,
+            final String... rankedNamespaces) {
+
+        final Map<Resource, Resource> parents = new HashMap<Resource, Resource>();
+        for (final Statement statement : input) {
+            if (isSameAs(statement) && !statement.getSubject().equals(statement.getObject())) {
+                final Resource root1 = find(parents, statement.getSubject());
+                final Resource root2 = find(parents, (Resource) statement.getObject());
+                if (!root1.equals(root2)) {
+                    parents.put(root1, root2);
+                }
+            }
+        }
+
+        final Comparator<Value> comparator = Statements.valueComparator(rankedNamespaces);
+        final Map<Resource, Resource> canonicals = new HashMap<Resource, Resource>();
+        for (final Resource resource : new ArrayList<Resource>(parents.keySet())) {
+            canonicals.merge(find(parents, resource), resource,
+                    (r1, r2) -> comparator.compare(r1, r2) <= 0 ? r1 : r2);
+        }
+
+        final List<Statement> output = new ArrayList<Statement>();
+        for (final Statement statement : input) {
+            final Resource s = statement.getSubject();
+            final Value o = statement.getObject();
+            final Resource c = statement.getContext();
+            final Resource sn = rewrite(parents, canonicals, s);
+            final Value on = o instanceof Literal ? o : rewrite(parents, canonicals,
+                    (Resource) o);
+            final Resource cn = c == null ? null : rewrite(parents, canonicals, c);
+            if (isSameAs(statement)) {
+                if (!sn.equals(s)) {
+                    output.add(statement(sn, OWL.SAMEAS, s, cn));
+                }
+                if (!on.equals(o)) {
+                    output.add(statement((Resource) on, OWL.SAMEAS, o, cn));
+                }
+            } else {
+                final URI pn = (URI) rewrite(parents, canonicals, statement.getPredicate());
+                output.add(statement(sn, pn, on, cn));
+            }
+        }
+        return output;
+    }
+
+    private static Resource find(final Map<Resource, Resource> parents, final Resource resource) {
+        Resource root = resource;
+        while (true) {
+            final Resource parent = parents.get(root);
+            if (parent == null) {
+                parents.put(root, root);
+                break;
+            } else if (parent.equals(root)) {
+                break;
+            }
+            root = parent;
+        }
+        for (Resource current = resource; !current.equals(root);) {
+            current = parents.put(current, root); // path compression
+        }
+        return root;
+    }
+
+    private static Resource rewrite(final Map<Resource, Resource> parents,
+            final Map<Resource, Resource> canonicals, final Resource resource) {
+        return parents.containsKey(resource) ? canonicals.get(find(parents, resource)) : resource;
+    }
+
+    // Feeds the input to the processor in as many passes as required, with statements of each
+    // pass concurrently emitted by the given number of threads, either as they are or encoded
+    // as int quads
+
+    static List<Statement> process(final RDFProcessor processor, final List<Statement> input,
+            final int numThreads) throws Throwable {
+        return process(processor, input, numThreads, false);
+    }
+
+    static List<Statement> process(final RDFProcessor processor, final List<Statement> input,
+            final int numThreads, final boolean quads) throws Throwable {
+        final List<Statement> output = Collections.synchronizedList(new ArrayList<Statement>());
+        final Dictionary dictionary = quads ? Dictionary.newMemoryDictionary() : null;
+        final RDFHandler handler = !quads ? processor.wrap(RDFHandlers.wrap(output))
+                : dictionary.encode(processor.wrap(dictionary,
+                        dictionary.decode(RDFHandlers.wrap(output))));
+        try {
+            for (int pass = 0; pass <= processor.getExtraPasses(); ++pass) {
+                output.clear();
+                handler.startRDF();
+                final Thread[] threads = new Thread[numThreads];
+                final Throwable[] exceptions = new Throwable[numThreads];
+                for (int t = 0; t < numThreads; ++t) {
+                    final int index = t;
+                    threads[t] = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                for (int i = index; i < input.size(); i += numThreads) {
+                                    handler.handleStatement(input.get(i));
+                                }
+                            } catch (final Throwable ex) {
+                                exceptions[index] = ex;
+                            }
+                        }
+
+                    };
+                    threads[t].start();
+                }
+                for (int t = 0; t < numThreads; ++t) {
+                    threads[t].join();
+                    if (exceptions[t] != null) {
+                        throw exceptions[t];
+                    }
+                }
+                handler.endRDF();
+            }
+        } finally {
+            IO.closeQuietly(handler);
+            IO.closeQuietly(dictionary);
+        }
+        return new ArrayList<Statement>(output);
+    }
+
+    static Multiset<String> keys(final List<Statement> statements) {
+        // statement equality in Sesame ignores the context, thus it is compared explicitly
+        final Multiset<String> keys = HashMultiset.create();
+        for (final Statement statement : statements) {
+            keys.add(statement.getSubject() + " " + statement.getPredicate() + " "
+                    + statement.getObject() + " " + statement.getContext());
+        }
+        return keys;
+    }
+
+    static List<Statement> randomGraph(final int numResources, final long seed) {
+        final Random random = new Random(seed);
+        final List<Statement> statements = new ArrayList<Statement>();
+        for (int i = 0; i < numResources * 3 / 4; ++i) {
+            final Resource s = resource(random.nextInt(numResources));
+            final Resource o = resource(random.nextInt(numResources));
+            final Resource c = random.nextInt(4) == 0 ? resource(random.nextInt(numResources))
+                    : null;
+            statements.add(statement(s, OWL.SAMEAS, o, c));
+        }
+        for (int i = 0; i < numResources / 2; ++i) {
+            final Resource s = resource(random.nextInt(numResources));
+            final int kind = random.nextInt(3);
+            final Value o = kind == 0 ? Statements.VALUE_FACTORY.createLiteral("label " + i)
+                    : kind == 1 ? uri(NS_OTHER + "Class" + random.nextInt(10))
+                            : resource(random.nextInt(numResources));
+            final URI p = kind == 1 ? RDF.TYPE : PROPERTY;
+            statements.add(statement(s, p, o, random.nextBoolean() ? null : resource(random
+                    .nextInt(numResources))));
+        }
+        return statements;
+    }
+
+    private static void addData(final List<Statement> statements, final int start,
+            final int length) {
+        for (int j = 0; j < length; ++j) {
+            final Resource resource = resource(start + j);
+            statements.add(statement(resource, RDF.TYPE, uri(NS_OTHER + "Class"), resource));
+            statements.add(statement(resource(start + (j + 1) % length), PROPERTY, resource));
+        }
+    }
+
+    static List<Resource> tableResources() {
+
+        final Set<Resource> resources = new LinkedHashSet<Resource>();
+
+        // shared prefixes shorter, equal and longer than the 8 bytes needed for front coding,
+        // measured in bytes (non-ASCII chars take 3 bytes each)
+        for (final String prefix : new String[] { "urn:a", "urn:abc", "urn:abcd", "urn:abcde",
+                "urn:\u00e8\u00e8", "urn:x:\u00e8" }) {
+            for (int i = 0; i < 3; ++i) {
+                resources.add(uri(prefix + i));
+                resources.add(uri(prefix + "\u00e9" + i));
+            }
+        }
+
+        // lengths around the 0x3FFF limit of the short length field, in bytes
+        for (final int length : new int[] { 16382, 16383, 16384, 16385, 70000 }) {
+            resources.add(uri("urn:" + Strings.repeat("x", length - 4)));
+            resources.add(uri("urn:" + Strings.repeat("x", length - 5) + "y"));
+            resources.add(uri("urn:" + Strings.repeat("\u00e8", (length - 4) / 3)
+                    + Strings.repeat("z", (length - 4) % 3)));
+        }
+
+        // long shared prefixes, beyond the number of chars that can be front coded
+        final String longPrefix = "http://other.org/" + Strings.repeat("p\u00e8", 15000);
+        for (int i = 0; i < 4; ++i) {
+            resources.add(uri(longPrefix + i));
+            resources.add(uri(longPrefix.substring(0, 20000 + i * 3000) + "/s" + i));
+        }
+
+        // BNodes, also sharing prefixes with URIs and containing NUL and non-BMP chars
+        for (int i = 0; i < 10; ++i) {
+            resources.add(bnode("b" + i));
+            resources.add(bnode("bnode_with_a_long_id_" + i));
+            resources.add(bnode("bhttp://other.org/resource/r" + i));
+            resources.add(bnode("b\u0000\u00e8\ud83d\ude00" + i));
+        }
+        resources.add(bnode("b" + Strings.repeat("\u00e8", 20000)));
+
+        // enough strings to fill several 1MB buffer pages, with more prefix groups than anchors
+        // so that anchors get replaced; strings end up crossing page and anchor boundaries
+        final Random random = new Random(0);
+        for (int i = 0; i < 8000; ++i) {
+            final StringBuilder builder = new StringBuilder("http://other.org/group");
+            builder.append(random.nextInt(20)).append('/');
+            final int length = random.nextInt(1000);
+            for (int j = 0; j < length; ++j) {
+                builder.append(random.nextInt(10) == 0 ? '\u00e8' : (char) ('a' + j % 26));
+            }
+            resources.add(uri(builder.append('#').append(i).toString()));
+        }
+
+        return new ArrayList<Resource>(resources);
+    }
+
+    static Resource resource(final int index) {
+        // a mix of ranked URIs, unranked URIs and BNodes, with similar strings
+        switch (index % 4) {
+        case 0:
+            return uri(NS_A + "r" + index);
+        case 1:
+            return uri(NS_B + "r" + index);
+        case 2:
+            return uri(NS_OTHER + "resource/r" + index);
+        default:
+            return bnode("b" + index);
+        }
+    }
+
+    static URI uri(final String string) {
+        return Statements.VALUE_FACTORY.createURI(string);
+    }
+
+    static Resource bnode(final String id) {
+        return Statements.VALUE_FACTORY.createBNode(id);
+    }
+
+    static Statement sameAs(final Resource subj, final Resource obj) {
+        return statement(subj, OWL.SAMEAS, obj);
+    }
+
+    static Statement statement(final Resource subj, final URI pred, final Value obj) {
+        return statement(subj, pred, obj, null);
+    }
+
+    static Statement statement(final Resource subj, final URI pred, final Value obj,
+            final Resource ctx) {
+        return ctx == null ? Statements.VALUE_FACTORY.createStatement(subj, pred, obj)
+                : Statements.VALUE_FACTORY.createStatement(subj, pred, obj, ctx);
+    }
+
+    private static void assertRejected(final RDFProcessor processor,
+            final List<Statement> input, final String message) throws Throwable {
+        try {
+            process(processor, input, 1);
+            Assert.fail("Expected failure: " + message);
+        } catch (final RDFHandlerException ex) {
+            String messages = "";
+            for (Throwable t = ex; t != null; t = t.getCause()) {
+                messages += t.getMessage() + "\n";
+            }
+            Assert.assertTrue(messages, messages.contains(message));
+        }
+    }
+
+    private static boolean isSameAs(final Statement statement) {
+        return statement.getPredicate().equals(OWL.SAMEAS)
+                && statement.getObject() instanceof Resource;
+    }
+
+}
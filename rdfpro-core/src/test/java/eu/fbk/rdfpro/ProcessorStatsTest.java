@@ -0,0 +1,52 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti <francesco.corcoglioniti@gmail.com> with support by
+ * Marco Rospocher, Marco Amadori and Michele Mostarda.
+ *
+ * To the extent possible under law, the author has dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+package eu.fbk.rdfpro;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ProcessorStatsTest {
+
+    @Test
+    public void testSketch() {
+        final ProcessorStats.Sketch sketch = new ProcessorStats.Sketch();
+        Assert.assertEquals(0L, sketch.estimate());
+
+        // checkpoints grow by 25%, covering both the sparse and the dense form of the sketch
+        double squaredErrors = 0.0;
+        int checkpoints = 0;
+        long next = 1;
+        for (long n = 1; n <= 10000000L; ++n) {
+            sketch.add(hash(n));
+            if (n == next) {
+                final double error = Math.abs(sketch.estimate() - n) / (double) n;
+                Assert.assertTrue("error " + error + " for " + n + " values", error <= 0.05);
+                squaredErrors += error * error;
+                ++checkpoints;
+                next = next * 5 / 4 + 1;
+            }
+        }
+        final double error = Math.sqrt(squaredErrors / checkpoints);
+        Assert.assertTrue("RMS error " + error, error <= 0.014);
+    }
+
+    private static long hash(final long value) {
+        long h = value * 0x9E3779B97F4A7C15L; // spread sequential values as value hashes would be
+        h = (h ^ h >>> 33) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ h >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+}
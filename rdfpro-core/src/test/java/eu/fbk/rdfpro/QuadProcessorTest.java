@@ -0,0 +1,261 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti <francesco.corcoglioniti@gmail.com> with support by
+ * Marco Rospocher, Marco Amadori and Michele Mostarda.
+ *
+ * To the extent possible under law, the author has dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+package eu.fbk.rdfpro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+
+import eu.fbk.rdfpro.util.Dictionary;
+import eu.fbk.rdfpro.util.Statements;
+
+public class QuadProcessorTest {
+
+    private static final ValueFactory VF = Statements.VALUE_FACTORY;
+
+    private static final String NS = "http://example.org/";
+
+    @Test
+    public void testBridge() throws RDFHandlerException {
+        // transform with a Java predicate has no quad-native implementation, thus uses the
+        // default bridge
+        final RDFProcessor processor = RDFProcessors.transform(Transformer.filter((
+                final Statement s) -> !s.getPredicate().equals(RDF.TYPE)));
+        final Recorder recorder = run(processor, data());
+        final List<Statement> expected = new ArrayList<>();
+        for (final Statement statement : data()) {
+            if (!statement.getPredicate().equals(RDF.TYPE)) {
+                expected.add(statement);
+            }
+        }
+        Assert.assertEquals(expected, recorder.statements);
+        Assert.assertEquals(Collections.singletonList("ex=" + NS), recorder.namespaces);
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+        Assert.assertEquals(1, recorder.passes);
+    }
+
+    @Test
+    public void testNil() throws RDFHandlerException {
+        final Recorder recorder = run(RDFProcessors.NIL, data());
+        Assert.assertEquals(Collections.emptyList(), recorder.statements);
+        Assert.assertEquals(Collections.emptyList(), recorder.namespaces);
+        Assert.assertEquals(Collections.emptyList(), recorder.comments);
+        Assert.assertEquals(1, recorder.passes);
+    }
+
+    @Test
+    public void testIdentity() throws RDFHandlerException {
+        try (Dictionary dictionary = Dictionary.newMemoryDictionary()) {
+            final Dictionary.QuadHandler handler = Dictionary.QuadHandler.NIL;
+            Assert.assertSame(handler, RDFProcessors.IDENTITY.wrap(dictionary, handler));
+        }
+        final Recorder recorder = run(RDFProcessors.IDENTITY, data());
+        Assert.assertEquals(data(), recorder.statements);
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+    }
+
+    @Test
+    public void testSequence() throws RDFHandlerException {
+        final RDFProcessor processor = RDFProcessors.sequence(RDFProcessors.IDENTITY,
+                RDFProcessors.transform(Transformer.filter((final Statement s) -> s
+                        .getContext() != null)), RDFProcessors.IDENTITY);
+        final Recorder recorder = run(processor, data());
+        Assert.assertEquals(runStatements(processor, data()), recorder.statements);
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+    }
+
+    @Test
+    public void testInject() throws RDFHandlerException {
+        final List<Statement> injected = Collections.singletonList(VF.createStatement(
+                VF.createURI(NS + "x"), RDFS.LABEL, VF.createLiteral("x", "en")));
+        final Recorder recorder = run(RDFProcessors.inject(RDFSources.wrap(injected)), data());
+        final List<Statement> expected = new ArrayList<>(data());
+        expected.addAll(injected);
+        Assert.assertEquals(new HashSet<>(expected), new HashSet<>(recorder.statements));
+        Assert.assertEquals(expected.size(), recorder.statements.size());
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+    }
+
+    @Test
+    public void testTee() throws RDFHandlerException {
+        final Recorder teed = new Recorder();
+        final Recorder recorder = run(RDFProcessors.tee(teed), data());
+        Assert.assertEquals(data(), recorder.statements);
+        Assert.assertEquals(data(), teed.statements);
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+        Assert.assertEquals(Collections.singletonList("comment"), teed.comments);
+        Assert.assertEquals(Collections.singletonList("ex=" + NS), teed.namespaces);
+        Assert.assertEquals(1, teed.passes);
+    }
+
+    @Test
+    public void testUniqueInMemory() throws RDFHandlerException {
+        final List<Statement> input = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            input.addAll(data());
+        }
+        final RDFProcessor processor = RDFProcessors.unique(false, true, null);
+        final Recorder recorder = run(processor, input);
+        Assert.assertEquals(new HashSet<>(data()), new HashSet<>(recorder.statements));
+        Assert.assertEquals(data().size(), recorder.statements.size());
+        Assert.assertEquals(new HashSet<>(runStatements(processor, input)), new HashSet<>(
+                recorder.statements));
+        Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+    }
+
+    @Test
+    public void testTransformRules() throws RDFHandlerException {
+        // rules are evaluated on codes, with the default context matched as sesame:nil
+        for (final String rules : new String[] { "-p rdf:type",
+                "+c <http://www.openrdf.org/schema/sesame#nil>", "=c <" + NS + "other>",
+                "-o *^^* =s <" + NS + "x>", "+s _:*", "=c <http://www.openrdf.org/schema/"
+                        + "sesame#nil> -p rdfs:label" }) {
+            final RDFProcessor processor = RDFProcessors.transform(Transformer.rules(rules));
+            Assert.assertTrue(processor.isQuadNative());
+            final Recorder recorder = run(processor, data());
+            Assert.assertEquals(ProcessorSmushTest.keys(runStatements(processor, data())),
+                    ProcessorSmushTest.keys(recorder.statements));
+            Assert.assertEquals(Collections.singletonList("comment"), recorder.comments);
+        }
+    }
+
+    @Test
+    public void testMapReduce() throws RDFHandlerException {
+        // partitions are sorted as codes, and reduced and bypassed as on statements
+        final URI count = VF.createURI(NS + "count");
+        final Reducer reducer = (final Value key, final Statement[] statements,
+                final RDFHandler handler) -> {
+            Reducer.IDENTITY.reduce(key, statements, handler);
+            handler.handleStatement(VF.createStatement((Resource) key, count, VF
+                    .createLiteral(statements.length)));
+        };
+        final Mapper mapper = Mapper.bypass(Mapper.select("e"), (final Statement s) -> s
+                .getPredicate().equals(RDFS.COMMENT));
+        final List<Statement> input = new ArrayList<>(data());
+        input.addAll(data());
+        for (final boolean deduplicate : new boolean[] { false, true }) {
+            final RDFProcessor processor = RDFProcessors.mapReduce(mapper, reducer, deduplicate);
+            Assert.assertTrue(processor.isQuadNative());
+            Assert.assertEquals(ProcessorSmushTest.keys(runStatements(processor, input)),
+                    ProcessorSmushTest.keys(run(processor, input).statements));
+        }
+    }
+
+    @Test
+    public void testQuadNative() {
+        final RDFProcessor rules = RDFProcessors.transform(Transformer.rules("-p rdf:type"));
+        final RDFProcessor lambda = RDFProcessors.transform(Transformer.filter((
+                final Statement s) -> s.getContext() != null));
+        Assert.assertTrue(RDFProcessors.sequence(RDFProcessors.IDENTITY, rules,
+                RDFProcessors.smush(), RDFProcessors.unique(false, true, null),
+                RDFProcessors.tee(new Recorder())).isQuadNative());
+        Assert.assertFalse(RDFProcessors.sequence(rules, lambda).isQuadNative());
+        Assert.assertFalse(RDFProcessors.unique(false).isQuadNative());
+    }
+
+    private static List<Statement> data() {
+        final URI ctx = VF.createURI(NS + "graph");
+        final List<Statement> statements = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            final URI subj = VF.createURI(NS + "s" + i);
+            statements.add(VF.createStatement(subj, RDF.TYPE, VF.createURI(NS + "C" + i % 3)));
+            statements.add(VF.createStatement(subj, RDFS.LABEL, VF.createLiteral("s" + i), ctx));
+            statements.add(VF.createStatement(subj, RDFS.COMMENT, VF.createLiteral(i)));
+            statements.add(VF.createStatement(VF.createBNode("b" + i), RDFS.SEEALSO, subj, ctx));
+        }
+        return statements;
+    }
+
+    private static Recorder run(final RDFProcessor processor, final List<Statement> input)
+            throws RDFHandlerException {
+        final Recorder recorder = new Recorder();
+        try (Dictionary dictionary = Dictionary.newMemoryDictionary()) {
+            final Dictionary.QuadHandler handler = processor.wrap(dictionary,
+                    dictionary.decode(recorder));
+            handler.start();
+            handler.handleNamespace("ex", NS);
+            handler.handleComment("comment");
+            for (final Statement statement : input) {
+                handler.handle(dictionary.encode(statement.getSubject()),
+                        dictionary.encode(statement.getPredicate()),
+                        dictionary.encode(statement.getObject()),
+                        dictionary.encode(statement.getContext()));
+            }
+            handler.end();
+            handler.close();
+        }
+        return recorder;
+    }
+
+    private static List<Statement> runStatements(final RDFProcessor processor,
+            final List<Statement> input) throws RDFHandlerException {
+        final List<Statement> output = new ArrayList<>();
+        processor.apply(RDFSources.wrap(input), RDFHandlers.wrap(output), 1);
+        return output;
+    }
+
+    private static final class Recorder extends AbstractRDFHandler {
+
+        final List<Statement> statements = Collections.synchronizedList(new ArrayList<>());
+
+        final List<String> namespaces = Collections.synchronizedList(new ArrayList<>());
+
+        final List<String> comments = Collections.synchronizedList(new ArrayList<>());
+
+        int passes;
+
+        @Override
+        public void startRDF() {
+            this.statements.clear();
+            this.namespaces.clear();
+            this.comments.clear();
+        }
+
+        @Override
+        public void handleNamespace(final String prefix, final String uri) {
+            this.namespaces.add(prefix + "=" + uri);
+        }
+
+        @Override
+        public void handleComment(final String comment) {
+            this.comments.add(comment);
+        }
+
+        @Override
+        public void handleStatement(final Statement statement) {
+            this.statements.add(statement);
+        }
+
+        @Override
+        public void endRDF() {
+            ++this.passes;
+        }
+
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti <francesco.corcoglioniti@gmail.com> with support by
+ * Marco Rospocher, Marco Amadori and Michele Mostarda.
+ *
+ * To the extent possible under law, the author has dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+package eu.fbk.rdfpro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.WriterConfig;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import eu.fbk.rdfpro.util.Statements;
+
+public class RDFHandlersTest {
+
+    private static final ValueFactory VF = Statements.VALUE_FACTORY;
+
+    private static final String NS = "http://example.org/";
+
+    private static final String FOAF = "http://xmlns.com/foaf/0.1/";
+
+    private static final String LATE = "http://example.org/late#";
+
+    private static final int NUM_THREADS = 4;
+
+    @Test
+    public void testParallelTurtle() throws Throwable {
+        testParallelTurtle(RDFFormat.TURTLE);
+    }
+
+    @Test
+    public void testParallelTriG() throws Throwable {
+        testParallelTurtle(RDFFormat.TRIG);
+    }
+
+    private void testParallelTurtle(final RDFFormat format) throws Throwable {
+
+        final boolean trig = format.equals(RDFFormat.TRIG);
+        final File file = File.createTempFile("rdfpro-test-", "."
+                + format.getDefaultFileExtension());
+        file.deleteOnExit();
+
+        try {
+            // Statements in the ex: namespace are written by a single thread and exceed the 256KB
+            // block size, so that a block is emitted before any foaf: statement is written;
+            // then subjects are written by multiple threads, with graph switches in TriG
+            final List<Statement> first = new ArrayList<Statement>();
+            for (int i = 0; i < 3000; ++i) {
+                final URI subj = VF.createURI(NS + "first" + i);
+                final Resource ctx = !trig ? null : VF.createURI(NS + "graph" + i % 2);
+                first.add(statement(subj, RDF.TYPE, VF.createURI(NS + "Class"), ctx));
+                first.add(statement(subj, VF.createURI(NS + "label"),
+                        VF.createLiteral("first subject " + i + " " + repeat('x', 80)), ctx));
+            }
+            final List<List<Statement>> partitions = new ArrayList<List<Statement>>();
+            for (int t = 0; t < NUM_THREADS; ++t) {
+                partitions.add(new ArrayList<Statement>());
+            }
+            for (int i = 0; i < 4000; ++i) {
+                final List<Statement> partition = partitions.get(i % NUM_THREADS);
+                final Resource subj = i % 10 == 0 ? VF.createBNode("b" + i) : VF.createURI(NS
+                        + "s" + i);
+                final Resource ctx = !trig || i % 7 == 0 ? null : VF.createURI(NS + "graph" + i
+                        % 3);
+                partition.add(statement(subj, RDF.TYPE, VF.createURI(FOAF + "Person"), ctx));
+                partition.add(statement(subj, VF.createURI(FOAF + "name"),
+                        VF.createLiteral("Name \"" + i + "\"\nè"), ctx));
+                partition.add(statement(subj, VF.createURI(NS + "value"),
+                        VF.createLiteral(Integer.toString(i), XMLSchema.INT), ctx));
+                partition.add(statement(subj, VF.createURI(NS + "label"),
+                        VF.createLiteral("label " + i, "en-us"), ctx));
+                partition.add(statement(subj, VF.createURI(NS + "label"),
+                        VF.createLiteral("other label " + i, "it"), ctx));
+                partition.add(statement(subj, VF.createURI(NS + "link"),
+                        VF.createURI(NS + "s" + (i + 1)), ctx));
+                partition.add(statement(subj, VF.createURI(LATE + "code"),
+                        VF.createLiteral("c" + i), ctx));
+            }
+
+            // A subject whose statements alone exceed the block size
+            final List<Statement> big = new ArrayList<Statement>();
+            final Resource bigSubj = VF.createURI(NS + "big");
+            final Resource bigCtx = trig ? VF.createURI(NS + "graph1") : null;
+            for (int i = 0; i < 5000; ++i) {
+                big.add(statement(bigSubj, VF.createURI(NS + "p" + i % 5),
+                        VF.createLiteral(i + " " + repeat('y', 60)), bigCtx));
+            }
+            partitions.get(0).addAll(0, big);
+
+            final RDFHandler handler = RDFHandlers.write(null, 1, file.getAbsolutePath());
+            try {
+                handler.startRDF();
+                handler.handleNamespace("ex", NS);
+                for (final Statement statement : first) {
+                    handler.handleStatement(statement);
+                }
+                handler.handleNamespace("late", LATE); // after the prefix table is created
+                final Thread[] threads = new Thread[NUM_THREADS];
+                final Throwable[] exceptions = new Throwable[NUM_THREADS];
+                for (int t = 0; t < NUM_THREADS; ++t) {
+                    final int index = t;
+                    threads[t] = new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                for (final Statement statement : partitions.get(index)) {
+                                    handler.handleStatement(statement);
+                                }
+                            } catch (final Throwable ex) {
+                                exceptions[index] = ex;
+                            }
+                        }
+
+                    };
+                    threads[t].start();
+                }
+                for (int t = 0; t < NUM_THREADS; ++t) {
+                    threads[t].join();
+                    if (exceptions[t] != null) {
+                        throw exceptions[t];
+                    }
+                }
+                handler.endRDF();
+            } finally {
+                ((AutoCloseable) handler).close();
+            }
+
+            // Parse the file back and compare statements
+            final List<Statement> expected = new ArrayList<Statement>(first);
+            for (final List<Statement> partition : partitions) {
+                expected.addAll(partition);
+            }
+            final List<Statement> actual = new ArrayList<Statement>();
+            final RDFParser parser = Rio.createParser(format);
+            parser.getParserConfig().set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+            parser.setRDFHandler(new StatementCollector(actual));
+            try (InputStream in = new FileInputStream(file)) {
+                parser.parse(in, NS);
+            }
+            Assert.assertEquals(keys(expected), keys(actual));
+
+            // Check prefixes declared mid-stream, 'a' for rdf:type and graphs split in blocks
+            final String text = new String(Files.readAllBytes(file.toPath()),
+                    Charset.forName("UTF-8"));
+            Assert.assertTrue(text.startsWith("@prefix ex: <" + NS + "> .\n"));
+            final int foafIndex = text.indexOf("@prefix foaf: <" + FOAF + "> .\n");
+            Assert.assertTrue(foafIndex > text.indexOf("ex:first0"));
+            Assert.assertTrue(foafIndex < text.indexOf("foaf:Person"));
+            final int lateIndex = text.indexOf("@prefix late: <" + LATE + "> .\n");
+            Assert.assertTrue(lateIndex > text.indexOf("ex:first0"));
+            Assert.assertTrue(lateIndex < text.indexOf("late:code"));
+            Assert.assertTrue(text.contains(" a ex:Class"));
+            Assert.assertTrue(text.contains(" a foaf:Person"));
+            Assert.assertFalse(text.contains("rdf:type"));
+            Assert.assertFalse(text.contains(RDF.TYPE.stringValue()));
+            if (trig) {
+                Assert.assertTrue(text.indexOf("ex:graph1 {") < text.lastIndexOf("ex:graph1 {"));
+            }
+
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testParallelTurtleInvalidLanguage() throws Throwable {
+        // Invalid language tags are written verbatim with a warning, as done by Sesame writers,
+        // unless the WriterConfig asks to fail on them
+        final File file = File.createTempFile("rdfpro-test-", ".ttl");
+        file.deleteOnExit();
+        try {
+            final URI subj = VF.createURI(NS + "invalid");
+            final String[] languages = new String[] { "en_us", "1abc", "-it-" };
+            for (final boolean fail : new boolean[] { false, true }) {
+                final WriterConfig config = new WriterConfig();
+                config.set(BasicParserSettings.FAIL_ON_UNKNOWN_LANGUAGES, fail);
+                final RDFHandler handler = RDFHandlers.write(config, 1, file.getAbsolutePath());
+                try {
+                    handler.startRDF();
+                    for (int i = 0; i < languages.length; ++i) {
+                        handler.handleStatement(statement(subj, VF.createURI(NS + "lang" + i),
+                                VF.createLiteral("text", languages[i]), null));
+                    }
+                    handler.endRDF();
+                    Assert.assertFalse(fail);
+                } catch (final RDFHandlerException ex) {
+                    Assert.assertTrue(fail);
+                    continue;
+                } finally {
+                    ((AutoCloseable) handler).close();
+                }
+                final String text = new String(Files.readAllBytes(file.toPath()),
+                        Charset.forName("UTF-8"));
+                for (final String language : languages) {
+                    Assert.assertTrue(text.contains("\"text\"@" + language + " "));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static Statement statement(final Resource subj, final URI pred, final Value obj,
+            final Resource ctx) {
+        return ctx == null ? VF.createStatement(subj, pred, obj) //
+                : VF.createStatement(subj, pred, obj, ctx);
+    }
+
+    private static Multiset<String> keys(final List<Statement> statements) {
+        // statement equality in Sesame ignores the context, thus it is compared explicitly
+        final Multiset<String> keys = HashMultiset.create();
+        for (final Statement statement : statements) {
+            final Value obj = statement.getObject();
+            final String lang = obj instanceof Literal ? ((Literal) obj).getLanguage() : null;
+            keys.add(statement.getSubject() + " " + statement.getPredicate() + " " + obj
+                    + (lang == null ? "" : "/" + lang.toLowerCase()) + " "
+                    + statement.getContext());
+        }
+        return keys;
+    }
+
+    private static String repeat(final char ch, final int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            builder.append(ch);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,347 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti <francesco.corcoglioniti@gmail.com> with support by
+ * Marco Rospocher, Marco Amadori and Michele Mostarda.
+ *
+ * To the extent possible under law, the author has dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+package eu.fbk.rdfpro;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+
+import eu.fbk.rdfpro.util.IO;
+import eu.fbk.rdfpro.util.Statements;
+
+public class RDFSourcesTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int SIZE = 6 * 1024 * 1024; // several 1MB splits per file
+
+    private static final String[] SPECIAL_CHARS = new String[] { "\\n", "\\\"", "è", "漢",
+            "😀" };
+
+    @Test
+    public void testSplitNQuads() throws Throwable {
+        test(".nq", false);
+    }
+
+    @Test
+    public void testSplitNTriplesCRLF() throws Throwable {
+        test(".nt", true);
+    }
+
+    @Test
+    public void testSplitTQL() throws Throwable {
+        test(".tql", false);
+    }
+
+    @Test
+    public void testTQLRawLineTerminators() throws Throwable {
+        // TQL literals may contain raw line terminators, thus a large TQL file must not be split
+        // on lines, otherwise statements would be dropped or garbled
+        final byte[] escaped = data(SIZE, true, false, 13);
+        final byte[] data = new String(escaped, UTF8).replace("\\n", "\n").getBytes(UTF8);
+        Assert.assertTrue(countLines(data) > countLines(escaped));
+        final File file = write(".tql", data);
+        try {
+            final Multiset<String> expected = parse(false, file);
+            final Multiset<String> actual = parse(true, file);
+            Assert.assertEquals(countLines(escaped), expected.size());
+            Assert.assertEquals(expected, actual);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSplitMultiMemberGzip() throws Throwable {
+        test(".nq.gz", true);
+    }
+
+    @Test
+    public void testMultipleFiles() throws Throwable {
+        // A large file split in many jobs, plus smaller and non-splittable files whose jobs are
+        // dealt to the same workers, so that idle workers steal the remaining splits
+        final String[] extensions = new String[] { ".nq", ".nt", ".tql", ".nq.gz", ".ttl",
+                ".nq", ".nt" };
+        final int[] sizes = new int[] { 4 * SIZE, 100, 64 * 1024, SIZE, 2 * 1024 * 1024, 0,
+                1024 * 1024 + 1 };
+        final File[] files = new File[extensions.length];
+        int lines = 0;
+        try {
+            for (int i = 0; i < files.length; ++i) {
+                final boolean quads = extensions[i].startsWith(".nq")
+                        || extensions[i].equals(".tql");
+                final byte[] data = data(sizes[i], quads, i % 2 == 0, i);
+                files[i] = write(extensions[i], data);
+                lines += countLines(data);
+            }
+            final Multiset<String> expected = parse(false, files);
+            final Multiset<String> actual = parse(true, files);
+            Assert.assertEquals(lines, expected.size());
+            Assert.assertEquals(expected, actual);
+        } finally {
+            for (final File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPassCacheInject() throws Throwable {
+        // @read and @query emit their source once per pass: with a multi-pass processor after
+        // them, the source must be emitted once, the second pass replaying the same statements
+        // (including BNodes, which here change at each emission as for SPARQL results)
+        final AtomicInteger emissions = new AtomicInteger();
+        final RDFSource source = new RDFSource() {
+
+            @Override
+            public void emit(final RDFHandler handler, final int passes)
+                    throws RDFSourceException, RDFHandlerException {
+                emissions.addAndGet(passes);
+                final List<Statement> statements = new ArrayList<Statement>();
+                for (int i = 0; i < 1000; ++i) {
+                    final BNode bnode = Statements.VALUE_FACTORY.createBNode();
+                    statements.add(Statements.VALUE_FACTORY.createStatement(bnode,
+                            Statements.VALUE_FACTORY.createURI("ex:p"),
+                            Statements.VALUE_FACTORY.createLiteral(i)));
+                }
+                RDFSources.wrap(statements).emit(handler, passes);
+            }
+
+        };
+
+        final RDFProcessor twoPasses = new RDFProcessor() {
+
+            @Override
+            public int getExtraPasses() {
+                return 1;
+            }
+
+            @Override
+            public RDFHandler wrap(final RDFHandler handler) {
+                return handler;
+            }
+
+        };
+
+        final List<Multiset<String>> passes = new ArrayList<Multiset<String>>();
+        final RDFHandler collector = new AbstractRDFHandler() {
+
+            @Override
+            public void startRDF() throws RDFHandlerException {
+                passes.add(HashMultiset.<String>create());
+            }
+
+            @Override
+            public void handleStatement(final Statement statement) throws RDFHandlerException {
+                synchronized (passes) {
+                    passes.get(passes.size() - 1).add(statement.getSubject() + " "
+                            + statement.getPredicate() + " " + statement.getObject());
+                }
+            }
+
+        };
+
+        final File directory = Files.createTempDirectory("rdfpro-test-").toFile();
+        try {
+            RDFProcessors.sequence(
+                    RDFProcessors.inject(RDFSources.cache(source, true, directory)),
+                    twoPasses).apply(RDFSources.wrap(Collections.<Statement>emptyList()),
+                    collector, 1);
+            Assert.assertEquals(1, emissions.get());
+            Assert.assertEquals(2, passes.size());
+            Assert.assertEquals(1000, passes.get(0).size());
+            Assert.assertEquals(passes.get(0), passes.get(1));
+            Assert.assertEquals(0, directory.list().length); // cache deleted on close
+        } finally {
+            directory.delete();
+        }
+    }
+
+    private static void test(final String extension, final boolean crlf) throws Throwable {
+
+        final byte[] data = data(SIZE, !extension.startsWith(".nt"), crlf, extension.length());
+        final File file = write(extension, data);
+        try {
+
+            // Ranges returned for each split must add up to the whole file, with lines that
+            // straddle split points returned by exactly one split
+            for (final int splits : new int[] { 2, 3, 7, 64 }) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int split = 0; split < splits; ++split) {
+                    try (InputStream in = IO.read(file.getAbsolutePath(), split, splits,
+                            (byte) '\n')) {
+                        Assert.assertNotNull(in);
+                        final byte[] bytes = read(in);
+                        if (bytes.length > 0) {
+                            Assert.assertEquals('\n', bytes[bytes.length - 1]);
+                        }
+                        out.write(bytes);
+                    }
+                }
+                Assert.assertArrayEquals(data, out.toByteArray());
+            }
+
+            // Serial and split parsing must produce the same statements
+            final Multiset<String> expected = parse(false, file);
+            final Multiset<String> actual = parse(true, file);
+            Assert.assertEquals(countLines(data), expected.size());
+            Assert.assertEquals(expected, actual);
+
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static File write(final String extension, final byte[] data) throws IOException {
+        final File file = File.createTempFile("rdfpro-test-", extension);
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(extension.endsWith(".gz") ? gzip(data, 97, extension.length()) : data);
+        }
+        return file;
+    }
+
+    private static Multiset<String> parse(final boolean parallelize, final File... files)
+            throws Throwable {
+        // statement equality in Sesame ignores the context, thus it is compared explicitly
+        final String[] locations = new String[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            locations[i] = files[i].getAbsolutePath();
+        }
+        final Multiset<String> keys = HashMultiset.create();
+        RDFSources.read(parallelize, true, null, null, locations).emit(
+                new AbstractRDFHandler() {
+
+                    @Override
+                    public void handleStatement(final Statement statement)
+                            throws RDFHandlerException {
+                        final String key = statement.getSubject() + " "
+                                + statement.getPredicate() + " " + statement.getObject() + " "
+                                + statement.getContext();
+                        synchronized (keys) {
+                            keys.add(key);
+                        }
+                    }
+
+                }, 1);
+        return keys;
+    }
+
+    private static byte[] data(final int size, final boolean quads, final boolean crlf,
+            final long seed) {
+        // Lines of random length (from a few bytes to several KB) with multi-byte chars, so that
+        // split points fall everywhere, including in the middle of UTF-8 sequences
+        final Random random = new Random(seed);
+        final StringBuilder builder = new StringBuilder();
+        final int[] lengths = new int[] { 1, 10, 100, 1000, 10000 };
+        for (int i = 0; builder.length() < size; ++i) {
+            builder.append(random.nextInt(4) == 0 ? "_:b" + random.nextInt(1000)
+                    : "<http://ex.org/s" + random.nextInt(10000) + ">");
+            builder.append(" <http://ex.org/p").append(random.nextInt(10)).append("> ");
+            final int kind = random.nextInt(5);
+            if (kind == 0) {
+                builder.append("<http://ex.org/o").append(i).append(">");
+            } else if (kind == 1) {
+                builder.append("_:o").append(random.nextInt(1000));
+            } else {
+                builder.append('"');
+                final int length = random.nextInt(lengths[random.nextInt(lengths.length)]);
+                for (int j = 0; j < length; ++j) {
+                    final int n = random.nextInt(20);
+                    if (n < SPECIAL_CHARS.length) {
+                        builder.append(SPECIAL_CHARS[n]);
+                    } else {
+                        builder.append((char) ('a' + random.nextInt(26)));
+                    }
+                }
+                builder.append('"');
+                builder.append(kind == 3 ? "@en-us" : kind == 4 ? "^^<http://ex.org/t>" : "");
+            }
+            if (quads && random.nextBoolean()) {
+                builder.append(random.nextBoolean() ? " <http://ex.org/g" + random.nextInt(5)
+                        + ">" : " _:g" + random.nextInt(5));
+            }
+            builder.append(" .").append(crlf ? "\r\n" : "\n");
+        }
+        return builder.toString().getBytes(UTF8);
+    }
+
+    private static byte[] gzip(final byte[] data, final int members, final long seed)
+            throws IOException {
+        // Members cut at random offsets, so that lines cross member boundaries
+        final Random random = new Random(seed);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int offset = 0;
+        for (int i = 0; i < members; ++i) {
+            final int end = i == members - 1 ? data.length : Math.min(data.length, offset
+                    + random.nextInt(2 * data.length / members));
+            final GZIPOutputStream stream = new GZIPOutputStream(out);
+            stream.write(data, offset, end - offset);
+            stream.finish();
+            offset = end;
+        }
+        final byte[] bytes = out.toByteArray();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            Assert.assertArrayEquals(data, read(in)); // sanity check
+        }
+        return bytes;
+    }
+
+    private static int countLines(final byte[] data) {
+        int count = 0;
+        for (final byte b : data) {
+            count += b == '\n' ? 1 : 0;
+        }
+        return count;
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int n = in.read(buffer);
+            if (n < 0) {
+                return out.toByteArray();
+            }
+            out.write(buffer, 0, n);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package eu.fbk.rdfpro.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CodecTest {
+
+    @Test
+    public void testGzipRoundTrip() throws Throwable {
+        final Codec codec = Codec.create("gz");
+        for (final int size : new int[] { 0, 1, 1000, 128 * 1024, 128 * 1024 + 1,
+                3 * 1024 * 1024 + 17 }) {
+            final byte[] data = data(size, size);
+            final byte[] compressed = compress(codec, data);
+            Assert.assertArrayEquals(data, decompress(codec, compressed));
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+                Assert.assertArrayEquals(data, read(in)); // output is a standard gzip member
+            }
+        }
+    }
+
+    @Test
+    public void testGzipLevels() throws Throwable {
+        final byte[] data = data(1024 * 1024, 1);
+        for (final int level : new int[] { 1, 6, 9 }) {
+            final Codec codec = Codec.create("gzip", Integer.toString(level));
+            Assert.assertArrayEquals(data, decompress(codec, compress(codec, data)));
+        }
+    }
+
+    @Test
+    public void testGzipMultiMember() throws Throwable {
+        final Codec codec = Codec.create("gz");
+        final byte[] data = data(4 * 1024 * 1024, 2);
+        final byte[] compressed = compressMembers(data, 40, 3);
+        Assert.assertArrayEquals(data, decompress(codec, compressed));
+
+        final File file = File.createTempFile("rdfpro-codec", ".gz");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(compressed);
+        }
+        try {
+            for (final int splits : new int[] { 2, 3, 8, 64 }) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int split = 0; split < splits; ++split) {
+                    try (InputStream in = codec.decompress(file, split, splits, (byte) '\n')) {
+                        Assert.assertNotNull(in);
+                        out.write(read(in));
+                    }
+                }
+                Assert.assertArrayEquals(data, out.toByteArray());
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testGzipSingleMemberNotSplit() throws Throwable {
+        final Codec codec = Codec.create("gz");
+        final File file = File.createTempFile("rdfpro-codec", ".gz");
+        file.deleteOnExit();
+        try (OutputStream out = codec.compress(new FileOutputStream(file))) {
+            out.write(data(1024 * 1024, 4));
+        }
+        try {
+            Assert.assertNull(codec.decompress(file, 0, 4, (byte) '\n'));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testGzipTruncated() throws Throwable {
+        final Codec codec = Codec.create("gz");
+        final byte[] compressed = compress(codec, data(512 * 1024, 5));
+        final byte[] truncated = new byte[compressed.length - 20];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        decompress(codec, truncated);
+    }
+
+    private static byte[] data(final int size, final long seed) {
+        // Lines of pseudo-random words, so that data compresses and can be split at newlines
+        final Random random = new Random(seed);
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            final int n = random.nextInt(40);
+            data[i] = (byte) (n == 0 ? '\n' : n < 8 ? ' ' : 'a' + n % 26);
+        }
+        return data;
+    }
+
+    private static byte[] compress(final Codec codec, final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream stream = codec.compress(out)) {
+            for (int offset = 0; offset < data.length; offset += 10000) {
+                stream.write(data, offset, Math.min(10000, data.length - offset));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] compressMembers(final byte[] data, final int members, final long seed)
+            throws IOException {
+        // Members cut at random offsets, so that lines cross member boundaries
+        final Random random = new Random(seed);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int offset = 0;
+        for (int i = 0; i < members; ++i) {
+            final int end = i == members - 1 ? data.length : Math.min(data.length, offset
+                    + random.nextInt(2 * data.length / members));
+            final GZIPOutputStream stream = new GZIPOutputStream(out);
+            stream.write(data, offset, end - offset);
+            stream.finish();
+            offset = end;
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] decompress(final Codec codec, final byte[] data) throws IOException {
+        try (InputStream in = codec.decompress(new ByteArrayInputStream(data))) {
+            return read(in);
+        }
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int n = in.read(buffer);
+            if (n < 0) {
+                return out.toByteArray();
+            }
+            out.write(buffer, 0, n);
+        }
+    }
+
+}
@@ -1,14 +1,21 @@
 package eu.fbk.rdfpro.util;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.openrdf.model.Literal;
 import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
 import org.openrdf.model.URI;
@@ -52,6 +59,123 @@ public class DictionaryTest {
         }
     }
 
+    @Test
+    public void testMapped() throws Throwable {
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final List<Value> values = Lists.newArrayList();
+        for (int i = 0; i < 10000; ++i) {
+            values.add(vf.createURI("http://example.org/ns#v" + i));
+            values.add(vf.createLiteral("label " + i + " \u00e8", i % 2 == 0 ? "en" : "it"));
+            values.add(vf.createBNode("b" + i));
+        }
+        values.add(vf.createLiteral(Strings.repeat("long", 100)));
+        values.add(vf.createLiteral("12", XMLSchema.INT));
+        try (final Dictionary d = Dictionary.newMappedDictionary(null)) {
+            final int[] codes = new int[values.size()];
+            IntStream.range(0, values.size()).parallel().forEach(i -> {
+                codes[i] = d.encode(values.get(i));
+            });
+            for (int i = 0; i < values.size(); ++i) {
+                Assert.assertEquals(codes[i], d.encode(values.get(i)));
+                Assert.assertEquals(values.get(i), d.decode(codes[i]));
+                Assert.assertEquals(values.get(i) instanceof URI, d.isURI(codes[i]));
+                Assert.assertEquals(values.get(i) instanceof Literal, d.isLiteral(codes[i]));
+            }
+            Assert.assertTrue(d.isNull(d.encode((Value) null)));
+            Assert.assertFalse(d.isResource(d.encode((Value) null)));
+        }
+    }
+
+    @Test
+    public void testConcurrentEncode() throws Throwable {
+        // Threads encode the same values in different orders, racing to add each of them (and
+        // their namespaces, languages and datatypes) while tables are rehashed: every value must
+        // get exactly one code, distinct from the codes of other values
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final List<Value> values = Lists.newArrayList();
+        for (int i = 0; i < 20000; ++i) {
+            values.add(vf.createURI("http://example.org/ns" + i % 500 + "#v" + i));
+            values.add(vf.createLiteral("label " + i, "l" + i % 300));
+            values.add(vf.createLiteral("v" + i, vf.createURI("http://example.org/dt" + i % 200)));
+        }
+        for (final Dictionary d : new Dictionary[] { Dictionary.newMemoryDictionary(),
+                Dictionary.newMappedDictionary(null) }) {
+            try {
+                final int threads = 8;
+                final int[][] codes = new int[threads][values.size()];
+                final CyclicBarrier barrier = new CyclicBarrier(threads);
+                final List<Thread> workers = new ArrayList<Thread>();
+                final List<Throwable> exceptions = Collections
+                        .synchronizedList(new ArrayList<Throwable>());
+                for (int t = 0; t < threads; ++t) {
+                    final int thread = t;
+                    workers.add(new Thread() {
+
+                        @Override
+                        public void run() {
+                            try {
+                                final List<Integer> order = Lists.newArrayList();
+                                for (int i = 0; i < values.size(); ++i) {
+                                    order.add(i);
+                                }
+                                Collections.shuffle(order, new Random(thread));
+                                barrier.await();
+                                for (final int i : order) {
+                                    codes[thread][i] = d.encode(values.get(i));
+                                }
+                            } catch (final Throwable ex) {
+                                exceptions.add(ex);
+                            }
+                        }
+
+                    });
+                }
+                for (final Thread worker : workers) {
+                    worker.start();
+                }
+                for (final Thread worker : workers) {
+                    worker.join();
+                }
+                Assert.assertEquals(Collections.emptyList(), exceptions);
+                final Set<Integer> distinct = new HashSet<Integer>();
+                for (int i = 0; i < values.size(); ++i) {
+                    for (int t = 1; t < threads; ++t) {
+                        Assert.assertEquals(codes[0][i], codes[t][i]);
+                    }
+                    Assert.assertEquals(values.get(i), d.decode(codes[0][i]));
+                    distinct.add(codes[0][i]);
+                }
+                Assert.assertEquals(values.size(), distinct.size());
+            } finally {
+                d.close();
+            }
+        }
+    }
+
+    @Test
+    public void testHighOffsets() {
+        // Values stored above 8GB are 8 byte aligned and use a different code mapping; more
+        // values than the encode cache can hold are used, so that re-encoding looks them up
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final List<Value> values = Lists.newArrayList();
+        for (int i = 0; i < 5000; ++i) {
+            values.add(vf.createURI("http://example.org/ns#v" + i));
+            values.add(vf.createLiteral("label " + i, "en"));
+            values.add(vf.createLiteral(Strings.repeat("long" + i, 40)));
+        }
+        try (final Dictionary d = Dictionary.newMemoryDictionary((1L << 33) - 64 * 1024)) {
+            final int[] codes = new int[values.size()];
+            for (int i = 0; i < values.size(); ++i) {
+                codes[i] = d.encode(values.get(i));
+            }
+            Assert.assertTrue(codes[codes.length - 1] < 0); // last values above 8GB
+            for (int i = 0; i < values.size(); ++i) {
+                Assert.assertEquals(codes[i], d.encode(values.get(i)));
+                Assert.assertEquals(values.get(i), d.decode(codes[i]));
+            }
+        }
+    }
+
     @Test
     public void test2() throws RDFHandlerException {
         final Set<Value> set = new HashSet<>();
@@ -0,0 +1,108 @@
+package eu.fbk.rdfpro.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Strings;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.NTriplesParserSettings;
+import org.openrdf.rio.helpers.StatementCollector;
+
+public class NQuadsParserTest {
+
+    private static final String TRIPLES = "" //
+            + "# comment\n" //
+            + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .\n" //
+            + "\n" //
+            + "  <http://ex.org/s>\t<http://ex.org/p>   \"plain\" . # trailing comment\r\n" //
+            + "_:b1 <http://ex.org/p> \"lang\"@en-US .\r\n" //
+            + "_:b2 <http://ex.org/p> _:b3 .\n" //
+            + "<http://ex.org/s> <http://ex.org/p> \"1\"^^<http://www.w3.org/2001/XMLSchema#int> .\n"
+            + "<http://ex.org/è> <http://ex.org/p> \"café 漢 😀\" .\n" //
+            + "<http://ex.org/\\u00E8> <http://ex.org/p> \"a\\tb\\nc\\\"d\\\\e\\u00e9\\U0001F600\" .\n"
+            + "<http://ex.org/s> <http://ex.org/p> \"" + Strings.repeat("long", 50000) + "\" .\n"
+            + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .";
+
+    private static final String QUADS = TRIPLES.replace("<http://ex.org/p> _:b3 .",
+            "<http://ex.org/p> _:b3 _:g .") + "\n" //
+            + "<http://ex.org/s> <http://ex.org/p> \"x\"@it <http://ex.org/g> .\n";
+
+    @Test
+    public void testTriples() throws Throwable {
+        test(RDFFormat.NTRIPLES, TRIPLES);
+    }
+
+    @Test
+    public void testQuads() throws Throwable {
+        test(RDFFormat.NQUADS, QUADS);
+    }
+
+    @Test
+    public void testBNodeLabels() throws Throwable {
+        final List<Statement> statements = parse(new NQuadsParser(RDFFormat.NQUADS),
+                "_:b.1 <http://ex.org/p> _:b2 _:g3.\n", false);
+        Assert.assertEquals("b.1", ((BNode) statements.get(0).getSubject()).getID());
+        Assert.assertEquals("g3", ((BNode) statements.get(0).getContext()).getID());
+    }
+
+    @Test(expected = RDFParseException.class)
+    public void testInvalid() throws Throwable {
+        parse(new NQuadsParser(RDFFormat.NTRIPLES), "<http://ex.org/s> <http://ex.org/p> .\n",
+                true);
+    }
+
+    @Test
+    public void testLineNumbers() throws Throwable {
+        // the CR LF pair ending the first line is split across a buffer refill
+        final String prefix = "<http://ex.org/s> <http://ex.org/p> \"";
+        final String line = prefix + Strings.repeat("x", 64 * 1024 - 1 - prefix.length() - 3)
+                + "\" .";
+        try {
+            parse(new NQuadsParser(RDFFormat.NQUADS), line + "\r\n<http://ex.org/s> .\n", false);
+            Assert.fail();
+        } catch (final RDFParseException ex) {
+            Assert.assertEquals(2, ex.getLineNumber());
+        }
+    }
+
+    private static void test(final RDFFormat format, final String data) throws Throwable {
+        final List<Statement> expected = parse(Rio.createParser(format), data, false);
+        final List<Statement> actual = parse(new NQuadsParser(format), data, false);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(expected.get(i), actual.get(i));
+            Assert.assertEquals(expected.get(i).getContext(), actual.get(i).getContext());
+        }
+        Assert.assertEquals(actual, parse(new NQuadsParser(format), data, true));
+    }
+
+    private static List<Statement> parse(final RDFParser parser, final String data,
+            final boolean reader) throws Throwable {
+        final ParserConfig config = new ParserConfig();
+        config.set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        config.set(NTriplesParserSettings.FAIL_ON_NTRIPLES_INVALID_LINES, true);
+        final List<Statement> statements = new ArrayList<Statement>();
+        parser.setParserConfig(config);
+        parser.setRDFHandler(new StatementCollector(statements));
+        if (reader) {
+            parser.parse(new StringReader(data), "");
+        } else {
+            parser.parse(new ByteArrayInputStream(data.getBytes(Charset.forName("UTF-8"))), "");
+        }
+        return statements;
+    }
+
+}
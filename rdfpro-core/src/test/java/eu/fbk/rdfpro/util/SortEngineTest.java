@@ -0,0 +1,116 @@
+package eu.fbk.rdfpro.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SortEngineTest {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    @Test
+    public void testInMemory() throws Throwable {
+        test(false, false, 1024 * 1024);
+        test(true, false, 1024 * 1024);
+    }
+
+    @Test
+    public void testSpilling() throws Throwable {
+        test(false, false, 4096);
+        test(true, false, 4096);
+    }
+
+    @Test
+    public void testKeyed() throws Throwable {
+        test(false, true, 1024 * 1024);
+        test(true, true, 4096);
+    }
+
+    private void test(final boolean deduplicate, final boolean keyed, final int bufferSize)
+            throws Throwable {
+
+        final List<String> records = new ArrayList<String>();
+        final Random random = new Random(0);
+        for (int i = 0; i < 20000; ++i) {
+            final StringBuilder builder = new StringBuilder();
+            if (keyed) {
+                final int key = random.nextInt(1000);
+                for (int j = 0; j < Sorter.KEY_LENGTH; ++j) {
+                    builder.append((char) (0x80 | (j < 2 ? key >>> j * 7 & 0x7F : 0)));
+                }
+            }
+            final int len = 1 + random.nextInt(12);
+            for (int j = 0; j < len; ++j) {
+                builder.append((char) ('a' + random.nextInt(random.nextBoolean() ? 3 : 26)));
+            }
+            records.add(builder.toString());
+        }
+
+        final File directory = Files.createTempDirectory("rdfpro-sort").toFile();
+        try (final SortEngine engine = new SortEngine(deduplicate, keyed, directory,
+                bufferSize)) {
+            final int numThreads = 4;
+            final Thread[] threads = new Thread[numThreads];
+            final Throwable[] exceptions = new Throwable[numThreads];
+            for (int t = 0; t < numThreads; ++t) {
+                final int index = t;
+                final OutputStream out = engine.newOutput();
+                threads[t] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = index; i < records.size(); i += numThreads) {
+                                out.write(records.get(i).getBytes(ISO_8859_1));
+                                out.write(0);
+                            }
+                            out.close();
+                        } catch (final Throwable ex) {
+                            exceptions[index] = ex;
+                        }
+                    }
+
+                };
+                threads[t].start();
+            }
+            for (int t = 0; t < numThreads; ++t) {
+                threads[t].join();
+                if (exceptions[t] != null) {
+                    throw exceptions[t];
+                }
+            }
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream in = engine.end()) {
+                final byte[] buffer = new byte[1000];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    bytes.write(buffer, 0, n);
+                }
+            }
+
+            final List<String> expected = new ArrayList<String>(deduplicate ? new TreeSet<String>(
+                    records) : records);
+            Collections.sort(expected);
+            final List<String> actual = new ArrayList<String>();
+            for (final String record : new String(bytes.toByteArray(), ISO_8859_1).split("\0")) {
+                actual.add(record);
+            }
+            Assert.assertEquals(expected, actual);
+        }
+        Assert.assertEquals(0, directory.list().length);
+        directory.delete();
+    }
+
+}
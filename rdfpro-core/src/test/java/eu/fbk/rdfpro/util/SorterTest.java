@@ -0,0 +1,278 @@
+package eu.fbk.rdfpro.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+public class SorterTest {
+
+    private static final ValueFactory VF = Statements.VALUE_FACTORY;
+
+    private static final String RDFS_NS = "http://www.w3.org/2000/01/rdf-schema#";
+
+    @Test
+    public void testKeyedEncoding() throws Throwable {
+        testKeyedEncoding(false);
+        testKeyedEncoding(true);
+    }
+
+    private void testKeyedEncoding(final boolean compress) throws Throwable {
+
+        // Records made of a value, acting as key, and a statement, with duplicates
+        final Random random = new Random(0);
+        final List<Object[]> records = new ArrayList<Object[]>();
+        for (int i = 0; i < 20000; ++i) {
+            final Value key = value(random, 200);
+            final Statement statement = statement(random, 50);
+            records.add(new Object[] { key, statement });
+            if (i % 10 == 0) {
+                records.add(new Object[] { key, statement });
+            }
+        }
+
+        // Sort them with the text and the keyed (radix) encodings, spilling to disk
+        final Sorter.Dictionary dictionary = new Sorter.Dictionary();
+        final List<String> text = sort(records, dictionary, false, compress);
+        final List<String> keyed = sort(records, dictionary, true, compress);
+
+        // Same records, deduplicated, must be returned
+        final TreeSet<String> expected = new TreeSet<String>();
+        for (final Object[] record : records) {
+            expected.add(format(record[0]) + " | " + format(record[1]));
+        }
+        Assert.assertEquals(expected, new TreeSet<String>(text));
+        Assert.assertEquals(expected, new TreeSet<String>(keyed));
+        Assert.assertEquals(expected.size(), text.size());
+        Assert.assertEquals(expected.size(), keyed.size());
+
+        // Records with the same key are adjacent and ordered as with the text encoding
+        final Map<String, List<String>> textGroups = group(text);
+        final Map<String, List<String>> keyedGroups = group(keyed);
+        Assert.assertEquals(textGroups, keyedGroups);
+    }
+
+    @Test
+    public void testGroupedValue() throws Throwable {
+        testGrouped(Value.class, false);
+        testGrouped(Value.class, true);
+    }
+
+    @Test
+    public void testGroupedStatement() throws Throwable {
+        testGrouped(Statement.class, false);
+        testGrouped(Statement.class, true);
+    }
+
+    @Test
+    public void testGroupedString() throws Throwable {
+        testGrouped(String.class, false);
+    }
+
+    @Test
+    public void testGroupedNumber() throws Throwable {
+        testGrouped(Long.class, false);
+    }
+
+    private void testGrouped(final Class<?> keyClass, final boolean compress) throws Throwable {
+
+        // Groups of different sizes: mostly small, some spanning several 256KB chunks
+        final Random random = new Random(keyClass.getName().hashCode());
+        final Map<String, Object> keys = new LinkedHashMap<String, Object>();
+        while (keys.size() < 3000) {
+            final Object key = keyClass == Value.class ? value(random, 1000000)
+                    : keyClass == Statement.class ? statement(random, 1000000)
+                            : keyClass == String.class ? string(random, 1000000) : random
+                                    .nextBoolean() ? (long) random.nextInt(1000000) : random
+                                    .nextLong();
+            keys.put(format(key), key);
+        }
+        final List<Object[]> records = new ArrayList<Object[]>();
+        final Map<String, Integer> expected = new LinkedHashMap<String, Integer>();
+        int index = 0;
+        for (final Map.Entry<String, Object> entry : keys.entrySet()) {
+            final int size = index++ % 500 == 0 ? 30000 + random.nextInt(10000) : 1 + random
+                    .nextInt(index % 3 == 0 ? 200 : 5);
+            for (int i = 0; i < size; ++i) {
+                records.add(new Object[] { entry.getValue(), (long) records.size() });
+            }
+            expected.put(entry.getKey(), size);
+        }
+
+        // Emit records from multiple threads and decode them by group
+        final List<List<Object[]>> consumed = new ArrayList<List<Object[]>>();
+        try (Sorter<Object[]> sorter = Sorter.newTupleSorter(compress, keyClass, Long.class)) {
+            sorter.start(false);
+            final int numThreads = 4;
+            final Thread[] threads = new Thread[numThreads];
+            final Throwable[] exceptions = new Throwable[numThreads];
+            for (int t = 0; t < numThreads; ++t) {
+                final int offset = t;
+                threads[t] = new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = offset; i < records.size(); i += numThreads) {
+                                sorter.emit(records.get(i));
+                            }
+                        } catch (final Throwable ex) {
+                            exceptions[offset] = ex;
+                        }
+                    }
+
+                };
+                threads[t].start();
+            }
+            for (int t = 0; t < numThreads; ++t) {
+                threads[t].join();
+                if (exceptions[t] != null) {
+                    throw exceptions[t];
+                }
+            }
+            sorter.endGrouped(() -> {
+                final List<Object[]> list = new ArrayList<Object[]>();
+                synchronized (consumed) {
+                    consumed.add(list);
+                }
+                return list::add;
+            });
+        }
+
+        // Each group must be delivered whole, to a single consumer, without interleaving
+        final Map<String, Integer> actual = new LinkedHashMap<String, Integer>();
+        final TreeSet<Long> ids = new TreeSet<Long>();
+        for (final List<Object[]> list : consumed) {
+            String lastKey = null;
+            for (final Object[] record : list) {
+                final String key = format(record[0]);
+                Assert.assertTrue(keys.containsKey(key));
+                if (!key.equals(lastKey)) {
+                    Assert.assertNull("Group split or interleaved: " + key, actual.get(key));
+                    actual.put(key, 0);
+                    lastKey = key;
+                }
+                actual.put(key, actual.get(key) + 1);
+                Assert.assertTrue(ids.add((Long) record[1]));
+            }
+        }
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        for (final String key : expected.keySet()) {
+            Assert.assertEquals(expected.get(key), actual.get(key));
+        }
+        Assert.assertEquals(records.size(), ids.size());
+    }
+
+    private static List<String> sort(final List<Object[]> records,
+            final Sorter.Dictionary dictionary, final boolean keyed, final boolean compress)
+            throws IOException {
+        final File directory = Files.createTempDirectory("rdfpro-sort").toFile();
+        final List<String> result = new ArrayList<String>();
+        try (SortEngine engine = new SortEngine(true, keyed, directory, 16 * 1024)) {
+            final Sorter.Output output = new Sorter.Output(engine.newOutput(), dictionary,
+                    keyed);
+            for (final Object[] record : records) {
+                output.writeValue((Value) record[0], compress);
+                output.endKey();
+                output.writeStatement((Statement) record[1], compress);
+                output.endRecord();
+            }
+            output.close();
+            try (InputStream in = engine.end()) {
+                final Sorter.Input input = new Sorter.Input(in, dictionary, keyed);
+                while (input.nextRecord()) {
+                    final Value key = input.readValue();
+                    final Statement statement = input.readStatement();
+                    result.add(format(key) + " | " + format(statement));
+                }
+            }
+        } finally {
+            directory.delete();
+        }
+        return result;
+    }
+
+    private static Map<String, List<String>> group(final List<String> records) {
+        final Map<String, List<String>> groups = new LinkedHashMap<String, List<String>>();
+        String lastKey = null;
+        for (final String record : records) {
+            final String key = record.substring(0, record.indexOf(" | "));
+            if (!key.equals(lastKey)) {
+                Assert.assertFalse("Records not adjacent for key " + key,
+                        groups.containsKey(key));
+                groups.put(key, new ArrayList<String>());
+                lastKey = key;
+            }
+            groups.get(key).add(record);
+        }
+        return groups;
+    }
+
+    private static String format(final Object object) {
+        // statement equality in Sesame ignores the context, thus it is compared explicitly
+        if (object instanceof Statement) {
+            final Statement statement = (Statement) object;
+            return statement.getSubject() + " " + statement.getPredicate() + " "
+                    + statement.getObject() + " " + statement.getContext();
+        }
+        return String.valueOf(object);
+    }
+
+    private static Statement statement(final Random random, final int range) {
+        final Resource subj = (Resource) (random.nextBoolean() ? uri(random, range) : VF
+                .createBNode("b" + random.nextInt(range)));
+        final URI pred = VF.createURI("http://ex.org/p" + random.nextInt(5));
+        final Value obj = value(random, range);
+        final int c = random.nextInt(4);
+        return c == 0 ? VF.createStatement(subj, pred, obj) : VF.createStatement(subj, pred, obj,
+                c == 1 ? VF.createBNode("g") : VF.createURI("http://ex.org/g" + c));
+    }
+
+    private static Value value(final Random random, final int range) {
+        final int n = random.nextInt(range);
+        switch (random.nextInt(7)) {
+        case 0:
+            return VF.createBNode("b" + n);
+        case 1:
+            return VF.createLiteral(string(random, range));
+        case 2:
+            return VF.createLiteral(Integer.toString(n), XMLSchema.INT);
+        case 3:
+            return VF.createLiteral("v" + n, VF.createURI("http://ex.org/type" + n % 3));
+        case 4:
+            return VF.createLiteral("label " + n, n % 2 == 0 ? "en" : "it");
+        case 5:
+            return VF.createURI(RDFS_NS + (n % 2 == 0 ? "label" : "comment"));
+        default:
+            return uri(random, range);
+        }
+    }
+
+    private static URI uri(final Random random, final int range) {
+        return VF.createURI("http://ex.org/" + (random.nextBoolean() ? "è漢/" : "") + "r"
+                + random.nextInt(range));
+    }
+
+    private static String string(final Random random, final int range) {
+        // Include chars 0x01-0x07 and 0x0000, escaped by the encoding, and non-ASCII chars
+        final int n = random.nextInt(4);
+        final String prefix = n == 0 ? "\u0001\u0000x\u0007" : n == 1 ? "èé漢\uFFFF" : "";
+        return prefix + random.nextInt(range);
+    }
+
+}
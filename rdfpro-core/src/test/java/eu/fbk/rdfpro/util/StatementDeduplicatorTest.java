@@ -0,0 +1,48 @@
+package eu.fbk.rdfpro.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+
+import eu.fbk.rdfpro.util.StatementDeduplicator.ComparisonMethod;
+
+public class StatementDeduplicatorTest {
+
+    private static final int SIZE = 100000;
+
+    @Test
+    public void testTotalHash() {
+        final StatementDeduplicator deduplicator = StatementDeduplicator
+                .newTotalDeduplicator(ComparisonMethod.HASH);
+        for (int i = 0; i < SIZE; ++i) {
+            Assert.assertTrue(deduplicator.add(statement(i)));
+        }
+        for (int i = 0; i < SIZE; ++i) {
+            Assert.assertFalse(deduplicator.test(statement(i)));
+        }
+        Assert.assertTrue(deduplicator.test(statement(SIZE)));
+    }
+
+    @Test
+    public void testApproximate() {
+        final StatementDeduplicator deduplicator = StatementDeduplicator
+                .newApproximateDeduplicator(0.001, 16 * 1024 * 1024);
+        int dropped = 0;
+        for (int i = 0; i < SIZE; ++i) {
+            dropped += deduplicator.add(statement(i)) ? 0 : 1;
+        }
+        for (int i = 0; i < SIZE; ++i) {
+            Assert.assertFalse(deduplicator.add(statement(i)));
+        }
+        Assert.assertTrue(dropped <= SIZE * 0.001);
+    }
+
+    private static Statement statement(final int index) {
+        final URI subj = Statements.VALUE_FACTORY.createURI("ex:s" + index % 1000);
+        final URI pred = Statements.VALUE_FACTORY.createURI("ex:p");
+        final URI obj = Statements.VALUE_FACTORY.createURI("ex:o" + index / 1000);
+        return Statements.VALUE_FACTORY.createStatement(subj, pred, obj);
+    }
+
+}
@@ -45,4 +45,76 @@ public class StringIndexTest {
         }
     }
 
+    @Test
+    public void testFrontCoding() {
+        for (final StringIndex index : new StringIndex[] { new StringIndex(),
+                new StringIndex(Buffer.newDirectBuffer(), Buffer.newDirectBuffer()) }) {
+            final int[] ids = new int[50000];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = index.put(string(i));
+            }
+            final StringBuilder builder = new StringBuilder("<").append(string(7)).append(">");
+            Assert.assertEquals(ids[7], index.put(builder, 1, builder.length() - 1));
+            Assert.assertEquals(ids.length, index.size());
+            for (int i = 0; i < ids.length; ++i) {
+                final String string = string(i);
+                Assert.assertEquals(string, index.get(ids[i]));
+                Assert.assertEquals(string.length(), index.length(ids[i]));
+                Assert.assertTrue(index.equals(ids[i], string));
+                Assert.assertFalse(index.equals(ids[i], string + "x"));
+                Assert.assertTrue(index.contains(string));
+            }
+            index.close();
+        }
+    }
+
+    @Test
+    public void testLargeStrings() {
+        // strings > 64KB spanning several 64KB pages, the second one jumping past the page array
+        for (final StringIndex index : new StringIndex[] { new StringIndex(),
+                new StringIndex(Buffer.newDirectBuffer(), Buffer.newDirectBuffer()) }) {
+            final String[] strings = new String[] { Strings.repeat("a\u00e8", 45000),
+                    Strings.repeat("b", 150000), Strings.repeat("c", 300000) };
+            final int[] ids = new int[strings.length];
+            for (int i = 0; i < strings.length; ++i) {
+                ids[i] = index.put(strings[i]);
+            }
+            for (int i = 0; i < strings.length; ++i) {
+                Assert.assertEquals(strings[i], index.get(ids[i]));
+                Assert.assertEquals(strings[i].length(), index.length(ids[i]));
+                Assert.assertTrue(index.equals(ids[i], strings[i]));
+                Assert.assertTrue(index.contains(strings[i]));
+            }
+            index.close();
+        }
+    }
+
+    @Test
+    public void testLargeStringsOverPageSize() {
+        // strings whose encoding exceeds the 512KB large page must not be overwritten
+        for (final StringIndex index : new StringIndex[] { new StringIndex(),
+                new StringIndex(Buffer.newDirectBuffer(), Buffer.newDirectBuffer()) }) {
+            final String[] strings = new String[] { Strings.repeat("\u00e8", 175000),
+                    Strings.repeat("d", 1000), Strings.repeat("f\u00e9", 200000),
+                    Strings.repeat("g", 600000), Strings.repeat("h", 2000) };
+            final int[] ids = new int[strings.length];
+            for (int i = 0; i < strings.length; ++i) {
+                ids[i] = index.put(strings[i]);
+            }
+            Assert.assertEquals(strings.length, index.size());
+            for (int i = 0; i < strings.length; ++i) {
+                Assert.assertEquals(strings[i], index.get(ids[i]));
+                Assert.assertEquals(strings[i].length(), index.length(ids[i]));
+                Assert.assertTrue(index.equals(ids[i], strings[i]));
+                Assert.assertEquals(ids[i], index.put(strings[i]));
+            }
+            index.close();
+        }
+    }
+
+    private static String string(final int index) {
+        return index % 100 == 0 ? Strings.repeat("\u00e8long", 40) + index
+                : "http://example.org/ns" + index % 7 + "/caf\u00e9_" + index;
+    }
+
 }
@@ -29,13 +29,16 @@ import java.util.Properties;
 import javax.annotation.Nullable;
 
 import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import eu.fbk.rdfpro.RDFHandlers;
 import eu.fbk.rdfpro.RDFProcessor;
 import eu.fbk.rdfpro.RDFProcessors;
+import eu.fbk.rdfpro.util.Dictionary;
 import eu.fbk.rdfpro.util.Environment;
+import eu.fbk.rdfpro.util.IO;
 
 /**
  * RDFpro main class.
@@ -129,15 +132,8 @@ public final class Main {
 
         try {
             final long ts = System.currentTimeMillis();
-            final RDFHandler handler = processor.wrap(RDFHandlers.NIL);
-            final int repetitions = processor.getExtraPasses() + 1;
-            for (int i = 0; i < repetitions; ++i) {
-                if (repetitions > 1) {
-                    LOGGER.info("Pass {} of {}", i + 1, repetitions);
-                }
-                handler.startRDF();
-                handler.endRDF();
-            }
+            run(processor, Boolean.parseBoolean(Environment.getProperty("rdfpro.dictionary",
+                    "false")));
             LOGGER.info("Done in {} s", (System.currentTimeMillis() - ts) / 1000);
             System.exit(0);
 
@@ -148,6 +144,46 @@ public final class Main {
         }
     }
 
+    static void run(final RDFProcessor processor, final boolean useDictionary)
+            throws RDFHandlerException, IOException {
+        final int repetitions = processor.getExtraPasses() + 1;
+        final boolean quads = useDictionary && processor.isQuadNative();
+        if (useDictionary && !quads) {
+            LOGGER.info("Running on statements, as not all processors work on int quads");
+        }
+        if (quads) {
+            // Values are stored in mapped files, as their number is bounded only by the input
+            try (Dictionary dictionary = Dictionary.newMappedDictionary(null)) {
+                final Dictionary.QuadHandler handler = processor.wrap(dictionary,
+                        Dictionary.QuadHandler.NIL);
+                try {
+                    for (int i = 0; i < repetitions; ++i) {
+                        if (repetitions > 1) {
+                            LOGGER.info("Pass {} of {}", i + 1, repetitions);
+                        }
+                        handler.start();
+                        handler.end();
+                    }
+                } finally {
+                    IO.closeQuietly(handler); // e.g., discards @unique spills
+                }
+            }
+        } else {
+            final RDFHandler handler = processor.wrap(RDFHandlers.NIL);
+            try {
+                for (int i = 0; i < repetitions; ++i) {
+                    if (repetitions > 1) {
+                        LOGGER.info("Pass {} of {}", i + 1, repetitions);
+                    }
+                    handler.startRDF();
+                    handler.endRDF();
+                }
+            } finally {
+                IO.closeQuietly(handler); // e.g., discards @unique spills
+            }
+        }
+    }
+
     @Nullable
     private static String readVersion(final String groupId, final String artifactId,
             @Nullable final String defaultValue) {
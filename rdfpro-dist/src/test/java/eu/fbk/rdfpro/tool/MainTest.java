@@ -0,0 +1,87 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ *
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.tool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.model.vocabulary.RDFS;
+import org.openrdf.rio.RDFHandlerException;
+
+import eu.fbk.rdfpro.RDFHandlers;
+import eu.fbk.rdfpro.RDFProcessor;
+import eu.fbk.rdfpro.RDFProcessors;
+import eu.fbk.rdfpro.RDFSources;
+import eu.fbk.rdfpro.Transformer;
+import eu.fbk.rdfpro.util.Statements;
+
+public class MainTest {
+
+    @Test
+    public void testDictionarySwitch() throws RDFHandlerException, IOException {
+        // @read -> @unique -M -> @write, run on statements and on int quads
+        final List<Statement> statementOutput = Collections.synchronizedList(new ArrayList<>());
+        final List<Statement> quadOutput = Collections.synchronizedList(new ArrayList<>());
+        Assert.assertTrue(newProcessor(null, quadOutput).isQuadNative());
+        Main.run(newProcessor(null, statementOutput), false);
+        Main.run(newProcessor(null, quadOutput), true);
+
+        Assert.assertEquals(1000, statementOutput.size());
+        Assert.assertEquals(statementOutput.size(), quadOutput.size());
+        Assert.assertEquals(new HashSet<>(statementOutput), new HashSet<>(quadOutput));
+    }
+
+    @Test
+    public void testDictionaryFallback() throws RDFHandlerException, IOException {
+        // a Java transformer needs statements, so the whole pipeline runs on statements
+        final RDFProcessor filter = RDFProcessors.transform(Transformer.filter((
+                final Statement s) -> s.getContext() != null));
+        final List<Statement> statementOutput = Collections.synchronizedList(new ArrayList<>());
+        final List<Statement> fallbackOutput = Collections.synchronizedList(new ArrayList<>());
+        Assert.assertFalse(newProcessor(filter, fallbackOutput).isQuadNative());
+        Main.run(newProcessor(filter, statementOutput), false);
+        Main.run(newProcessor(filter, fallbackOutput), true);
+
+        Assert.assertEquals(500, statementOutput.size());
+        Assert.assertEquals(new HashSet<>(statementOutput), new HashSet<>(fallbackOutput));
+    }
+
+    private static RDFProcessor newProcessor(@Nullable final RDFProcessor processor,
+            final List<Statement> output) {
+        final ValueFactory vf = Statements.VALUE_FACTORY;
+        final URI ctx = vf.createURI("http://example.org/graph");
+        final List<Statement> input = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            final URI subj = vf.createURI("http://example.org/s" + i % 500);
+            input.add(vf.createStatement(subj, RDF.TYPE, RDFS.RESOURCE));
+            input.add(vf.createStatement(subj, RDFS.LABEL, vf.createLiteral("s" + i % 500), ctx));
+        }
+        return RDFProcessors.sequence(RDFProcessors.inject(RDFSources.wrap(input)),
+                RDFProcessors.unique(false, true, null),
+                processor != null ? processor : RDFProcessors.IDENTITY,
+                RDFProcessors.tee(RDFHandlers.wrap(output)));
+    }
+
+}
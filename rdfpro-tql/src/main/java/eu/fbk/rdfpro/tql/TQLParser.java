@@ -15,9 +15,14 @@ package eu.fbk.rdfpro.tql;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.Objects;
 
 import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
@@ -36,18 +41,54 @@ import org.openrdf.rio.helpers.RDFParserBase;
  * A parser that can parse RDF documents that are in the Turtle Quads (TQL) format. TQL is N-Quads
  * with the more permissive (and efficient!) Turtle encoding. TQL is used in DBpedia exports and
  * is supported in input by the Virtuoso triple store.
+ * <p>
+ * The parser works directly on UTF-8 bytes: input is read in a byte buffer, each line is
+ * tokenized in place and UTF-8 decoding and unescaping are performed only for the lexical forms
+ * of the values produced, and only when they contain escapes or non-ASCII chars. Recently seen
+ * URIs (including predicates, datatypes and contexts) and language tags are cached based on
+ * their byte representation, so that repeated terms do not cause any allocation. As TQL is line
+ * based, each statement should be on a single line, so that a TQL file can be split at line
+ * boundaries and its parts parsed in parallel with separate parser instances; still, literals
+ * containing raw line terminators are accepted and may span multiple lines, although files
+ * containing them cannot be split safely. Parsing from a {@code Reader} is supported for
+ * compatibility but does not provide any benefit.
+ * </p>
  */
 public class TQLParser extends RDFParserBase {
 
-    private static final int EOF = -1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
-    private Reader reader;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int URI_CACHE_SIZE = 4 * 1024; // must be a power of 2
+
+    private static final int LANGUAGE_CACHE_SIZE = 64; // must be a power of 2
+
+    private InputStream in;
+
+    private byte[] buffer;
+
+    private int pos; // position of next byte to parse
+
+    private int end; // end of current line, excluding line terminators
+
+    private int limit; // end of valid data in buffer
+
+    private boolean eof;
 
     private int lineNo;
 
     private StringBuilder builder;
 
-    private Value value;
+    private byte[][] uriKeys;
+
+    private URI[] uriValues;
+
+    private byte[][] languageKeys;
+
+    private String[] languageValues;
 
     /**
      * Creates a new TQLParser that will use a {@link ValueFactoryImpl} to create RDF model
@@ -74,48 +115,112 @@ public class TQLParser extends RDFParserBase {
     }
 
     @Override
-    public void parse(final InputStream stream, final String baseURI) throws IOException,
+    public void parse(final Reader reader, final String baseURI) throws IOException,
             RDFParseException, RDFHandlerException {
-        parse(new InputStreamReader(stream, Charset.forName("UTF-8")), baseURI);
+        Objects.requireNonNull(reader);
+        parse(new InputStream() {
+
+            // Chars are UTF-8 encoded in reused buffers; unpaired surrogates are encoded as '?'
+            private final CharsetEncoder encoder = UTF8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+            private final CharBuffer chars = (CharBuffer) CharBuffer.allocate(BUFFER_SIZE / 4)
+                    .limit(0);
+
+            private final ByteBuffer bytes = (ByteBuffer) ByteBuffer.allocate(
+                    BUFFER_SIZE / 4 * 3 + 16).limit(0);
+
+            private boolean eof = false;
+
+            private boolean flushed = false;
+
+            @Override
+            public int read() throws IOException {
+                if (!this.bytes.hasRemaining() && !fill()) {
+                    return -1;
+                }
+                return this.bytes.get() & 0xFF;
+            }
+
+            @Override
+            public int read(final byte[] buf, final int off, final int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                } else if (!this.bytes.hasRemaining() && !fill()) {
+                    return -1;
+                }
+                final int n = Math.min(len, this.bytes.remaining());
+                this.bytes.get(buf, off, n);
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                reader.close();
+            }
+
+            private boolean fill() throws IOException {
+                this.bytes.clear();
+                while (this.bytes.position() == 0 && !this.flushed) {
+                    if (this.eof) {
+                        this.encoder.encode(this.chars, this.bytes, true);
+                        this.encoder.flush(this.bytes);
+                        this.flushed = true;
+                    } else {
+                        this.chars.compact(); // keeps a high surrogate not yet encoded
+                        final int n = reader.read(this.chars);
+                        this.chars.flip();
+                        if (n < 0) {
+                            this.eof = true;
+                        } else {
+                            this.encoder.encode(this.chars, this.bytes, false);
+                        }
+                    }
+                }
+                this.bytes.flip();
+                return this.bytes.hasRemaining();
+            }
+
+        }, baseURI);
     }
 
     @Override
-    public void parse(final Reader reader, final String baseURI) throws IOException,
+    public void parse(final InputStream stream, final String baseURI) throws IOException,
             RDFParseException, RDFHandlerException {
 
-        if (reader == null) {
-            throw new NullPointerException("Null reader");
-        }
+        Objects.requireNonNull(stream);
 
         if (this.rdfHandler != null) {
             this.rdfHandler.startRDF();
         }
 
-        this.reader = reader;
-        this.lineNo = 1;
-        this.builder = new StringBuilder(1024);
-        this.value = null;
-
-        reportLocation(this.lineNo, 1);
+        this.in = stream;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.pos = 0;
+        this.end = 0;
+        this.limit = 0;
+        this.eof = false;
+        this.lineNo = 0;
+        this.builder = new StringBuilder();
+        this.uriKeys = new byte[URI_CACHE_SIZE][];
+        this.uriValues = new URI[URI_CACHE_SIZE];
+        this.languageKeys = new byte[LANGUAGE_CACHE_SIZE][];
+        this.languageValues = new String[LANGUAGE_CACHE_SIZE];
 
         try {
-            int c = read();
-            c = skipWhitespace(c);
-            while (c != EOF) {
-                if (c == '#') {
-                    c = skipLine(c);
-                } else if (c == '\r' || c == '\n') {
-                    c = skipLine(c);
-                } else {
-                    c = parseQuad(c);
-                }
-                c = skipWhitespace(c);
+            while (nextLine()) {
+                parseLine();
             }
         } finally {
             clear();
-            this.reader = null;
+            this.in = null;
+            this.buffer = null;
             this.builder = null;
-            this.value = null;
+            this.uriKeys = null;
+            this.uriValues = null;
+            this.languageKeys = null;
+            this.languageValues = null;
         }
 
         if (this.rdfHandler != null) {
@@ -123,80 +228,135 @@ public class TQLParser extends RDFParserBase {
         }
     }
 
-    private int skipLine(final int ch) throws IOException {
-        int c = ch;
-        while (c != EOF && c != '\r' && c != '\n') {
-            c = read();
-        }
-        if (c == '\n') {
-            c = read();
-            this.lineNo++;
-            reportLocation(this.lineNo, 1);
-        } else if (c == '\r') {
-            c = read();
-            if (c == '\n') {
-                c = read();
-            }
-            this.lineNo++;
-            reportLocation(this.lineNo, 1);
+    private boolean nextLine() throws IOException {
+
+        // Skip the terminator of the previous line, if any; the LF of a CR LF pair may not be
+        // buffered yet, so it is skipped while scanning (otherwise it would end an empty line)
+        this.pos = this.end;
+        boolean afterCR = false;
+        if (this.pos < this.limit) {
+            afterCR = this.buffer[this.pos++] == '\r';
         }
-        return c;
-    }
 
-    private int skipWhitespace(final int ch) throws IOException {
-        int c = ch;
-        while (c == ' ' || c == '\t') {
-            c = read();
+        // Locate the end of the next line, refilling or growing the buffer as necessary
+        int index = this.pos;
+        while (true) {
+            while (index < this.limit) {
+                final byte b = this.buffer[index];
+                if (afterCR) {
+                    afterCR = false;
+                    if (b == '\n') {
+                        this.pos = ++index;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    this.end = index;
+                    ++this.lineNo;
+                    return true;
+                }
+                ++index;
+            }
+            if (this.eof) {
+                this.end = this.limit;
+                ++this.lineNo;
+                return this.pos < this.limit;
+            }
+            if (this.pos > 0) {
+                System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+                index -= this.pos;
+                this.limit -= this.pos;
+                this.pos = 0;
+            } else if (this.limit == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            }
+            final int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (n < 0) {
+                this.eof = true;
+            } else {
+                this.limit += n;
+            }
         }
-        return c;
     }
 
-    private int parseQuad(final int ch) throws IOException, RDFParseException, RDFHandlerException {
+    private int extendLine() throws IOException, RDFParseException {
 
-        int c = ch;
-        try {
-            c = parseResource(c);
-            boolean periodConsumed = (c & 0x80000000) != 0;
-            final Resource subject = (Resource) this.value;
-            if (periodConsumed) {
-                throwParseException("Found unexpected '.' " + (char) c);
+        // Include the terminator of the current line and the next line in the current line, as
+        // done for literals with raw line terminators; bytes before pos may be discarded and the
+        // following ones moved at the beginning of the buffer, by the offset returned
+        if (this.end == this.limit) {
+            throwEOLException(); // end of file
+        }
+        final int offset = this.pos;
+        int index = this.end + 1;
+        boolean afterCR = this.buffer[this.end] == '\r';
+        if (this.pos > 0) {
+            System.arraycopy(this.buffer, this.pos, this.buffer, 0, this.limit - this.pos);
+            index -= this.pos;
+            this.limit -= this.pos;
+            this.pos = 0;
+        }
+        while (true) {
+            while (index < this.limit) {
+                final byte b = this.buffer[index];
+                if (afterCR) {
+                    afterCR = false;
+                    if (b == '\n') {
+                        ++index;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    this.end = index;
+                    ++this.lineNo;
+                    return offset;
+                }
+                ++index;
             }
-
-            c = skipWhitespace(c);
-            c = parseURI(c);
-            periodConsumed = (c & 0x80000000) != 0;
-            final URI predicate = (URI) this.value;
-            if (periodConsumed) {
-                throwParseException("Found unexpected '.' " + (char) c);
+            if (this.eof) {
+                this.end = this.limit;
+                ++this.lineNo;
+                return offset;
+            }
+            if (this.limit == this.buffer.length) {
+                this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+            }
+            final int n = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+            if (n < 0) {
+                this.eof = true;
+            } else {
+                this.limit += n;
             }
+        }
+    }
 
-            c = skipWhitespace(c);
-            c = parseValue(c);
-            periodConsumed = (c & 0x80000000) != 0;
-            final Value object = this.value;
+    private void parseLine() throws IOException, RDFParseException, RDFHandlerException {
 
+        skipWhitespace();
+        if (this.pos == this.end || this.buffer[this.pos] == '#') {
+            return; // empty or comment line
+        }
+
+        try {
+            final Resource subject = parseResource();
+            skipWhitespace();
+            final URI predicate = parseURI();
+            skipWhitespace();
+            final Value object = parseValue();
+            skipWhitespace();
             Resource context = null;
-            if (!periodConsumed) {
-                c = skipWhitespace(c);
-                if (c != '.') {
-                    c = parseResource(c);
-                    periodConsumed = (c & 0x80000000) != 0;
-                    context = (Resource) this.value;
-                    if (!periodConsumed) {
-                        c = skipWhitespace(c);
-                    }
-                }
+            if (this.pos < this.end && this.buffer[this.pos] != '.') {
+                context = parseResource();
+                skipWhitespace();
             }
-
-            if (c == EOF) {
-                throwEOFException();
-            } else if (c != '.' && !periodConsumed) {
-                throwParseException("Expected '.', found: " + (char) c);
+            if (this.pos == this.end) {
+                throwEOLException();
+            } else if (this.buffer[this.pos] != '.') {
+                throwParseException("Expected '.'");
             }
-
-            c = periodConsumed ? c & 0x7FFFFFFF : read();
-            c = skipWhitespace(c);
-            if (c != EOF && c != '\r' && c != '\n') {
+            ++this.pos;
+            skipWhitespace();
+            if (this.pos < this.end && this.buffer[this.pos] != '#') {
                 throwParseException("Content after '.' is not allowed");
             }
 
@@ -219,234 +379,276 @@ public class TQLParser extends RDFParserBase {
                 throw ex;
             }
         }
+    }
 
-        c = skipLine(c);
-        return c;
+    private void skipWhitespace() {
+        while (this.pos < this.end) {
+            final byte b = this.buffer[this.pos];
+            if (b != ' ' && b != '\t') {
+                break;
+            }
+            ++this.pos;
+        }
     }
 
-    private int parseValue(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        if (c == '<') {
-            c = parseURI(c);
-        } else if (c == '_') {
-            c = parseBNode(c);
-        } else if (c == '"' || c == '\'') {
-            c = parseLiteral(c);
-        } else if (c == EOF) {
-            throwEOFException();
-        } else {
-            throwParseException("Expected '<', '_' or '\"', found: " + (char) c + "");
+    private Value parseValue() throws IOException, RDFParseException {
+        if (this.pos < this.end) {
+            final byte b = this.buffer[this.pos];
+            if (b == '"' || b == '\'') {
+                return parseLiteral();
+            }
         }
-        return c;
+        return parseResource();
     }
 
-    private int parseResource(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        if (c == '<') {
-            c = parseURI(c);
-        } else if (c == '_') {
-            c = parseBNode(c);
-        } else if (c == EOF) {
-            throwEOFException();
-        } else {
-            throwParseException("Expected '<' or '_', found: " + (char) c);
+    private Resource parseResource() throws RDFParseException {
+        if (this.pos == this.end) {
+            throwEOLException();
+        }
+        final byte b = this.buffer[this.pos];
+        if (b == '<') {
+            return parseURI();
+        } else if (b == '_') {
+            return parseBNode();
         }
-        return c;
+        throwParseException("Expected '<' or '_', found: " + (char) b);
+        return null;
     }
 
-    private int parseURI(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        if (c != '<') {
-            throwParseException("Supplied char should be a '<', it is: " + c);
+    private URI parseURI() throws RDFParseException {
+
+        if (this.pos == this.end) {
+            throwEOLException();
+        } else if (this.buffer[this.pos] != '<') {
+            throwParseException("Expected '<', found: " + (char) this.buffer[this.pos]);
         }
-        this.builder.setLength(0);
-        c = read();
-        while (c != '>') {
-            switch (c) {
-            case EOF:
-                throwEOFException();
-                break;
-            case '\\':
-                c = read();
-                if (c == EOF) {
-                    throwEOFException();
-                } else if (c == 'u' || c == 'U') {
-                    parseUChar(c);
-                } else {
-                    this.builder.append((char) c); // accept \> and \\ plus others
-                }
+
+        // Scan the URI, checking whether unescaping and UTF-8 decoding are needed
+        final int start = this.pos + 1;
+        int index = start;
+        int hash = 0;
+        boolean escaped = false;
+        boolean ascii = true;
+        while (true) {
+            if (index == this.end) {
+                throwEOLException();
+            }
+            final byte b = this.buffer[index];
+            if (b == '>') {
                 break;
-            default:
-                if (c < 32) { // discard control chars but accept other chars forbidden by W3C
-                    // rec, for compatibility with previous Turtle specification
-                    throwParseException("Expected valid IRI char, found: " + (char) c);
+            } else if (b == '\\') {
+                escaped = true;
+                if (++index == this.end) {
+                    throwEOLException();
                 }
-                this.builder.append((char) c);
-                break;
+            } else if (b < 0) {
+                ascii = false;
+            } else if (b < 32) {
+                throwParseException("Expected valid IRI char, found: " + b);
             }
-            c = read();
+            hash = 31 * hash + b;
+            ++index;
         }
-        this.value = createURI(this.builder.toString());
-        c = read();
-        return c;
-    }
+        this.pos = index + 1;
 
-    private int parseBNode(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        if (c != '_') {
-            throwParseException("Expected '_', found: " + c);
+        if (escaped) {
+            return createURI(unescape(start, index));
         }
-        c = read();
-        if (c == EOF) {
-            throwEOFException();
-        } else if (c != ':') {
-            throwParseException("Expected ':', found: " + (char) c);
+
+        // Lookup the URI in the cache, decoding and caching it on a miss
+        final int length = index - start;
+        final int slot = (hash ^ hash >>> 16) & URI_CACHE_SIZE - 1;
+        final byte[] key = this.uriKeys[slot];
+        if (key != null && equals(key, start, length)) {
+            return this.uriValues[slot];
         }
-        c = read();
-        if (c == EOF) {
-            throwEOFException();
-        } else if (!TQL.isPN_CHARS_U(c) && !TQL.isNumber(c)) {
-            throwParseException("Invalid bnode character: " + (char) c);
+        final URI uri = createURI(new String(this.buffer, start, length, ascii ? ISO_8859_1
+                : UTF8));
+        this.uriKeys[slot] = Arrays.copyOfRange(this.buffer, start, index);
+        this.uriValues[slot] = uri;
+        return uri;
+    }
+
+    private Resource parseBNode() throws RDFParseException {
+
+        if (this.pos + 2 > this.end) {
+            throwEOLException();
+        } else if (this.buffer[this.pos] != '_' || this.buffer[this.pos + 1] != ':') {
+            throwParseException("Expected '_:'");
         }
-        this.builder.setLength(0);
-        this.builder.append((char) c);
-        c = read();
-        while (c != EOF && TQL.isPN_CHARS(c)) {
-            this.builder.append((char) c);
-            c = read();
+
+        // Accept letters, digits, '_', '-', '.' and non-ASCII chars; trailing '.' are excluded
+        final int start = this.pos + 2;
+        int index = start;
+        while (index < this.end) {
+            final byte b = this.buffer[index];
+            if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b >= '0' && b <= '9'
+                    || b == '_' || b == '-' || b == '.' || b < 0)) {
+                break;
+            }
+            ++index;
         }
-        final int last = this.builder.length() - 1;
-        if (this.builder.charAt(last) == '.') {
-            this.builder.setLength(last); // remove trailing '.' and mark period found
-            c = c | 0x80000000;
+        while (index > start && this.buffer[index - 1] == '.') {
+            --index;
         }
-        this.value = createBNode(this.builder.toString());
-        return c;
+        if (index == start) {
+            throwParseException("Empty BNode label");
+        }
+        this.pos = index;
+        return createBNode(new String(this.buffer, start, index - start, UTF8));
     }
 
-    private int parseLiteral(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        if (c != '"' && c != '\'') {
-            throwParseException("Expected '\"' or '\'', found: " + c);
-        }
-        final int delim = c;
-        this.builder.setLength(0);
-        c = read();
-        while (c != delim) {
-            if (c == EOF) {
-                throwEOFException();
-            } else if (c == '\\') {
-                c = read();
-                switch (c) {
-                case EOF:
-                    throwEOFException();
-                    break;
-                case 'b':
-                    this.builder.append('\b');
-                    break;
-                case 'f':
-                    this.builder.append('\f');
-                    break;
-                case 'n':
-                    this.builder.append('\n');
-                    break;
-                case 'r':
-                    this.builder.append('\r');
-                    break;
-                case 't':
-                    this.builder.append('\t');
-                    break;
-                case 'u':
-                case 'U':
-                    parseUChar(c);
-                    break;
-                default:
-                    this.builder.append((char) c); // handles ' " \
-                    break;
-                }
-            } else {
-                this.builder.append((char) c);
+    private Value parseLiteral() throws IOException, RDFParseException {
+
+        // Scan the label, checking whether unescaping and UTF-8 decoding are needed; raw line
+        // terminators are kept in the label, as accepted by previous versions of the parser
+        final byte delim = this.buffer[this.pos];
+        int start = this.pos + 1;
+        int index = start;
+        boolean escaped = false;
+        boolean ascii = true;
+        while (true) {
+            if (index == this.end) {
+                final int offset = extendLine();
+                start -= offset;
+                index -= offset;
             }
-            c = read();
-        }
-        c = read();
-        final String label = this.builder.toString();
-        if (c == '@') {
-            this.builder.setLength(0);
-            c = read();
-            boolean minusFound = false;
-            while (true) {
-                if (c == '-' && this.builder.length() > 0) {
-                    minusFound = true;
-                } else if (!TQL.isLetter(c) && !(TQL.isNumber(c) && minusFound)) {
-                    break;
+            final byte b = this.buffer[index];
+            if (b == delim) {
+                break;
+            } else if (b == '\\') {
+                escaped = true;
+                if (++index == this.end) {
+                    final int offset = extendLine();
+                    start -= offset;
+                    index -= offset;
                 }
-                this.builder.append((char) c);
-                c = read();
-            }
-            if (this.builder.charAt(this.builder.length() - 1) == '-') {
-                throwParseException("Invalid lang tag: " + this.builder.toString());
+            } else if (b < 0) {
+                ascii = false;
             }
-            final String language = this.builder.toString();
-            this.value = createLiteral(label, language, null, this.lineNo, -1);
-        } else if (c == '^') {
-            c = read();
-            if (c == EOF) {
-                throwEOFException();
-            } else if (c != '^') {
-                throwParseException("Expected '^', found: " + (char) c);
-            }
-            c = read();
-            if (c == EOF) {
-                throwEOFException();
-            } else if (c != '<') {
-                throwParseException("Expected '<', found: " + (char) c);
-            }
-            c = parseURI(c);
-            final URI datatype = (URI) this.value;
-            this.value = createLiteral(label, null, datatype, this.lineNo, -1);
-        } else {
-            this.value = createLiteral(label, null, null, this.lineNo, -1);
+            ++index;
         }
-        return c;
+        this.pos = index + 1;
+        final String label = escaped ? unescape(start, index) : new String(this.buffer, start,
+                index - start, ascii ? ISO_8859_1 : UTF8);
+
+        // Parse the optional language tag or datatype
+        if (this.pos < this.end && this.buffer[this.pos] == '@') {
+            return createLiteral(label, parseLanguage(), null, this.lineNo, -1);
+        } else if (this.pos + 1 < this.end && this.buffer[this.pos] == '^'
+                && this.buffer[this.pos + 1] == '^') {
+            this.pos += 2;
+            return createLiteral(label, null, parseURI(), this.lineNo, -1);
+        }
+        return createLiteral(label, null, null, this.lineNo, -1);
     }
 
-    private void parseUChar(final int ch) throws IOException, RDFParseException {
-        int c = ch;
-        int count = 0;
-        if (c == 'u') {
-            count = 4;
-        } else if (c == 'U') {
-            count = 8;
-        } else {
-            throwParseException("Expected 'u' or 'U', found: " + c);
+    private String parseLanguage() throws RDFParseException {
+
+        final int start = this.pos + 1;
+        int index = start;
+        int hash = 0;
+        while (index < this.end) {
+            final byte b = this.buffer[index];
+            if (!(b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || b == '-' || b >= '0'
+                    && b <= '9' && index > start)) {
+                break;
+            }
+            hash = 31 * hash + b;
+            ++index;
         }
-        int code = 0;
-        for (int i = 0; i < count; ++i) {
-            c = read();
-            if (c == EOF) {
-                throwEOFException();
-            } else {
-                final int digit = Character.digit(c, 16);
-                if (digit < 0) {
-                    throwParseException("Expected hex digit, found: " + (char) c);
+        if (index == start || this.buffer[index - 1] == '-') {
+            throwParseException("Invalid language tag");
+        }
+        this.pos = index;
+
+        final int length = index - start;
+        final int slot = (hash ^ hash >>> 16) & LANGUAGE_CACHE_SIZE - 1;
+        final byte[] key = this.languageKeys[slot];
+        if (key != null && equals(key, start, length)) {
+            return this.languageValues[slot];
+        }
+        final String language = new String(this.buffer, start, length, ISO_8859_1);
+        this.languageKeys[slot] = Arrays.copyOfRange(this.buffer, start, index);
+        this.languageValues[slot] = language;
+        return language;
+    }
+
+    private String unescape(final int start, final int end) throws RDFParseException {
+        final StringBuilder builder = this.builder;
+        builder.setLength(0);
+        int run = start; // start of current run of unescaped bytes
+        for (int index = start; index < end; ++index) {
+            if (this.buffer[index] != '\\') {
+                continue;
+            }
+            builder.append(new String(this.buffer, run, index - run, UTF8));
+            final byte b = this.buffer[++index];
+            switch (b) {
+            case 'b':
+                builder.append('\b');
+                break;
+            case 'f':
+                builder.append('\f');
+                break;
+            case 'n':
+                builder.append('\n');
+                break;
+            case 'r':
+                builder.append('\r');
+                break;
+            case 't':
+                builder.append('\t');
+                break;
+            case 'u':
+            case 'U':
+                final int count = b == 'u' ? 4 : 8;
+                if (index + count >= end) {
+                    throwParseException("Incomplete unicode escape");
+                }
+                int code = 0;
+                for (int i = 1; i <= count; ++i) {
+                    final int digit = Character.digit(this.buffer[index + i], 16);
+                    if (digit < 0) {
+                        throwParseException("Expected hex digit, found: "
+                                + (char) this.buffer[index + i]);
+                    }
+                    code = code * 16 + digit;
                 }
-                code = code * 16 + digit;
+                if (!Character.isValidCodePoint(code)) {
+                    throwParseException("Invalid unicode code point: " + code);
+                }
+                builder.appendCodePoint(code);
+                index += count;
+                break;
+            default:
+                builder.append((char) b); // handles ' " \ > and others
+                break;
             }
+            run = index + 1;
         }
-        this.builder.append((char) code);
+        builder.append(new String(this.buffer, run, end - run, UTF8));
+        return builder.toString();
     }
 
-    private int read() throws IOException {
-        return this.reader.read();
+    private boolean equals(final byte[] key, final int offset, final int length) {
+        if (key.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (key[i] != this.buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
-    private void throwEOFException() throws RDFParseException {
-        throw new RDFParseException("Unexpected end of file", this.lineNo, -1);
+    private void throwEOLException() throws RDFParseException {
+        throw new RDFParseException("Unexpected end of line", this.lineNo, -1);
     }
 
     private void throwParseException(final String message) throws RDFParseException {
         throw new RDFParseException(message, this.lineNo, -1);
     }
 
-}
\ No newline at end of file
+}
@@ -15,9 +15,8 @@ package eu.fbk.rdfpro.tql;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
@@ -34,11 +33,35 @@ import org.openrdf.rio.helpers.RDFWriterBase;
  * An implementation of the RDFWriter interface that writes RDF documents in the Turtle Quads
  * (TQL) format. TQL is N-Quads with the more permissive (and efficient!) Turtle encoding. TQL is
  * used in DBpedia exports and is supported in input by the Virtuoso triple store.
+ * <p>
+ * When writing to an {@code OutputStream}, the writer encodes statements to UTF-8 directly in a
+ * private byte buffer, which is handed to the stream only when full and only at statement
+ * boundaries, so that the stream always receives complete lines. In this mode, the escaped
+ * bytes of recently written predicates, datatypes and contexts are cached and copied as is when
+ * these URIs occur again. A writer instance is meant to be used by a single thread; parallel
+ * writing can be achieved with one instance per thread, each one with its own buffer.
+ * </p>
  */
 public class TQLWriter extends RDFWriterBase {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int CACHE_SIZE = 1024; // must be a power of 2
+
     private final Writer writer;
 
+    private final OutputStream stream;
+
+    private byte[] buffer;
+
+    private int count;
+
+    private char highSurrogate;
+
+    private final String[] cacheKeys;
+
+    private final byte[][] cacheValues;
+
     /**
      * Creates a new TQLWriter that will write to the supplied OutputStream. The UTF-8 character
      * encoding is used.
@@ -47,7 +70,15 @@ public class TQLWriter extends RDFWriterBase {
      *            the OutputStream to write to
      */
     public TQLWriter(final OutputStream stream) {
-        this(new OutputStreamWriter(stream, Charset.forName("UTF-8")));
+        if (stream == null) {
+            throw new NullPointerException("Null stream");
+        }
+        this.writer = null;
+        this.stream = stream;
+        this.buffer = new byte[BUFFER_SIZE];
+        this.count = 0;
+        this.cacheKeys = new String[CACHE_SIZE];
+        this.cacheValues = new byte[CACHE_SIZE][];
     }
 
     /**
@@ -61,6 +92,11 @@ public class TQLWriter extends RDFWriterBase {
             throw new NullPointerException("Null writer");
         }
         this.writer = writer;
+        this.stream = null;
+        this.buffer = null;
+        this.count = 0;
+        this.cacheKeys = null;
+        this.cacheValues = null;
     }
 
     @Override
@@ -87,18 +123,25 @@ public class TQLWriter extends RDFWriterBase {
     public void handleStatement(final Statement statement) throws RDFHandlerException {
         try {
             emitResource(statement.getSubject());
-            this.writer.write(' ');
-            emitURI(statement.getPredicate());
-            this.writer.write(' ');
+            write(' ');
+            emitCachedURI(statement.getPredicate());
+            write(' ');
             emitValue(statement.getObject());
             final Resource ctx = statement.getContext();
-            if (ctx != null) {
-                this.writer.write(' ');
-                emitResource(statement.getContext());
+            if (ctx instanceof URI) {
+                write(' ');
+                emitCachedURI((URI) ctx);
+            } else if (ctx != null) {
+                write(' ');
+                emitResource(ctx);
+            }
+            write(' ');
+            write('.');
+            write('\n');
+            if (this.count > BUFFER_SIZE - 1024) {
+                this.stream.write(this.buffer, 0, this.count);
+                this.count = 0;
             }
-            this.writer.write(' ');
-            this.writer.write('.');
-            this.writer.write('\n');
         } catch (final IOException ex) {
             throw new RDFHandlerException(ex);
         }
@@ -107,8 +150,13 @@ public class TQLWriter extends RDFWriterBase {
     @Override
     public void endRDF() throws RDFHandlerException {
         try {
-            this.writer.flush();
-            this.writer.flush();
+            if (this.writer != null) {
+                this.writer.flush();
+            } else {
+                this.stream.write(this.buffer, 0, this.count);
+                this.count = 0;
+                this.stream.flush();
+            }
         } catch (final IOException ex) {
             throw new RDFHandlerException(ex);
         }
@@ -132,86 +180,107 @@ public class TQLWriter extends RDFWriterBase {
         }
     }
 
+    private void emitCachedURI(final URI uri) throws IOException, RDFHandlerException {
+        if (this.stream == null) {
+            emitURI(uri);
+            return;
+        }
+        final String string = uri.stringValue();
+        final int slot = string.hashCode() & CACHE_SIZE - 1;
+        final String key = this.cacheKeys[slot];
+        if (key != null && key.equals(string)) {
+            final byte[] bytes = this.cacheValues[slot];
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+            this.count += bytes.length;
+        } else {
+            final int start = this.count;
+            emitURI(uri);
+            this.cacheKeys[slot] = string;
+            this.cacheValues[slot] = Arrays.copyOfRange(this.buffer, start, this.count);
+        }
+    }
+
     private void emitURI(final URI uri) throws IOException, RDFHandlerException {
         final String string = uri.stringValue();
         final int length = string.length();
-        this.writer.write('<');
+        write('<');
         for (int i = 0; i < length; ++i) {
             final char ch = string.charAt(i);
             switch (ch) {
             case 0x22: // "
-                this.writer.write("\\u0022");
+                write("\\u0022");
                 break;
             case 0x3C: // <
-                this.writer.write("\\u003C");
+                write("\\u003C");
                 break;
             case 0x3E: // >
-                this.writer.write("\\u003E");
+                write("\\u003E");
                 break;
             case 0x5C: // \
-                this.writer.write("\\u005C");
+                write("\\u005C");
                 break;
             case 0x5E: // ^
-                this.writer.write("\\u005E");
+                write("\\u005E");
                 break;
             case 0x60: // `
-                this.writer.write("\\u0060");
+                write("\\u0060");
                 break;
             case 0x7B: // {
-                this.writer.write("\\u007B");
+                write("\\u007B");
                 break;
             case 0x7C: // |
-                this.writer.write("\\u007C");
+                write("\\u007C");
                 break;
             case 0x7D: // }
-                this.writer.write("\\u007D");
+                write("\\u007D");
                 break;
             case 0x7F: // delete control char (not strictly necessary)
-                this.writer.write("\\u007F");
+                write("\\u007F");
                 break;
             default:
                 if (ch <= 32) { // control char and ' '
-                    this.writer.write("\\u00");
-                    this.writer.write(Character.forDigit(ch / 16, 16));
-                    this.writer.write(Character.forDigit(ch % 16, 16));
+                    write("\\u00");
+                    write(Character.forDigit(ch / 16, 16));
+                    write(Character.forDigit(ch % 16, 16));
                 } else {
-                    this.writer.write(ch);
+                    write(ch);
                 }
             }
         }
-        this.writer.write('>');
+        write('>');
     }
 
     private void emitBNode(final BNode bnode) throws IOException, RDFHandlerException {
         final String id = bnode.getID();
         final int last = id.length() - 1;
-        this.writer.write('_');
-        this.writer.write(':');
+        write('_');
+        write(':');
         if (last < 0) {
-            this.writer.write("genid-hash-");
-            this.writer.write(Integer.toHexString(System.identityHashCode(bnode)));
+            write("genid-hash-");
+            write(Integer.toHexString(System.identityHashCode(bnode)));
         } else {
             char ch = id.charAt(0);
             if (!TQL.isPN_CHARS_U(ch) && !TQL.isNumber(ch)) {
-                this.writer.write("genid-start-");
-                this.writer.write(ch);
+                write("genid-start-");
+                write(ch);
             } else {
-                this.writer.write(ch);
+                write(ch);
             }
             if (last > 0) {
                 for (int i = 1; i < last; ++i) {
                     ch = id.charAt(i);
                     if (TQL.isPN_CHARS(ch) || ch == '.') {
-                        this.writer.write(ch);
+                        write(ch);
                     } else {
-                        this.writer.write(Integer.toHexString(ch));
+                        write(Integer.toHexString(ch));
                     }
                 }
                 ch = id.charAt(last);
                 if (TQL.isPN_CHARS(ch)) {
-                    this.writer.write(ch);
+                    write(ch);
                 } else {
-                    this.writer.write(Integer.toHexString(ch));
+                    write(Integer.toHexString(ch));
                 }
             }
         }
@@ -220,55 +289,55 @@ public class TQLWriter extends RDFWriterBase {
     private void emitLiteral(final Literal literal) throws IOException, RDFHandlerException {
         final String label = literal.getLabel();
         final int length = label.length();
-        this.writer.write('"');
+        write('"');
         for (int i = 0; i < length; ++i) {
             final char ch = label.charAt(i);
             switch (ch) {
             case 0x08: // \b
-                this.writer.write('\\');
-                this.writer.write('b');
+                write('\\');
+                write('b');
                 break;
             case 0x09: // \t
-                this.writer.write('\\');
-                this.writer.write('t');
+                write('\\');
+                write('t');
                 break;
             case 0x0A: // \n
-                this.writer.write('\\');
-                this.writer.write('n');
+                write('\\');
+                write('n');
                 break;
             case 0x0C: // \f
-                this.writer.write('\\');
-                this.writer.write('f');
+                write('\\');
+                write('f');
                 break;
             case 0x0D: // \r
-                this.writer.write('\\');
-                this.writer.write('r');
+                write('\\');
+                write('r');
                 break;
             case 0x22: // "
-                this.writer.write('\\');
-                this.writer.write('"');
+                write('\\');
+                write('"');
                 break;
             case 0x5C: // \
-                this.writer.write('\\');
-                this.writer.write('\\');
+                write('\\');
+                write('\\');
                 break;
             case 0x7F: // delete control char
-                this.writer.write("\\u007F");
+                write("\\u007F");
                 break;
             default:
                 if (ch < 32) { // other control char (not strictly necessary)
-                    this.writer.write("\\u00");
-                    this.writer.write(Character.forDigit(ch / 16, 16));
-                    this.writer.write(Character.forDigit(ch % 16, 16));
+                    write("\\u00");
+                    write(Character.forDigit(ch / 16, 16));
+                    write(Character.forDigit(ch % 16, 16));
                 } else {
-                    this.writer.write(ch);
+                    write(ch);
                 }
             }
         }
-        this.writer.write('"');
+        write('"');
         final String language = literal.getLanguage();
         if (language != null) {
-            this.writer.write('@');
+            write('@');
             final int len = language.length();
             boolean minusFound = false;
             for (int i = 0; i < len; ++i) {
@@ -291,7 +360,7 @@ public class TQLWriter extends RDFWriterBase {
                     throw new RDFHandlerException("Cannot serialize language tag '" + language
                             + "' in TQL: invalid char '" + ch + "' (see Turtle specs)");
                 }
-                this.writer.write(ch);
+                write(ch);
             }
             if (language.charAt(len - 1) == '-') {
                 throw new RDFHandlerException("Cannot serialize language tag '" + language
@@ -300,11 +369,61 @@ public class TQLWriter extends RDFWriterBase {
         } else {
             final URI datatype = literal.getDatatype();
             if (datatype != null && !XMLSchema.STRING.equals(datatype)) {
-                this.writer.write('^');
-                this.writer.write('^');
-                emitURI(datatype);
+                write('^');
+                write('^');
+                emitCachedURI(datatype);
+            }
+        }
+    }
+
+    private void write(final String string) throws IOException {
+        final int length = string.length();
+        for (int i = 0; i < length; ++i) {
+            write(string.charAt(i));
+        }
+    }
+
+    private void write(final char ch) throws IOException {
+        if (this.stream == null) {
+            this.writer.write(ch);
+            return;
+        }
+        ensureCapacity(4);
+        if (this.highSurrogate != 0) {
+            final char high = this.highSurrogate;
+            this.highSurrogate = 0;
+            if (Character.isLowSurrogate(ch)) {
+                final int code = Character.toCodePoint(high, ch);
+                this.buffer[this.count++] = (byte) (0xF0 | code >> 18);
+                this.buffer[this.count++] = (byte) (0x80 | code >> 12 & 0x3F);
+                this.buffer[this.count++] = (byte) (0x80 | code >> 6 & 0x3F);
+                this.buffer[this.count++] = (byte) (0x80 | code & 0x3F);
+                return;
             }
+            this.buffer[this.count++] = '?'; // unpaired surrogate, as done by Java encoder
+            ensureCapacity(4);
+        }
+        if (ch < 0x80) {
+            this.buffer[this.count++] = (byte) ch;
+        } else if (ch < 0x800) {
+            this.buffer[this.count++] = (byte) (0xC0 | ch >> 6);
+            this.buffer[this.count++] = (byte) (0x80 | ch & 0x3F);
+        } else if (Character.isHighSurrogate(ch)) {
+            this.highSurrogate = ch;
+        } else if (Character.isLowSurrogate(ch)) {
+            this.buffer[this.count++] = '?';
+        } else {
+            this.buffer[this.count++] = (byte) (0xE0 | ch >> 12);
+            this.buffer[this.count++] = (byte) (0x80 | ch >> 6 & 0x3F);
+            this.buffer[this.count++] = (byte) (0x80 | ch & 0x3F);
+        }
+    }
+
+    private void ensureCapacity(final int length) {
+        if (this.count + length > this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2,
+                    this.count + length));
         }
     }
 
-}
\ No newline at end of file
+}
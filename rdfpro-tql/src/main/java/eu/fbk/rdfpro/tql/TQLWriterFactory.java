@@ -14,9 +14,7 @@
 package eu.fbk.rdfpro.tql;
 
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.nio.charset.Charset;
 
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFWriter;
@@ -40,7 +38,7 @@ public class TQLWriterFactory implements RDFWriterFactory {
      */
     @Override
     public RDFWriter getWriter(final OutputStream out) {
-        return getWriter(new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        return new TQLWriter(out);
     }
 
     /**
@@ -0,0 +1,169 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ *
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.tql;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.ParserConfig;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.Rio;
+import org.openrdf.rio.helpers.BasicParserSettings;
+import org.openrdf.rio.helpers.NTriplesParserSettings;
+import org.openrdf.rio.helpers.StatementCollector;
+
+public class TQLParserTest {
+
+    // Data valid both as TQL and as N-Quads, thus checked against the Rio N-Quads parser
+    private static final String QUADS = "" //
+            + "# comment\n" //
+            + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .\n" //
+            + "\n" //
+            + "  <http://ex.org/s>\t<http://ex.org/p>   \"plain\" . # trailing comment\r\n" //
+            + "_:b1 <http://ex.org/p> \"lang\"@en-US <http://ex.org/g> .\r\n" //
+            + "_:b2 <http://ex.org/p> _:b3 _:g .\n" //
+            + "<http://ex.org/s> <http://ex.org/p> " //
+            + "\"1\"^^<http://www.w3.org/2001/XMLSchema#int> .\n" //
+            + "<http://ex.org/è> <http://ex.org/p> \"café 漢 😀\" .\n"
+            + "<http://ex.org/\\u00E8> <http://ex.org/p> " //
+            + "\"a\\tb\\nc\\\"d\\\\e\\u00e9\\U0001F600\" .\n" //
+            + "<http://ex.org/s> <http://ex.org/p> \"" + repeat("long", 50000) + "\" .\n"
+            + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .";
+
+    @Test
+    public void testNQuads() throws Throwable {
+        test(QUADS, QUADS);
+    }
+
+    @Test
+    public void testTQLSyntax() throws Throwable {
+        test("<http://ex.org/s> <http://ex.org/p> 'single' .\n" //
+                + "<http://ex.org/s> <http://ex.org/p> 'it\\'s \"quoted\"'@en .\n"
+                + "<http://ex.org/s> <http://ex.org/p> '1'^^<http://ex.org/dt> " //
+                + "<http://ex.org/g> .\n" //
+                + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> "
+                + "<http://www.openrdf.org/schema/sesame#nil> .\n", //
+                "<http://ex.org/s> <http://ex.org/p> \"single\" .\n" //
+                        + "<http://ex.org/s> <http://ex.org/p> \"it's \\\"quoted\\\"\"@en .\n"
+                        + "<http://ex.org/s> <http://ex.org/p> \"1\"^^<http://ex.org/dt> "
+                        + "<http://ex.org/g> .\n" //
+                        + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .\n");
+    }
+
+    @Test
+    public void testBufferBoundaries() throws Throwable {
+        // lines of varying lengths, so that many of them straddle the 64KB buffer boundaries
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 5000; ++i) {
+            builder.append("<http://ex.org/s").append(i).append("> <http://ex.org/p> \"")
+                    .append(repeat("xè", i % 37)).append("\"@en <http://ex.org/g")
+                    .append(i % 3).append("> .").append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        test(builder.toString(), builder.toString());
+    }
+
+    @Test
+    public void testLineNumbers() throws Throwable {
+        // the CR LF pair ending the first line is split across a buffer refill
+        final String prefix = "<http://ex.org/s> <http://ex.org/p> \"";
+        final String line = prefix + repeat("x", 64 * 1024 - 1 - prefix.length() - 3) + "\" .";
+        try {
+            parse(new TQLParser(), line + "\r\n<http://ex.org/s> .\n", false);
+            Assert.fail();
+        } catch (final RDFParseException ex) {
+            Assert.assertEquals(2, ex.getLineNumber());
+        }
+    }
+
+    @Test
+    public void testRawLineTerminators() throws Throwable {
+        // raw line terminators in literals are kept, also when crossing a buffer refill
+        final String prefix = "<http://ex.org/s> <http://ex.org/p> \"";
+        final String filler = repeat("x", 64 * 1024 - 1 - prefix.length());
+        test("<http://ex.org/s> <http://ex.org/p> \"a\nb\r\nc\rd\" .\n" //
+                + "<http://ex.org/s> <http://ex.org/p> 'e\\\nf\n\n'@en <http://ex.org/g> .\r\n"
+                + prefix + filler + "\r\ny\" .\n" //
+                + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .\n", //
+                "<http://ex.org/s> <http://ex.org/p> \"a\\nb\\r\\nc\\rd\" .\n" //
+                        + "<http://ex.org/s> <http://ex.org/p> \"e\\nf\\n\\n\"@en "
+                        + "<http://ex.org/g> .\n" //
+                        + prefix + filler + "\\r\\ny\" .\n" //
+                        + "<http://ex.org/s> <http://ex.org/p> <http://ex.org/o> .\n");
+
+        // physical lines are counted, and a literal left open ends at the end of file
+        try {
+            parse(new TQLParser(), "<http://ex.org/s> <http://ex.org/p> 'a\nb\n' .\n"
+                    + "<http://ex.org/s> .\n", false);
+            Assert.fail();
+        } catch (final RDFParseException ex) {
+            Assert.assertEquals(4, ex.getLineNumber());
+        }
+        try {
+            parse(new TQLParser(), "<http://ex.org/s> <http://ex.org/p> 'a\nb .\n", false);
+            Assert.fail();
+        } catch (final RDFParseException ex) {
+            Assert.assertEquals(3, ex.getLineNumber());
+        }
+    }
+
+    @Test(expected = RDFParseException.class)
+    public void testInvalid() throws Throwable {
+        parse(new TQLParser(), "<http://ex.org/s> <http://ex.org/p> 'open .\n", false);
+    }
+
+    private static void test(final String tql, final String nquads) throws Throwable {
+        final List<Statement> expected = parse(Rio.createParser(RDFFormat.NQUADS), nquads,
+                false);
+        final List<Statement> actual = parse(new TQLParser(), tql, false);
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            Assert.assertEquals(expected.get(i), actual.get(i));
+            Assert.assertEquals(expected.get(i).getContext(), actual.get(i).getContext());
+        }
+        Assert.assertEquals(actual, parse(new TQLParser(), tql, true));
+    }
+
+    private static List<Statement> parse(final RDFParser parser, final String data,
+            final boolean reader) throws Throwable {
+        final ParserConfig config = new ParserConfig();
+        config.set(BasicParserSettings.PRESERVE_BNODE_IDS, true);
+        config.set(NTriplesParserSettings.FAIL_ON_NTRIPLES_INVALID_LINES, true);
+        final List<Statement> statements = new ArrayList<Statement>();
+        parser.setParserConfig(config);
+        parser.setRDFHandler(new StatementCollector(statements));
+        if (reader) {
+            parser.parse(new StringReader(data), "");
+        } else {
+            parser.parse(new ByteArrayInputStream(data.getBytes(Charset.forName("UTF-8"))), "");
+        }
+        return statements;
+    }
+
+    private static String repeat(final String string, final int count) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            builder.append(string);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * RDFpro - An extensible tool for building stream-oriented RDF processing libraries.
+ *
+ * Written in 2014 by Francesco Corcoglioniti with support by Marco Amadori, Michele Mostarda,
+ * Alessio Palmero Aprosio and Marco Rospocher. Contact info on http://rdfpro.fbk.eu/
+ *
+ * To the extent possible under law, the authors have dedicated all copyright and related and
+ * neighboring rights to this software to the public domain worldwide. This software is
+ * distributed without any warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication along with this software.
+ * If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package eu.fbk.rdfpro.tql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandlerException;
+
+public class TQLWriterTest {
+
+    private static final ValueFactory VF = ValueFactoryImpl.getInstance();
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testEscaping() throws Throwable {
+        final List<Statement> statements = new ArrayList<Statement>();
+        final URI p = VF.createURI("http://ex.org/p");
+        final URI g = VF.createURI("http://ex.org/g");
+        statements.add(VF.createStatement(VF.createURI("http://ex.org/s \"<>\\^`{|}\u007F"), p,
+                VF.createURI("http://ex.org/\u0001\tè漢"), g));
+        statements.add(VF.createStatement(VF.createBNode("b.1-è"), p,
+                VF.createLiteral("a\b\t\n\f\r\"\\\u0001\u007F"), VF.createBNode("g")));
+        statements.add(VF.createStatement(VF.createBNode("1.x."), p,
+                VF.createLiteral("lang", "en-US")));
+        statements.add(VF.createStatement(VF.createBNode("1.x."), p,
+                VF.createLiteral("1", XMLSchema.INT)));
+        statements.add(VF.createStatement(VF.createBNode("1.x."), p,
+                VF.createLiteral("string", XMLSchema.STRING)));
+        test(statements);
+    }
+
+    @Test
+    public void testSurrogates() throws Throwable {
+        final List<Statement> statements = new ArrayList<Statement>();
+        final URI p = VF.createURI("http://ex.org/p");
+        for (final String string : new String[] { "😀", "a😀b𐀀",
+                "\uD83D", "a\uD83Db", "\uDE00", "a\uDE00b", "\uD83D😀",
+                "\uDE00😀", "\uD83D\uD83D", "\uD83D\n" }) {
+            statements.add(VF.createStatement(VF.createURI("http://ex.org/" + string), p,
+                    VF.createLiteral(string), VF.createURI("http://ex.org/g" + string)));
+            statements.add(VF.createStatement(VF.createURI("http://ex.org/s"), p,
+                    VF.createLiteral(string, VF.createURI("http://ex.org/t" + string))));
+        }
+        final byte[] bytes = test(statements);
+
+        // Supplementary chars are encoded as 4 bytes, unpaired surrogates as '?'
+        final String text = new String(bytes, UTF8);
+        Assert.assertTrue(text.contains("<http://ex.org/a😀b𐀀> "));
+        Assert.assertTrue(text.contains(" \"a?b\" "));
+        Assert.assertTrue(text.contains(" \"?😀\" "));
+        Assert.assertTrue(text.contains(" \"??\" "));
+        Assert.assertTrue(text.contains(" \"?\\n\" "));
+    }
+
+    @Test
+    public void testCache() throws Throwable {
+        // Predicates, datatypes and contexts repeat, so to hit the cache; as they are more than
+        // the cache size, cached entries are also replaced by other URIs
+        final List<Statement> statements = new ArrayList<Statement>();
+        for (int i = 0; i < 20000; ++i) {
+            final URI s = VF.createURI("http://ex.org/s" + i);
+            final URI p = VF.createURI("http://ex.org/p" + i % 3000 + "è");
+            final URI t = VF.createURI("http://ex.org/t" + i % 7 + "{}");
+            final Resource g = i % 5 == 0 ? VF.createBNode("g" + i % 11) : VF
+                    .createURI("http://ex.org/g" + i % 2000);
+            statements.add(VF.createStatement(s, p, VF.createLiteral("v" + i, t), g));
+            statements.add(VF.createStatement(s, p, VF.createURI("http://ex.org/o" + i), null));
+        }
+        test(statements);
+    }
+
+    @Test
+    public void testFlushThreshold() throws Throwable {
+        // Statements crossing the flush threshold and larger than the whole buffer
+        final List<Statement> statements = new ArrayList<Statement>();
+        final URI p = VF.createURI("http://ex.org/p");
+        for (int i = 0; i < 2000; ++i) {
+            final StringBuilder builder = new StringBuilder();
+            for (int j = 0; j < i % 97; ++j) {
+                builder.append(j % 2 == 0 ? "è😀" : "漢x");
+            }
+            statements.add(VF.createStatement(VF.createURI("http://ex.org/s" + i), p,
+                    VF.createLiteral(builder.toString())));
+            if (i % 500 == 0) {
+                for (int j = 0; j < 70000; ++j) {
+                    builder.append(j % 2 == 0 ? '漢' : '\n');
+                }
+                statements.add(VF.createStatement(VF.createURI("http://ex.org/s" + i), p,
+                        VF.createLiteral(builder.toString())));
+            }
+        }
+        test(statements);
+    }
+
+    @Test(expected = RDFHandlerException.class)
+    public void testInvalidLanguage() throws Throwable {
+        final List<Statement> statements = new ArrayList<Statement>();
+        statements.add(VF.createStatement(VF.createURI("http://ex.org/s"),
+                VF.createURI("http://ex.org/p"), VF.createLiteral("x", "en_US")));
+        write(statements, false, null);
+    }
+
+    private static byte[] test(final List<Statement> statements) throws Throwable {
+        final List<byte[]> chunks = new ArrayList<byte[]>();
+        final byte[] expected = write(statements, false, null);
+        final byte[] actual = write(statements, true, chunks);
+        Assert.assertEquals(new String(expected, UTF8), new String(actual, UTF8));
+        Assert.assertArrayEquals(expected, actual);
+        for (final byte[] chunk : chunks) {
+            Assert.assertEquals('\n', chunk[chunk.length - 1]); // only complete lines written
+        }
+        return actual;
+    }
+
+    private static byte[] write(final List<Statement> statements, final boolean streamMode,
+            final List<byte[]> chunks) throws RDFHandlerException, IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream() {
+
+            @Override
+            public synchronized void write(final byte[] bytes, final int offset,
+                    final int length) {
+                super.write(bytes, offset, length);
+                if (chunks != null && length > 0) {
+                    final byte[] chunk = new byte[length];
+                    System.arraycopy(bytes, offset, chunk, 0, length);
+                    chunks.add(chunk);
+                }
+            }
+
+        };
+        final TQLWriter writer = streamMode ? new TQLWriter(out) : new TQLWriter(
+                new OutputStreamWriter(out, UTF8));
+        writer.startRDF();
+        for (final Statement statement : statements) {
+            writer.handleStatement(statement);
+        }
+        writer.endRDF();
+        return out.toByteArray();
+    }
+
+}